@@ -0,0 +1,50 @@
+#!/usr/bin/python
+#
+# Run a firmware stand-in behind a pseudo-terminal, so ReplicatorG can open
+# it like a machine's serial port.
+#
+# usage: s3g-emulator-pty.py LINK -- COMMAND [ARGS...]
+#
+# LINK is made a symlink to the pty. COMMAND talks to the host over its
+# stdin and stdout, e.g. the S3G emulator in the tests:
+#
+#   scripts/s3g-emulator-pty.py /tmp/ttyS3G -- \
+#       java -cp <ReplicatorG and test classes> \
+#       testing.emulator.S3GEmulator --buffer=512 --latency-us=1000
+#
+# RXTX only lists ports it knows about, so start ReplicatorG (or the
+# throughput runner) with -Dgnu.io.rxtx.SerialPorts=/tmp/ttyS3G.
+# Ctrl-C stops both, and the emulator prints what it saw.
+
+from __future__ import print_function
+import os
+import pty
+import subprocess
+import sys
+import tty
+
+if len(sys.argv) < 4 or sys.argv[2] != "--":
+    print("usage: s3g-emulator-pty.py LINK -- COMMAND [ARGS...]", file=sys.stderr)
+    sys.exit(1)
+
+link = sys.argv[1]
+command = sys.argv[3:]
+
+master, slave = pty.openpty()
+# No echo, no line editing, no CR/LF translation: bytes go through as they are.
+tty.setraw(slave)
+tty.setraw(master)
+
+if os.path.lexists(link):
+    os.remove(link)
+os.symlink(os.ttyname(slave), link)
+print("%s -> %s" % (link, os.ttyname(slave)), file=sys.stderr)
+
+# We keep the slave open ourselves; reads on the master fail once nobody
+# has it open, and the host will open and close it as it connects.
+try:
+    sys.exit(subprocess.call(command, stdin=master, stdout=master))
+except KeyboardInterrupt:
+    pass
+finally:
+    os.remove(link)
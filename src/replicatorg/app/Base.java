@@ -78,6 +78,7 @@ import javax.swing.UIManager;
 import replicatorg.app.ui.MainWindow;
 import replicatorg.app.ui.NotificationHandler;
 import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.gen3.PacketTrace;
 import replicatorg.machine.MachineLoader;
 import replicatorg.machine.MachineInterface;
 import replicatorg.machine.model.MachineType;
@@ -183,6 +184,8 @@ public class Base {
 
 		String logPath = Base.preferences.get("replicatorg.logpath", "");
 		setLogFile(logPath);
+
+		PacketTrace.applyPreferences();
 	}
 	/**
 	 * Path of filename opened on the command line, or via the MRJ open document
@@ -1,9 +1,14 @@
 package replicatorg.app.gcode;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.text.DecimalFormat;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -40,7 +45,9 @@ public class DualStrusionConstruction
 	private final WipeModel leftWipe;
 	private final WipeModel rightWipe;
 	private final MachineType machineType;
-	private MutableGCodeSource  result;
+
+	/// The part of a toolchange to each tool that doesn't depend on the layers around it
+	private final List<String> toLeft, toRight;
 	
 	public DualStrusionConstruction(File leftFile, File rightFile,
 									MutableGCodeSource startSource, MutableGCodeSource endSource,
@@ -48,7 +55,6 @@ public class DualStrusionConstruction
 	{
 		this.leftFile = leftFile;
 		this.rightFile = rightFile;
-		this.useWipes = useWipes;
 		this.machineType = type;
 		startGCode = startSource.copy();
 		endGCode = endSource.copy();
@@ -72,67 +78,115 @@ public class DualStrusionConstruction
 			leftWipe = null;
 			rightWipe = null;
 		}
-	}
-	public MutableGCodeSource getCombinedFile()
-	{
-		return result;	
+		this.useWipes = useWipes;
+
+		toLeft = toolchangeStart(ToolheadAlias.LEFT);
+		toRight = toolchangeStart(ToolheadAlias.RIGHT);
 	}
 
 	/**
-	 * This method handles shuffling together two gcodes, it first executes
-	 * preprocessing and then hands the gcodes off to Layer_Helper
+	 * This method handles shuffling together two gcodes. Both files are read
+	 * a layer at a time and the result is written straight to the destination,
+	 * so only a couple of layers are ever held in memory.
 	 * 
+	 * The files are read twice: the first time just counts the lines, so that
+	 * the progress updates can be put in as the result is written.
+	 * @param destination where to write the combined gcode
+	 * @return false if the gcode couldn't be read or written
 	 */
-	public void combine()
+	public boolean combine(File destination)
 	{
-		MutableGCodeSource left, right;
+		final MutableGCodeSource start = SkeinforgePostProcessor.modifyStartCode(startGCode);
 
-		// load our layers into something we can use 
-		left = new MutableGCodeSource(leftFile);
-		right = new MutableGCodeSource(rightFile);
+		try
+		{
+			// count what goes between the start and end code
+			final ProgressWriter counter = new ProgressWriter(null, 0);
+			merge(counter);
 
-		// remove  some tags we don't want/get 
-		SkeinforgePostProcessor.stripNonLayerTagComments(left);
-		SkeinforgePostProcessor.stripNonLayerTagComments(right);
+			// the end code goes in as a single entry, as it always has
+			final long total = start.getLineCount() + counter.getCount() + 1;
 
-		// load our layers into something we can *really* use
-		LinkedList<Layer> leftLayers = parseLayers(left);
-		LinkedList<Layer> rightLayers = parseLayers(right);
+			final BufferedWriter out = new BufferedWriter(new FileWriter(destination), 1 << 16);
+			try
+			{
+				final ProgressWriter writer = new ProgressWriter(out, total);
+				// add start gcode, updated based on settings
+				for(String line : start)
+					writer.line(line);
+				merge(writer);
+				// add end code
+				writer.line(new Layer(Double.MAX_VALUE, endGCode.asList()).toString());
+			}
+			finally
+			{
+				out.close();
+			}
+			return true;
+		}
+		catch(IOException e)
+		{
+			Base.logger.log(Level.SEVERE, "Could not combine " + leftFile + " and " + rightFile + " into " + destination, e);
+			return false;
+		}
+	}
 
-		// merge our layers into one list
-		final LinkedList<Layer> layers = doMerge(leftLayers, rightLayers);
+	/**
+	 * Writes out lines, interlacing progress updates by line count as it goes
+	 * (see {@link MutableGCodeSource#addProgressUpdates()}).  With no writer it
+	 * just counts.
+	 */
+	private static class ProgressWriter
+	{
+		private final Writer out;
+		private final long total;
+		private long count = 0;
+		private int lastPercent = 0;
 
-		// refresh and repopulate our result
-		result = new MutableGCodeSource();
-		for(Layer l : layers) {
-			result.add(l.getCommands());
+		ProgressWriter(Writer out, long total)
+		{
+			this.out = out;
+			this.total = total;
 		}
 
-		// add start gcode, updated based on settings
-		SkeinforgePostProcessor.prependAndModifyStartCode(result, startGCode);
-		// add end code
-		Layer endLayer = new Layer(Double.MAX_VALUE, endGCode.asList());
-		result.add(endLayer.toString());
-		// interlace progress updates
-		result.addProgressUpdates();
+		void line(String line) throws IOException
+		{
+			if(total > 0)
+			{
+				int percentDone = (int)(count*100/total);
+				if(percentDone != lastPercent)
+				{
+					if(percentDone == 0)	percentDone = 1; 
+					if(percentDone == 100)	percentDone = 99; 
+					write("M73 P"+percentDone+" (display progress)");
+					lastPercent = percentDone;
+				}
+			}
+			write(line);
+			count++;
+		}
+
+		void lines(List<String> lines) throws IOException
+		{
+			for(String line : lines)
+				line(line);
+		}
+
+		private void write(String line) throws IOException
+		{
+			if(out != null)
+			{
+				out.write(line);
+				out.write('\n');
+			}
+		}
+
+		long getCount()
+		{
+			return count;
+		}
 	}
 	
-//	/**
-//	 * removes all lines that are skeinforge tag comments, but not layer tags.
-//	 */
-//	public void stripNonLayerTagComments(MutableGCodeSource source) {
-//		String line;
-//		for(Iterator<String> i = source.iterator(); i.hasNext();)
-//		{
-//			line = i.next();
-//			
-//			if(line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer")))
-//			{
-//				i.remove();
-//			}
-//		}
-//	}
-	
 	/**
 	 * Takes a GCodeSource, assumed to be lacking any start- or end- specific blocks of code
 	 * and to be in order of increasing layer height, and returns a LinkedList of Layers. Each Layer
@@ -220,56 +274,128 @@ public class DualStrusionConstruction
 	}
 	
 	/**
-	 * parseLayers is an improvement on the old parseLayers from Noah, etc. 's dualstrusion,
-	 * but uses the same basic method because skeinforge is what it is.
-	 * look for layer tags, break up the file using those tags.
-	 * @param source
-	 * @return
+	 * Reads the layers out of a gcode file one at a time. This is an improvement on the 
+	 * old parseLayers from Noah, etc. 's dualstrusion, but uses the same basic method 
+	 * because skeinforge is what it is: look for layer tags, break up the file using those tags.
+	 * Lines outside the layer tags are dropped, as are skeinforge tag comments that 
+	 * aren't layer tags, and layers with nothing in them are skipped.
 	 */
-	private LinkedList<Layer> parseLayers(GCodeSource source)
+	private static class LayerReader
 	{
-		final LinkedList<Layer> result = new LinkedList<Layer>();
-		String line;
-		
-		for(Iterator<String> it = source.iterator(); it.hasNext();)
+		private final BufferedReader in;
+		private Layer next;
+
+		LayerReader(File file) throws IOException
 		{
-			line = it.next();
-			if(line.startsWith("(<layer>"))
+			in = new BufferedReader(new FileReader(file), 1 << 16);
+			next = read();
+		}
+
+		/// @return the next layer, without taking it, or null at the end of the file
+		Layer peek()
+		{
+			return next;
+		}
+
+		/// @return the next layer, or null at the end of the file
+		Layer pop() throws IOException
+		{
+			final Layer result = next;
+			if(result != null)
+				next = read();
+			return result;
+		}
+
+		boolean isEmpty()
+		{
+			return next == null;
+		}
+
+		void close()
+		{
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private Layer read() throws IOException
+		{
+			String line;
+			while((line = in.readLine()) != null)
 			{
-				// Get the layer height (or whatever SF claims it is)
-				float layerHeight = 0;
-				try
-				{
-					layerHeight = Float.parseFloat(line.split(" ")[1]);
-				}
-				catch(NumberFormatException e)
-				{
-					Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
-							"please check and make sure all of them are in the format (<layer> 0.00)");
-				}
-				
-				//collect every command up to the end of the layer 
-				final List<String> accumulate = new ArrayList<String>();
-//				String next = it.next(); actually, let's keep the initial layer tag
-				String next = line;
-				while(!next.startsWith("(</layer>)"))
+				if(line.startsWith("(<layer>"))
 				{
-					accumulate.add(next);
-					next = it.next();
+					// Get the layer height (or whatever SF claims it is)
+					float layerHeight = 0;
+					try
+					{
+						layerHeight = Float.parseFloat(line.split(" ")[1]);
+					}
+					catch(NumberFormatException e)
+					{
+						Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
+								"please check and make sure all of them are in the format (<layer> 0.00)");
+					}
+					
+					//collect every command up to the end of the layer, keeping the initial layer tag
+					final List<String> accumulate = new ArrayList<String>();
+					String next = line;
+					while(next != null && !next.startsWith("(</layer>)"))
+					{
+						// remove  some tags we don't want/get 
+						if(!isNonLayerTagComment(next))
+							accumulate.add(next);
+						next = in.readLine();
+					}
+					//skip empty layers
+					if(accumulate.size() > 1)
+						return new Layer(layerHeight, accumulate);
 				}
-				//skip empty layers
-				if(accumulate.size() > 1)
-					result.add(new Layer(layerHeight, accumulate));
 			}
+			return null;
 		}
 
+		/// as in {@link SkeinforgePostProcessor#stripNonLayerTagComments(MutableGCodeSource)}
+		private static boolean isNonLayerTagComment(String line)
+		{
+			return line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer"));
+		}
+	}
+
+	/**
+	 * The start of every toolchange to a given tool is the same, so we only work it out once.
+	 */
+	private List<String> toolchangeStart(final ToolheadAlias toTool)
+	{
+		final ArrayList<String> result = new ArrayList<String>();
+		//debug code///////////////////////////
+		result.add("(*************start toolchange*************)");
+		//////////////////////////////////////
+		if(useWipes)
+		{
+			// The left/right distinction isn't actually important here
+			// on a tom you have to wipe both heads, and on a replicator
+			// wiping either does both
+			result.addAll(wipe(leftWipe));
+			if(machineType != MachineType.THE_REPLICATOR)
+				result.addAll(wipe(rightWipe));
+		}
+		
+		result.add(toTool.getRecallOffsetGcodeCommand());
+		result.add("M108 "+toTool.getTcode() + "(Set tool)");
+		
+		// Ben's suggestion
+		result.add("M18 A B");
 		return result;
 	}
+
 	/**
 	 * A toolchange is the code that goes in between commands for one head and commands for the other
-	 * this function creates a toolchange from a tool doing one layer to a tool doing another layer
+	 * this function writes a toolchange from a tool doing one layer to a tool doing another layer
 	 */
-	private Layer toolchange(final ToolheadAlias fromTool, final Layer fromLayer, final ToolheadAlias toTool, final Layer toLayer)
+	private void toolchange(final Layer fromLayer, final ToolheadAlias toTool, final Layer toLayer, final ProgressWriter out)
+		throws IOException
 	{
 		/*
 		 * How does a toolchange work? Glad you asked:
@@ -306,58 +432,34 @@ public class DualStrusionConstruction
 		 *   
 		 *   layer.add(M18 A B)
 		 */
-		final ArrayList<String> result = new ArrayList<String>();
-		//debug code///////////////////////////
-		result.add("(*************start toolchange*************)");
-		//////////////////////////////////////
-		if(useWipes)
-		{
-			// The left/right distinction isn't actually important here
-			// on a tom you have to wipe both heads, and on a replicator
-			// wiping either does both
-			result.addAll(wipe(leftWipe));
-			if(machineType != MachineType.THE_REPLICATOR)
-				result.addAll(wipe(rightWipe));
-		}
-		
-		result.add(toTool.getRecallOffsetGcodeCommand());
-		result.add("M108 "+toTool.getTcode() + "(Set tool)");
+		// everything up to the M18 A B was worked out when we were made
+		out.lines(toTool == ToolheadAlias.LEFT ? toLeft : toRight);
 		
-		// Ben's suggestion
-		result.add("M18 A B");
-		
-		final DecimalFormat nf = (DecimalFormat)Base.getGcodeFormat();
+		final NumberFormat nf = Base.getGcodeFormat();
 		final Point5d firstPos = getFirstPosition(toLayer);
-		firstPos.setZ(getLayerZ(toLayer));
 		
 		if(firstPos != null)
 		{
+			final Double layerZ = getLayerZ(toLayer);
+			if(layerZ != null)
+				firstPos.setZ(layerZ);
 			// The F here is a magic number, you can read about it in the 'wipe()' function
 			// move up fairly quickly
-			result.add("G1 Z" + nf.format(firstPos.z()) +" F3000");
+			out.line("G1 Z" + nf.format(firstPos.z()) +" F3000");
 			// move to the next point
-			result.add("G1 X" + nf.format(firstPos.x()) + " Y" + nf.format(firstPos.y()) + " Z" + nf.format(firstPos.z()) +" F3000");
+			out.line("G1 X" + nf.format(firstPos.x()) + " Y" + nf.format(firstPos.y()) + " Z" + nf.format(firstPos.z()) +" F3000");
 		}
-//		else
-//		{
-////			System.err.print(toLayer);
-//		}
 		
-		//TODO: catch possible null pointer exceptions?
 		// set the feedrate with an empty G1
 		String feedrate = getFirstFeedrate(toLayer);
 		if(feedrate.equals(""))
 			feedrate = getLastFeedrate(fromLayer);
-		result.add("G1 " + feedrate);
+		out.line("G1 " + feedrate);
 
 		
 		//debug code///////////////////////////
-		result.add("(*************end toolchange*************)");
+		out.line("(*************end toolchange*************)");
 		//////////////////////////////////////
-		// The 'height' of the toolchange. just the average of the surrounding layers because why not?
-		final double height = (toLayer.getHeight() - fromLayer.getHeight())/2;
-		
-		return new Layer(height, result);
 	}
 	/**
 	 * gets the first G1 from a layer, returns the position of X, Y, Z axes
@@ -446,8 +548,8 @@ public class DualStrusionConstruction
 	 * clear it of excess plastic. the WipeModel specifies a before position and an after position
 	 * as well as some parameters for extruding some plastic before wiping to prime the nozzle.
 	 * 
-	 * this function will always return the same thing for a given wipe, we could easily cache
-	 * that thing and make this much more efficient.
+	 * this function will always return the same thing for a given wipe, so it's only called
+	 * when the toolchanges are worked out, in {@link #toolchangeStart(ToolheadAlias)}.
 	 * @param toolWipe
 	 * @return
 	 */
@@ -495,12 +597,39 @@ public class DualStrusionConstruction
 	}
 	
 	/**
-	 * This will consume two LinkedLists of Layers and return a combined List of Layers
-	 * representing a dualstrusion print, with all the appropriate toolchanges inserted. 
+	 * This will read the layers from both files and write out a combined gcode
+	 * representing a dualstrusion print, with all the appropriate toolchanges inserted.
+	 * Only the next layer from each file, and the last one written, are held at once.
+	 * @param out
+	 */
+	private void merge(final ProgressWriter out) throws IOException
+	{
+		final LayerReader left = new LayerReader(leftFile);
+		try
+		{
+			final LayerReader right = new LayerReader(rightFile);
+			try
+			{
+				doMerge(left, right, out);
+			}
+			finally
+			{
+				right.close();
+			}
+		}
+		finally
+		{
+			left.close();
+		}
+	}
+
+	/**
+	 * This will consume the layers from two files and write them out as one, with all the
+	 * appropriate toolchanges inserted.
 	 * @param left
 	 * @param right
 	 */
-	private LinkedList<Layer> doMerge(final LinkedList<Layer> left, final LinkedList<Layer> right)
+	private void doMerge(final LayerReader left, final LayerReader right, final ProgressWriter out) throws IOException
 	{
 		/*
 		 *   Merging layers should look something like this:
@@ -540,82 +669,50 @@ public class DualStrusionConstruction
 		 *     
 		 *           
 		 */
-		// using a LinkedList means we can getLast()
-		final LinkedList<Layer> result = new LinkedList<Layer>();
+		// the last layer written, which the next toolchange may need the feedrate from
+		Layer last = null;
 
 		// this is just a handy way to keep track of where our last layer came from
-		Object lastLayer = null;
+		LayerReader lastLayer = null;
 		
+		if(left.isEmpty() && right.isEmpty())
+			return;
 		
 		final ToolheadAlias initialTool;
 		// Start by selecting the correct toolhead
 		// This mimics how the selection happens in the loop below
-		if(right.peek().getHeight() < left.peek().getHeight())
+		if(left.isEmpty() || (!right.isEmpty() && right.peek().getHeight() < left.peek().getHeight()))
 			initialTool = ToolheadAlias.RIGHT;
 		else
 			initialTool = ToolheadAlias.LEFT;
 
 		// Prepend the switch to correct tool to the whole thing
-		result.add(new Layer(0, new ArrayList<String>(){{
-			add(initialTool.getRecallOffsetGcodeCommand());
-			add("M108 "+initialTool.getTcode() + "(Set tool)");
-		}}));
+		out.line(initialTool.getRecallOffsetGcodeCommand());
+		out.line("M108 "+initialTool.getTcode() + "(Set tool)");
 		
 		// loop while we still have layers to merge
 		while((!left.isEmpty()) || (!right.isEmpty()))
 		{
+			final LayerReader next;
 			// if we've used all of our right layers, keep grabbing from left
 			if(right.isEmpty())
-			{
-				// if last layer tool != next layer tool, add a toolchange
-				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
-				lastLayer = left;
-			}
+				next = left;
 			else if(left.isEmpty()) // used all left layers, keep grabbing from right
-			{
-				// if last layer tool != next layer tool, add a toolchange
-				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
-				lastLayer = right;
-			}
+				next = right;
 			else if(left.peek().getHeight() < right.peek().getHeight()) // left has a lower layer, grab it
-			{
-				// if last layer tool != next layer tool, add a toolchange
-				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
-				lastLayer = left;
-			}
+				next = left;
 			else if(right.peek().getHeight() < left.peek().getHeight()) // right has lower layer
-			{
-				// if last layer tool != next layer tool, add a toolchange
-				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
-				lastLayer = right;
-			}
-			else //equal height
-			{
-				if(lastLayer == null)
-				{
-					//arbitrary
-					result.add(left.pop());
-					lastLayer = left;
-				}
-				else
-				{
-					if(lastLayer == left)
-						result.add(left.pop());
-					else// if(lastLayer == right)
-						result.add(right.pop());
-				}
-			}
+				next = right;
+			else //equal height, carry on with the same tool (which is arbitrary the first time)
+				next = lastLayer == right ? right : left;
+
+			// if last layer tool != next layer tool, add a toolchange
+			if(lastLayer != null && lastLayer != next)
+				toolchange(last, next == left ? ToolheadAlias.LEFT : ToolheadAlias.RIGHT, next.peek(), out);
+			last = next.pop();
+			out.lines(last.getCommands());
+			lastLayer = next;
 		}
-		
-		return result;
 	}
 	
 //	// This is a hack, really we should be getting the dual-head start code
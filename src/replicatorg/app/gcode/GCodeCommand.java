@@ -1,151 +1,259 @@
 package replicatorg.app.gcode;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * A single line of GCode, split into its comment, its command text and the
+ * values of any letter codes it carries.
+ *
+ * The line is tokenized in a single pass: code values go into a primitive
+ * table indexed by letter, and presence is tracked in a bitmask, so no
+ * per-parameter objects are created. The comment-free command text and the
+ * comment itself are only built as Strings when somebody asks for them.
+ *
+ * Instances can be reused by calling {@link #reset(String)}, which lets hot
+ * loops (estimation, safety checks, post-processing) walk a whole file with
+ * a single GCodeCommand.
+ */
 public class GCodeCommand {
 
 	// These are the letter codes that we understand
-	static protected char[] codes = { 
+	static protected char[] codes = {
 		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
 		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
-	
-	// pattern matchers.
-	static Pattern parenPattern  = Pattern.compile("\\((.*)\\)");
-	static Pattern semiPattern = Pattern.compile(";(.*)");
-	static Pattern deleteBlockPattern = Pattern.compile("^(\\.*)");
-	
-	
-	// The actual GCode command string
+
+	// Bitmask of the letters above, bit 0 == 'A'
+	static private final int KNOWN_CODES;
+	static {
+		int mask = 0;
+		for (char code : codes)
+			mask |= 1 << (code - 'A');
+		KNOWN_CODES = mask;
+	}
+
+	// Powers of ten that are exactly representable as doubles, for the fast number path
+	static private final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Longest digit string whose value is guaranteed to fit a double mantissa exactly
+	static private final int MAX_EXACT_DIGITS = 15;
+
+	// The line as it was handed to us
+	private String line;
+
+	// The actual GCode command string, built on demand
 	private String command;
 
-	// Parsed out comment
-	private String comment = new String();
+	// Parsed out comment, built on demand
+	private String comment;
 
-	private class gCodeParameter {
-		final public char code;
-		final public Double value;
-		gCodeParameter(char code, Double value) {
-			this.code = code;
-			this.value = value;
-		}
+	// Location of the (paren) comment in the line: [parenStart, parenEnd), or -1
+	private int parenStart;
+	private int parenEnd;
+
+	// Location of the first ';' in the raw line, or -1
+	private int semiComment;
+
+	// Length of the command once both comments are removed
+	private int commandLength;
+
+	// Code values indexed by letter - 'A', and bitmasks of which are present
+	// and which have already been assigned a value
+	private final double[] values = new double[26];
+	private int present;
+	private int valued;
+
+	/**
+	 * Creates an empty command, to be filled in by {@link #reset(String)}.
+	 */
+	public GCodeCommand() {
+		reset("");
 	}
-	
-	// The set of parameters in this GCode
-	private List<gCodeParameter> parameters;
 
 	public GCodeCommand(String command) {
-		// Copy over the command
-		this.command = new String(command);
-		
-		// Initialize the present and value tables
-		this.parameters = new ArrayList<gCodeParameter>();
-		
+		reset(command);
+	}
+
+	/**
+	 * Re-parse this object from a new line of GCode, discarding everything
+	 * known about the previous one.
+	 * @param command a single line of GCode
+	 * @return this object, for convenience
+	 */
+	public GCodeCommand reset(String command) {
+		this.line = command;
+		this.command = null;
+		this.comment = null;
+		this.present = 0;
+		this.valued = 0;
+
 		// Parse (and strip) any comments out into a comment string
 		parseComments();
 
 		// Parse any codes out into the code tables
 		parseCodes();
+
+		return this;
 	}
-	
-	// Find any comments, store them, then remove them from the command 
+
+	// Find any comments, and work out what's left of the command without them.
+	// Note that we only support one style of comments, and only one comment per row;
+	// a (paren) comment runs from the first '(' to the last ')', and a ';' comment
+	// runs to the end of the line.
 	private void parseComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		Matcher semiMatcher = semiPattern.matcher(command);
+		final int length = line.length();
 
-		// Note that we only support one style of comments, and only one comment per row. 
-		if (parenMatcher.find())
-			comment = parenMatcher.group(1);
+		parenStart = line.indexOf('(');
+		parenEnd = -1;
+		if (parenStart >= 0) {
+			int close = line.lastIndexOf(')');
+			if (close > parenStart)
+				parenEnd = close + 1;
+			else
+				parenStart = -1;
+		}
 
-		if (semiMatcher.find())
-			comment = semiMatcher.group(1);
+		semiComment = line.indexOf(';');
 
-		// clean it up.
-		comment = comment.trim();
-		comment = comment.replace('|', '\n');
+		// The ';' comment is stripped after the paren comment, so a ';' inside
+		// the parens doesn't cut the command short.
+		int semi = semiComment;
+		if (semi >= 0 && parenStart >= 0 && semi >= parenStart && semi < parenEnd)
+			semi = line.indexOf(';', parenEnd);
+
+		int end = (semi >= 0) ? semi : length;
+		if (parenStart < 0 || end <= parenStart) {
+			parenStart = -1;
+			parenEnd = -1;
+			commandLength = end;
+		} else {
+			commandLength = end - (parenEnd - parenStart);
+		}
+	}
+
+	// Character of the command (comments removed) at the given position
+	private char commandChar(int index) {
+		if (parenStart >= 0 && index >= parenStart)
+			return line.charAt(index + parenEnd - parenStart);
+		return line.charAt(index);
+	}
 
-		// Finally, remove the comments from the command string
-		command = parenMatcher.replaceAll("");
-		
-		semiMatcher = semiPattern.matcher(command);
-		command = semiMatcher.replaceAll("");
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
 	}
 
-	// Find any codes, and store them
+	// Find any codes, and store them. A code takes its value from the first
+	// time it is followed by a number; a code that's never followed by a
+	// number is present with a value of 0.
 	private void parseCodes() {
-		for (char code : codes) {
-			Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-			Matcher myMatcher = myPattern.matcher(command);
-
-			if (command.indexOf(code) >= 0) {
-				double value = 0;
-				
-				if (myMatcher.find()) {
-					String match = myMatcher.group(1);
-					value = Double.parseDouble(match);
-				}
-				
-				parameters.add(new gCodeParameter(code, value));
+		int i = 0;
+		while (i < commandLength) {
+			char c = commandChar(i++);
+			if (c < 'A' || c > 'Z')
+				continue;
+			int bit = 1 << (c - 'A');
+			if ((KNOWN_CODES & bit) == 0)
+				continue;
+
+			present |= bit;
+			if ((valued & bit) != 0)
+				continue;
+
+			int start = i;
+			while (i < commandLength && isNumberChar(commandChar(i)))
+				i++;
+
+			if (i > start) {
+				values[c - 'A'] = parseNumber(start, i);
+				valued |= bit;
+			} else {
+				values[c - 'A'] = 0;
+			}
+		}
+	}
+
+	// Parse the number in command positions [start, end). Simple decimals that
+	// can be converted exactly are handled inline; anything else goes through
+	// Double.parseDouble so odd input behaves (and fails) exactly as it always has.
+	private double parseNumber(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = commandChar(i);
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean seenPoint = false;
+		for (; i < end; i++) {
+			c = commandChar(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (seenPoint)
+					fractionDigits++;
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				return parseNumberSlow(start, end);
 			}
 		}
+
+		if (digits == 0 || digits > MAX_EXACT_DIGITS || fractionDigits >= POWERS_OF_TEN.length)
+			return parseNumberSlow(start, end);
+
+		// Both operands are exact, so a single division is correctly rounded
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	private double parseNumberSlow(int start, int end) {
+		StringBuilder number = new StringBuilder(end - start);
+		for (int i = start; i < end; i++)
+			number.append(commandChar(i));
+		return Double.parseDouble(number.toString());
 	}
 
 	public String getCommand() {
 		// TODO: Note that this is the command minus any comments.
-		return new String(command);
+		if (command == null) {
+			if (parenStart < 0)
+				command = line.substring(0, commandLength);
+			else
+				command = line.substring(0, parenStart)
+					+ line.substring(parenEnd, commandLength + parenEnd - parenStart);
+		}
+		return command;
 	}
-	
+
 	public String getComment() {
-		return new String(comment);
+		if (comment == null) {
+			String raw;
+			if (semiComment >= 0)
+				raw = line.substring(semiComment + 1);
+			else if (parenStart >= 0)
+				raw = line.substring(parenStart + 1, parenEnd - 1);
+			else
+				raw = "";
+
+			// clean it up.
+			comment = raw.trim().replace('|', '\n');
+		}
+		return comment;
 	}
-	
+
 	public boolean hasCode(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return true;
-			}
-		}
-		
-		return false;
+		if (searchCode < 'A' || searchCode > 'Z')
+			return false;
+		return (present & (1 << (searchCode - 'A'))) != 0;
 	}
 
 	public double getCodeValue(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return parameter.value;
-			}
-		}
-		
+		if (hasCode(searchCode))
+			return values[searchCode - 'A'];
+
 		return -1;	// TODO: What do we return if there is no code?
 	}
-	
-//	public Double removeCode(Character searchCode) {
-//		for (Iterator<gCodeParameter> i = parameters.iterator(); i.hasNext();)
-//		{
-//			gCodeParameter gcp = i.next();
-//			if(gcp.code == searchCode)
-//			{
-//				i.remove();
-//				return gcp.value;
-//			}
-//		}
-//		return null;
-//	}
-//	
-//	public void addCode(Character code, Double value)
-//	{
-//		parameters.add(new gCodeParameter(code, value));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-//	
-//	public void addCode(Character code, Integer value)
-//	{
-//		parameters.add(new gCodeParameter(code, ((Number)value).doubleValue()));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-}
\ No newline at end of file
+}
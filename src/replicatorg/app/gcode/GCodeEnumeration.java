@@ -139,9 +139,23 @@ public enum GCodeEnumeration {
 				
 			});
 	
+	/// The codes again, by letter - 'A' and then by number, so the parser can find one without making a String
+	private static final GCodeEnumeration[][] byNumber = new GCodeEnumeration[26][];
+	
 	static {
 		for(GCodeEnumeration e : EnumSet.allOf(GCodeEnumeration.class))
 			lookup.put(e.letter + e.number, e);
+		
+		int[] sizes = new int[26];
+		for(GCodeEnumeration e : values())
+		{
+			int l = e.letter.charAt(0) - 'A';
+			sizes[l] = Math.max(sizes[l], e.number + 1);
+		}
+		for(int l = 0; l < 26; l++)
+			byNumber[l] = new GCodeEnumeration[sizes[l]];
+		for(GCodeEnumeration e : values())
+			byNumber[e.letter.charAt(0) - 'A'][e.number] = e;
 	}
 	
 	public final String documentation;
@@ -170,8 +184,10 @@ public enum GCodeEnumeration {
 
 	public static GCodeEnumeration getGCode(String name)
 	{
+		if(name.length() < 2)
+			return null;
 		try {
-			return lookup.get(name);
+			return getGCode(name.charAt(0), Integer.parseInt(name.substring(1)));
 		}
 		catch (java.lang.NumberFormatException exce) {
 			return null;
@@ -181,6 +197,20 @@ public enum GCodeEnumeration {
 	
 	public static GCodeEnumeration getGCode(String letter, Integer number)
 	{
-		return lookup.get(letter + number);
+		return getGCode(letter.charAt(0), number.intValue());
+	}
+	
+	/**
+	 * Finds a code by its letter and number, for the parser, which does this for every line.
+	 * @return the code, or null if it isn't one we know
+	 */
+	public static GCodeEnumeration getGCode(char letter, int number)
+	{
+		if(letter < 'A' || letter > 'Z')
+			return null;
+		GCodeEnumeration[] codes = byNumber[letter - 'A'];
+		if(number < 0 || number >= codes.length)
+			return null;
+		return codes[number];
 	}
 }
@@ -0,0 +1,45 @@
+package replicatorg.app.gcode;
+
+import java.io.IOException;
+
+/**
+ * One stage of a {@link GCodePipeline}. A filter is handed the lines of a
+ * file one at a time, and passes on whatever lines it likes, in whatever
+ * order, to the stage after it. Filters should hold on to as little of the
+ * file as they can, since the point of the pipeline is that the whole file
+ * never has to be in memory.
+ *
+ * The default filter passes every line through unchanged.
+ */
+public abstract class GCodeFilter {
+
+	private GCodeFilter next = null;
+
+	void setNext(GCodeFilter next) {
+		this.next = next;
+	}
+
+	/**
+	 * Take the next line of the file.
+	 */
+	public void write(String line) throws IOException {
+		emit(line);
+	}
+
+	/**
+	 * The file has ended. Filters that have lines to add at the end should
+	 * emit them before calling up to this.
+	 */
+	public void finish() throws IOException {
+		if (next != null)
+			next.finish();
+	}
+
+	/**
+	 * Pass a line on to the next stage.
+	 */
+	protected void emit(String line) throws IOException {
+		if (next != null)
+			next.write(line);
+	}
+}
@@ -49,8 +49,9 @@
 package replicatorg.app.gcode;
 
 import java.util.EnumSet;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.Queue;
+import java.util.Set;
 import java.util.logging.Level;
 
 import javax.vecmath.Point3d;
@@ -78,12 +79,10 @@ public class GCodeParser {
 	
 	// Arc drawing routine
 	// Note: 5D is not supported
-	Queue< DriverCommand > drawArc(Point5d center, Point5d endpoint, boolean clockwise) {
+	DriverCommand drawArc(Point5d center, Point5d endpoint, boolean clockwise) {
 		// System.out.println("Arc from " + current.toString() + " to " +
 		// endpoint.toString() + " with center " + center);
 
-		Queue< DriverCommand > points = new LinkedList< DriverCommand >();
-		
 		// angle variables.
 		double angleA;
 		double angleB;
@@ -126,41 +125,49 @@ public class GCodeParser {
 		radius = Math.sqrt(aX * aX + aY * aY);
 		length = radius * angle;
 
-		// for doing the actual move.
-		int steps;
-		int s;
-		int step;
-
-		// Maximum of either 2.4 times the angle in radians
-		// or the length of the curve divided by the curve section constant
-		steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
-
-		// this is the real draw action.
-		Point5d newPoint = new Point5d(current);
-		double arcStartZ = current.z();
-		for (s = 1; s <= steps; s++) {
-			// Forwards for CCW, backwards for CW
-			if (!clockwise)
-				step = s;
-			else
-				step = steps - s;
-
-			// calculate our waypoint.
-			newPoint.setX(center.x() + radius * Math.cos(angleA + angle * ((double) step / steps)));
-			newPoint.setY(center.y() + radius * Math.sin(angleA + angle * ((double) step / steps)));
-			newPoint.setZ(arcStartZ + (endpoint.z() - arcStartZ) * s / steps);
-
-			// start the move
-			points.add(new replicatorg.drivers.commands.QueuePoint(newPoint));
+		// Enough segments that none strays more than the tolerance from the arc
+		// (a chord of angle t is r(1 - cos(t/2)) from it at the middle), and
+		// at least four to a full turn, so no arc ends up as a straight line.
+		int needed = Math.max(1, (int) Math.ceil(angle / (Math.PI / 2)));
+		if (arcToleranceMM > 0 && arcToleranceMM < radius) {
+			double segmentAngle = 2 * Math.acos(1 - arcToleranceMM / radius);
+			needed = Math.max(needed, (int) Math.ceil(angle / segmentAngle));
 		}
-		
-		return points;
+		// None longer than the curve section, if we can help it. The arc is
+		// in mm, whatever units the file is in.
+		int steps = needed;
+		double section = convertToMM(curveSection, units);
+		if (section > 0)
+			steps = Math.max(steps, (int) Math.ceil(length / section));
+
+		// But no segment quicker than the firmware can plan a move, or it runs
+		// out of moves and stops and starts along the arc. We'd sooner have
+		// longer segments than short ones, but not so long they stray from the
+		// arc; if they'd still be too quick, the arc is drawn more slowly.
+		double segmentFeedrate = 0;
+		if (arcMinSegmentTime > 0 && feedrate > 0) {
+			double shortest = feedrate / 60.0 * arcMinSegmentTime;
+			steps = Math.max(needed, Math.min(steps, (int) (length / shortest)));
+			double chord = 2 * radius * Math.sin(angle / steps / 2);
+			double fastest = chord / arcMinSegmentTime * 60.0;
+			if (fastest < feedrate)
+				segmentFeedrate = fastest;
+		}
+
+		// The points are worked out as they're sent.
+		return new replicatorg.drivers.commands.QueueArc(current, center.x(), center.y(), radius,
+				angleA, angle, endpoint.z(), steps, clockwise, segmentFeedrate);
 	}
 	
 	// our curve section variables.
 	public static double curveSectionMM = Base.preferences.getDouble("replicatorg.parser.curve_segment_mm", 1.0);
 	public static double curveSectionInches = curveSectionMM / 25.4;
 
+	// the furthest, in mm, an arc's segments may stray from it
+	public static double arcToleranceMM = Base.preferences.getDouble("replicatorg.parser.arc_tolerance_mm", 0.01);
+	// the shortest time, in seconds, an arc's segments may take at the current feedrate
+	public static double arcMinSegmentTime = Base.preferences.getDouble("replicatorg.parser.arc_min_segment_time", 0.02);
+
 	protected double curveSection = 0.0;
 
 	// our offset variables 0 = master, 1-6 = offsets 1-6
@@ -184,6 +191,25 @@ public class GCodeParser {
 	public static int UNITS_INCHES = 1;
 
 	protected int units;
+
+	// Reused for every line we parse, to avoid allocating one per line
+	private final GCodeCommand gcode = new GCodeCommand();
+
+	// The tool we last looked up the E axis for, and whether it was B
+	private int eAxisTool = -1;
+	private boolean eAxisIsB;
+
+	// Codes we've already said we don't know, like "M999"
+	private final Set<String> unrecognized = new HashSet<String>();
+
+	/// Thrown for a code we don't know, which has been logged already
+	private static class UnrecognizedCode extends GCodeException {
+		private static final long serialVersionUID = -6019738545106234451L;
+
+		UnrecognizedCode(String message) {
+			super(message);
+		}
+	}
 	
 	/**
 	 * Creates the driver object.
@@ -228,7 +254,16 @@ public class GCodeParser {
 	public boolean parse(String cmd, Queue< DriverCommand > commandQueue) {
 		
 		// First, parse the GCode string into an object we can query.
-		GCodeCommand gcode = new GCodeCommand(cmd);
+		gcode.reset(cmd);
+
+		return parse(gcode, commandQueue);
+	}
+
+	/**
+	 * Same as {@link #parse(String, Queue)}, for a line the caller has already
+	 * read into a GCodeCommand.
+	 */
+	public boolean parse(GCodeCommand gcode, Queue< DriverCommand > commandQueue) {
 
 		// Now, convert the GCode instruction into a series of driver commands,
 		// that will be executed by execute()
@@ -247,6 +282,8 @@ public class GCodeParser {
 				} else if (gcode.hasCode('T'))	{
 					buildTCodes(gcode, commandQueue);
 				}
+			} catch (UnrecognizedCode e) {
+				// Logged the first time it turned up
 			} catch (GCodeException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -264,6 +301,83 @@ public class GCodeParser {
 		return value;
 	}
 
+	/**
+	 * Where a move is going: the current position, with the axes the line
+	 * gives moved to (or, in relative mode, by) their values.
+	 */
+	private Point5d target(GCodeCommand gcode) {
+		// start us off at our current position...
+		Point5d pos = driver.getCurrentPosition(false);
+
+		// absolute just specifies the new position
+		if (absoluteMode) {
+			if (gcode.hasCode('X'))
+				pos.setX(convertToMM(gcode.getCodeValue('X'), units) + currentOffset.x);
+			if (gcode.hasCode('Y'))
+				pos.setY(convertToMM(gcode.getCodeValue('Y'), units) + currentOffset.y);
+			if (gcode.hasCode('Z'))
+				pos.setZ(convertToMM(gcode.getCodeValue('Z'), units) + currentOffset.z);
+			if (gcode.hasCode('A'))
+				pos.setA(convertToMM(gcode.getCodeValue('A'), units));
+			// Note: The E axis is treated internally as the A or B axis
+			if (gcode.hasCode('E')) {
+				if (extrudesOnB())
+					pos.setB(convertToMM(gcode.getCodeValue('E'), units));
+				else
+					pos.setA(convertToMM(gcode.getCodeValue('E'), units));
+			}
+			if (gcode.hasCode('B'))
+				pos.setB(convertToMM(gcode.getCodeValue('B'), units));
+		}
+		// relative specifies a delta
+		else {
+			if (gcode.hasCode('X'))
+				pos.setX(pos.x() + (convertToMM(gcode.getCodeValue('X'), units) + currentOffset.x));
+			if (gcode.hasCode('Y'))
+				pos.setY(pos.y() + (convertToMM(gcode.getCodeValue('Y'), units) + currentOffset.y));
+			if (gcode.hasCode('Z'))
+				pos.setZ(pos.z() + (convertToMM(gcode.getCodeValue('Z'), units) + currentOffset.z));
+			if (gcode.hasCode('A'))
+				pos.setA(pos.a() + convertToMM(gcode.getCodeValue('A'), units));
+			if (gcode.hasCode('E')) {
+				if (extrudesOnB())
+					pos.setB(pos.b() + convertToMM(gcode.getCodeValue('E'), units));
+				else
+					pos.setA(pos.a() + convertToMM(gcode.getCodeValue('E'), units));
+			}
+			if (gcode.hasCode('B'))
+				pos.setB(pos.b() + convertToMM(gcode.getCodeValue('B'), units));
+		}
+		return pos;
+	}
+
+	/**
+	 * Whether E moves the B axis for the current tool, rather than A. We
+	 * can't assume tool 0 == A, it's configurable in machine.xml! This is
+	 * looked up again whenever the tool changes.
+	 */
+	private boolean extrudesOnB() {
+		if (eAxisTool != tool) {
+			eAxisIsB = driver.getMachine().getTool(tool).getMotorStepperAxis() == AxisId.B;
+			eAxisTool = tool;
+		}
+		return eAxisIsB;
+	}
+
+	/**
+	 * Say that we don't know a code, the first time it turns up. A file
+	 * usually has the same unknown code on many lines, so after that we
+	 * skip it quietly.
+	 * @return the exception to give up on the line with
+	 */
+	private GCodeException unrecognized(char letter, int number) {
+		String code = letter + Integer.toString(number);
+		if (unrecognized.add(code))
+			Base.logger.log(Level.WARNING, "ReplicatorG doesn't recognize GCode '" + code + "'"
+					+ " (further " + code + " codes will be skipped without a warning)");
+		return new UnrecognizedCode("Unrecognized " + letter + "Code! " + code);
+	}
+
 	private EnumSet<AxisId> getAxes(GCodeCommand gcode) {
 		EnumSet<AxisId> axes = EnumSet.noneOf(AxisId.class);
 
@@ -299,15 +413,15 @@ public class GCodeParser {
 			tool = (int) gcode.getCodeValue('T');
 		}
 		
+		GCodeEnumeration codeEnum = GCodeEnumeration.getGCode('M', (int)gcode.getCodeValue('M'));
+
 		// handle unrecognised GCode
-		if(GCodeEnumeration.getGCode("M", (int)gcode.getCodeValue('M')) == null)
+		if(codeEnum == null)
 		{
-			String message = "Unrecognized MCode! M" + (int)gcode.getCodeValue('M');
-			Base.logger.log(Level.SEVERE, message);
-			throw new GCodeException(message);
+			throw unrecognized('M', (int)gcode.getCodeValue('M'));
 		}
 		
-		switch (GCodeEnumeration.getGCode("M", (int)gcode.getCodeValue('M'))) {
+		switch (codeEnum) {
 		case M0:
 			// M0 == unconditional halt
 			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
@@ -618,82 +732,6 @@ public class GCodeParser {
 			throw new GCodeException("Not a G code!");
 		}
 		
-		// start us off at our current position...
-		Point5d pos = driver.getCurrentPosition(false);
-
-		// initialize our points, etc.
-		double iVal = convertToMM(gcode.getCodeValue('I'), units); // / X offset
-																// for arcs
-		double jVal = convertToMM(gcode.getCodeValue('J'), units); // / Y offset
-																// for arcs
-		@SuppressWarnings("unused")
-		double kVal = convertToMM(gcode.getCodeValue('K'), units); // / Z offset
-																// for arcs
-		@SuppressWarnings("unused")
-		double qVal = convertToMM(gcode.getCodeValue('Q'), units); // / feed
-																// increment for
-																// G83
-		double rVal = convertToMM(gcode.getCodeValue('R'), units); // / arc radius
-		double xVal = convertToMM(gcode.getCodeValue('X'), units); // / X units
-		double yVal = convertToMM(gcode.getCodeValue('Y'), units); // / Y units
-		double zVal = convertToMM(gcode.getCodeValue('Z'), units); // / Z units
-		double aVal = convertToMM(gcode.getCodeValue('A'), units); // / A units
-		double bVal = convertToMM(gcode.getCodeValue('B'), units); // / B units
-		// Note: The E axis is treated internally as the A or B axis
-		double eVal = convertToMM(gcode.getCodeValue('E'), units); // / E units
-
-		// adjust for our offsets
-		xVal += currentOffset.x;
-		yVal += currentOffset.y;
-		zVal += currentOffset.z;
-
-		// absolute just specifies the new position
-		if (absoluteMode) {
-			if (gcode.hasCode('X'))
-				pos.setX(xVal);
-			if (gcode.hasCode('Y'))
-				pos.setY(yVal);
-			if (gcode.hasCode('Z'))
-				pos.setZ(zVal);
-			if (gcode.hasCode('A'))
-				pos.setA(aVal);
-			if (gcode.hasCode('E')) {
-			  // can't assume tool 0 == a, it's configurable in machine.xml!
-				if (driver.getMachine().getTool(tool).getMotorStepperAxis().name() == "B") {
-          // Base.logger.warning("Mapping axis E to axis: " + driver.getMachine().getTool(tool).getMotorStepperAxis().name());
-					pos.setB(eVal);
-				} else {
-          // Base.logger.warning("Mapping axis E to axis: " + driver.getMachine().getTool(tool).getMotorStepperAxis().name());
-					pos.setA(eVal);
-				}
-			}
-			if (gcode.hasCode('B'))
-				pos.setB(bVal);
-		}
-		// relative specifies a delta
-		else {
-			if (gcode.hasCode('X'))
-				pos.setX(pos.x() + xVal);
-			if (gcode.hasCode('Y'))
-				pos.setY(pos.y() + yVal);
-			if (gcode.hasCode('Z'))
-				pos.setZ(pos.z() + zVal);
-			if (gcode.hasCode('A'))
-				pos.setA(pos.a() + aVal);
-			if (gcode.hasCode('E')) {
-			  // can't assume tool 0 == a, it's configurable in machine.xml!
-				if (driver.getMachine().getTool(tool).getMotorStepperAxis().name() == "B") {
-          // Base.logger.warning("Mapping axis E to axis: " + driver.getMachine().getTool(tool).getMotorStepperAxis().name());
-					pos.setB(pos.b() + eVal);
-				} else {
-          // Base.logger.warning("Mapping axis E to axis: " + driver.getMachine().getTool(tool).getMotorStepperAxis().name());
-					pos.setA(pos.a() + eVal);
-				}
-			}
-			if (gcode.hasCode('B'))
-				pos.setB(pos.b() + bVal);
-		}
-
 		// Get feedrate if supplied
 		if (gcode.hasCode('F')) {
 			// Read feedrate in mm/min.
@@ -704,20 +742,19 @@ public class GCodeParser {
 		}
 		
 
-		GCodeEnumeration codeEnum = GCodeEnumeration.getGCode("G", (int)gcode.getCodeValue('G'));
+		GCodeEnumeration codeEnum = GCodeEnumeration.getGCode('G', (int)gcode.getCodeValue('G'));
 
 		// handle unrecognised GCode
 		if(codeEnum == null)
 		{
-			String message = "Unrecognized GCode! G" + (int)gcode.getCodeValue('G');
-			Base.logger.log(Level.SEVERE, message);
-			throw new GCodeException(message);
+			throw unrecognized('G', (int)gcode.getCodeValue('G'));
 		}
 		
 		switch (codeEnum) {
 		// these are basically the same thing, but G0 is supposed to do it as quickly as possible.
 		// Rapid Positioning
-		case G0:
+		case G0: {
+			Point5d pos = target(gcode);
 			if (gcode.hasCode('F')) {
 				// Allow user to explicitly override G0 feedrate if they so desire.
 				commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
@@ -744,12 +781,13 @@ public class GCodeParser {
 				commands.add(new replicatorg.drivers.commands.SetFeedrate(selectedFR));
 			}				
 			commands.add(new replicatorg.drivers.commands.QueuePoint(pos));
+		}
 			break;
 		// Linear Interpolation
 		case G1:
 			// set our target.
 			commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
-			commands.add(new replicatorg.drivers.commands.QueuePoint(pos));
+			commands.add(new replicatorg.drivers.commands.QueuePoint(target(gcode)));
 			break;
 		// Clockwise arc
 		case G2:
@@ -758,17 +796,18 @@ public class GCodeParser {
 			// call our arc drawing function.
 			// Note: We don't support 5D
 			if (gcode.hasCode('I') || gcode.hasCode('J')) {
+				Point5d pos = target(gcode);
 				// our centerpoint
 				Point5d center = new Point5d();
 				Point5d current = driver.getCurrentPosition(false);
-				center.setX(current.x() + iVal);
-				center.setY(current.y() + jVal);
+				center.setX(current.x() + convertToMM(gcode.getCodeValue('I'), units));
+				center.setY(current.y() + convertToMM(gcode.getCodeValue('J'), units));
 
 				// Get the points for the arc
 				if (codeEnum == GCodeEnumeration.G2)
-					commands.addAll(drawArc(center, pos, true));
+					commands.add(drawArc(center, pos, true));
 				else
-					commands.addAll(drawArc(center, pos, false));
+					commands.add(drawArc(center, pos, false));
 			}
 			// or we want a radius based one
 			else if (gcode.hasCode('R')) {
@@ -890,25 +929,23 @@ public class GCodeParser {
 			Point5d current = driver.getCurrentPosition(false);
 
 			if (gcode.hasCode('X'))
-				current.setX(xVal);
+				current.setX(convertToMM(gcode.getCodeValue('X'), units) + currentOffset.x);
 			if (gcode.hasCode('Y'))
-				current.setY(yVal);
+				current.setY(convertToMM(gcode.getCodeValue('Y'), units) + currentOffset.y);
 			if (gcode.hasCode('Z'))
-				current.setZ(zVal);
+				current.setZ(convertToMM(gcode.getCodeValue('Z'), units) + currentOffset.z);
 			if (gcode.hasCode('A'))
-				current.setA(aVal);
+				current.setA(convertToMM(gcode.getCodeValue('A'), units));
 			if (gcode.hasCode('E')) {
 			  // can't assume tool 0 == a, it's configurable in machine.xml!			  
-				if (driver.getMachine().getTool(tool).getMotorStepperAxis().name() == "B") {
-          // Base.logger.warning("Resetting position of axis E to axis: " + driver.getMachine().getTool(tool).getMotorStepperAxis().name());          
-					current.setB(eVal);
+				if (extrudesOnB()) {
+					current.setB(convertToMM(gcode.getCodeValue('E'), units));
 				} else {
-          // Base.logger.warning("Resetting position of axis E to axis: " + driver.getMachine().getTool(tool).getMotorStepperAxis().name());          
-					current.setA(eVal);
+					current.setA(convertToMM(gcode.getCodeValue('E'), units));
 				}
 			}
 			if (gcode.hasCode('B'))
-				current.setB(bVal);
+				current.setB(convertToMM(gcode.getCodeValue('B'), units));
 			
 			commands.add(new replicatorg.drivers.commands.SetCurrentPosition(current));
 			break;
@@ -0,0 +1,184 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A chain of {@link GCodeFilter}s that a file is streamed through, one line
+ * at a time, on its way to a writer. Stages run in the order they were
+ * added; each sees what the stages before it emitted.
+ *
+ * This lets post-processing (toolhead swaps, start and end code, progress
+ * updates, ...) be done in a single pass, without loading the file into a
+ * MutableGCodeSource or shuffling lines around in it.
+ */
+public class GCodePipeline {
+
+	private final List<GCodeFilter> stages = new ArrayList<GCodeFilter>();
+
+	public GCodePipeline add(GCodeFilter stage) {
+		stages.add(stage);
+		return this;
+	}
+
+	/**
+	 * Run lines through the pipeline to a writer. The writer is flushed but
+	 * not closed.
+	 */
+	public void run(Iterator<String> lines, final Writer out) throws IOException {
+		GCodeFilter sink = new GCodeFilter() {
+			@Override
+			public void write(String line) throws IOException {
+				out.write(line);
+				out.write('\n');
+			}
+		};
+
+		GCodeFilter head = sink;
+		for (int i = stages.size() - 1; i >= 0; i--) {
+			stages.get(i).setNext(head);
+			head = stages.get(i);
+		}
+
+		while (lines.hasNext())
+			head.write(lines.next());
+		head.finish();
+		out.flush();
+	}
+
+	/**
+	 * Run a file through the pipeline, replacing it with the result. The
+	 * result is written next to the file first, and the file is moved
+	 * aside until the result is in its place, so the file is left as it
+	 * was if anything goes wrong.
+	 */
+	public void rewrite(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			Writer out = new BufferedWriter(new FileWriter(temp), 64 * 1024);
+			try {
+				run(new LineIterator(in), out);
+			} catch (ReadFailure e) {
+				throw e.getCause();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+
+		// A name of our own for the original, so we don't clobber anything
+		File backup = File.createTempFile(file.getName() + ".", ".bak", file.getAbsoluteFile().getParentFile());
+		backup.delete();
+		if (!rename(file, backup)) {
+			temp.delete();
+			throw new IOException("Couldn't replace " + file.getAbsolutePath());
+		}
+		if (!rename(temp, file)) {
+			if (rename(backup, file)) {
+				temp.delete();
+				throw new IOException("Couldn't replace " + file.getAbsolutePath());
+			}
+			// Keep both rather than lose either.
+			throw new IOException("Couldn't replace " + file.getAbsolutePath() + "; the original is in "
+					+ backup.getAbsolutePath() + " and the result in " + temp.getAbsolutePath());
+		}
+		backup.delete();
+	}
+
+	/// Move a file; overridden to test what happens when it can't be.
+	protected boolean rename(File from, File to) {
+		return from.renameTo(to);
+	}
+
+	/**
+	 * Count the lines in a file, the way BufferedReader would split them,
+	 * without decoding it.
+	 */
+	public static int countLines(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int lines = 0;
+			boolean partial = false;
+			boolean lastCR = false;
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				for (int i = 0; i < read; i++) {
+					byte b = buffer[i];
+					if (b == '\n') {
+						if (!lastCR)
+							lines++;
+						partial = false;
+					} else if (b == '\r') {
+						lines++;
+						partial = false;
+					} else {
+						partial = true;
+					}
+					lastCR = (b == '\r');
+				}
+			}
+			return partial ? lines + 1 : lines;
+		} finally {
+			in.close();
+		}
+	}
+
+	// Carries a read error out through Iterator.next()
+	private static class ReadFailure extends RuntimeException {
+		private static final long serialVersionUID = -3316420398757172541L;
+
+		ReadFailure(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException)super.getCause();
+		}
+	}
+
+	// Lines of a reader, read as they are asked for
+	private static class LineIterator implements Iterator<String> {
+		private final BufferedReader reader;
+		private String next;
+
+		LineIterator(BufferedReader reader) throws IOException {
+			this.reader = reader;
+			this.next = reader.readLine();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public String next() {
+			String line = next;
+			try {
+				next = reader.readLine();
+			} catch (IOException e) {
+				throw new ReadFailure(e);
+			}
+			return line;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
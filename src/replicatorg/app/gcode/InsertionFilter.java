@@ -0,0 +1,49 @@
+package replicatorg.app.gcode;
+
+import java.io.IOException;
+
+/**
+ * Puts code before and after the file: start and end code, or a header
+ * describing where the file came from.
+ */
+public class InsertionFilter extends GCodeFilter {
+
+	private final Iterable<String> before;
+	private final Iterable<String> after;
+	private boolean started = false;
+
+	/**
+	 * @param before lines to go at the top of the file, or null
+	 * @param after lines to go at the bottom of the file, or null
+	 */
+	public InsertionFilter(Iterable<String> before, Iterable<String> after) {
+		this.before = before;
+		this.after = after;
+	}
+
+	@Override
+	public void write(String line) throws IOException {
+		if (!started)
+			start();
+		emit(line);
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (!started)
+			start();
+		if (after != null) {
+			for (String line : after)
+				emit(line);
+		}
+		super.finish();
+	}
+
+	private void start() throws IOException {
+		started = true;
+		if (before != null) {
+			for (String line : before)
+				emit(line);
+		}
+	}
+}
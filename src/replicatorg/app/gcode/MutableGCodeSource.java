@@ -141,37 +141,11 @@ public class MutableGCodeSource implements GCodeSource {
 	/// Runs through this gcode file, swapping all references to the the current toolhead 
 	/// to instread reference the specified toolhead.  Alters select G, M and T Codes.
 	public void changeToolhead(ToolheadAlias tool) {
-		GCodeCommand gcode;
-		int value;
-		String line;
+		GCodeCommand gcode = new GCodeCommand();
 		///FUTURE: create a synchronize block here someday
 		ArrayList<String> newSource = new ArrayList<String>(source.size());
-		for(Iterator<String> it = source.iterator(); it.hasNext(); )
-		{
-			line = it.next();
-			gcode = new GCodeCommand(line);
-
-			if(gcode.hasCode('T'))
-			{
-				value = (int)gcode.getCodeValue('T');
-				if(value != tool.number)
-				{
-					if(value == 0)
-						line = line.replace("T0", "T1");
-					else if(value == 1)
-						line = line.replace("T1", "T0");
-				}
-			}
-			if(gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
-			{
-				line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
-			}
-			if(gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
-			{
-				line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
-			}
-			newSource.add(line);
-		}
+		for(String line : source)
+			newSource.add(ToolheadSwapFilter.swap(gcode.reset(line), line, tool));
 		
 		source = newSource;
 	}
@@ -183,7 +157,7 @@ public class MutableGCodeSource implements GCodeSource {
 	 */
 	public void coolUnusedToolhead()
 	{		
-		GCodeCommand gcode;
+		GCodeCommand gcode = new GCodeCommand();
 		String line;
 
 		double tval;
@@ -196,7 +170,7 @@ public class MutableGCodeSource implements GCodeSource {
 		for(Iterator<String> it = source.iterator(); it.hasNext(); )
 		{
 			line = it.next();
-			gcode = new GCodeCommand(line);
+			gcode.reset(line);
 			
 			tval = gcode.getCodeValue('T');
 			
@@ -0,0 +1,52 @@
+package replicatorg.app.gcode;
+
+import java.io.IOException;
+
+/**
+ * Adds M73 commands giving the approximate % done, going by line count,
+ * so The Replicator can display build progress.
+ *
+ * TRICKY: M73 P0 is required by The Replicator to enable % display, and
+ * M73 P100 is required at the end. These are in TheReplicator start.gcode
+ * and end.gcode. P0 and P100 are flags to send the build_start and
+ * build_end notifications to the firmware, so we never add either of them;
+ * more than one 'BUILD_DONE' message causes problems for the firmware.
+ */
+public class ProgressUpdateFilter extends GCodeFilter {
+
+	private final int lineCount;
+	private final boolean atLayers;
+	private int index = 0;
+	private int lastPercent = 0;
+
+	/**
+	 * @param lineCount how many lines this filter will be given
+	 * @param atLayers true to add an update only at the start of each
+	 *     tagged layer, false to add one whenever the % done changes
+	 */
+	public ProgressUpdateFilter(int lineCount, boolean atLayers) {
+		this.lineCount = Math.max(1, lineCount);
+		this.atLayers = atLayers;
+	}
+
+	@Override
+	public void write(String line) throws IOException {
+		int percentDone = (int)((long)index * 100 / lineCount);
+		if (atLayers) {
+			if (line.startsWith("(<layer>"))
+				emit("M73 P" + clamp(percentDone) + " (display progress)");
+		} else if (percentDone != lastPercent) {
+			percentDone = clamp(percentDone);
+			emit("M73 P" + percentDone + " (display progress)");
+			lastPercent = percentDone;
+		}
+		emit(line);
+		index++;
+	}
+
+	private static int clamp(int percentDone) {
+		if (percentDone == 0)	percentDone = 1;
+		if (percentDone == 100)	percentDone = 99;
+		return percentDone;
+	}
+}
@@ -0,0 +1,53 @@
+package replicatorg.app.gcode;
+
+import java.io.IOException;
+
+import replicatorg.machine.model.ToolheadAlias;
+
+/**
+ * Swaps all references to the current toolhead to instead reference the
+ * specified toolhead. Alters select G, M and T Codes.
+ */
+public class ToolheadSwapFilter extends GCodeFilter {
+
+	private final ToolheadAlias tool;
+	private final GCodeCommand gcode = new GCodeCommand();
+
+	public ToolheadSwapFilter(ToolheadAlias tool) {
+		this.tool = tool;
+	}
+
+	@Override
+	public void write(String line) throws IOException {
+		emit(swap(gcode.reset(line), line, tool));
+	}
+
+	/**
+	 * Swap the toolhead in one line.
+	 * @param gcode the line, already parsed
+	 * @param line the line as written
+	 * @return the line, changed if needed
+	 */
+	static String swap(GCodeCommand gcode, String line, ToolheadAlias tool) {
+		if(gcode.hasCode('T'))
+		{
+			int value = (int)gcode.getCodeValue('T');
+			if(value != tool.number)
+			{
+				if(value == 0)
+					line = line.replace("T0", "T1");
+				else if(value == 1)
+					line = line.replace("T1", "T0");
+			}
+		}
+		if(gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
+		{
+			line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
+		}
+		if(gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
+		{
+			line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
+		}
+		return line;
+	}
+}
@@ -6,6 +6,23 @@ package replicatorg.app.tools;
  */
 public class IButtonCrc {
 
+	// The CRC of every byte value, starting from zero. Since the CRC is
+	// linear, updating with a byte is one lookup in here.
+	private static final byte[] TABLE = new byte[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				if ((crc & 0x01) != 0) {
+					crc = (crc >>> 1) ^ 0x8c;
+				} else {
+					crc = crc >>> 1;
+				}
+			}
+			TABLE[i] = (byte) crc;
+		}
+	}
+
 	private int crc = 0;
 
 	/**
@@ -24,14 +41,27 @@ public class IButtonCrc {
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
-		}
+		crc = TABLE[(crc ^ data) & 0xff] & 0xff;
+	}
+
+	/**
+	 * Update a CRC with a byte of data, without keeping an object around.
+	 * @param crc the CRC so far, starting from 0
+	 * @return the new CRC
+	 */
+	public static int update(int crc, byte data) {
+		return TABLE[(crc ^ data) & 0xff] & 0xff;
+	}
+
+	/**
+	 * Update a CRC with a run of data.
+	 * @param crc the CRC so far, starting from 0
+	 * @return the new CRC
+	 */
+	public static int update(int crc, byte[] data, int offset, int length) {
+		for (int i = offset; i < offset + length; i++)
+			crc = TABLE[(crc ^ data[i]) & 0xff] & 0xff;
+		return crc;
 	}
 
 	/**
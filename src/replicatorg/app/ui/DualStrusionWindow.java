@@ -532,8 +532,11 @@ public class DualStrusionWindow extends JFrame{
 		}
 		
 		DualStrusionConstruction dsConstruction = new DualStrusionConstruction(leftGcode, rightGcode, startSource, endSource, type, uWipe);
-		dsConstruction.combine();
-		dsConstruction.getCombinedFile().writeToFile(dest);
+		if(!dsConstruction.combine(dest))
+		{
+			abort("Could not write the combined gcode to " + dest + ". Cancelling Dualstrusion combination");
+			return;
+		}
 		
 		//we want to have the mainwindow load the new code, now.
 		// that should happen here.
@@ -128,6 +128,7 @@ import replicatorg.app.util.SwingPythonSelector;
 import replicatorg.app.util.serial.Name;
 import replicatorg.app.util.serial.Serial;
 import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
 import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
@@ -141,6 +142,7 @@ import replicatorg.machine.MachineProgressEvent;
 import replicatorg.machine.MachineState;
 import replicatorg.machine.MachineStateChangeEvent;
 import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.builder.LayerIndex;
 import replicatorg.machine.model.BuildVolume;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
@@ -148,6 +150,8 @@ import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.IndexedGCodeSource;
 import replicatorg.model.JEditTextAreaSource;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
@@ -239,6 +243,7 @@ ToolpathGenerator.GeneratorListener
 	JMenuItem pauseItem;
 	JMenuItem controlPanelItem;
 	JMenuItem buildMenuItem;
+	JMenuItem buildFromLayerItem;
 	JMenuItem profilesMenuItem;
 	JMenuItem dualstrusionItem;
 	JMenuItem combineItem;
@@ -1085,6 +1090,14 @@ ToolpathGenerator.GeneratorListener
 		});
 		menu.add(buildMenuItem);
 
+		buildFromLayerItem = new JMenuItem("Build from Layer...");
+		buildFromLayerItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleBuildFromLayer();
+			}
+		});
+		menu.add(buildFromLayerItem);
+
 		pauseItem = newJMenuItem("Pause", 'E');
 		pauseItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -2155,7 +2168,55 @@ ToolpathGenerator.GeneratorListener
 		}
 	}
 	
+	/**
+	 * Build the saved GCode from the start of one of its layers, as noted
+	 * in its layer index by an earlier build.
+	 */
+	public void handleBuildFromLayer() {
+		if (building)
+			return;
+		if (simulating)
+			return;
+
+		GCodeSource source = getBuildSource();
+		if (!(source instanceof IndexedGCodeSource)) {
+			JOptionPane.showMessageDialog(this,
+					"Save the GCode first: a build can only be picked up from a layer of a saved file.",
+					"Build from Layer", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		IndexedGCodeSource job = (IndexedGCodeSource)source;
+		List<LayerIndex.Layer> layers = new LayerIndex(job.getFile()).getLayers();
+		if (layers.isEmpty()) {
+			job.close();
+			JOptionPane.showMessageDialog(this,
+					"There are no layers noted for this file yet. They're noted as it builds,\n" +
+					"from the layer tags in the GCode, so build it once first.",
+					"Build from Layer", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		Object layer = JOptionPane.showInputDialog(this, "Start the build at:", "Build from Layer",
+				JOptionPane.QUESTION_MESSAGE, null, layers.toArray(), layers.get(layers.size() - 1));
+		if (layer == null) {
+			job.close();
+			return;
+		}
+
+		machineLoader.getDriver().setBuildToFileVersion(0);
+		holdBuildSource(job);
+		doBuild(LayerIndex.resumeSource(job, (LayerIndex.Layer)layer,
+				(DriverQueryInterface)machineLoader.getDriver()));
+	}
+	
 	public void doBuild()
+	{
+		doBuild(null);
+	}
+	
+	/**
+	 * @param source what to build, or null for the GCode in the editor
+	 */
+	private void doBuild(GCodeSource source)
 	{
 		if (!machineLoader.isLoaded()) {
 			Base.logger.severe("Not ready to build yet.");
@@ -2177,7 +2238,7 @@ ToolpathGenerator.GeneratorListener
 			message("Building...");
 			buildStart = new Date();
 			
-			machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().buildDirect(source != null ? source : holdBuildSource(getBuildSource()));
 			//doing this check allows us to recover from pre-build stuff
 //			if(machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea)) == false)
 //			{
@@ -2189,6 +2250,45 @@ ToolpathGenerator.GeneratorListener
 		}
 	}
 
+	/**
+	 * The GCode to hand to the machine for a build, estimate or upload. If the
+	 * editor contents match what's on disk we stream straight from the file
+	 * rather than walking the text area, so big jobs don't need a second copy
+	 * in memory while they run.
+	 */
+	private GCodeSource getBuildSource() {
+		BuildCode code = build.getCode();
+		if (code != null && code.file != null && !code.isModified() && code.file.exists()) {
+			try {
+				return new IndexedGCodeSource(code.file);
+			} catch (IOException e) {
+				Base.logger.log(Level.WARNING, "Could not read " + code.file + ", building from the editor instead", e);
+			}
+		}
+		return new JEditTextAreaSource(textarea);
+	}
+
+	// The saved file a build is reading, to let go of once the build is over
+	private IndexedGCodeSource buildFile = null;
+
+	/**
+	 * Note the source a build is reading, so the file can be closed when
+	 * the build is over; whatever the last build read is closed now.
+	 */
+	private synchronized GCodeSource holdBuildSource(GCodeSource source) {
+		releaseBuildSource();
+		if (source instanceof IndexedGCodeSource)
+			buildFile = (IndexedGCodeSource)source;
+		return source;
+	}
+
+	private synchronized void releaseBuildSource() {
+		if (buildFile != null) {
+			buildFile.close();
+			buildFile = null;
+		}
+	}
+
 	public void handleUpload() {
 		if (building)
 			return;
@@ -2215,7 +2315,7 @@ ToolpathGenerator.GeneratorListener
 
 			message("Uploading...");
 			buildStart = new Date();
-			machineLoader.getMachineInterface().upload(new JEditTextAreaSource(textarea), path);
+			machineLoader.getMachineInterface().upload(holdBuildSource(getBuildSource()), path);
 		}
 	}
 
@@ -2385,7 +2485,7 @@ ToolpathGenerator.GeneratorListener
 			// start our building thread.
 			buildStart = new Date();
 			machineLoader.getDriver().setBuildToFileVersion((getExtension(path).equals(".x3g")) ? 4 : 3);
-			machineLoader.getMachineInterface().buildToFile(new JEditTextAreaSource(textarea), path);
+			machineLoader.getMachineInterface().buildToFile(holdBuildSource(getBuildSource()), path);
 		}
 	}
 
@@ -2507,6 +2607,7 @@ ToolpathGenerator.GeneratorListener
 
 		// enable the build menu item when the machine is ready and there is gcode in the editor
 		buildMenuItem.setEnabled(hasGcode && evt.getState().isConfigurable());
+		buildFromLayerItem.setEnabled(hasGcode && evt.getState().isConfigurable());
 		onboardParamsItem.setVisible(showParams);
 		onboardParamsItem.setEnabled(showParams);
 		preheatItem.setEnabled(evt.getState().isConnected() && !building);
@@ -2616,6 +2717,7 @@ ToolpathGenerator.GeneratorListener
 	// synchronized public void buildingOver()
 	public void buildingOver() {
 		message("Done building.");
+		releaseBuildSource();
 
 		// re-enable the gui and shit.
 		textarea.setEnabled(true);
@@ -2643,7 +2745,8 @@ ToolpathGenerator.GeneratorListener
 
 		public void run() {
 			message("Simulating...");
-			machineLoader.getMachineInterface().simulate(new JEditTextAreaSource(textarea));
+			// Nothing says when a simulation is over, so the file is closed when the next build starts.
+			machineLoader.getMachineInterface().simulate(holdBuildSource(getBuildSource()));
 			EventQueue.invokeLater(new Runnable() {
 				public void run() {
 					simulationOver();
@@ -2679,7 +2782,10 @@ ToolpathGenerator.GeneratorListener
 
 		public void run() {
 			message("Estimating...");
-			machineLoader.getMachineInterface().estimate(new JEditTextAreaSource(textarea));
+			GCodeSource source = getBuildSource();
+			machineLoader.getMachineInterface().estimate(source);
+			if (source instanceof IndexedGCodeSource)
+				((IndexedGCodeSource)source).close();
 			editor.estimationOver();
 		}
 	}
@@ -2751,6 +2857,7 @@ ToolpathGenerator.GeneratorListener
 		building = false;
 		simulating = false;
 		buildOnComplete = false;
+		releaseBuildSource();
 	}
 
 	public void handleReset() {
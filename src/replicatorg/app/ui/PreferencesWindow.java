@@ -43,6 +43,7 @@ import replicatorg.app.Base;
 import replicatorg.app.Base.InitialOpenBehavior;
 import replicatorg.app.util.PythonUtils;
 import replicatorg.app.util.SwingPythonSelector;
+import replicatorg.drivers.gen3.PacketTrace;
 import replicatorg.machine.MachineInterface;
 import replicatorg.machine.model.MachineType;
 import replicatorg.uploader.FirmwareUploader;
@@ -203,6 +204,8 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 		addCheckboxForPref(content,"Notifications in System tray","ui.preferSystemTrayNotifications",false);
 		addCheckboxForPref(content,"Automatically regenerate gcode when building from model view.","build.autoGenerateGcode",true);
 		addCheckboxForPref(content,"Use native avrdude for uploading code","uploader.useNative",false);
+		addCheckboxForPref(content,"Keep parsed commands next to GCode files, for faster reprints","build.command_cache",false);
+		addCheckboxForPref(content,"Note where each layer starts while building, to build from a layer later","build.layer_index",true);
 
 		JPanel advanced = new JPanel();
 		content = advanced;
@@ -315,6 +318,66 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 			});
 		}
 		
+		{
+			JLabel arcToleranceLabel = new JLabel("Arc tolerance (in mm): ");
+			content.add(arcToleranceLabel,"split");
+			double value = Base.preferences.getDouble("replicatorg.parser.arc_tolerance_mm", 0.01);
+			JFormattedTextField arcToleranceField = new JFormattedTextField(Base.getLocalFormat());
+			arcToleranceField.setValue(new Double(value));
+			content.add(arcToleranceField);
+			String arcToleranceHelp = "<html><small><em>" +
+				"The arc tolerance is the furthest the segments of a G2 or G3 arc may be from the true arc.<br>" +
+				"Small arcs need fewer segments than large ones to stay within it." +
+				"</em></small></html>";
+			arcToleranceField.setToolTipText(arcToleranceHelp);
+			arcToleranceLabel.setToolTipText(arcToleranceHelp);
+			arcToleranceField.setColumns(10);
+			arcToleranceField.addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent evt) {
+					if (evt.getPropertyName() == "value") {
+						try {
+							Double v = ((Number)evt.getNewValue()).doubleValue();
+							if (v == null) return;
+							Base.preferences.putDouble("replicatorg.parser.arc_tolerance_mm", v.doubleValue());
+						} catch (ClassCastException cce) {
+							Base.logger.warning("Unexpected value type: "+evt.getNewValue().getClass().toString());
+						}
+					}
+				}
+			});
+		}
+		
+		{
+			JLabel arcSegmentTimeLabel = new JLabel("Shortest arc segment (in seconds): ");
+			content.add(arcSegmentTimeLabel,"split, gap unrelated");
+			double value = Base.preferences.getDouble("replicatorg.parser.arc_min_segment_time", 0.02);
+			JFormattedTextField arcSegmentTimeField = new JFormattedTextField(Base.getLocalFormat());
+			arcSegmentTimeField.setValue(new Double(value));
+			content.add(arcSegmentTimeField,"wrap 10px, growx");
+			String arcSegmentTimeHelp = "<html><small><em>" +
+				"Arcs are broken into fewer segments if a segment would take less than this long at the<br>" +
+				"current feedrate, but never so few that they stray from the arc; then the arc is drawn<br>" +
+				"more slowly. Set it to about the firmware's minimum segment time, so that arcs don't<br>" +
+				"send moves faster than the machine can plan them (0 means no limit)." +
+				"</em></small></html>";
+			arcSegmentTimeField.setToolTipText(arcSegmentTimeHelp);
+			arcSegmentTimeLabel.setToolTipText(arcSegmentTimeHelp);
+			arcSegmentTimeField.setColumns(10);
+			arcSegmentTimeField.addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent evt) {
+					if (evt.getPropertyName() == "value") {
+						try {
+							Double v = ((Number)evt.getNewValue()).doubleValue();
+							if (v == null) return;
+							Base.preferences.putDouble("replicatorg.parser.arc_min_segment_time", v.doubleValue());
+						} catch (ClassCastException cce) {
+							Base.logger.warning("Unexpected value type: "+evt.getNewValue().getClass().toString());
+						}
+					}
+				}
+			});
+		}
+		
 		{
 			content.add(new JLabel("Debugging level (default INFO):"),"split");
 			content.add(makeDebugLevelDropdown(), "wrap");
@@ -331,7 +394,7 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 			final JLabel logPathLabel = new JLabel("Log file name: "); 
 			content.add(logPathLabel,"split");
 			logPathField = new JTextField(34);
-			content.add(logPathField,"growx, wrap 10px");
+			content.add(logPathField,"growx, wrap");
 			logPathField.setEnabled(logCb.isSelected());
 			logPathLabel.setEnabled(logCb.isSelected());
 
@@ -343,6 +406,17 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 				}
 			});
 
+			final JCheckBox traceCb = new JCheckBox("Record packet trace");
+			traceCb.setToolTipText("Record every packet to and from the machine in "
+					+ Base.getUserFile("packet-trace.s3gtrace") + ", for working out problems afterwards");
+			traceCb.setSelected(Base.preferences.getBoolean("replicatorg.s3g.packet_trace",false));
+			content.add(traceCb, "wrap 10px");
+			traceCb.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					Base.preferences.putBoolean("replicatorg.s3g.packet_trace",traceCb.isSelected());
+					PacketTrace.applyPreferences();
+				}
+			});
 		}
 		
 		{
@@ -17,6 +17,7 @@ import replicatorg.app.Base;
 import replicatorg.app.ui.MainWindow;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.OnboardParameters;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
 import replicatorg.machine.model.ToolModel;
 
 
@@ -28,12 +29,20 @@ public class OnboardParametersWindow extends JFrame {
 	private boolean disconnectOnExit = false;
 
 	private MainWindow mainwin;
+	/// Board whose EEPROM copy lasts as long as this window, if it keeps one
+	private Sanguino3GDriver eepromDriver = null;
 
 	/// shoot me. I'm passing the main window into this box. I am a bad person - Far F-BOMB
 	public OnboardParametersWindow(OnboardParameters targetParams, Driver driver, MainWindow  mainwin)
 	{	
 		super("Update Machine Options");
 		this.mainwin = mainwin;
+
+		// Start from what's on the board now; the front panel may have changed it
+		if (targetParams instanceof Sanguino3GDriver) {
+			eepromDriver = (Sanguino3GDriver)targetParams;
+			eepromDriver.beginEEPROMSession();
+		}
 	
 		Image icon = Base.getImage("images/icon.gif", this);
 		setIconImage(icon);
@@ -98,6 +107,8 @@ public class OnboardParametersWindow extends JFrame {
 	@Override
 	public void dispose()
 	{
+		if (eepromDriver != null)
+			eepromDriver.endEEPROMSession();
 		this.disconnectOnExit = onboardParamsTab.disconnectOnExit();	
 		boolean leavePreheatRunning = onboardParamsTab.leavePreheatRunning();
 		if(mainwin != null && this.disconnectOnExit){
@@ -1,63 +1,136 @@
 package replicatorg.app.util.serial;
 
+import java.util.NoSuchElementException;
+
 /**
- * Non-growable FIFO.  In theory we only need enough space for a single
- * packet.  Currently set at 1K.
+ * Growable FIFO.  Bytes are kept in a ring whose size is always a power of
+ * two, so wrapping around is a mask rather than a division.  It starts at
+ * 1K, which is plenty for a single packet, and doubles whenever it fills
+ * up, as far as MAX_FIFO_SIZE.  Bytes that haven't been read yet are only
+ * overwritten past that point, when nobody can be reading them: the oldest
+ * are dropped to make room for the newest.
  * @author phooky
  *
  */
 public class ByteFifo {
 	final static int INITIAL_FIFO_SIZE = 1 * 1024; // 1 K
+	/// The most the fifo will grow to; far more than any reader should let back up
+	public final static int MAX_FIFO_SIZE = 1024 * 1024; // 1 M
 	private byte[] buffer = new byte[INITIAL_FIFO_SIZE];
-	private int head = 0; 
-	private int tail = 0;
-	/** the point our last new line search ended or the head if it has moved past that point. */
-	private int newLineSearchHead = head;
-
-	final private int moduloLength(int value) {
-		if (value < 0) value += buffer.length;
-		value = value % buffer.length;
-		return value;
-	}
-	public void enqueue(byte b) {
-		buffer[tail++] = b;
-		tail = moduloLength(tail);
-	}
-	public void clear() { head = tail = 0; }
-	public int size() { return moduloLength(tail-head); }
+	private int mask = buffer.length - 1;
+	private int head = 0;
+	private int size = 0;
+	/** how many bytes past the head our last new line search got through without finding one. */
+	private int newLineSearched = 0;
+
+	/**
+	 * Make room for at least this many more bytes, up to MAX_FIFO_SIZE.
+	 * @return how many of the oldest bytes were dropped to do it
+	 */
+	private int reserve(int count) {
+		if (size + count <= buffer.length) return 0;
+		int dropped = Math.max(0, size + count - MAX_FIFO_SIZE);
+		skip(dropped);
+		int capacity = buffer.length;
+		while (capacity < size + count) capacity <<= 1;
+		if (capacity != buffer.length) {
+			byte[] grown = new byte[capacity];
+			dequeueInto(grown, 0, size, false);
+			buffer = grown;
+			mask = capacity - 1;
+			head = 0;
+		}
+		return dropped;
+	}
+
+	// Throw away bytes from the front of the fifo.
+	private void skip(int count) {
+		head = (head + count) & mask;
+		size -= count;
+		newLineSearched = Math.max(0, newLineSearched - count);
+	}
+
+	/**
+	 * Add a byte to the end of the fifo.
+	 * @return how many of the oldest bytes were dropped to make room
+	 */
+	public int enqueue(byte b) {
+		int dropped = reserve(1);
+		buffer[(head + size) & mask] = b;
+		size++;
+		return dropped;
+	}
+
+	/**
+	 * Add a run of bytes to the end of the fifo.
+	 * @return how many of the oldest bytes were dropped to make room
+	 */
+	public int enqueue(byte[] bytes, int offset, int length) {
+		int dropped = 0;
+		if (length > MAX_FIFO_SIZE) {
+			dropped = length - MAX_FIFO_SIZE;
+			offset += dropped;
+			length = MAX_FIFO_SIZE;
+		}
+		dropped += reserve(length);
+		int tail = (head + size) & mask;
+		int first = Math.min(length, buffer.length - tail);
+		System.arraycopy(bytes, offset, buffer, tail, first);
+		System.arraycopy(bytes, offset + first, buffer, 0, length - first);
+		size += length;
+		return dropped;
+	}
+
+	public void clear() { head = size = newLineSearched = 0; }
+	public int size() { return size; }
+
+	/**
+	 * Remove the byte at the front of the fifo.
+	 * @throws NoSuchElementException if the fifo is empty
+	 */
 	public byte dequeue() {
-		int nextHead = moduloLength(head+1);
-		if (newLineSearchHead == head) newLineSearchHead = nextHead;
-		
+		if (size == 0)
+			throw new NoSuchElementException("ByteFifo is empty");
 		byte b = buffer[head];
-		head = nextHead;
+		skip(1);
 		return b;
 	}
-	
+
+	/**
+	 * Remove up to length bytes from the front of the fifo.
+	 * @return the number of bytes removed
+	 */
+	public int dequeue(byte[] bytes, int offset, int length) {
+		return dequeueInto(bytes, offset, length, true);
+	}
+
+	private int dequeueInto(byte[] bytes, int offset, int length, boolean remove) {
+		int count = Math.min(length, size);
+		int first = Math.min(count, buffer.length - head);
+		System.arraycopy(buffer, head, bytes, offset, first);
+		System.arraycopy(buffer, 0, bytes, offset + first, count - first);
+		if (remove)
+			skip(count);
+		return count;
+	}
+
 	/**
-	 * deques the byte array up to and including the first instance of a newline (\n) 
+	 * deques the byte array up to and including the first instance of a newline (\n)
 	 * byte. If the \n character is not in the fifo a empty byte array is returned.
 	 * @param pattern
 	 * @return
 	 */
 	public synchronized byte[] dequeueLine() {
-		int i = newLineSearchHead;
-		while(i !=tail)
+		for (int i = newLineSearched; i < size; i++)
 		{
-			if (buffer[i] == (byte)'\n')
+			if (buffer[(head + i) & mask] == (byte)'\n')
 			{
-				byte[] match = new byte[moduloLength( moduloLength(i+1) - head )];
-				int k = 0;
-				for ( int j = head; j != moduloLength(i+1); j = moduloLength(j+1) )
-				{
-					match[k++] = dequeue();
-				}
+				byte[] match = new byte[i + 1];
+				dequeue(match, 0, match.length);
 				return match;
 			}
-
-			i = moduloLength(i+1);
 		}
-		newLineSearchHead = i;
+		newLineSearched = size;
 		return new byte[0];
 	}
-}
\ No newline at end of file
+}
@@ -78,6 +78,9 @@ public class Serial implements SerialPortEventListener {
 	
 	private ByteFifo readFifo = new ByteFifo();
 	
+	/** What we read from the port in one go, before queueing it. */
+	private final byte[] readChunk = new byte[4096];
+	
 	public final AtomicReference<SerialFifoEventListener> listener =
 		new AtomicReference<SerialFifoEventListener>();
 	
@@ -299,14 +302,16 @@ public class Serial implements SerialPortEventListener {
 	{
 		try {
 			long to = System.currentTimeMillis() + timeoutMillis;
-			while (System.currentTimeMillis() < to && readFifo.size() < numberOfBytes)
-			{
-				/*
-				 * Wait until we timeout or a byte is received (which will notify this 
-				 * method). readFifo notifies for each byte received.
-				 */
-				synchronized (readFifo) {
-					readFifo.wait(timeoutMillis);
+			synchronized (readFifo) {
+				long remaining;
+				while (readFifo.size() < numberOfBytes
+						&& (remaining = to - System.currentTimeMillis()) > 0)
+				{
+					/*
+					 * Wait until we timeout or bytes are received (which will notify this 
+					 * method). readFifo notifies once for each chunk received.
+					 */
+					readFifo.wait(remaining);
 				}
 			}
 		} catch (InterruptedException e) {
@@ -354,15 +359,21 @@ public class Serial implements SerialPortEventListener {
 	 * @return the number of characters read.
 	 */
  	public int read(byte bytes[]) {
+ 		return read(bytes, 0, bytes.length);
+ 	}
+
+	/**
+	 * Attempt to read len bytes into the given buffer, starting at off.  Waits until
+	 * that many bytes have arrived or the timeout is exceeded, then takes as many as
+	 * are available, up to len.
+	 * @return the number of bytes read, or -1 if interrupted.
+	 */
+ 	public int read(byte bytes[], int off, int len) {
  		//wait for the fifo to fill
-		if (waitForBytes(bytes.length) == -1) return -1;
+		if (waitForBytes(len) == -1) return -1;
 		//read the fifo
 		synchronized(readFifo) {
-			int idx = 0;
-			while (readFifo.size() > 0 && idx < bytes.length) {
-				bytes[idx++] = readFifo.dequeue();
-			}
-			return idx;
+			return readFifo.dequeue(bytes, off, len);
 		}
 	}
 
@@ -447,22 +458,19 @@ public class Serial implements SerialPortEventListener {
 		synchronized (readFifo) {
 			try {
 				while (true) {
+					int available;
 					synchronized(input)
 					{
-						if (input.available() == 0)
+						available = input.available();
+						if (available == 0)
 						{
 							return;
 						}
 					}
 
-					int b = input.read();
-					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						//notify each byte received
-						readFifo.notifyAll();
-						SerialFifoEventListener l = listener.get();
-						if (l != null)
-							l.serialByteReceivedEvent(readFifo);
+					int count = input.read(readChunk, 0, Math.min(available, readChunk.length));
+					if (count > 0) {
+						received(readChunk, 0, count);
 					}
 				}
 			} catch (IOException e) {
@@ -482,4 +490,20 @@ public class Serial implements SerialPortEventListener {
 			}
 		}
 	}
+
+	/**
+	 * Queue bytes that came in from the port, and let everyone waiting on
+	 * them know, once for the whole run.
+	 */
+	private void received(byte[] bytes, int offset, int length) {
+		synchronized (readFifo) {
+			int dropped = readFifo.enqueue(bytes, offset, length);
+			if (dropped > 0)
+				Base.logger.warning("Serial input backed up; dropped " + dropped + " bytes nobody read.");
+			readFifo.notifyAll();
+			SerialFifoEventListener l = listener.get();
+			if (l != null)
+				l.serialByteReceivedEvent(readFifo);
+		}
+	}
 }
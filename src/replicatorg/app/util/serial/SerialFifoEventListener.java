@@ -2,7 +2,8 @@ package replicatorg.app.util.serial;
 
 public interface SerialFifoEventListener {
 	/**
-	 * Called by serial when a byte is received and queued in the fifo.
+	 * Called by serial when bytes are received and queued in the fifo.  Bytes
+	 * arrive in runs, so there may be more than one message waiting.
 	 * The fifo is synchronzied for the period of this call so it will not be 
 	 * modified by any external threads.
 	 * @param fifo
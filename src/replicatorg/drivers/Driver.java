@@ -71,6 +71,13 @@ public interface Driver {
 	 */
 	public boolean isBufferEmpty();
 	
+	/**
+	 * Send anything the driver has been holding back, such as a move it
+	 * was waiting to merge with the next one. Called when no more commands
+	 * are coming for a while.
+	 */
+	public void flush() throws RetryException;
+	
 	
 	/**
 	 * Check that the communication line is still up, the machine is still connected,
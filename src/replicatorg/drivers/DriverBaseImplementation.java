@@ -202,6 +202,9 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 		return true;
 	}
 
+	public void flush() throws RetryException {
+	}
+
 	/***************************************************************************
 	 * Firmware information functions
 	 **************************************************************************/
@@ -24,20 +24,85 @@
 package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
+import java.util.EnumSet;
 
-import javax.vecmath.Point3d;
-
+import replicatorg.app.Base;
+import replicatorg.machine.model.AxisId;
 import replicatorg.util.Point5d;
 
+/**
+ * Estimates how long a build will take, by running its commands through a
+ * model of the machine's motion planner.
+ *
+ * Without acceleration settings, each move takes its length over its
+ * feedrate, plus a little for sending the command, which is what
+ * unaccelerated firmware does. Once {@link #setAcceleration} has been called,
+ * moves are planned the way accelerated firmware plans them: each move
+ * speeds up and slows down as a trapezoid, at an acceleration limited by
+ * every axis it moves, and consecutive moves are joined at the fastest speed
+ * the axis jerk limits allow. As in the firmware, speeds are planned across
+ * a window of upcoming moves, so a run of short moves in a line can keep up
+ * its speed, and moves are only timed once they leave the window.
+ *
+ * Time is also broken down per layer (a layer starts whenever a move goes
+ * higher in Z than any before it) and per toolhead.
+ *
+ * The times only count moves that have left the window; call
+ * {@link #finish()} at the end of the job to count the rest.
+ */
 public class EstimationDriver extends DriverBaseImplementation implements InteractiveDisplay{
+	// Moves the firmware plans ahead over
+	private static final int PLANNER_BLOCKS = 16;
+
+	// Time taken to send a command to unaccelerated firmware, in ms
+	private static final double COMMAND_OVERHEAD = 12.0;
+
+	// Used when the machine won't tell us its settings. Accelerations in mm/s/s, jerks in mm/s.
+	public static final double DEFAULT_ACCELERATION = 2000;
+	public static final double[] DEFAULT_AXIS_ACCELERATION = { 1000, 1000, 150, 2000, 2000 };
+	public static final double[] DEFAULT_AXIS_JERK = { 10, 10, 1, 2, 2 };
+	public static final double DEFAULT_MINIMUM_SPEED = 0;
+
 	// build time in milliseconds
 	private double buildTime = 0.0;
 
-	// the length of our last move.
-	private double moveLength = 0.0;
-	
 	private Rectangle2D.Double bounds = new Rectangle2D.Double();
-	
+
+	// Acceleration settings; accelerated is false until they've been set
+	private boolean accelerated = false;
+	private double acceleration;
+	private final double[] axisAcceleration = new double[5];
+	private final double[] axisJerk = new double[5];
+	private double minimumSpeed;
+
+	// The planner window, as a ring of moves. Lengths in mm, speeds in mm/s.
+	private final double[] length = new double[PLANNER_BLOCKS];
+	private final double[] accel = new double[PLANNER_BLOCKS];
+	private final double[] nominalSpeed = new double[PLANNER_BLOCKS];
+	// Fastest speed the move can start at, going by the junction with the move before
+	private final double[] maxEntrySpeed = new double[PLANNER_BLOCKS];
+	// Fastest speed the move can start or end at from or to a standstill
+	private final double[] stopSpeed = new double[PLANNER_BLOCKS];
+	private final double[] entrySpeed = new double[PLANNER_BLOCKS];
+	private final int[] blockTool = new int[PLANNER_BLOCKS];
+	private final int[] blockLayer = new int[PLANNER_BLOCKS];
+	private int first = 0;
+	private int count = 0;
+
+	// Direction of the last move planned, for working out the next junction
+	private final double[] lastUnit = new double[5];
+	private double lastNominal = 0;
+
+	// Per layer and per toolhead time, in ms
+	private double[] layerTime = new double[64];
+	private double[] layerHeight = new double[64];
+	private int layerCount = 0;
+	private double[] toolTime = new double[2];
+
+	// Scratch space for queuePoint, so it doesn't allocate
+	private final double[] delta = new double[5];
+	private final Point5d absDelta = new Point5d();
+
 	public EstimationDriver() {
 		super();
 
@@ -45,9 +110,54 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	}
 
 	public Rectangle2D.Double getBounds() { return bounds; }
-	
+
+	/**
+	 * Plan moves with acceleration.
+	 * @param rate acceleration limit for every move, in mm/s/s; zero for none
+	 * @param axisRates acceleration limit for each axis, in mm/s/s; zero for none
+	 * @param axisJerks largest instant change in speed for each axis, in mm/s
+	 * @param minimumSpeed slowest speed the planner will slow down to between moves, in mm/s
+	 */
+	public void setAcceleration(double rate, double[] axisRates, double[] axisJerks, double minimumSpeed) {
+		drainPlanner();
+		acceleration = rate > 0 ? rate : Double.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			axisAcceleration[i] = axisRates[i] > 0 ? axisRates[i] : Double.MAX_VALUE;
+			axisJerk[i] = Math.max(0, axisJerks[i]);
+		}
+		this.minimumSpeed = Math.max(0, minimumSpeed);
+		accelerated = true;
+	}
+
+	/**
+	 * Plan moves with the acceleration settings stored on a machine, if it
+	 * has acceleration turned on.
+	 * @return true if the machine's settings are being used
+	 */
+	public boolean setAcceleration(OnboardParameters onboard) {
+		if (!onboard.hasAcceleration() || onboard.getAccelerationStatus() == 0)
+			return false;
+		double[] rates = new double[5];
+		double[] jerks = new double[5];
+		for (int i = 0; i < 5; i++) {
+			rates[i] = onboard.getAxisAccelerationRate(i);
+			jerks[i] = onboard.getAxisJerk(i);
+		}
+		setAcceleration(onboard.getAccelerationRate(), rates, jerks,
+				onboard.getAccelerationMinimumSpeed());
+		return true;
+	}
+
 	public void delay(long millis) {
-		buildTime += (double) millis / 1000;
+		// Queued delays wait for the moves before them to finish.
+		drainPlanner();
+		buildTime += millis;
+		addTime(machine.currentTool().getIndex(), layerCount - 1, millis);
+	}
+
+	public void homeAxes(EnumSet<AxisId> axes, boolean positive, double feedrate) throws RetryException {
+		drainPlanner();
+		super.homeAxes(axes, positive, feedrate);
 	}
 
 	protected Point5d reconcilePosition() {
@@ -61,37 +171,220 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	 * @throws RetryException 
 	 */
 	public void queuePoint(Point5d p) throws RetryException {
-		Point5d delta = getDelta(p);
+		Point5d current = getCurrentPosition(false);
+
+		double xyz = 0;
+		double extrude = 0;
+		for (int i = 0; i < 5; i++) {
+			delta[i] = p.get(i) - current.get(i);
+			absDelta.set(i, Math.abs(delta[i]));
+			if (i < 3)
+				xyz += delta[i] * delta[i];
+			else
+				extrude = Math.max(extrude, absDelta.get(i));
+		}
+
+		// Moves are as long as their travel, or their extrusion if they don't travel.
+		double moveLength = xyz > 0 ? Math.sqrt(xyz) : extrude;
+
+		bounds.add(p.x(),p.y());
+		setInternalPosition(p);
 
-		// add to the total length
-		moveLength = delta.get3D().distance(new Point3d());
+		if (moveLength == 0)
+			return;
 
 		// Calculate the feedrate. This is the speed that the toolhead will
 		// be traveling at.
-		double feedrate = getSafeFeedrate(delta);
+		double feedrate = getSafeFeedrate(absDelta);
 
-		// mostly for estimation driver.
-		
-		double millis = moveLength / feedrate * 60000.0;
+		if (p.z() > layerTop() + 0.001 || layerCount == 0)
+			startLayer(p.z());
+		int tool = machine.currentTool().getIndex();
 
-		bounds.add(p.x(),p.y());
-		
-		// add it in!
-		if (millis > 0) {
+		if (!accelerated) {
 			//Take into account the time it takes to send a command!
-			millis = millis + 12;
-			
-			buildTime = buildTime + millis;
-//			System.out.println(moveLength + "mm at " + feedrate + " takes " + Math.round(millis) + " millis (" + buildTime + "	total).");
+			double millis = moveLength / feedrate * 60000.0 + COMMAND_OVERHEAD;
+			buildTime += millis;
+			addTime(tool, layerCount - 1, millis);
+			return;
 		}
-		
-		setInternalPosition(p);
+
+		planMove(moveLength, feedrate / 60.0, tool);
+	}
+
+	// Add a move to the planner window, and replan it.
+	private void planMove(double moveLength, double speed, int tool) {
+		if (count == PLANNER_BLOCKS)
+			retire();
+
+		int b = (first + count) % PLANNER_BLOCKS;
+		count++;
+
+		// The move's acceleration is limited by every axis it moves; so is
+		// how fast it can start or stop outright.
+		double a = acceleration;
+		double stop = speed;
+		double junction = Math.min(speed, lastNominal);
+		for (int i = 0; i < 5; i++) {
+			double unit = delta[i] / moveLength;
+			double magnitude = Math.abs(unit);
+			if (magnitude > 0) {
+				a = Math.min(a, axisAcceleration[i] / magnitude);
+				stop = Math.min(stop, axisJerk[i] / magnitude);
+			}
+			// Each axis can only change speed by its jerk as we pass from the last move to this one.
+			double change = Math.abs(unit - lastUnit[i]);
+			if (change > 0)
+				junction = Math.min(junction, axisJerk[i] / change);
+			lastUnit[i] = unit;
+		}
+		lastNominal = speed;
+		stop = Math.max(stop, Math.min(speed, minimumSpeed));
+
+		length[b] = moveLength;
+		accel[b] = a;
+		nominalSpeed[b] = speed;
+		stopSpeed[b] = stop;
+		// Coming to a stop before the move is always possible.
+		maxEntrySpeed[b] = count == 1 ? stop : Math.max(junction, stop);
+		blockTool[b] = tool;
+		blockLayer[b] = layerCount - 1;
+
+		replan();
+	}
+
+	// Work out the entry speeds of the moves in the window. The last move
+	// has to be able to stop, in case nothing follows; every move has to be
+	// able to slow down to the next move's entry speed, and speed up from
+	// the last move's. The first move's entry speed is already settled.
+	private void replan() {
+		int last = (first + count - 1) % PLANNER_BLOCKS;
+		double exit = stopSpeed[last];
+		for (int k = count - 1; k > 0; k--) {
+			int b = (first + k) % PLANNER_BLOCKS;
+			exit = Math.min(maxEntrySpeed[b], Math.sqrt(exit * exit + 2 * accel[b] * length[b]));
+			entrySpeed[b] = exit;
+		}
+		if (count == 1) {
+			entrySpeed[first] = maxEntrySpeed[first];
+			return;
+		}
+		double entry = entrySpeed[first];
+		for (int k = 0; k < count - 1; k++) {
+			int b = (first + k) % PLANNER_BLOCKS;
+			int next = (b + 1) % PLANNER_BLOCKS;
+			entry = Math.min(entrySpeed[next], Math.sqrt(entry * entry + 2 * accel[b] * length[b]));
+			entrySpeed[next] = entry;
+		}
+	}
+
+	// Time the oldest move in the window, and drop it.
+	private void retire() {
+		int b = first;
+		double exit = count > 1 ? entrySpeed[(b + 1) % PLANNER_BLOCKS] : stopSpeed[b];
+		double millis = trapezoidTime(length[b], entrySpeed[b], nominalSpeed[b], exit, accel[b]) * 1000.0;
+		buildTime += millis;
+		addTime(blockTool[b], blockLayer[b], millis);
+		first = (first + 1) % PLANNER_BLOCKS;
+		count--;
+	}
+
+	// Time everything still in the window; the machine comes to a stop.
+	private void drainPlanner() {
+		while (count > 0)
+			retire();
+		for (int i = 0; i < 5; i++)
+			lastUnit[i] = 0;
+		lastNominal = 0;
+	}
+
+	/**
+	 * Seconds taken to move a distance, starting and ending at the given
+	 * speeds and accelerating as needed (and as possible) up to a cruising
+	 * speed in between.
+	 */
+	static double trapezoidTime(double distance, double entry, double cruise, double exit, double acceleration) {
+		if (acceleration == Double.MAX_VALUE)
+			return distance / cruise;
+		double a2 = 2 * acceleration;
+		double accelerating = (cruise * cruise - entry * entry) / a2;
+		double decelerating = (cruise * cruise - exit * exit) / a2;
+		if (accelerating + decelerating <= distance)
+			return (cruise - entry) / acceleration + (cruise - exit) / acceleration
+				+ (distance - accelerating - decelerating) / cruise;
+		// Never reaches cruising speed
+		double peak = Math.sqrt((a2 * distance + entry * entry + exit * exit) / 2);
+		peak = Math.max(peak, Math.max(entry, exit));
+		return (peak - entry) / acceleration + (peak - exit) / acceleration;
+	}
+
+	private double layerTop() {
+		return layerCount == 0 ? Double.NEGATIVE_INFINITY : layerHeight[layerCount - 1];
+	}
+
+	private void startLayer(double z) {
+		if (layerCount == layerTime.length) {
+			double[] grownTime = new double[layerCount * 2];
+			double[] grownHeight = new double[layerCount * 2];
+			System.arraycopy(layerTime, 0, grownTime, 0, layerCount);
+			System.arraycopy(layerHeight, 0, grownHeight, 0, layerCount);
+			layerTime = grownTime;
+			layerHeight = grownHeight;
+		}
+		layerHeight[layerCount] = z;
+		layerTime[layerCount] = 0;
+		layerCount++;
 	}
 
+	private void addTime(int tool, int layer, double millis) {
+		if (layer >= 0)
+			layerTime[layer] += millis;
+		if (tool >= 0) {
+			if (tool >= toolTime.length) {
+				double[] grown = new double[tool + 1];
+				System.arraycopy(toolTime, 0, grown, 0, toolTime.length);
+				toolTime = grown;
+			}
+			toolTime[tool] += millis;
+		}
+	}
+
+	/**
+	 * The job is over: time the moves still in the planner window, which
+	 * the machine runs to a stop once nothing comes after them.
+	 */
+	public void finish() {
+		drainPlanner();
+	}
+
+	/** Build time so far, in milliseconds. */
 	public double getBuildTime() {
 		return buildTime;
 	}
 
+	public int getLayerCount() {
+		return layerCount;
+	}
+
+	/** Z height of a layer, in mm */
+	public double getLayerHeight(int layer) {
+		return layerHeight[layer];
+	}
+
+	/** Time spent on a layer, in milliseconds */
+	public double getLayerTime(int layer) {
+		return layerTime[layer];
+	}
+
+	/** Time spent moving with the given toolhead selected, in milliseconds */
+	public double getToolTime(int tool) {
+		return tool < toolTime.length ? toolTime[tool] : 0;
+	}
+
+	public int getToolCount() {
+		return toolTime.length;
+	}
+
 	static public String getBuildTimeString(double tempTime) {
 		return getBuildTimeString(tempTime, false);
 	}
@@ -3,6 +3,7 @@ package replicatorg.drivers;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
@@ -72,6 +73,19 @@ public interface SDCardCapture {
 	public void beginFileCapture(String path) throws FileNotFoundException;
 	public void endFileCapture() throws IOException;
 
+	/**
+	 * Put the packets for commands run on the given thread on a queue,
+	 * instead of sending them, so they can be built ahead of an upload.
+	 * Queries on that thread are answered as they are when capturing to a
+	 * file. Commands run on other threads go to the machine as usual.
+	 */
+	public void beginPacketCapture(Thread thread, BlockingQueue<byte[]> queue);
+	public void endPacketCapture();
+	/**
+	 * Send a packet taken from the capture queue to the machine.
+	 */
+	public void sendCapturedPacket(byte[] packet) throws RetryException;
+
 	public ResponseCode playback(String filename);
 
 	/**
@@ -72,6 +72,10 @@ public class VirtualPrinter implements Driver, DriverQueryInterface {
 		return true;
 	}
 
+	@Override
+	public void flush() {
+	}
+
 	@Override
 	public void assessState() {
 		// TODO Auto-generated method stub
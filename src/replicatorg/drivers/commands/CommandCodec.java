@@ -0,0 +1,363 @@
+package replicatorg.drivers.commands;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import replicatorg.drivers.commands.DriverCommand.AxialDirection;
+import replicatorg.drivers.commands.DriverCommand.LinearDirection;
+import replicatorg.machine.model.AxisId;
+import replicatorg.util.Point5d;
+
+/**
+ * Writes DriverCommands out as bytes, and reads them back, so the commands
+ * for a job can be kept and run again without parsing its GCode.
+ *
+ * Each command is a type byte followed by its fields. Only the commands the
+ * GCode parser makes are covered; {@link #write} says whether it could
+ * write a command, and anyone keeping commands has to give up on the ones
+ * it can't.
+ */
+public class CommandCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/// The type byte for each command is its index here. Only add to the end.
+	private static final Class<?>[] TYPES = {
+		QueuePoint.class,
+		SetFeedrate.class,
+		SetCurrentPosition.class,
+		SelectTool.class,
+		SetTemperature.class,
+		SetPlatformTemperature.class,
+		SetChamberTemperature.class,
+		ReadTemperature.class,
+		WaitUntilBufferEmpty.class,
+		HomeAxes.class,
+		RecallHomePositions.class,
+		StoreHomePositions.class,
+		EnableAxes.class,
+		DisableAxes.class,
+		EnableDrives.class,
+		DisableDrives.class,
+		SetAxisOffset.class,
+		Delay.class,
+		EnableFan.class,
+		DisableFan.class,
+		ToggleAutomatedBuildPlatform.class,
+		SetMotorDirection.class,
+		EnableExtruderMotor.class,
+		DisableMotor.class,
+		SetMotorSpeedPWM.class,
+		SetMotorSpeedRPM.class,
+		SetSpindleDirection.class,
+		EnableSpindle.class,
+		DisableSpindle.class,
+		SetSpindleRPM.class,
+		EnableFloodCoolant.class,
+		EnableMistCoolant.class,
+		DisableFloodCoolant.class,
+		DisableMistCoolant.class,
+		OpenClamp.class,
+		CloseClamp.class,
+		OpenCollet.class,
+		CloseCollet.class,
+		OpenValve.class,
+		CloseValve.class,
+		ChangeGearRatio.class,
+		RequestToolChange.class,
+		DisplayMessage.class,
+		PlaySong.class,
+		SetBuildPercent.class,
+		SetAccelerationToggle.class,
+		SetServo.class,
+		SetStepperVoltage.class,
+		GetPosition.class,
+		Initialize.class,
+		UnconditionalHalt.class,
+		OptionalHalt.class,
+		ProgramEnd.class,
+		ProgramRewind.class,
+		StartDataCapture.class,
+		StopDataCapture.class,
+		DataCaptureNote.class,
+		GCodePassthrough.class,
+		QueueArc.class,
+	};
+
+	private static final Map<Class<?>, Integer> typeIndex = new HashMap<Class<?>, Integer>();
+	static {
+		for (int i = 0; i < TYPES.length; i++)
+			typeIndex.put(TYPES[i], i);
+	}
+
+	/**
+	 * Write a command.
+	 * @return false if this isn't a command we know how to write; nothing is written
+	 */
+	public static boolean write(DriverCommand command, DataOutput out) throws IOException {
+		Integer type = typeIndex.get(command.getClass());
+		if (type == null)
+			return false;
+		out.writeByte(type);
+		switch (type) {
+		case 0: writePoint(((QueuePoint) command).destination, out); break;
+		case 1: out.writeDouble(((SetFeedrate) command).feedrate); break;
+		case 2: writePoint(((SetCurrentPosition) command).point, out); break;
+		case 3: out.writeInt(((SelectTool) command).toolNumber); break;
+		case 4: {
+			SetTemperature c = (SetTemperature) command;
+			out.writeDouble(c.temperature);
+			out.writeInt(c.toolhead);
+			break;
+		}
+		case 5: {
+			SetPlatformTemperature c = (SetPlatformTemperature) command;
+			out.writeDouble(c.temperature);
+			out.writeInt(c.toolIndex);
+			break;
+		}
+		case 6: out.writeDouble(((SetChamberTemperature) command).temperature); break;
+		case 9: {
+			HomeAxes c = (HomeAxes) command;
+			writeAxes(c.axes, out);
+			out.writeByte(c.direction.ordinal());
+			out.writeDouble(c.feedrate);
+			break;
+		}
+		case 10: writeAxes(((RecallHomePositions) command).axes, out); break;
+		case 11: writeAxes(((StoreHomePositions) command).axes, out); break;
+		case 12: writeAxes(((EnableAxes) command).axes, out); break;
+		case 13: writeAxes(((DisableAxes) command).axes, out); break;
+		case 16: {
+			SetAxisOffset c = (SetAxisOffset) command;
+			out.writeByte(c.axis.ordinal());
+			out.writeInt(c.offsetId);
+			out.writeDouble(c.offset);
+			break;
+		}
+		case 17: {
+			Delay c = (Delay) command;
+			out.writeLong(c.delay);
+			out.writeInt(c.toolhead);
+			break;
+		}
+		case 18: out.writeInt(((EnableFan) command).toolhead); break;
+		case 19: out.writeInt(((DisableFan) command).toolhead); break;
+		case 20: {
+			ToggleAutomatedBuildPlatform c = (ToggleAutomatedBuildPlatform) command;
+			out.writeBoolean(c.state);
+			out.writeInt(c.toolhead);
+			break;
+		}
+		case 21: {
+			SetMotorDirection c = (SetMotorDirection) command;
+			out.writeByte(c.direction.ordinal());
+			out.writeInt(c.toolhead);
+			break;
+		}
+		case 22: {
+			EnableExtruderMotor c = (EnableExtruderMotor) command;
+			out.writeLong(c.millis);
+			out.writeInt(c.toolhead);
+			break;
+		}
+		case 23: out.writeInt(((DisableMotor) command).toolhead); break;
+		case 24: {
+			SetMotorSpeedPWM c = (SetMotorSpeedPWM) command;
+			out.writeInt(c.pwm);
+			out.writeInt(c.toolhead);
+			break;
+		}
+		case 25: {
+			SetMotorSpeedRPM c = (SetMotorSpeedRPM) command;
+			out.writeDouble(c.rpm);
+			out.writeInt(c.toolhead);
+			break;
+		}
+		case 26: out.writeByte(((SetSpindleDirection) command).direction.ordinal()); break;
+		case 29: out.writeDouble(((SetSpindleRPM) command).rpm); break;
+		case 34: out.writeInt(((OpenClamp) command).clampIndex); break;
+		case 35: out.writeInt(((CloseClamp) command).clampIndex); break;
+		case 40: out.writeInt(((ChangeGearRatio) command).gearRatio); break;
+		case 41: {
+			RequestToolChange c = (RequestToolChange) command;
+			out.writeInt(c.toolIndex);
+			out.writeInt(c.timeout);
+			break;
+		}
+		case 42: {
+			DisplayMessage c = (DisplayMessage) command;
+			out.writeDouble(c.seconds);
+			writeString(c.message, out);
+			out.writeBoolean(c.buttonWait);
+			break;
+		}
+		case 43: out.writeInt(((PlaySong) command).songId); break;
+		case 44: {
+			SetBuildPercent c = (SetBuildPercent) command;
+			out.writeInt(c.percentDone);
+			writeString(c.comment, out);
+			break;
+		}
+		case 45: out.writeBoolean(((SetAccelerationToggle) command).on); break;
+		case 46: {
+			SetServo c = (SetServo) command;
+			out.writeInt(c.servoIndex);
+			out.writeDouble(c.position);
+			break;
+		}
+		case 47: {
+			SetStepperVoltage c = (SetStepperVoltage) command;
+			out.writeInt(c.stepperId);
+			out.writeInt(c.voltageScale);
+			break;
+		}
+		case 50: writeString(((UnconditionalHalt) command).message, out); break;
+		case 51: writeString(((OptionalHalt) command).message, out); break;
+		case 52: writeString(((ProgramEnd) command).message, out); break;
+		case 53: writeString(((ProgramRewind) command).message, out); break;
+		case 54: writeString(((StartDataCapture) command).filename, out); break;
+		case 56: writeString(((DataCaptureNote) command).message, out); break;
+		case 57: writeString(((GCodePassthrough) command).command, out); break;
+		case 58: {
+			QueueArc c = (QueueArc) command;
+			writePoint(c.start, out);
+			out.writeDouble(c.centerX);
+			out.writeDouble(c.centerY);
+			out.writeDouble(c.radius);
+			out.writeDouble(c.startAngle);
+			out.writeDouble(c.angle);
+			out.writeDouble(c.endZ);
+			out.writeInt(c.steps);
+			out.writeBoolean(c.clockwise);
+			out.writeDouble(c.segmentFeedrate);
+			break;
+		}
+		default:
+			// Nothing to it but its type
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Read back a command written by {@link #write}.
+	 */
+	public static DriverCommand read(ByteBuffer in) throws IOException {
+		int type = in.get() & 0xff;
+		switch (type) {
+		case 0: return new QueuePoint(readPoint(in));
+		case 1: return new SetFeedrate(in.getDouble());
+		case 2: return new SetCurrentPosition(readPoint(in));
+		case 3: return new SelectTool(in.getInt());
+		case 4: return new SetTemperature(in.getDouble(), in.getInt());
+		case 5: return new SetPlatformTemperature(in.getDouble(), in.getInt());
+		case 6: return new SetChamberTemperature(in.getDouble());
+		case 7: return new ReadTemperature();
+		case 8: return new WaitUntilBufferEmpty();
+		case 9: return new HomeAxes(readAxes(in), LinearDirection.values()[in.get()], in.getDouble());
+		case 10: return new RecallHomePositions(readAxes(in));
+		case 11: return new StoreHomePositions(readAxes(in));
+		case 12: return new EnableAxes(readAxes(in));
+		case 13: return new DisableAxes(readAxes(in));
+		case 14: return new EnableDrives();
+		case 15: return new DisableDrives();
+		case 16: return new SetAxisOffset(AxisId.values()[in.get()], in.getInt(), in.getDouble());
+		case 17: return new Delay(in.getLong(), in.getInt());
+		case 18: return new EnableFan(in.getInt());
+		case 19: return new DisableFan(in.getInt());
+		case 20: return new ToggleAutomatedBuildPlatform(in.get() != 0, in.getInt());
+		case 21: return new SetMotorDirection(AxialDirection.values()[in.get()], in.getInt());
+		case 22: return new EnableExtruderMotor(in.getLong(), in.getInt());
+		case 23: return new DisableMotor(in.getInt());
+		case 24: return new SetMotorSpeedPWM(in.getInt(), in.getInt());
+		case 25: return new SetMotorSpeedRPM(in.getDouble(), in.getInt());
+		case 26: return new SetSpindleDirection(AxialDirection.values()[in.get()]);
+		case 27: return new EnableSpindle();
+		case 28: return new DisableSpindle();
+		case 29: return new SetSpindleRPM(in.getDouble());
+		case 30: return new EnableFloodCoolant();
+		case 31: return new EnableMistCoolant();
+		case 32: return new DisableFloodCoolant();
+		case 33: return new DisableMistCoolant();
+		case 34: return new OpenClamp(in.getInt());
+		case 35: return new CloseClamp(in.getInt());
+		case 36: return new OpenCollet();
+		case 37: return new CloseCollet();
+		case 38: return new OpenValve();
+		case 39: return new CloseValve();
+		case 40: return new ChangeGearRatio(in.getInt());
+		case 41: return new RequestToolChange(in.getInt(), in.getInt());
+		case 42: return new DisplayMessage(in.getDouble(), readString(in), in.get() != 0);
+		case 43: return new PlaySong(in.getInt());
+		case 44: return new SetBuildPercent(in.getInt(), readString(in));
+		case 45: return new SetAccelerationToggle(in.get() != 0);
+		case 46: return new SetServo(in.getInt(), in.getDouble());
+		case 47: return new SetStepperVoltage(in.getInt(), in.getInt());
+		case 48: return new GetPosition();
+		case 49: return new Initialize();
+		case 50: return new UnconditionalHalt(readString(in));
+		case 51: return new OptionalHalt(readString(in));
+		case 52: return new ProgramEnd(readString(in));
+		case 53: return new ProgramRewind(readString(in));
+		case 54: return new StartDataCapture(readString(in));
+		case 55: return new StopDataCapture();
+		case 56: return new DataCaptureNote(readString(in));
+		case 57: return new GCodePassthrough(readString(in));
+		case 58: return new QueueArc(readPoint(in), in.getDouble(), in.getDouble(), in.getDouble(),
+				in.getDouble(), in.getDouble(), in.getDouble(), in.getInt(), in.get() != 0,
+				in.getDouble());
+		}
+		throw new IOException("Unknown command type " + type);
+	}
+
+	public static void writePoint(Point5d p, DataOutput out) throws IOException {
+		for (int i = 0; i < 5; i++)
+			out.writeDouble(p.get(i));
+	}
+
+	public static Point5d readPoint(ByteBuffer in) {
+		return new Point5d(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+	}
+
+	private static void writeAxes(EnumSet<AxisId> axes, DataOutput out) throws IOException {
+		int bits = 0;
+		for (AxisId axis : axes)
+			bits |= 1 << axis.ordinal();
+		out.writeShort(bits);
+	}
+
+	private static EnumSet<AxisId> readAxes(ByteBuffer in) {
+		int bits = in.getShort();
+		EnumSet<AxisId> axes = EnumSet.noneOf(AxisId.class);
+		for (AxisId axis : AxisId.values())
+			if ((bits & (1 << axis.ordinal())) != 0)
+				axes.add(axis);
+		return axes;
+	}
+
+	// null is written as length -1
+	private static void writeString(String s, DataOutput out) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,100 @@
+package replicatorg.drivers.commands;
+
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
+import replicatorg.util.Point5d;
+
+/**
+ * An arc in the XY plane, queued as a series of straight moves. The moves
+ * are worked out one at a time as they are sent, rather than all at once
+ * when the arc is parsed, so a long arc doesn't fill the command queue.
+ *
+ * If the driver asks us to retry, the next run carries on from the move it
+ * didn't take.
+ *
+ * When the segments would be too quick for the firmware at the current
+ * feedrate, the arc is drawn at a lower one, and the driver's feedrate from
+ * before the arc is put back once it's done.
+ */
+public class QueueArc implements DriverCommand {
+	// Where the arc starts; A and B are held here for the whole arc
+	final Point5d start;
+	final double centerX;
+	final double centerY;
+	final double radius;
+	// The arc is drawn counterclockwise from startAngle to startAngle + angle,
+	// and backwards along that for a clockwise arc
+	final double startAngle;
+	final double angle;
+	final double endZ;
+	final int steps;
+	final boolean clockwise;
+	// The feedrate along the arc, if it's lower than the current one; 0 if
+	// the arc is drawn at the current feedrate
+	final double segmentFeedrate;
+
+	// The next move to send, from 1 to steps
+	private int next = 1;
+	// The driver's feedrate before the arc, to put back after it
+	private double previousFeedrate = Double.NaN;
+
+	public QueueArc(Point5d start, double centerX, double centerY, double radius,
+			double startAngle, double angle, double endZ, int steps, boolean clockwise,
+			double segmentFeedrate) {
+		this.start = new Point5d(start);
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.radius = radius;
+		this.startAngle = startAngle;
+		this.angle = angle;
+		this.endZ = endZ;
+		this.steps = steps;
+		this.clockwise = clockwise;
+		this.segmentFeedrate = segmentFeedrate;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	/// The feedrate the arc is drawn at, if lower than the current one; otherwise 0
+	public double getSegmentFeedrate() {
+		return segmentFeedrate;
+	}
+
+	/// Where the given move ends, from 1 to getSteps()
+	public Point5d getPoint(int s) {
+		// Forwards for CCW, backwards for CW
+		int step = clockwise ? steps - s : s;
+
+		Point5d point = new Point5d(start);
+		point.setX(centerX + radius * Math.cos(startAngle + angle * ((double) step / steps)));
+		point.setY(centerY + radius * Math.sin(startAngle + angle * ((double) step / steps)));
+		point.setZ(start.z() + (endZ - start.z()) * s / steps);
+		return point;
+	}
+
+	/// Where the arc ends
+	public Point5d getDestination() {
+		return getPoint(steps);
+	}
+
+	@Override
+	public void run(Driver driver) throws RetryException {
+		if (next > steps)
+			return;
+		if (segmentFeedrate > 0) {
+			// A retry finds the driver at the arc's feedrate already.
+			if (Double.isNaN(previousFeedrate))
+				previousFeedrate = driver.getCurrentFeedrate();
+			driver.setFeedrateMM(segmentFeedrate);
+		}
+		// Drivers may keep the point they're given, so each move gets its own.
+		while (next <= steps) {
+			driver.queuePoint(getPoint(next));
+			next++;
+		}
+		if (segmentFeedrate > 0)
+			driver.setFeedrateMM(previousFeedrate);
+	}
+}
@@ -10,6 +10,10 @@ public class QueuePoint implements DriverCommand {
 	public QueuePoint(Point5d destination) {
 		this.destination = destination;
 	}
+
+	public Point5d getDestination() {
+		return destination;
+	}
 	
 	@Override
 	public void run(Driver driver) throws RetryException {
@@ -11,6 +11,10 @@ public class SetCurrentPosition implements DriverCommand {
 	public SetCurrentPosition(Point5d point) {
 		this.point = point;
 	}
+
+	public Point5d getPoint() {
+		return point;
+	}
 	
 	@Override
 	public void run(Driver driver) throws RetryException {
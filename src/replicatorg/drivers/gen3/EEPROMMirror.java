@@ -0,0 +1,150 @@
+package replicatorg.drivers.gen3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A copy of a board's EEPROM, kept on the host.
+ *
+ * The firmware hands out EEPROM 16 bytes at a time (fewer for tools), so
+ * reading the onboard parameters a field at a time costs a round trip per
+ * field. The driver instead reads the whole image once, in 16 byte lines,
+ * and serves reads from here. Writes go through to the board, but only the
+ * bytes that actually differ from the copy are sent.
+ *
+ * The copy grows to cover any line that's asked for, and knows which lines
+ * it has read. It's thrown away whenever the board may have changed its
+ * EEPROM behind our back: reset, reconnect, factory reset and so on.
+ */
+class EEPROMMirror {
+
+	/// Bytes per line; the most the firmware will read in one query
+	static final int LINE_SIZE = 16;
+
+	/// How much to read in the first sweep
+	private final int imageSize;
+
+	private byte[] image;
+	private boolean[] valid;
+	/// False until the first sweep, and again after clear()
+	private boolean swept = false;
+
+	/**
+	 * @param imageSize how many bytes from the bottom of the EEPROM the first sweep reads
+	 */
+	EEPROMMirror(int imageSize) {
+		this.imageSize = lineStart(imageSize + LINE_SIZE - 1);
+		image = new byte[this.imageSize];
+		valid = new boolean[this.imageSize / LINE_SIZE];
+	}
+
+	static int lineStart(int offset) {
+		return offset - (offset % LINE_SIZE);
+	}
+
+	synchronized void clear() {
+		valid = new boolean[valid.length];
+		swept = false;
+	}
+
+	/** True if every byte from offset to offset+length has been read. */
+	synchronized boolean covers(int offset, int length) {
+		for (int line = offset / LINE_SIZE; line * LINE_SIZE < offset + length; line++) {
+			if (line >= valid.length || !valid[line])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The offsets of the lines that have to be read to cover the given
+	 * range. The first time round, that's every line of the image as well.
+	 */
+	synchronized List<Integer> missingLines(int offset, int length) {
+		List<Integer> lines = new ArrayList<Integer>();
+		int from = lineStart(offset);
+		int to = offset + length;
+		if (!swept) {
+			swept = true;
+			if (from <= imageSize) {
+				from = 0;
+				to = Math.max(to, imageSize);
+			} else {
+				addMissing(lines, 0, imageSize);
+			}
+		}
+		addMissing(lines, from, to);
+		return lines;
+	}
+
+	private void addMissing(List<Integer> lines, int from, int to) {
+		for (int line = from; line < to; line += LINE_SIZE) {
+			if (line / LINE_SIZE >= valid.length || !valid[line / LINE_SIZE])
+				lines.add(line);
+		}
+	}
+
+	/**
+	 * Store a line read from the board. A short read is kept, but the line
+	 * isn't counted as read.
+	 */
+	synchronized void fill(int lineOffset, byte[] data) {
+		reserve(lineOffset + LINE_SIZE);
+		System.arraycopy(data, 0, image, lineOffset, Math.min(data.length, LINE_SIZE));
+		if (data.length >= LINE_SIZE)
+			valid[lineOffset / LINE_SIZE] = true;
+	}
+
+	synchronized byte[] get(int offset, int length) {
+		byte[] data = new byte[length];
+		System.arraycopy(image, offset, data, 0, length);
+		return data;
+	}
+
+	/** Note bytes that have been written to the board. */
+	synchronized void update(int offset, byte[] data) {
+		reserve(offset + data.length);
+		System.arraycopy(data, 0, image, offset, data.length);
+	}
+
+	/**
+	 * Work out which parts of data, to be written at offset, differ from
+	 * what the board has. Changed bytes close enough together to share a
+	 * packet are sent together, unchanged bytes between them and all.
+	 * Bytes on lines we haven't read count as changed.
+	 * @param maxPacket most bytes the firmware takes in one write
+	 * @return {start, length} pairs, indexes into data
+	 */
+	synchronized List<int[]> changes(int offset, byte[] data, int maxPacket) {
+		List<int[]> runs = new ArrayList<int[]>();
+		int[] run = null;
+		for (int i = 0; i < data.length; i++) {
+			int at = offset + i;
+			int line = at / LINE_SIZE;
+			boolean dirty = line >= valid.length || !valid[line] || image[at] != data[i];
+			if (!dirty)
+				continue;
+			if (run != null && i - run[0] < maxPacket) {
+				run[1] = i - run[0] + 1;
+			} else {
+				run = new int[] { i, 1 };
+				runs.add(run);
+			}
+		}
+		return runs;
+	}
+
+	private void reserve(int size) {
+		if (size <= image.length)
+			return;
+		int capacity = image.length;
+		while (capacity < size)
+			capacity = Math.max(capacity * 2, LINE_SIZE);
+		byte[] grownImage = new byte[capacity];
+		System.arraycopy(image, 0, grownImage, 0, image.length);
+		boolean[] grownValid = new boolean[capacity / LINE_SIZE];
+		System.arraycopy(valid, 0, grownValid, 0, valid.length);
+		image = grownImage;
+		valid = grownValid;
+	}
+}
@@ -227,8 +227,10 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 				extruderSteps = rpm * curTool.getMotorSteps() * minutes * (clockwise?-1d:1d);
 			}
 			
-			Base.logger.finer("setting axis " + axis.toString() );
-			Base.logger.finer("setting extruderSteps" + Double.toString(extruderSteps) );
+			if (Base.logger.isLoggable(Level.FINER)) {
+				Base.logger.finer("setting axis " + axis.toString() );
+				Base.logger.finer("setting extruderSteps" + Double.toString(extruderSteps) );
+			}
 			steps.setAxis(axis, extruderSteps);
 		}
 		return steps;
@@ -256,8 +258,10 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		}
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
 
-		Base.logger.finer("Queued new-style point " + steps + " over "
+		if (Base.logger.isLoggable(Level.FINER)) {
+			Base.logger.finer("Queued new-style point " + steps + " over "
 					+ Long.toString(us) + " usec., relative " + Integer.toString(relative));
+		}
 
 
 		// just add them in now.
@@ -284,10 +288,12 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		}
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
 
-		Base.logger.finer("Queued new-style extended point " + steps + " over "
+		if (Base.logger.isLoggable(Level.FINER)) {
+			Base.logger.finer("Queued new-style extended point " + steps + " over "
 					+ Long.toString(dda_rate) + " steps per sec., relative " + Integer.toString(relative)
 					+ ", distance " + Float.toString(distance)
 					+ ", feedrate " + Float.toString(feedrate));
+		}
 
 		// just add them in now.
 		pb.add32((int) steps.x());
@@ -1487,12 +1487,33 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	@Override
 	protected void writeToToolEEPROM(int offset, byte[] data, int toolIndex) {
 		final int MAX_PAYLOAD = 11;
+		/// Tool data lives in the motherboard EEPROM, so it's mirrored there
+		EEPROMMirror mirror = getEEPROMMirror();
+		if (mirroring(mirror) && toolIndex != 255 && toolIndex != 127) {
+			int mirrorOffset = toolInfoOffset(toolIndex) + offset;
+			boolean written = true;
+			for (int[] run : mirror.changes(mirrorOffset, data, MAX_PAYLOAD))
+				written &= sendToolEEPROMWrite(offset + run[0], slice(data, run[0], run[1]), toolIndex);
+			if (written)
+				mirror.update(mirrorOffset, data);
+			else
+				forgetEEPROM();
+			return;
+		}
+		forgetEEPROM();
+		sendToolEEPROMWrite(offset, data, toolIndex);
+	}
+
+	/// @return true if the tool says it wrote all of the data, or it's a broadcast
+	private boolean sendToolEEPROMWrite(int offset, byte[] data, int toolIndex) {
+		final int MAX_PAYLOAD = 11;
+		boolean written = true;
 		while (data.length > MAX_PAYLOAD) {
 			byte[] head = new byte[MAX_PAYLOAD];
 			byte[] tail = new byte[data.length-MAX_PAYLOAD];
 			System.arraycopy(data,0,head,0,MAX_PAYLOAD);
 			System.arraycopy(data,MAX_PAYLOAD,tail,0,data.length-MAX_PAYLOAD);
-			writeToToolEEPROM(offset, head, toolIndex);
+			written &= sendToolEEPROMWrite(offset, head, toolIndex);
 			offset += MAX_PAYLOAD;
 			data = tail;
 		}
@@ -1507,7 +1528,9 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		PacketResponse slavepr = runQuery(slavepb.getPacket());
 		slavepr.printDebug();
 		// If the tool index is 127/255, we should not expect a response (it's a broadcast packet).
-		assert (toolIndex == 255) || (toolIndex == 127) || (slavepr.get8() == data.length); 
+		if (toolIndex == 255 || toolIndex == 127)
+			return written;
+		return checkEEPROMWrite(slavepr, data.length, "tool " + toolIndex + " EEPROM") && written;
 	}
 
 	
@@ -1520,13 +1543,12 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	@Override 
 	protected byte[] readFromToolEEPROM(int offset, int len, int toolIndex) 
 	{
-
-		int toolInfoOffset = 0;
-		if (toolIndex == 0)	toolInfoOffset = MightyBoard5XEEPROM.T0_DATA_BASE;
-		else if (toolIndex == 1)toolInfoOffset = MightyBoard5XEEPROM.T1_DATA_BASE;
-
-		offset = toolInfoOffset + offset;
+		offset = toolInfoOffset(toolIndex) + offset;
 		Base.logger.finest("readFromToolEEPROM null" + offset +" " + len + " " + toolIndex);
+
+		// Served from the EEPROM mirror, if it's on
+		if (getEEPROMMirror() != null)
+			return readFromEEPROM(offset, len);
 				
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.READ_EEPROM.getCode());
 		pb.add16(offset);
@@ -1549,6 +1571,18 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 
 	
 
+	/// Where a tool's data starts in the motherboard EEPROM
+	private static int toolInfoOffset(int toolIndex) {
+		if (toolIndex == 0) return MightyBoard5XEEPROM.T0_DATA_BASE;
+		else if (toolIndex == 1) return MightyBoard5XEEPROM.T1_DATA_BASE;
+		return 0;
+	}
+
+	@Override
+	protected int getEEPROMImageSize() {
+		return MightyBoard6X2EEPROM.FREE_EEPROM_STARTS;
+	}
+
 	/** 
 	 * Enable extruder motor
 	 */
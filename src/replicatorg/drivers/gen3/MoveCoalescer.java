@@ -0,0 +1,316 @@
+package replicatorg.drivers.gen3;
+
+/**
+ * Merges runs of short, collinear moves into single move packets.
+ *
+ * Arcs and curved perimeters come out of the slicer as long strings of tiny
+ * segments, and each one costs a full packet: header, CRC and a response to
+ * wait for. Where consecutive segments lie on one line (to within a
+ * tolerance, in steps) and run at the same speed, the machine would do the
+ * same thing with one packet to the far end, taking the combined time.
+ *
+ * The coalescer works on finished move packets, so it doesn't care which of
+ * the gen3 drivers built them. It holds on to the last move it was given,
+ * and merges the next one into it if it can; otherwise the held move has to
+ * be sent before anything else is queued. The driver calls {@link #forget()}
+ * whenever something other than a move is queued, since the machine's
+ * position can't be followed through those.
+ *
+ * Absolute axes are merged by keeping the later target; relative axes (the
+ * extruder axes in the newer packets) by adding them up. The merged move ends
+ * exactly where the last of its segments did; only the corners in between
+ * are dropped, and none by more than the tolerance.
+ */
+class MoveCoalescer {
+
+	private static final int QUEUE_POINT_ABS = MotherboardCommandCode.QUEUE_POINT_ABS.getCode();
+	private static final int QUEUE_POINT_EXT = MotherboardCommandCode.QUEUE_POINT_EXT.getCode();
+	private static final int QUEUE_POINT_NEW = MotherboardCommandCode.QUEUE_POINT_NEW.getCode();
+	private static final int QUEUE_POINT_NEW_EXT = MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode();
+
+	// Largest fraction of a merged move's time that may be shifted between
+	// its segments because they didn't quite run at the same speed
+	private static final double TIME_TOLERANCE = 0.01;
+
+	/** A move packet, pulled apart. */
+	private static class Move {
+		// The packet as it came to us; null once it's been merged into
+		byte[] packet;
+		int code;
+		int axes;
+		long[] target = new long[5];
+		int relative;
+		// Microseconds per step of the axis that moves furthest for QUEUE_POINT_ABS
+		// and QUEUE_POINT_EXT, microseconds for the whole move for QUEUE_POINT_NEW,
+		// steps per second for QUEUE_POINT_NEW_EXT
+		long rate;
+		float distance;
+		int feedrate;
+
+		// Steps moved on each axis, and how long that takes in microseconds
+		double[] delta = new double[5];
+		double time;
+		// False if we didn't know where the move starts, so delta and time mean nothing
+		boolean measured = false;
+	}
+
+	private final double tolerance;
+	private final int maxSegments;
+
+	// The move we're holding, or null
+	private Move pending = null;
+	// Segments merged into the pending move so far
+	private int segments = 0;
+	// Corners dropped from the pending move, relative to where it starts
+	private final double[][] corners;
+
+	// Where the last move we were given ends, on each absolute axis; false
+	// if we can't know, and so can't work out the next move's steps
+	private final long[] position = new long[5];
+	private boolean positionKnown = false;
+	// Which kind of packet the position came from; other kinds may not carry the same axes
+	private int lastCode = -1;
+	private int lastRelative = 0;
+
+	private int movesIn = 0;
+	private int packetsOut = 0;
+
+	/**
+	 * @param tolerance how far, in steps, a dropped corner may be from the merged move
+	 * @param maxSegments most segments to merge into one packet
+	 */
+	MoveCoalescer(double tolerance, int maxSegments) {
+		this.tolerance = tolerance;
+		this.maxSegments = Math.max(1, maxSegments);
+		this.corners = new double[this.maxSegments][];
+	}
+
+	static boolean isMove(byte[] packet) {
+		int code = packet[2] & 0xff;
+		return code == QUEUE_POINT_ABS || code == QUEUE_POINT_EXT
+			|| code == QUEUE_POINT_NEW || code == QUEUE_POINT_NEW_EXT;
+	}
+
+	boolean hasPending() {
+		return pending != null;
+	}
+
+	/**
+	 * Take a move packet. If it can be merged into the one we're holding, it
+	 * is, and the caller has nothing more to do. Otherwise the caller must
+	 * send {@link #getPending()}, call {@link #sent()}, and then {@link #hold(byte[])}
+	 * this packet.
+	 * @return true if the packet was merged
+	 */
+	boolean merge(byte[] packet) {
+		if (pending == null || !pending.measured || segments >= maxSegments || !positionKnown)
+			return false;
+
+		Move next = decode(packet);
+		if (next.code != pending.code || next.relative != pending.relative
+				|| next.feedrate != pending.feedrate)
+			return false;
+		measure(next, position);
+		if (next.time <= 0)
+			return false;
+
+		// Would the combined move pass close enough to every corner it cuts?
+		double[] merged = new double[5];
+		double length2 = 0;
+		for (int i = 0; i < 5; i++) {
+			merged[i] = pending.delta[i] + next.delta[i];
+			length2 += merged[i] * merged[i];
+		}
+		if (length2 == 0)
+			return false;
+		for (int c = 0; c < segments; c++) {
+			if (!nearLine(c == segments - 1 ? pending.delta : corners[c], merged, length2))
+				return false;
+		}
+
+		// ... and at close enough to the same speed?
+		double pendingLength = Math.sqrt(dot(pending.delta, pending.delta));
+		double nextLength = Math.sqrt(dot(next.delta, next.delta));
+		if (pendingLength == 0)
+			return false;
+		double expected = nextLength * pending.time / pendingLength;
+		double time = pending.time + next.time;
+		if (Math.abs(next.time - expected) > TIME_TOLERANCE * time)
+			return false;
+		if (pending.code == QUEUE_POINT_NEW && time > Integer.MAX_VALUE)
+			return false;
+
+		corners[segments - 1] = pending.delta.clone();
+		segments++;
+		movesIn++;
+
+		for (int i = 0; i < 5; i++) {
+			if ((pending.relative & (1 << i)) != 0)
+				pending.target[i] += next.target[i];
+			else
+				pending.target[i] = next.target[i];
+		}
+		pending.packet = null;
+		pending.delta = merged;
+		pending.time = time;
+		pending.distance += next.distance;
+		if (pending.code == QUEUE_POINT_NEW_EXT)
+			pending.rate = Math.round(masterSteps(merged) * 1000000d / time);
+		else if (pending.code == QUEUE_POINT_NEW)
+			pending.rate = Math.round(time);
+		else
+			pending.rate = Math.round(time / masterSteps(merged));
+
+		trackPosition(next);
+		return true;
+	}
+
+	/** Hold on to a move that couldn't be merged, to merge later moves into. */
+	void hold(byte[] packet) {
+		Move move = decode(packet);
+		if (positionKnown && move.code == lastCode && move.relative == lastRelative)
+			measure(move, position);
+		pending = move;
+		segments = 1;
+		movesIn++;
+		trackPosition(move);
+	}
+
+	/** The packet for the move we're holding. */
+	byte[] getPending() {
+		if (pending.packet != null)
+			return pending.packet;
+		return encode(pending);
+	}
+
+	/** The move we were holding has gone out. */
+	void sent() {
+		pending = null;
+		segments = 0;
+		packetsOut++;
+	}
+
+	/** The machine's queue is being thrown away; drop the move we're holding too. */
+	void discard() {
+		movesIn -= segments;
+		pending = null;
+		segments = 0;
+		positionKnown = false;
+	}
+
+	/** Something other than a move has gone out; stop following the position. */
+	void forget() {
+		positionKnown = false;
+	}
+
+	int getMovesIn() {
+		return movesIn;
+	}
+
+	int getPacketsSaved() {
+		return movesIn - packetsOut - (pending == null ? 0 : 1);
+	}
+
+	void resetCounts() {
+		movesIn = (pending == null ? 0 : segments);
+		packetsOut = 0;
+	}
+
+	private void trackPosition(Move move) {
+		for (int i = 0; i < move.axes; i++) {
+			if ((move.relative & (1 << i)) == 0)
+				position[i] = move.target[i];
+		}
+		lastCode = move.code;
+		lastRelative = move.relative;
+		positionKnown = true;
+	}
+
+	// Is the corner within tolerance of the line through the origin along direction?
+	private boolean nearLine(double[] corner, double[] direction, double length2) {
+		double t = dot(corner, direction) / length2;
+		if (t < 0 || t > 1)
+			return false;
+		double distance2 = 0;
+		for (int i = 0; i < 5; i++) {
+			double d = corner[i] - t * direction[i];
+			distance2 += d * d;
+		}
+		return distance2 <= tolerance * tolerance;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0;
+		for (int i = 0; i < 5; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+
+	private static double masterSteps(double[] delta) {
+		double max = 0;
+		for (double d : delta)
+			max = Math.max(max, Math.abs(d));
+		return max;
+	}
+
+	// Work out a move's steps from where the last one left off, and how long it takes.
+	private static void measure(Move move, long[] from) {
+		for (int i = 0; i < 5; i++) {
+			if (i >= move.axes)
+				move.delta[i] = 0;
+			else if ((move.relative & (1 << i)) != 0)
+				move.delta[i] = move.target[i];
+			else
+				move.delta[i] = move.target[i] - from[i];
+		}
+		if (move.code == QUEUE_POINT_NEW_EXT)
+			move.time = move.rate > 0 ? masterSteps(move.delta) * 1000000d / move.rate : 0;
+		else if (move.code == QUEUE_POINT_NEW)
+			move.time = move.rate;
+		else
+			move.time = move.rate * masterSteps(move.delta);
+		move.measured = true;
+	}
+
+	private static Move decode(byte[] packet) {
+		Move move = new Move();
+		move.packet = packet;
+		move.code = packet[2] & 0xff;
+		move.axes = (move.code == QUEUE_POINT_ABS) ? 3 : 5;
+
+		int offset = 3;
+		for (int i = 0; i < move.axes; i++, offset += 4)
+			move.target[i] = get32(packet, offset);
+		move.rate = get32(packet, offset) & 0xffffffffL;
+		offset += 4;
+		if (move.code == QUEUE_POINT_NEW || move.code == QUEUE_POINT_NEW_EXT)
+			move.relative = packet[offset++] & 0xff;
+		if (move.code == QUEUE_POINT_NEW_EXT) {
+			move.distance = Float.intBitsToFloat(get32(packet, offset));
+			offset += 4;
+			move.feedrate = (packet[offset] & 0xff) | ((packet[offset + 1] & 0xff) << 8);
+		}
+		return move;
+	}
+
+	private static byte[] encode(Move move) {
+		PacketBuilder pb = new PacketBuilder(move.code);
+		for (int i = 0; i < move.axes; i++)
+			pb.add32((int) move.target[i]);
+		pb.add32((int) move.rate);
+		if (move.code == QUEUE_POINT_NEW || move.code == QUEUE_POINT_NEW_EXT)
+			pb.add8(move.relative);
+		if (move.code == QUEUE_POINT_NEW_EXT) {
+			pb.addFloat(move.distance);
+			pb.add16(move.feedrate);
+		}
+		return pb.getPacket();
+	}
+
+	private static int get32(byte[] packet, int offset) {
+		return (packet[offset] & 0xff)
+			| ((packet[offset + 1] & 0xff) << 8)
+			| ((packet[offset + 2] & 0xff) << 16)
+			| ((packet[offset + 3] & 0xff) << 24);
+	}
+}
@@ -0,0 +1,98 @@
+package replicatorg.drivers.gen3;
+
+import replicatorg.app.tools.IButtonCrc;
+
+/**
+ * Frames S3G packets: start byte, payload length, payload and CRC. An
+ * encoder can be begun again for another packet once the last one has
+ * been copied out.
+ *
+ * The payload is written little-endian, as the firmware expects, and the
+ * CRC is worked out in one go over the payload when the packet is finished.
+ */
+public class PacketEncoder implements PacketConstants {
+	final static int MAX_PACKET_LENGTH = 256;
+
+	private final byte[] data = new byte[MAX_PACKET_LENGTH];
+
+	// current end of packet. Bytes 0 and 1 are reserved for start byte
+	// and packet payload length.
+	private int idx = 2;
+
+	/**
+	 * Start building a new command packet, discarding whatever was here.
+	 * 
+	 * @param command
+	 *            the command identifier for this packet.
+	 */
+	public PacketEncoder begin(int command) {
+		data[0] = START_BYTE;
+		idx = 2;
+		return add8(command);
+	}
+
+	/**
+	 * Add an 8-bit value to the end of the packet payload.
+	 */
+	public PacketEncoder add8(int v) {
+		data[idx++] = (byte) v;
+		return this;
+	}
+
+	/**
+	 * Add a 16-bit value to the end of the packet payload.
+	 */
+	public PacketEncoder add16(int v) {
+		data[idx++] = (byte) v;
+		data[idx++] = (byte) (v >> 8);
+		return this;
+	}
+
+	/**
+	 * Add a 32-bit value to the end of the packet payload.
+	 * 
+	 * @param v
+	 *            the value to append. Must be long to support unsigned ints.
+	 */
+	public PacketEncoder add32(long v) {
+		data[idx++] = (byte) v;
+		data[idx++] = (byte) (v >> 8);
+		data[idx++] = (byte) (v >> 16);
+		data[idx++] = (byte) (v >> 24);
+		return this;
+	}
+
+	/**
+	 * Add a 32-bit float to the end of the packet payload, as its IEEE 754 bits.
+	 */
+	public PacketEncoder addFloat(float v) {
+		return add32(Float.floatToIntBits(v));
+	}
+
+	/**
+	 * add string to this packet, up to count of MaxSize (not including null terminator
+	 * @param string string to add
+	 * @param maxSize maximum characters we may add to this packet
+	 * @return count of characters added,not including null terminator
+	 */
+	public int addString(String string, int maxSize) {
+		int count = Math.min(Math.max(maxSize, 0), string.length());
+		for (int cursor = 0; cursor < count; cursor++)
+			data[idx++] = (byte) string.charAt(cursor);
+		data[idx++] = 0;
+		return count;
+	}
+
+	/**
+	 * Complete the packet, and copy it out.
+	 * 
+	 * @return a byte array representing the completed packet.
+	 */
+	public byte[] toPacket() {
+		data[idx] = (byte) IButtonCrc.update(0, data, 2, idx - 2);
+		data[1] = (byte) (idx - 2); // len does not count packet header
+		byte[] rv = new byte[idx + 1];
+		System.arraycopy(data, 0, rv, 0, idx + 1);
+		return rv;
+	}
+}
@@ -34,15 +34,16 @@ public class PacketProcessor implements PacketConstants {
 
 	int payloadIdx = 0;
 
-	byte[] payload;
+	// Big enough for any payload the length byte can describe
+	final byte[] payload = new byte[256];
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	int crc = 0;
 
 	/**
-	 * Reset the packet's state. (The crc is (re-)generated on the length byte
-	 * and thus doesn't need to be reset.(
+	 * Reset the packet's state, ready for a new packet. A processor can be
+	 * used for as many packets as you like.
 	 */
 	public void reset() {
 		packetState = PacketState.START;
@@ -50,12 +51,15 @@ public class PacketProcessor implements PacketConstants {
 
 	/**
 	 * Create a PacketResponse object that contains this packet's payload.
+	 * The payload is copied, so the response stays good once this processor
+	 * moves on to the next packet.
 	 * 
 	 * @return A valid PacketResponse object
 	 */
 	public PacketResponse getResponse() {
-		PacketResponse pr = new PacketResponse(payload);
-		return pr;
+		byte[] p = new byte[payloadLength];
+		System.arraycopy(payload, 0, p, 0, payloadLength);
+		return new PacketResponse(p);
 	}
 
 	/**
@@ -91,8 +95,8 @@ public class PacketProcessor implements PacketConstants {
 			}
 
 			payloadLength = ((int) b) & 0xFF;
-			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
+			payloadIdx = 0;
+			crc = 0;
 			packetState = (payloadLength > 0) ? PacketState.PAYLOAD : PacketState.CRC;
 			break;
 
@@ -100,7 +104,7 @@ public class PacketProcessor implements PacketConstants {
 			// sanity check
 			if (payloadIdx < payloadLength) {
 				payload[payloadIdx++] = b;
-				crc.update(b);
+				crc = IButtonCrc.update(crc, b);
 			}
 			if (payloadIdx >= payloadLength) {
 				packetState = PacketState.CRC;
@@ -114,10 +118,11 @@ public class PacketProcessor implements PacketConstants {
 				Base.logger.log(Level.FINER,"Target CRC: "
 						+ Integer.toHexString((int) targetCrc & 0xff)
 						+ " - expected CRC: "
-						+ Integer.toHexString((int) crc.getCrc() & 0xff));
+						+ Integer.toHexString(crc));
 			}
-			if (crc.getCrc() != targetCrc) {
-				throw new CRCException(crc.getCrc(), targetCrc);
+			packetState = PacketState.START;
+			if ((byte) crc != targetCrc) {
+				throw new CRCException((byte) crc, targetCrc);
 			}
 			return true;
 		}
@@ -0,0 +1,418 @@
+package replicatorg.drivers.gen3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import replicatorg.app.Base;
+
+/**
+ * A record of the packets that went to and from a machine, for working out
+ * afterwards what happened during a build: each packet sent, the bytes that
+ * came back, and the timeouts, bad CRCs, full buffers and resends along the
+ * way, each with the time it happened.
+ *
+ * Records go into a ring in a file, written in place through one open
+ * channel, so recording costs a write into the operating system's cache and
+ * it goes to disk in its own time. The file isn't memory-mapped: a mapping
+ * can't be let go of, so every restart would leave another one holding the
+ * file. Once the ring is full the oldest records are overwritten, so the
+ * file always holds the last so many megabytes of a session, however long
+ * it ran. The length of every record in the ring is kept in memory too, so
+ * the file is never read back while recording.
+ *
+ * The header, which says where the records start and end, is only brought
+ * up to date every HEADER_EVERY records, before a write would overwrite
+ * records it still points to, and on close. The file can be read while
+ * it's being written, and is still good if ReplicatorG dies, but may be
+ * missing the last few records until the header catches up.
+ *
+ * Recording is turned on and off with the replicatorg.s3g.packet_trace
+ * preference, and can be switched at any time; see {@link #applyPreferences()}.
+ *
+ * File layout, little-endian: a header of magic "S3GT", format version,
+ * ring capacity, write position, position of the oldest record, whether the
+ * ring has wrapped, and the wall clock time recording started, in ms. Then
+ * the ring. Each record is a type byte, nanoseconds since recording started
+ * (8 bytes), data length (2 bytes) and the data. A zero type byte marks
+ * where the writer went back to the start of the ring.
+ */
+public class PacketTrace {
+
+	/// A packet written to the machine
+	public static final int OUT = 1;
+	/// A complete response read from the machine
+	public static final int IN = 2;
+	/// No response in time; the data is whatever did arrive
+	public static final int TIMEOUT = 3;
+	/// A response with a bad CRC
+	public static final int BAD_CRC = 4;
+	/// The machine's buffer was full, and the caller was told to retry
+	public static final int OVERFLOW = 5;
+	/// Everything in flight is being sent again, one packet at a time
+	public static final int RESEND = 6;
+
+	private static final int MAGIC = 0x54473353; // "S3GT"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int RECORD_HEADER_SIZE = 11;
+	private static final int MAX_DATA = 0xffff;
+
+	// Header fields
+	private static final int CAPACITY_AT = 8;
+	private static final int POSITION_AT = 12;
+	private static final int OLDEST_AT = 16;
+	private static final int WRAPPED_AT = 20;
+	private static final int START_AT = 24;
+
+	public static final int DEFAULT_CAPACITY_MB = 16;
+
+	/// Most records to write before bringing the header up to date
+	static final int HEADER_EVERY = 64;
+
+	private static volatile PacketTrace current = null;
+
+	/**
+	 * The trace being recorded, or null if recording is off. Check this
+	 * once per packet, and keep hold of it rather than asking again.
+	 */
+	public static PacketTrace current() {
+		return current;
+	}
+
+	/**
+	 * Start recording into the given file, replacing any trace already
+	 * being recorded.
+	 * @param capacity size of the ring, in bytes
+	 */
+	public static synchronized void start(File file, int capacity) throws IOException {
+		stop();
+		current = new PacketTrace(file, capacity);
+		Base.logger.info("Recording packet trace to " + file);
+	}
+
+	/**
+	 * Stop recording, if we are.
+	 */
+	public static synchronized void stop() {
+		PacketTrace trace = current;
+		if (trace != null) {
+			current = null;
+			trace.close();
+			Base.logger.info("Stopped recording packet trace to " + trace.file);
+		}
+	}
+
+	/**
+	 * Start or stop recording as the preferences say. The trace goes to
+	 * replicatorg.s3g.packet_trace_path, or packet-trace.s3gtrace in the
+	 * user's ReplicatorG folder.
+	 */
+	public static synchronized void applyPreferences() {
+		if (!Base.preferences.getBoolean("replicatorg.s3g.packet_trace", false)) {
+			stop();
+			return;
+		}
+		String path = Base.preferences.get("replicatorg.s3g.packet_trace_path", "");
+		File file = path.length() > 0 ? new File(path) : Base.getUserFile("packet-trace.s3gtrace");
+		if (current != null && current.file.equals(file))
+			return;
+		int megabytes = Base.preferences.getInt("replicatorg.s3g.packet_trace_mb", DEFAULT_CAPACITY_MB);
+		try {
+			start(file, Math.max(1, megabytes) << 20);
+		} catch (IOException e) {
+			Base.logger.warning("Couldn't record packet trace to " + file + ": " + e.getMessage());
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final int capacity;
+	private final long startNanos;
+
+	// Reused for every record, and for the header
+	private final ByteBuffer record;
+	private final ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+
+	private int position = 0;
+	private int oldest = 0;
+	private boolean wrapped = false;
+	private boolean closed = false;
+
+	// The oldest record the header points to, and records since it was written
+	private int headerOldest = 0;
+	private int sinceHeader = 0;
+	// How far past a write the header's oldest record is put when it has to
+	// be moved, so it isn't moved again for a while
+	private final int slack;
+
+	// Data lengths of the records in the ring, oldest first
+	private char[] lengths = new char[1024];
+	private int lengthsHead = 0;
+	private int lengthsCount = 0;
+	// How many of them are in the lap before the one being written
+	private int oldRecords = 0;
+
+	public PacketTrace(File file, int capacity) throws IOException {
+		this.file = file;
+		this.capacity = capacity;
+		slack = Math.min(1 << 16, capacity >> 8);
+		record = ByteBuffer.allocate(RECORD_HEADER_SIZE + MAX_DATA + 1).order(ByteOrder.LITTLE_ENDIAN);
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.setLength(HEADER_SIZE + capacity);
+			channel = raf.getChannel();
+			startNanos = System.nanoTime();
+			ByteBuffer start = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			start.putInt(0, MAGIC);
+			start.putInt(4, VERSION);
+			start.putInt(CAPACITY_AT, capacity);
+			start.putLong(START_AT, System.currentTimeMillis());
+			write(start, 0);
+			writeHeader();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Record an event with no data.
+	 */
+	public void record(int type) {
+		record(type, null, 0, 0);
+	}
+
+	public void record(int type, byte[] data) {
+		record(type, data, 0, data.length);
+	}
+
+	/**
+	 * Record an event, and the bytes that go with it.
+	 */
+	public synchronized void record(int type, byte[] data, int offset, int length) {
+		// A driver may still hold on to a trace that's been stopped.
+		if (closed)
+			return;
+		long nanos = System.nanoTime() - startNanos;
+		length = Math.min(length, Math.min(MAX_DATA, capacity / 2 - RECORD_HEADER_SIZE));
+		int size = RECORD_HEADER_SIZE + length;
+
+		try {
+			// Always leave room for the wrap marker after a record.
+			boolean headerDue = false;
+			if (position + size + 1 > capacity) {
+				record.clear();
+				record.put((byte) 0).flip();
+				write(record, HEADER_SIZE + position);
+				// What's past here is from the lap before last
+				dropLengths(oldRecords);
+				oldRecords = lengthsCount;
+				position = 0;
+				oldest = 0;
+				wrapped = true;
+				headerDue = true;
+			}
+			int end = position + size + 1;
+			if (wrapped && headerOldest >= position && headerOldest < end)
+				headerDue = true;
+			if (headerDue) {
+				letGoOfOldest(end + slack);
+				writeHeader();
+			} else {
+				letGoOfOldest(end);
+			}
+
+			record.clear();
+			record.put((byte) type);
+			record.putLong(nanos);
+			record.putShort((short) length);
+			if (length > 0)
+				record.put(data, offset, length);
+			record.flip();
+			write(record, HEADER_SIZE + position);
+			position += size;
+			addLength(length);
+			if (++sinceHeader >= HEADER_EVERY)
+				writeHeader();
+		} catch (IOException e) {
+			Base.logger.warning("Stopped recording packet trace to " + file + ": " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Let go of the records from the last lap that writing up to end would
+	 * overwrite. Once there are none left, oldest goes back to 0.
+	 */
+	private void letGoOfOldest(int end) {
+		while (wrapped && oldRecords > 0 && oldest >= position && oldest < end) {
+			oldest += RECORD_HEADER_SIZE + lengths[lengthsHead];
+			dropLengths(1);
+			if (--oldRecords == 0)
+				oldest = 0;
+		}
+	}
+
+	private void addLength(int length) {
+		if (lengthsCount == lengths.length) {
+			char[] grown = new char[lengths.length * 2];
+			for (int i = 0; i < lengthsCount; i++)
+				grown[i] = lengths[(lengthsHead + i) % lengths.length];
+			lengths = grown;
+			lengthsHead = 0;
+		}
+		lengths[(lengthsHead + lengthsCount) % lengths.length] = (char) length;
+		lengthsCount++;
+	}
+
+	private void dropLengths(int count) {
+		lengthsHead = (lengthsHead + count) % lengths.length;
+		lengthsCount -= count;
+	}
+
+	private void writeHeader() throws IOException {
+		header.clear();
+		header.putInt(position).putInt(oldest).putInt(wrapped ? 1 : 0).flip();
+		write(header, POSITION_AT);
+		headerOldest = oldest;
+		sinceHeader = 0;
+	}
+
+	private void write(ByteBuffer buffer, long at) throws IOException {
+		while (buffer.hasRemaining())
+			at += channel.write(buffer, at);
+	}
+
+	/**
+	 * Bring the header up to date, so a reader sees every record so far.
+	 */
+	public synchronized void flush() {
+		if (closed || sinceHeader == 0)
+			return;
+		try {
+			writeHeader();
+		} catch (IOException e) {
+			Base.logger.warning("Stopped recording packet trace to " + file + ": " + e.getMessage());
+			close();
+		}
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (sinceHeader > 0)
+				writeHeader();
+			raf.close();
+		} catch (IOException e) {
+			Base.logger.warning("Couldn't close packet trace " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * One event read back from a trace.
+	 */
+	public static class Record {
+		public final int type;
+		/// nanoseconds since recording started
+		public final long nanos;
+		public final byte[] data;
+
+		Record(int type, long nanos, byte[] data) {
+			this.type = type;
+			this.nanos = nanos;
+			this.data = data;
+		}
+
+		public String typeName() {
+			switch (type) {
+			case OUT: return "OUT";
+			case IN: return "IN";
+			case TIMEOUT: return "TIMEOUT";
+			case BAD_CRC: return "BAD_CRC";
+			case OVERFLOW: return "OVERFLOW";
+			case RESEND: return "RESEND";
+			}
+			return "UNKNOWN(" + type + ")";
+		}
+	}
+
+	/**
+	 * Read back the records in a trace, oldest first.
+	 */
+	public static List<Record> read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+				;
+			buffer.flip();
+		} finally {
+			raf.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException(file + " isn't a packet trace");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException(file + " is a packet trace from a different version of ReplicatorG");
+
+		int capacity = buffer.getInt(CAPACITY_AT);
+		int position = buffer.getInt(POSITION_AT);
+		int oldest = buffer.getInt(OLDEST_AT);
+		boolean wrapped = buffer.getInt(WRAPPED_AT) != 0;
+
+		List<Record> records = new ArrayList<Record>();
+		if (wrapped && oldest != 0)
+			readRecords(buffer, oldest, capacity, records);
+		readRecords(buffer, 0, position, records);
+		return records;
+	}
+
+	/**
+	 * Read the records from start up to end, or to a wrap marker.
+	 */
+	private static void readRecords(ByteBuffer buffer, int start, int end, List<Record> records) {
+		int at = start;
+		while (at + RECORD_HEADER_SIZE <= end) {
+			int base = HEADER_SIZE + at;
+			int type = buffer.get(base);
+			if (type == 0)
+				break;
+			long nanos = buffer.getLong(base + 1);
+			int length = buffer.getShort(base + 9) & 0xffff;
+			byte[] data = new byte[length];
+			for (int i = 0; i < length; i++)
+				data[i] = buffer.get(base + RECORD_HEADER_SIZE + i);
+			records.add(new Record(type, nanos, data));
+			at += RECORD_HEADER_SIZE + length;
+		}
+	}
+
+	/**
+	 * When recording started, by the wall clock, in ms.
+	 */
+	public static long startTime(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(START_AT);
+			return Long.reverseBytes(raf.readLong());
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -23,16 +23,23 @@
 
 package replicatorg.drivers.gen3;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 
 import org.w3c.dom.Node;
@@ -307,6 +314,8 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 	
 	void printDebugData(String title, byte[] data) {
+		if (!Base.logger.isLoggable(Level.FINER))
+			return;
 		StringBuffer buf = new StringBuffer(title + ": ");
 		for (int i = 0; i < data.length; i++) {
 			buf.append(Integer.toHexString((int) data[i] & 0xff));
@@ -344,6 +353,46 @@ public class Sanguino3GDriver extends SerialDriver implements
 			return null; // skip empty commands or broken commands
 		}
 
+		if (capturingPackets())
+			return capturePacket(packet);
+
+		if (eepromMirror != null && changesEEPROM(packet[2] & 0xff))
+			forgetEEPROM();
+
+		if (coalescer != null) {
+			synchronized (coalescer) {
+				int code = packet[2] & 0xff;
+				if (MoveCoalescer.isMove(packet)) {
+					if (!coalescer.merge(packet)) {
+						flushMoves();
+						coalescer.hold(packet);
+					}
+					return PacketResponse.okResponse();
+				} else if ((code & 0x80) != 0) {
+					// Nothing may be queued ahead of a move we're holding.
+					flushMoves();
+					coalescer.forget();
+					countMoves(code);
+				} else if (code == MotherboardCommandCode.ABORT.getCode()
+						|| code == MotherboardCommandCode.CLEAR_BUFFER.getCode()
+						|| code == MotherboardCommandCode.EXTENDED_STOP.getCode()
+						|| code == MotherboardCommandCode.RESET.getCode()
+						|| code == MotherboardCommandCode.INIT.getCode()) {
+					coalescer.discard();
+				} else {
+					// Queries are answered straight away, so they'd rather see the
+					// move gone out; but if the machine is full, it's busy anyway.
+					flushMovesBeforeQuery();
+				}
+			}
+		}
+
+		return transmit(packet, retries);
+	}
+
+	private PacketResponse transmit(byte[] packet, int retries)
+			throws RetryException {
+
 		boolean isCommand = (packet[2] & 0x80) != 0;
 		
 		if (fileCaptureOstream != null) {
@@ -365,6 +414,55 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if (serial == null)
 			return PacketResponse.timeoutResponse();
 
+		if (windowSize > 1) {
+			synchronized (serial) {
+				if (isCommand && retries > 0 && !Thread.currentThread().isInterrupted()) {
+					if (stopAndWait == 0)
+						return sendWindowed(packet);
+					stopAndWait--;
+				}
+				// Queries are answered immediately, so everything
+				// sent before them has to be answered first.
+				collectWindow();
+			}
+		}
+
+		return exchange(packet, retries);
+	}
+
+	/// Reads every response; only used holding the serial lock.
+	private final PacketProcessor responseProcessor = new PacketProcessor();
+
+	/// Bytes of the response being read, for the packet trace; only used holding the serial lock.
+	private final byte[] traceBytes = new byte[512];
+	private int traceLength = 0;
+
+	/// Read a byte of a response, keeping it if we're recording a packet trace.
+	private int readResponseByte(PacketTrace trace) {
+		int b = serial.read();
+		if (trace != null && b != -1 && traceLength < traceBytes.length)
+			traceBytes[traceLength++] = (byte) b;
+		return b;
+	}
+
+	/// Record the bytes of the response read so far, and start on the next.
+	private void traceResponse(PacketTrace trace, int type) {
+		if (trace != null)
+			trace.record(type, traceBytes, 0, traceLength);
+		traceLength = 0;
+	}
+
+	/**
+	 * Send a packet and wait for its response.
+	 */
+	private PacketResponse exchange(byte[] packet, int retries)
+			throws RetryException {
+
+		if (retries == 0) {
+			Base.logger.severe("Packet timed out!");
+			return PacketResponse.timeoutResponse();
+		}
+
 		PacketProcessor pp;
 		PacketResponse pr = new PacketResponse();
 
@@ -388,7 +486,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 				return pr;
 			}
 
-			pp = new PacketProcessor();
+			pp = responseProcessor;
+			pp.reset();
+			PacketTrace trace = PacketTrace.current();
+			traceLength = 0;
 			
 			if(packet == null) {
 				Base.logger.severe("null packet in runCommand");
@@ -402,6 +503,8 @@ public class Sanguino3GDriver extends SerialDriver implements
 			}
 			// Do not allow a stop or reset command to interrupt mid-packet!
 			serial.write(packet);
+			if (trace != null)
+				trace.record(PacketTrace.OUT, packet);
 			
 			printDebugData("OUT", packet);
 
@@ -409,8 +512,9 @@ public class Sanguino3GDriver extends SerialDriver implements
 			boolean completed = false;
 			while (!completed) {
 				// Dump out if interrupted
-				int b = serial.read();
+				int b = readResponseByte(trace);
 				if (b == -1) {
+					traceResponse(trace, PacketTrace.TIMEOUT);
 					if (Thread.currentThread().isInterrupted()) {
 						break;
 					}
@@ -431,23 +535,27 @@ public class Sanguino3GDriver extends SerialDriver implements
 						// silently return a timeout response
 						return PacketResponse.timeoutResponse();
 					} else if (retries < 0) {
-						return runCommand(packet, retries + 1);
+						return exchange(packet, retries + 1);
 					}
-					return runCommand(packet, retries - 1);
+					return exchange(packet, retries - 1);
 				}
 				try {
 					completed = pp.processByte((byte) b);
 				} catch (CRCException e) {
+					traceResponse(trace, PacketTrace.BAD_CRC);
 					Base.logger.severe("Bad CRC received; retries remaining: "
 							+ Integer.toString(retries));
-					return runCommand(packet, retries - 1);
+					return exchange(packet, retries - 1);
 				}
 			}
 			pr = pp.getResponse();
+			traceResponse(trace, PacketTrace.IN);
 
 			if (pr.isOK()) {
 				// okay!
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
+				if (trace != null)
+					trace.record(PacketTrace.OVERFLOW);
 				throw new RetryException();
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL){
 				Base.getEditor().handleStop(); ///  horrible horrible 
@@ -456,13 +564,496 @@ public class Sanguino3GDriver extends SerialDriver implements
 				// Other random error
 				printDebugData("Unknown error sending, retry", packet);
 				if (retries > 1) {
-					return runCommand(packet, retries - 1);
+					return exchange(packet, retries - 1);
 				}
 			}
 		}
 		return pr;
 	}
 
+	/// Merges runs of collinear moves into single packets; null if turned off
+	private final MoveCoalescer coalescer = Base.preferences.getBoolean("replicatorg.s3g.coalesce_moves", false) ?
+			new MoveCoalescer(Base.preferences.getDouble("replicatorg.s3g.coalesce_tolerance", 1.0),
+					Base.preferences.getInt("replicatorg.s3g.coalesce_segments", 32)) : null;
+
+	/// Send the move the coalescer is holding, if any. Must be called holding the coalescer lock.
+	private void flushMoves() throws RetryException {
+		if (coalescer.hasPending()) {
+			transmit(coalescer.getPending(), DEFAULT_RETRIES);
+			coalescer.sent();
+		}
+	}
+
+	/**
+	 * Try to send the held move ahead of a query. If the machine has no room
+	 * for it, it stays held, and goes out before the next command.
+	 * Must be called holding the coalescer lock.
+	 */
+	private void flushMovesBeforeQuery() {
+		try {
+			flushMoves();
+		} catch (RetryException e) {
+			Base.logger.fine("Machine buffer full; held move will go out with the next command");
+		}
+	}
+
+	/// Keep count of merged moves from the start of each build, and report them at its end.
+	private void countMoves(int code) {
+		if (code == MotherboardCommandCode.BUILD_START_NOTIFICATION.getCode()) {
+			coalescer.resetCounts();
+		} else if (code == MotherboardCommandCode.BUILD_END_NOTIFICATION.getCode()) {
+			Base.logger.info("Merged " + coalescer.getMovesIn() + " moves into "
+					+ (coalescer.getMovesIn() - coalescer.getPacketsSaved()) + " packets ("
+					+ coalescer.getPacketsSaved() + " packets saved)");
+		}
+	}
+
+	@Override
+	public void flush() throws RetryException {
+		if (coalescer != null) {
+			synchronized (coalescer) {
+				flushMoves();
+			}
+		}
+	}
+
+	/*
+	 * Windowed transport.
+	 * 
+	 * Waiting for every response before sending the next packet means the
+	 * machine sits idle for a full USB round trip per move. With the windowed
+	 * transport on, action packets (the ones the firmware just buffers) are
+	 * written without waiting, and their responses are read later, in order.
+	 * 
+	 * The firmware refuses a packet it has no buffer room for, and a refused
+	 * packet with later packets already accepted behind it would run out of
+	 * order. So we never send a packet unless we know there's room for it:
+	 * we ask the machine how much buffer it has free, and count down the
+	 * payload bytes we send against that. The buffer only ever drains on its
+	 * own, so the count can't overstate the room. When it runs out we wait
+	 * for the window to empty and ask again; if the machine is still full,
+	 * the caller gets a RetryException as before, after a pause that grows
+	 * while the machine stays full.
+	 * 
+	 * Line noise can still get a packet refused with others accepted behind
+	 * it. After any refusal, timeout or garbled response, the next
+	 * STOP_AND_WAIT_PACKETS action packets wait for their responses as they
+	 * would without the window.
+	 */
+
+	/// Most action packets to have outstanding at once; 1 turns the window off.
+	private final int windowSize = Base.preferences.getBoolean("replicatorg.s3g.windowed_transport", false) ?
+			Math.max(1, Base.preferences.getInt("replicatorg.s3g.window_size", 8)) : 1;
+	/// Packets written whose responses haven't been read, oldest first
+	private final LinkedList<byte[]> inFlight = new LinkedList<byte[]>();
+	/// Bytes of command buffer known to be free on the machine, less what's in flight
+	private int bufferCredit = 0;
+	/// Pause before the caller retries when the machine's buffer is full, in ms
+	private int overflowBackoff = 0;
+	private final static int MAX_OVERFLOW_BACKOFF = 32;
+	/// Packets that didn't run, or after a timeout may not have; sent again once the window is answered
+	private final LinkedList<byte[]> unsent = new LinkedList<byte[]>();
+	/// Action packets left to send one at a time before windowing again
+	private int stopAndWait = 0;
+	/// How many packets to send one at a time after an error
+	private final static int STOP_AND_WAIT_PACKETS = 1024;
+
+	/// Must be called holding the serial lock.
+	private PacketResponse sendWindowed(byte[] packet) throws RetryException {
+		int cost = packet[1] & 0xff;
+
+		if (inFlight.size() >= windowSize)
+			collectResponse();
+		if (cost > bufferCredit) {
+			// The machine may have made room since we last asked.
+			collectWindow();
+			bufferCredit = queryBufferSize();
+			if (cost > bufferCredit) {
+				PacketTrace trace = PacketTrace.current();
+				if (trace != null)
+					trace.record(PacketTrace.OVERFLOW);
+				overflowBackoff = Math.min(Math.max(1, overflowBackoff * 2), MAX_OVERFLOW_BACKOFF);
+				try {
+					Thread.sleep(overflowBackoff);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new RetryException();
+			}
+		}
+		overflowBackoff = 0;
+
+		serial.write(packet);
+		PacketTrace trace = PacketTrace.current();
+		if (trace != null)
+			trace.record(PacketTrace.OUT, packet);
+		printDebugData("OUT", packet);
+		inFlight.add(packet);
+		bufferCredit -= cost;
+		return PacketResponse.okResponse();
+	}
+
+	/// Ask the machine how many bytes of command buffer it has free; 0 if we can't tell.
+	private int queryBufferSize() throws RetryException {
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_BUFFER_SIZE.getCode());
+		PacketResponse pr = exchange(pb.getPacket(), DEFAULT_RETRIES);
+		if (!pr.isOK())
+			return 0;
+		return pr.get32();
+	}
+
+	/// Read the responses to everything in flight. Must be called holding the serial lock.
+	private void collectWindow() throws RetryException {
+		while (!inFlight.isEmpty())
+			collectResponse();
+	}
+
+	/**
+	 * Read the response to the oldest packet in flight. Must be called
+	 * holding the serial lock.
+	 *
+	 * Only a packet the machine refused is known not to have run, so only
+	 * those are sent again. A response that arrives garbled was still an
+	 * answer to a packet the machine took, and sending that packet again
+	 * would run it twice. A timeout can't be told apart from a lost packet,
+	 * so then we do what we'd have done without the window.
+	 */
+	private void collectResponse() throws RetryException {
+		PacketProcessor pp = responseProcessor;
+		pp.reset();
+		PacketTrace trace = PacketTrace.current();
+		traceLength = 0;
+		boolean completed = false;
+		boolean answered = false;
+		try {
+			while (!completed) {
+				int b = readResponseByte(trace);
+				if (b == -1) {
+					traceResponse(trace, PacketTrace.TIMEOUT);
+					if (Thread.currentThread().isInterrupted()) {
+						// Being stopped; whatever's left doesn't matter.
+						inFlight.clear();
+						unsent.clear();
+						bufferCredit = 0;
+						return;
+					}
+					Base.logger.severe("Read timed out with "
+							+ inFlight.size() + " packets in flight");
+					break;
+				}
+				answered = true;
+				completed = pp.processByte((byte) b);
+			}
+		} catch (CRCException e) {
+			traceResponse(trace, PacketTrace.BAD_CRC);
+			Base.logger.severe("Bad CRC received with "
+					+ inFlight.size() + " packets in flight");
+		}
+
+		if (!completed) {
+			windowFailed();
+			if (answered) {
+				// The machine answered, so it has the packet; we just
+				// can't read what it said.
+				inFlight.removeFirst();
+			} else {
+				// Nothing came back for this packet, and as responses come
+				// in order, nothing's coming for the ones behind it either.
+				// Without the window each would have been sent again after
+				// its timeout, so that's what we do. Let anything half-sent
+				// finish arriving, and throw it away.
+				Base.logger.severe("No response to " + inFlight.size()
+						+ " packets; sending them again one at a time");
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				serial.clear();
+				unsent.addAll(inFlight);
+				inFlight.clear();
+			}
+		} else {
+			byte[] packet = inFlight.removeFirst();
+			PacketResponse pr = pp.getResponse();
+			traceResponse(trace, PacketTrace.IN);
+			if (pr.isOK()) {
+				// okay!
+			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL) {
+				Base.getEditor().handleStop(); ///  horrible horrible 
+				Base.logger.severe("Build Canceled by Printer");
+			} else {
+				// The machine didn't run it, so it has to go again. Anything
+				// behind it that's accepted will have run first, which can't
+				// be undone; we stop windowing so it doesn't happen again.
+				Base.logger.severe("Packet refused with " + inFlight.size()
+						+ " packets in flight: " + pr.getResponseCode());
+				windowFailed();
+				unsent.add(packet);
+			}
+		}
+
+		// Once every packet in flight has been answered, send the ones
+		// that didn't run again, in the order they were first sent.
+		if (inFlight.isEmpty() && !unsent.isEmpty())
+			sendAgain();
+	}
+
+	/// Stop windowing for a while; something's wrong with the link.
+	private void windowFailed() {
+		stopAndWait = STOP_AND_WAIT_PACKETS;
+		bufferCredit = 0;
+	}
+
+	/// Send the packets that didn't run again, one at a time.
+	private void sendAgain() throws RetryException {
+		PacketTrace trace = PacketTrace.current();
+		if (trace != null)
+			trace.record(PacketTrace.RESEND);
+
+		while (!unsent.isEmpty()) {
+			try {
+				exchange(unsent.getFirst(), DEFAULT_RETRIES);
+				unsent.removeFirst();
+			} catch (RetryException e) {
+				if (Thread.currentThread().isInterrupted()) {
+					unsent.clear();
+					return;
+				}
+				try {
+					Thread.sleep(MAX_OVERFLOW_BACKOFF);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/*
+	 * EEPROM mirror.
+	 *
+	 * The onboard parameters are read a field at a time, and each field used
+	 * to cost a round trip. With the mirror on, the first read sweeps the
+	 * whole EEPROM image into memory, a few queries on the wire at a time,
+	 * and later reads are answered from the copy. Writes go straight to the
+	 * board, but only the bytes that have changed are sent.
+	 *
+	 * The copy is only kept between beginEEPROMSession() and
+	 * endEEPROMSession(), which the onboard parameters window calls when it
+	 * opens and closes. Outside a session every read goes to the board:
+	 * the front panel menus write the EEPROM too, and a copy kept from one
+	 * window to the next would skip writing values that the panel changed
+	 * in between.
+	 *
+	 * The firmware changes its own EEPROM now and then, so the copy is also
+	 * thrown away on reconnect, on reset, on factory reset, when home
+	 * positions are stored and at the end of a build (the filament and
+	 * build time counters). It's also thrown away when the board doesn't
+	 * say it wrote what we sent, as we can't tell what it has.
+	 */
+
+	/// Copy of the motherboard EEPROM; null if turned off
+	private final EEPROMMirror eepromMirror = Base.preferences.getBoolean("replicatorg.s3g.eeprom_cache", true) ?
+			new EEPROMMirror(getEEPROMImageSize()) : null;
+	/// Copies of tool EEPROMs, by tool index
+	private final Map<Integer, EEPROMMirror> toolEEPROMMirrors = new HashMap<Integer, EEPROMMirror>();
+	/// True while something that edits the onboard parameters is open
+	private volatile boolean eepromSession = false;
+	/// Most EEPROM reads to have on the wire at once while sweeping
+	private final int eepromReadDepth = Math.max(1, Base.preferences.getInt("replicatorg.s3g.eeprom_read_depth", 4));
+
+	/**
+	 * How many bytes from the bottom of the motherboard EEPROM the mirror
+	 * reads in its first sweep; the highest offset in the EEPROM map, give
+	 * or take. Anything past that is read when it's asked for.
+	 */
+	protected int getEEPROMImageSize() {
+		return 0x0200;
+	}
+
+	/** As {@link #getEEPROMImageSize()}, for the EEPROM on a tool. */
+	protected int getToolEEPROMImageSize() {
+		return 0x0200;
+	}
+
+	/// The motherboard EEPROM mirror, or null if it's turned off
+	EEPROMMirror getEEPROMMirror() {
+		return eepromMirror;
+	}
+
+	/// The mirror for a tool's EEPROM, or null for broadcasts or if mirroring is off
+	private EEPROMMirror getToolEEPROMMirror(int toolhead) {
+		if (eepromMirror == null || toolhead == 255 || toolhead == 127)
+			return null;
+		synchronized (toolEEPROMMirrors) {
+			EEPROMMirror mirror = toolEEPROMMirrors.get(toolhead);
+			if (mirror == null) {
+				mirror = new EEPROMMirror(getToolEEPROMImageSize());
+				toolEEPROMMirrors.put(toolhead, mirror);
+			}
+			return mirror;
+		}
+	}
+
+	/// Throw away everything we know about the EEPROMs.
+	protected void forgetEEPROM() {
+		if (eepromMirror == null)
+			return;
+		eepromMirror.clear();
+		synchronized (toolEEPROMMirrors) {
+			toolEEPROMMirrors.clear();
+		}
+	}
+
+	/**
+	 * Keep a copy of the EEPROMs until {@link #endEEPROMSession()}, starting
+	 * from a fresh read.
+	 */
+	public void beginEEPROMSession() {
+		forgetEEPROM();
+		eepromSession = true;
+	}
+
+	/// Stop keeping a copy of the EEPROMs, and throw away what we have.
+	public void endEEPROMSession() {
+		eepromSession = false;
+		forgetEEPROM();
+	}
+
+	/// Does the firmware write its own EEPROM when it gets this packet?
+	private static boolean changesEEPROM(int code) {
+		return code == MotherboardCommandCode.RESET.getCode()
+			|| code == MotherboardCommandCode.INIT.getCode()
+			|| code == MotherboardCommandCode.RESET_TO_FACTORY.getCode()
+			|| code == MotherboardCommandCode.STORE_HOME_POSITIONS.getCode()
+			|| code == MotherboardCommandCode.BUILD_END_NOTIFICATION.getCode();
+	}
+
+	/// The mirror is only used in a session, and is no use when there's no board to read from.
+	boolean mirroring(EEPROMMirror mirror) {
+		return mirror != null && eepromSession && hasBoard() && fileCaptureOstream == null;
+	}
+
+	/// Is there a board on the other end to answer queries?
+	protected boolean hasBoard() {
+		return serial != null;
+	}
+
+	/**
+	 * Read the lines the mirror is missing to cover a range.
+	 * @param toolhead tool whose EEPROM it is, or -1 for the motherboard
+	 */
+	private void fillMirror(EEPROMMirror mirror, int offset, int len, int toolhead) {
+		List<Integer> lines = mirror.missingLines(offset, len);
+		List<byte[]> packets = new ArrayList<byte[]>(lines.size());
+		for (int line : lines) {
+			PacketBuilder pb;
+			if (toolhead < 0) {
+				pb = new PacketBuilder(MotherboardCommandCode.READ_EEPROM.getCode());
+			} else {
+				pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
+				pb.add8((byte) toolhead);
+				pb.add8(ToolCommandCode.READ_FROM_EEPROM.getCode());
+			}
+			pb.add16(line);
+			pb.add8(EEPROMMirror.LINE_SIZE);
+			packets.add(pb.getPacket());
+		}
+
+		PacketResponse[] responses = runQueries(packets);
+		for (int i = 0; i < responses.length; i++) {
+			PacketResponse pr = responses[i];
+			if (pr == null || !pr.isOK())
+				continue;
+			byte[] payload = pr.getPayload();
+			byte[] data = new byte[Math.max(0, payload.length - 1)];
+			// Copy removes the first response byte from the packet payload.
+			System.arraycopy(payload, 1, data, 0, data.length);
+			mirror.fill(lines.get(i), data);
+		}
+		Base.logger.finer("Read " + lines.size() + " EEPROM lines"
+				+ (toolhead < 0 ? "" : " from tool " + toolhead));
+	}
+
+	/**
+	 * Send a run of queries, keeping up to eepromReadDepth of them on the
+	 * wire at once, and read their responses in order. If anything goes
+	 * wrong on the way, what's left is sent a query at a time, as usual.
+	 */
+	private PacketResponse[] runQueries(List<byte[]> packets) {
+		PacketResponse[] responses = new PacketResponse[packets.size()];
+		int done = 0;
+		if (eepromReadDepth > 1 && packets.size() > 1 && serial != null
+				&& !Thread.currentThread().isInterrupted()) {
+			if (coalescer != null) {
+				synchronized (coalescer) {
+					flushMovesBeforeQuery();
+				}
+			}
+			synchronized (serial) {
+				try {
+					collectWindow();
+					done = pipelineQueries(packets, responses);
+				} catch (RetryException e) {
+				}
+			}
+		}
+		for (int i = done; i < responses.length; i++)
+			responses[i] = runQuery(packets.get(i));
+		return responses;
+	}
+
+	/**
+	 * @return how many responses were read before something went wrong
+	 */
+	private int pipelineQueries(List<byte[]> packets, PacketResponse[] responses) {
+		int sent = 0;
+		int done = 0;
+		PacketTrace trace = PacketTrace.current();
+		while (done < packets.size()) {
+			while (sent < packets.size() && sent - done < eepromReadDepth) {
+				byte[] packet = packets.get(sent++);
+				serial.write(packet);
+				if (trace != null)
+					trace.record(PacketTrace.OUT, packet);
+				printDebugData("OUT", packet);
+			}
+
+			PacketProcessor pp = responseProcessor;
+			pp.reset();
+			traceLength = 0;
+			boolean completed = false;
+			try {
+				while (!completed) {
+					int b = readResponseByte(trace);
+					if (b == -1) {
+						traceResponse(trace, PacketTrace.TIMEOUT);
+						break;
+					}
+					completed = pp.processByte((byte) b);
+				}
+				if (completed)
+					traceResponse(trace, PacketTrace.IN);
+			} catch (CRCException e) {
+				traceResponse(trace, PacketTrace.BAD_CRC);
+				completed = false;
+			}
+			PacketResponse pr = completed ? pp.getResponse() : null;
+			if (pr == null || !pr.isOK()) {
+				// Let anything still on its way arrive, and drop it.
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				serial.clear();
+				return done;
+			}
+			responses[done++] = pr;
+		}
+		return done;
+	}
+
 	static boolean isNotifiedFinishedFeature = false;
 
 	public boolean isFinished() {
@@ -1883,7 +2474,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 	protected Point5d reconcilePosition() throws RetryException {
 		// If we're writing to a file, we can't actually know what the current
 		// position is.
-		if (fileCaptureOstream != null) {
+		if (isCapturing()) {
 			return null;
 		}
 		PacketBuilder pb = new PacketBuilder(
@@ -1944,6 +2535,21 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 	protected void writeToEEPROM(int offset, byte[] data) {
 		assert data.length <= 16;
+		if (mirroring(eepromMirror)) {
+			boolean written = true;
+			for (int[] run : eepromMirror.changes(offset, data, 16))
+				written &= sendEEPROMWrite(offset + run[0], slice(data, run[0], run[1]));
+			if (written)
+				eepromMirror.update(offset, data);
+			else
+				forgetEEPROM();
+			return;
+		}
+		sendEEPROMWrite(offset, data);
+	}
+
+	/// @return true if the board says it wrote all of the data
+	private boolean sendEEPROMWrite(int offset, byte[] data) {
 		PacketBuilder pb = new PacketBuilder(
 				MotherboardCommandCode.WRITE_EEPROM.getCode());
 		pb.add16(offset);
@@ -1952,7 +2558,21 @@ public class Sanguino3GDriver extends SerialDriver implements
 			pb.add8(b);
 		}
 		PacketResponse pr = runQuery(pb.getPacket());
-		assert pr.get8() == data.length;
+		return checkEEPROMWrite(pr, data.length, "EEPROM");
+	}
+
+	/// Did the board write all of an EEPROM write? Logs it if not.
+	boolean checkEEPROMWrite(PacketResponse pr, int length, String what) {
+		if (!pr.isOK()) {
+			Base.logger.severe("Writing " + what + ": " + pr.getResponseCode().getMessage());
+			return false;
+		}
+		int written = pr.get8();
+		if (written != length) {
+			Base.logger.severe("Writing " + what + ": wrote " + written + " of " + length + " bytes");
+			return false;
+		}
+		return true;
 	}
 
 	@Deprecated
@@ -1966,6 +2586,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
+		EEPROMMirror mirror = getToolEEPROMMirror(toolhead);
+		if (mirroring(mirror)) {
+			if (!mirror.covers(offset, len))
+				fillMirror(mirror, offset, len, toolhead);
+			if (mirror.covers(offset, len))
+				return mirror.get(offset, len);
+		}
 		
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead);
@@ -2010,13 +2637,33 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
 		final int MAX_PAYLOAD = 11;
+		EEPROMMirror mirror = getToolEEPROMMirror(toolhead);
+		if (mirroring(mirror)) {
+			boolean written = true;
+			for (int[] run : mirror.changes(offset, data, MAX_PAYLOAD))
+				written &= sendToolEEPROMWrite(offset + run[0], slice(data, run[0], run[1]), toolhead);
+			if (written)
+				mirror.update(offset, data);
+			else
+				forgetEEPROM();
+			return;
+		}
+		if (toolhead == 255 || toolhead == 127)
+			forgetEEPROM();
+		sendToolEEPROMWrite(offset, data, toolhead);
+	}
+
+	/// @return true if the tool says it wrote all of the data, or it's a broadcast
+	private boolean sendToolEEPROMWrite(int offset, byte[] data, int toolhead) {
+		final int MAX_PAYLOAD = 11;
+		boolean written = true;
 		while (data.length > MAX_PAYLOAD) {
 			byte[] head = new byte[MAX_PAYLOAD];
 			byte[] tail = new byte[data.length - MAX_PAYLOAD];
 			System.arraycopy(data, 0, head, 0, MAX_PAYLOAD);
 			System.arraycopy(data, MAX_PAYLOAD, tail, 0, data.length
 					- MAX_PAYLOAD);
-			writeToToolEEPROM(offset, head, toolhead);
+			written &= sendToolEEPROMWrite(offset, head, toolhead);
 			offset += MAX_PAYLOAD;
 			data = tail;
 		}
@@ -2033,8 +2680,16 @@ public class Sanguino3GDriver extends SerialDriver implements
 		slavepr.printDebug();
 		// If the tool index is 127/255, we should not expect a response (it's a
 		// broadcast packet).
-		assert (toolhead == 255) || (toolhead == 127)
-				|| (slavepr.get8() == data.length);
+		if (toolhead == 255 || toolhead == 127)
+			return written;
+		return checkEEPROMWrite(slavepr, data.length, "tool " + toolhead + " EEPROM") && written;
+	}
+
+	/// A copy of part of an array
+	static byte[] slice(byte[] data, int start, int length) {
+		byte[] part = new byte[length];
+		System.arraycopy(data, start, part, 0, length);
+		return part;
 	}
 
 	/**
@@ -2050,6 +2705,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		assert len <= 16;
 
+		if (mirroring(eepromMirror)) {
+			if (!eepromMirror.covers(offset, len))
+				fillMirror(eepromMirror, offset, len, -1);
+			if (eepromMirror.covers(offset, len))
+				return eepromMirror.get(offset, len);
+		}
+
 		PacketBuilder pb = new PacketBuilder(
 				MotherboardCommandCode.READ_EEPROM.getCode());
 		pb.add16(offset);
@@ -2532,17 +3194,82 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return ResponseCode.FAIL_GENERIC;
 	}
 
-	FileOutputStream fileCaptureOstream = null;
+	/// Packets are a few bytes each, so they're gathered up before going to disk
+	private final static int FILE_CAPTURE_BUFFER_SIZE = 64 * 1024;
+
+	OutputStream fileCaptureOstream = null;
 
 	public void beginFileCapture(String path) throws FileNotFoundException {
-		fileCaptureOstream = new FileOutputStream(new File(path));
+		fileCaptureOstream = new BufferedOutputStream(new FileOutputStream(new File(path)),
+				FILE_CAPTURE_BUFFER_SIZE);
 	}
 
 	public void endFileCapture() throws IOException {
+		// The last move may still be held back for merging.
+		try {
+			flush();
+		} catch (RetryException e) {
+			// Writing to a file doesn't ask for retries; this can't happen.
+			throw new IOException("Couldn't write the last move: " + e.getMessage());
+		}
 		fileCaptureOstream.close();
 		fileCaptureOstream = null;
 	}
 
+	/// Packets built on this thread go on packetCaptureQueue, rather than to the machine
+	private volatile Thread packetCaptureThread = null;
+	private volatile BlockingQueue<byte[]> packetCaptureQueue = null;
+
+	public void beginPacketCapture(Thread thread, BlockingQueue<byte[]> queue) {
+		// Anything the coalescer is holding belongs before the captured packets.
+		try {
+			flush();
+		} catch (RetryException e) {
+			Base.logger.warning("Couldn't send held move before capturing packets");
+		}
+		packetCaptureQueue = queue;
+		packetCaptureThread = thread;
+	}
+
+	public void endPacketCapture() {
+		packetCaptureThread = null;
+		packetCaptureQueue = null;
+	}
+
+	public void sendCapturedPacket(byte[] packet) throws RetryException {
+		transmit(packet, DEFAULT_RETRIES);
+	}
+
+	private boolean capturingPackets() {
+		return packetCaptureThread != null && packetCaptureThread == Thread.currentThread();
+	}
+
+	/**
+	 * True if commands run on this thread aren't going to the machine, so
+	 * queries can't be answered by it.
+	 */
+	protected boolean isCapturing() {
+		return fileCaptureOstream != null || capturingPackets();
+	}
+
+	/**
+	 * Queue a command packet; queries are answered the way they are when
+	 * capturing to a file. If we're interrupted waiting for room, the packet
+	 * is lost, so whatever is capturing has to stop rather than carry on
+	 * without it.
+	 */
+	private PacketResponse capturePacket(byte[] packet) {
+		if ((packet[2] & 0x80) != 0) {
+			try {
+				packetCaptureQueue.put(packet);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while queueing a packet", e);
+			}
+		}
+		return PacketResponse.okResponse();
+	}
+
 	public ResponseCode beginCapture(String filename) {
 		PacketBuilder pb = new PacketBuilder(
 				MotherboardCommandCode.CAPTURE_TO_FILE.getCode());
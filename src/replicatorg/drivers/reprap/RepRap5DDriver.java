@@ -33,6 +33,7 @@ import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.EnumSet;
 import java.util.LinkedList;
+import java.util.ListIterator;
 import java.util.Queue;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -153,6 +154,39 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 */
 	private int maxBufferSize = 128;
 
+	/**
+	 * if true, commands are streamed: we keep sending as long as the firmware's
+	 * receive buffer (maxBufferSize bytes) has room for the next line, counting
+	 * every line we've sent that hasn't been acknowledged, instead of waiting
+	 * for an "ok" to every line before sending the next. Queries (M105, M114)
+	 * still wait for their own "ok", so the answer is in by the time they
+	 * return.
+	 */
+	private boolean streaming = false;
+
+	/** while streaming, the line we last started resending from, or -1 once the firmware has it */
+	private int resendFrom = -1;
+
+	/**
+	 * How many more requests for resendFrom may still come, one for each line
+	 * the firmware threw away along with it. Marlin empties its receive buffer
+	 * when it asks for a resend, so some of them never get there to ask.
+	 */
+	private int staleRequests = 0;
+
+	/** when we last heard from the firmware */
+	private volatile long lastResponseMillis = 0;
+
+	/** how long a resend can go unanswered before we decide it was lost and send it again */
+	private static final long RESEND_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * Lines still to be sent again, oldest first. They stay where they are in
+	 * the buffer, and each goes out once a line has left the firmware's receive
+	 * buffer to make room for it.
+	 */
+	private final Queue<String> resendQueue = new LinkedList<String>();
+
 	/**
 	 * The commands sent but not yet acknowledged by the firmware. Stored so they can be resent 
 	 * if there is a checksum problem.
@@ -233,6 +267,12 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	if (XML.hasChildNode(xml, "okAfterStart")) {
 		okAfterStart = Boolean.parseBoolean(XML.getChildNodeValue(xml, "okAfterStart"));
 	}
+	if (XML.hasChildNode(xml, "streaming")) {
+		streaming = Boolean.parseBoolean(XML.getChildNodeValue(xml, "streaming"));
+	}
+	if (XML.hasChildNode(xml, "bufferSize")) {
+		maxBufferSize = Integer.parseInt(XML.getChildNodeValue(xml, "bufferSize"));
+	}
 	if (XML.hasChildNode(xml, "alwaysRelativeE")) {
 		alwaysRelativeE = Boolean.parseBoolean(XML.getChildNodeValue(xml, "alwaysRelativeE"));
 	}
@@ -440,7 +480,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * is finished sending.
 	 */
 	protected void sendCommand(String next) {
-		_sendCommand(next, true, false);
+		_sendCommand(next, !streaming, false);
 	}
 
 	protected void sendCommand(String next, boolean synchronous) {
@@ -503,24 +543,38 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 			Base.logger.finest("resending: "+next);
 		}
 		// Block until we can fit the command on the Arduino
-/*		synchronized(bufferLock)
+		if (streaming && !resending)
 		{
-			//wait for the number of commands queued in the buffer to shrink before 
-			//adding the next command to it.
-                        // NOTE: must compute bufferSize from buffer elements now
-			while(bufferSize + next.length() + 1 > maxBufferSize)
+			boolean stalled;
+			do
 			{
-				Base.logger.warning("reprap driver buffer full. gcode write slowed.");
-				try {
-					bufferLock.wait();
-				}
-				catch (InterruptedException e1) {
-					//Presumably we're shutting down
-					Thread.currentThread().interrupt();
-					return;
+				stalled = false;
+				synchronized(bufferLock)
+				{
+					//wait for the lines waiting in the firmware's receive buffer to be
+					//taken out before adding the next command to it.
+					while((!isBufferEmpty() && bufferedBytes() + next.length() + 1 > maxBufferSize) || isResending())
+					{
+						try {
+							// woken by each "ok"; the timeout covers the buffer being flushed
+							bufferLock.wait(500);
+						}
+						catch (InterruptedException e1) {
+							//Presumably we're shutting down
+							Thread.currentThread().interrupt();
+							sendCommandLock.unlock();
+							return;
+						}
+						if (isResendStalled()) {
+							stalled = true;
+							break;
+						}
+					}
 				}
-			}
-		}*/
+				if (stalled)
+					checkResendStalled();
+			} while (stalled);
+		}
 		
 
 		// debug... let us know whats up!
@@ -683,6 +737,16 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 	
 	public void serialByteReceivedEvent(ByteFifo fifo) {
+		// Bytes arrive in runs, which may hold any number of lines.
+		while (readResponseLine(fifo))
+			;
+	}
+
+	/**
+	 * Handle one line of response from the firmware, if a whole one is waiting.
+	 * @return true if a line was handled
+	 */
+	private boolean readResponseLine(ByteFifo fifo) {
 		readResponseLock.lock();
 
 		serialInUse.lock();
@@ -696,8 +760,9 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 			// This signifies EOF. FIXME: How do we handle this?
 			Base.logger.severe("SerialPassthroughDriver.readResponse(): EOF occured");
 			readResponseLock.unlock();
-			return;
+			return false;
 		} else if(responseLength!=0) {
+			lastResponseMillis = System.currentTimeMillis();
 			String line;
 			try
 			{
@@ -761,17 +826,28 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 					okReceived.notifyAll();
 				}
 
+				boolean madeRoom = false;
 				bufferLock.lock();
 				//Notify the thread waiting in this gcode's sendCommand method that the gcode has been received.
 				if (buffer.isEmpty()) {
 					Base.logger.severe("Received OK with nothing queued!");
 				} else {
 					String notifier = buffer.removeLast();
+					madeRoom = !notifier.startsWith(";");
+					resendQueue.remove(notifier);
+					if (resendFrom != -1 && lineNumberOf(notifier) >= resendFrom) {
+						// the firmware has the line it asked for again
+						resendFrom = -1;
+						staleRequests = 0;
+					}
 					if(debugLevel > 1)
 						Base.logger.info("FW Accepted: " + notifier);
 					synchronized(notifier) { notifier.notifyAll(); }
 				}
 				bufferLock.unlock();
+				// that line has made room for the next one we're sending again
+				if (madeRoom)
+					sendNextResend();
 				
 				synchronized(bufferLock)
 				{ /*let any sendCommand method waiting to send know that the buffer is 
@@ -779,6 +855,14 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 					bufferLock.notifyAll();
 				}
 			}
+			else if (line.startsWith("error"))
+			{
+				// Marlin explains each resend request; anything else is a real problem
+				if (line.contains("last line"))
+					Base.logger.fine("Firmware: " + line);
+				else
+					Base.logger.warning("Firmware: " + line);
+			}
 			else if(line.contains("sd"))
 			{
 				if (line.contains("fail"))
@@ -938,7 +1022,12 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				// Is it a Dud M or G code?
 				String dudLetter = getRegexMatch("dud ([a-z]) code", line, 1);
 
-				if (badLineMatch.find())
+				boolean hasLineNumber = badLineMatch.find();
+				if (hasLineNumber && streaming)
+				{
+					resendStreamed(Integer.parseInt(badLineMatch.group(1)), dudLetter, true);
+				}
+				else if (hasLineNumber)
 				{
 					int badLineNumber = Integer.parseInt(
 							badLineMatch.group(1) );
@@ -1018,12 +1107,186 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		}
 
 		readResponseLock.unlock();
+		return responseLength != 0;
 	}
 
 	public boolean isFinished() {
+		checkResendStalled();
 		return isBufferEmpty();
 	}
 
+	/**
+	 * How many lines have been sent again since we connected.
+	 */
+	public int getResendCount() {
+		return numResends;
+	}
+
+	/**
+	 * How many bytes of the lines we've sent may still be sitting in the
+	 * firmware's receive buffer.
+	 */
+	private int bufferedBytes() {
+		bufferLock.lock();
+		int bytes = 0;
+		for (String line : buffer) {
+			// placeholders for extra "ok"s were never sent
+			if (line.startsWith(";"))
+				continue;
+			bytes += line.length() + 1;
+		}
+		bufferLock.unlock();
+		return bytes;
+	}
+
+	/** The line number a line was sent with, or -1 for placeholders and unnumbered lines. */
+	private int lineNumberOf(String line) {
+		String number = getRegexMatch(gcodeLineNumberPattern, line.toLowerCase(), 1);
+		return number == null ? -1 : Integer.parseInt(number);
+	}
+
+	/**
+	 * Handle a resend request while streaming. The firmware throws away the
+	 * bad line and everything it gets after it; depending on the firmware it
+	 * either answers each of them with another request for the same line, or
+	 * empties its receive buffer so that only some of them ever get there.
+	 * So the first request queues every line from the bad one on to be sent
+	 * again, and each later request for the same line, like each "ok", means
+	 * a line has left the firmware's buffer and the next copy can go. If the
+	 * firmware goes quiet before it has them all, checkResendStalled() starts
+	 * over.
+	 *
+	 * @param answered whether this is the firmware asking, rather than the
+	 *        host giving up on a request that never came.
+	 */
+	private void resendStreamed(int badLineNumber, String dudLetter, boolean answered) {
+		bufferLock.lock();
+		if (answered && okAfterResend) {
+			// the "ok" that follows answers the line thrown away, which we're sending again
+			buffer.addLast(";resend-ok");
+		}
+		if (answered && badLineNumber == resendFrom && staleRequests > 0) {
+			staleRequests--;
+			bufferLock.unlock();
+			sendNextResend();
+			return;
+		}
+		if(debugLevel > 1)
+			Base.logger.warning("Received resend request for line " + badLineNumber);
+
+		// Oldest first
+		resendQueue.clear();
+		int thrownAway = 0;
+		for (ListIterator<String> it = buffer.listIterator(buffer.size()); it.hasPrevious(); )
+		{
+			String bufferedLine = it.previous();
+			int number = lineNumberOf(bufferedLine);
+			if (number < badLineNumber)
+				continue;
+			thrownAway++;
+			if (dudLetter != null && number == badLineNumber) {
+				Base.logger.info("Dud "+dudLetter+" code: Dropping " + bufferedLine);
+				it.remove();
+				synchronized(bufferedLine) { bufferedLine.notifyAll(); }
+				continue;
+			}
+			resendQueue.add(bufferedLine);
+		}
+		resendFrom = badLineNumber;
+		staleRequests = Math.max(thrownAway - (answered ? 1 : 0), 0);
+		boolean lost = resendQueue.isEmpty();
+		bufferLock.unlock();
+
+		if (lost && dudLetter == null) {
+			Base.logger.severe("resend for line " + badLineNumber + " not in our buffer.  Resuming from " + lineNumber.get());
+			this.resendCommand(applyChecksum("N"+(lineNumber.get()-1)+" M110"));
+		}
+		sendNextResend();
+	}
+
+	/**
+	 * Send the next line queued by resendStreamed(). It's already in the
+	 * buffer, waiting for its "ok", so it only needs writing out again.
+	 */
+	private void sendNextResend() {
+		serialInUse.lock();
+		bufferLock.lock();
+		String line = resendQueue.poll();
+		if (line != null) {
+			numResends++;
+			if(debugLevel > 0)
+				Base.logger.warning("Resending: \"" + line + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
+			serial.write(line + "\n");
+		}
+		boolean done = resendQueue.isEmpty();
+		bufferLock.unlock();
+		serialInUse.unlock();
+
+		if (line != null && done) {
+			synchronized(bufferLock)
+			{
+				bufferLock.notifyAll();
+			}
+		}
+	}
+
+	/** Whether lines are still waiting to be sent again; nothing new goes out until they have. */
+	private boolean isResending() {
+		bufferLock.lock();
+		boolean resending = !resendQueue.isEmpty();
+		bufferLock.unlock();
+		return resending;
+	}
+
+	/**
+	 * Whether a resend has gone unanswered for so long that it must have been
+	 * lost: the firmware has been quiet with lines still to be answered.
+	 */
+	private boolean isResendStalled() {
+		if (System.currentTimeMillis() - lastResponseMillis < RESEND_TIMEOUT_MILLIS)
+			return false;
+		bufferLock.lock();
+		boolean stalled = false;
+		if (resendFrom != -1 || !resendQueue.isEmpty()) {
+			for (String line : buffer) {
+				if (lineNumberOf(line) != -1)
+					stalled = true;
+			}
+		}
+		bufferLock.unlock();
+		return stalled;
+	}
+
+	/**
+	 * Send again everything from the oldest line not yet answered, if a
+	 * resend has stalled. Mustn't be called holding bufferLock's monitor.
+	 */
+	private void checkResendStalled() {
+		if (!streaming || !isResendStalled())
+			return;
+		int from = Integer.MAX_VALUE;
+		bufferLock.lock();
+		for (ListIterator<String> it = buffer.listIterator(); it.hasNext(); ) {
+			String line = it.next();
+			int number = lineNumberOf(line);
+			if (number == -1) {
+				// the "ok"s these were waiting for aren't coming
+				it.remove();
+				synchronized(line) { line.notifyAll(); }
+			} else {
+				from = Math.min(from, number);
+			}
+		}
+		resendFrom = -1;
+		staleRequests = 0;
+		lastResponseMillis = System.currentTimeMillis();
+		bufferLock.unlock();
+		if (from == Integer.MAX_VALUE)
+			return;
+		Base.logger.warning("No answer to a resend, sending again from line " + from);
+		resendStreamed(from, null, false);
+	}
+
 	/**
 	 * Clear the command buffer and send notifications to everyone
 	 * waiting for their completion.
@@ -1037,6 +1300,9 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				Base.logger.fine("Flushing dead command: " + notifier);
 			synchronized(notifier) { notifier.notifyAll(); }
 		}
+		resendQueue.clear();
+		resendFrom = -1;
+		staleRequests = 0;
 		bufferLock.unlock();
 	}
 
@@ -1312,7 +1578,8 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 	public void readTemperature(int toolcode) {
 		machine.selectTool(toolcode);
-		sendCommand("T"+toolcode + " M105");
+		// Wait for the answer, even while streaming; callers read it straight after.
+		sendCommand("T"+toolcode + " M105", true);
 
 		super.readTemperature(toolcode);
 	}
@@ -1430,7 +1697,8 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 
 	protected Point5d reconcilePosition() {
-		sendCommand("M114");
+		// Synchronous even while streaming, so the position is in before we return.
+		sendCommand("M114", true);
 		// If the firmware returned a position then the reply parser
 		// already set the current position.  Return null to tell
 		// caller not to touch the position if it is now known.
@@ -0,0 +1,321 @@
+package replicatorg.machine;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeEnumeration;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.AxisId;
+import replicatorg.machine.model.Endstops;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * The checks we make on a build's GCode before running it, and the estimate
+ * of how long it will take, done together in one pass over the source.
+ * Each line is read once, and the same GCodeCommand is used both to look
+ * for problems and to feed the estimator.
+ *
+ * The pass can run on its own thread, alongside the build: callers can wait
+ * for the first so many lines to be checked, start the build, and pick up
+ * the rest of the messages and the estimate when the pass is finished.
+ */
+public class BuildPreflight implements Runnable {
+
+	/**
+	 * Told how far the pass has got. Called from the thread running the pass.
+	 */
+	public interface ProgressListener {
+		void preflightProgress(int linesDone, int lineCount);
+	}
+
+	// Lines between calls to the progress listener
+	private static final int PROGRESS_INTERVAL = 10000;
+
+	private final GCodeSource source;
+	private final MachineModel model;
+	private final boolean checking;
+	private final EstimationDriver estimator;
+
+	private final Map<String, Integer> messages = new TreeMap<String, Integer>();
+	private ProgressListener listener = null;
+
+	private volatile boolean cancelled = false;
+	private boolean finished = false;
+	private int linesDone = 0;
+
+	/**
+	 * @param source the GCode to go through
+	 * @param model the machine it's going to run on
+	 * @param checking true to check the code for problems
+	 * @param estimator estimator to run the code through, set up for the machine; null for no estimate
+	 */
+	public BuildPreflight(GCodeSource source, MachineModel model, boolean checking, EstimationDriver estimator) {
+		this.source = source;
+		this.model = model;
+		this.checking = checking;
+		this.estimator = estimator;
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Stop the pass where it is. Anything waiting on it is released.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Start the pass on a thread of its own.
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "Build Preflight");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Wait until at least the given number of lines have been gone through,
+	 * or the pass is over.
+	 * @return true if the pass got that far (or to the end of the source)
+	 */
+	public synchronized boolean awaitLines(int lines) throws InterruptedException {
+		while (!finished && !cancelled && linesDone < lines)
+			wait(100);
+		return !cancelled;
+	}
+
+	/**
+	 * Wait for the pass to finish.
+	 * @return false if it was cancelled
+	 */
+	public boolean awaitFinished() throws InterruptedException {
+		return awaitLines(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Messages about problems found so far, mapped to the line number they
+	 * last turned up on.
+	 */
+	public Map<String, Integer> getMessages() {
+		synchronized(messages) {
+			return new TreeMap<String, Integer>(messages);
+		}
+	}
+
+	public boolean hasMessages() {
+		synchronized(messages) {
+			return !messages.isEmpty();
+		}
+	}
+
+	public EstimationDriver getEstimator() {
+		return estimator;
+	}
+
+	public void run() {
+		GCodeCommand gcode = new GCodeCommand();
+		GCodeParser parser = null;
+		Queue<DriverCommand> commands = null;
+		if (estimator != null) {
+			parser = new GCodeParser();
+			parser.init(estimator);
+			commands = new LinkedList<DriverCommand>();
+		}
+
+		int nToolheads = model.getTools().size();
+		Point5d maxRates = model.getMaximumFeedrates();
+		int lineCount = source.getLineCount();
+		boolean stillChecking = checking;
+
+		int lineNumber = 0;
+		try {
+			for (String line : source) {
+				if (cancelled)
+					return;
+
+				boolean parsed = true;
+				try {
+					gcode.reset(line);
+				} //Catching every kind of exception is generally bad form,
+				//  It can hide where the problem is happening, and should be avoided
+				//  But I'm doing it anyway.
+				catch (Exception e) {
+					parsed = false;
+					if (stillChecking)
+						addMessage("ReplicatorG can't parse '" + line +"'", lineNumber, Level.SEVERE);
+				}
+
+				if (parsed) {
+					if (stillChecking)
+						stillChecking = check(gcode, line, lineNumber, nToolheads, maxRates);
+					if (parser != null)
+						estimate(parser, gcode, commands);
+				}
+
+				lineNumber++;
+				if (lineNumber % PROGRESS_INTERVAL == 0)
+					progress(lineNumber, lineCount);
+			}
+			if (estimator != null)
+				estimator.finish();
+		} finally {
+			synchronized(this) {
+				finished = true;
+				notifyAll();
+			}
+		}
+		if (listener != null)
+			listener.preflightProgress(lineNumber, lineCount);
+	}
+
+	private void progress(int lines, int lineCount) {
+		synchronized(this) {
+			linesDone = lines;
+			notifyAll();
+		}
+		if (listener != null)
+			listener.preflightProgress(lines, lineCount);
+	}
+
+	private void estimate(GCodeParser parser, GCodeCommand gcode, Queue<DriverCommand> commands) {
+		// TODO: Hooks for plugins to add estimated time?
+		parser.parse(gcode, commands);
+		for (DriverCommand command : commands) {
+			try {
+				command.run(estimator);
+			} catch (RetryException r) {
+				// Ignore.
+			} catch (StopException e) {
+				// TODO: Should we stop the estimator when we get a stop???
+			}
+		}
+		commands.clear();
+	}
+
+	private void addMessage(String message, int lineNumber, Level level) {
+		synchronized(messages) {
+			messages.put(message, lineNumber);
+		}
+		Base.logger.log(level, message);
+	}
+
+	/**
+	 * Look for problems in a line.
+	 * @return false if there's no point checking any more lines
+	 */
+	private boolean check(GCodeCommand gcode, String line, int lineNumber, int nToolheads, Point5d maxRates) {
+		String message;
+		String cmd = gcode.getCommand();
+		int space = cmd.indexOf(' ');
+		String mainCode = space < 0 ? cmd : cmd.substring(0, space);
+
+		if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
+		{
+			addMessage("ReplicatorG doesn't recognize GCode '" + line +"'", lineNumber, Level.SEVERE);
+		}
+
+		// Check for homing in the wrong direction
+		if(!homingDirectionIsSafe(gcode))
+		{
+			addMessage("Homing in the wrong direction for selected machine: '" + line +"'", lineNumber, Level.SEVERE);
+		}
+
+		// we're going to check for the correct number of toolheads in each command
+		// the list of exceptions keeps growing, do we really need to do this check?
+		// maybe we should just specify the things to check, rather than the reverse
+		if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
+												   && gcode.getCodeValue('M') != 106
+												   && gcode.getCodeValue('M') != 107)
+		{
+			message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
+			synchronized(messages) {
+				messages.put(message, lineNumber);
+			}
+			addMessage("Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.",
+					lineNumber, Level.SEVERE);
+			return false; //TRICKY: see footnote [1]
+		}
+		if(gcode.hasCode('F'))
+		{
+			double fVal = gcode.getCodeValue('F');
+			if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
+				(gcode.hasCode('Y') && fVal > maxRates.y()) ||
+// we're going to ignore this for now, since most of the time the z isn't actually moving
+//				(gcLine.hasCode('Z') && fVal > maxRates.z()) ||
+				(gcode.hasCode('A') && fVal > maxRates.a()) ||
+				(gcode.hasCode('B') && fVal > maxRates.b()))
+			{
+				addMessage("You're moving too fast! " + line +
+						" turns at least one axis faster than it's max speed.", lineNumber, Level.WARNING);
+			}
+			//BUGFIX! Can cause problems when used on reprap machines!
+			if (fVal < 0)
+			{
+				addMessage("Negative feedrate detected! '" + line +
+						"' causes crashes in the reprap driver.", lineNumber, Level.SEVERE);
+			}
+		}
+		return true;
+	}
+	//footnote [1]:
+	/// Because this error can be thrown thousands of times in a file, and is generally a 'all wrong, or all right' error,
+	// we stop checking on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to
+	// thousands of exactly the same error. The estimate carries on.
+
+	private boolean homingDirectionIsSafe(GCodeCommand gcode) {
+		Endstops xstop, ystop, zstop;
+
+		// If it doesn't have the code, ignore it
+		xstop = ystop = zstop = Endstops.BOTH;
+
+		if(gcode.hasCode('X'))
+			xstop = model.getEndstops(AxisId.X);
+		if(gcode.hasCode('Y'))
+			ystop = model.getEndstops(AxisId.Y);
+		if(gcode.hasCode('Z'))
+			zstop = model.getEndstops(AxisId.Z);
+
+		if(gcode.getCodeValue('G') == 161)
+		{
+			if((xstop != Endstops.MIN) && (xstop != Endstops.BOTH))
+				return false;
+			if((ystop != Endstops.MIN) && (ystop != Endstops.BOTH))
+				return false;
+			if((zstop != Endstops.MIN) && (zstop != Endstops.BOTH))
+				return false;
+		}
+		else if(gcode.getCodeValue('G') == 162)
+		{
+			if((xstop != Endstops.MAX) && (xstop != Endstops.BOTH))
+				return false;
+			if((ystop != Endstops.MAX) && (ystop != Endstops.BOTH))
+				return false;
+			if((zstop != Endstops.MAX) && (zstop != Endstops.BOTH))
+				return false;
+		}
+		return true;
+	}
+}
@@ -26,12 +26,12 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.TreeMap;
+import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import javax.swing.BorderFactory;
@@ -48,24 +48,17 @@ import net.miginfocom.swing.MigLayout;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
-import replicatorg.app.gcode.GCodeCommand;
-import replicatorg.app.gcode.GCodeEnumeration;
-import replicatorg.app.gcode.GCodeParser;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
-import replicatorg.drivers.RetryException;
+import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.SimulationDriver;
-import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.MachineState.State;
-import replicatorg.machine.model.AxisId;
-import replicatorg.machine.model.Endstops;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
-import replicatorg.util.Point5d;
 
 /**
  * The MachineController object controls a single machine. It contains a single
@@ -185,14 +178,19 @@ public class Machine implements MachineInterface {
 	
 	/**
 	 * Begin running a job.
+	 *
+	 * The safety checks and the build time estimate are done in one pass
+	 * over the source, on a thread of their own. The build is held back
+	 * until the first few thousand lines (build.preflight_lines; 0 to check
+	 * the whole file first) have been checked, and then started while the
+	 * rest are checked. If a problem turns up further on, the build is
+	 * paused while we ask whether to carry on.
 	 */
 	@Override
 	public void buildDirect(final GCodeSource source) {
 
 		Runnable prepareAndStart = new Runnable(){
 
-			private Map<String, Integer> messages = new TreeMap<String, Integer>();
-			private boolean cancelled = false;
 			@Override
 			public void run() {
 
@@ -205,126 +203,208 @@ public class Machine implements MachineInterface {
 				
 				Base.logger.info("Estimating build time and scanning code for errors...");
 				
-				if(Base.preferences.getBoolean("build.safetyChecks", true))
-				{
-					emitStateChange(new MachineState(State.BUILDING), "Running safety checks...");
-					
-					safetyCheck(source, messages);
-
-					if(! messages.isEmpty())
-					{
-						System.out.println("errors");
-						final JPanel displayPanel = new JPanel(new MigLayout("fill"));
-						final JDialog dialog = new JDialog(Base.getEditor(), "GCode warning", true);
-//						
-//						displayPanel.add(new JLabel("<html>The pre-run check has found some potentially problematic GCode.<br/>" +
-//								"This may be a result of trying to run code on a machine other than the one it's<br/>" +
-//								"intended for (i.e. running dual headed GCode on a single headed machine).</html>"), "growx, wrap");
-						JTextArea testLabel = new JTextArea();
-						testLabel.setLineWrap(true);
-						testLabel.setWrapStyleWord(true);
-						testLabel.setEditable(false);
-						testLabel.setOpaque(false);
-						testLabel.setBorder(BorderFactory.createEmptyBorder());
-						testLabel.setFont(new JLabel().getFont());
-						testLabel.setText("The pre-run check has found some potentially problematic GCode. This may be a result of trying" +
-								" to run code on a machine other than the one it's intended for (i.e. running dual headed GCode on a " +
-								"single headed machine).\n\nClick on a message to see the last place it occurred.");
-						displayPanel.add(testLabel, "growx, wrap");
-						
-						final JPanel messagePanel = new JPanel(new MigLayout("fill, ins 0"));
-						
-						List<String> displayMessages = new ArrayList<String>(messages.keySet());
-						if(displayMessages.size() > 10)
-						{
-							String moreMessage = "And " + (displayMessages.size()-10) + " more...";
-							displayMessages = displayMessages.subList(0, 10);
-							displayMessages.add(moreMessage);
+				boolean checking = Base.preferences.getBoolean("build.safetyChecks", true);
+				int headLines = Base.preferences.getInt("build.preflight_lines", 10000);
+				if (headLines <= 0)
+					headLines = Integer.MAX_VALUE;
+
+				// One copy of the machine for the checks and the estimate
+				MachineModel model = estimatorModel();
+				final BuildPreflight preflight = new BuildPreflight(source, model,
+						checking, createEstimator(model));
+				final AtomicBoolean started = new AtomicBoolean(false);
+				// What the user has already said to go ahead with
+				Set<String> confirmed = new HashSet<String>();
+				preflight.setProgressListener(new BuildPreflight.ProgressListener() {
+					boolean sawBuilding = false;
+					public void preflightProgress(int linesDone, int lineCount) {
+						if (!started.get()) {
+							int percent = lineCount > 0 ? (int)(100L * linesDone / lineCount) : 100;
+							emitStateChange(new MachineState(State.BUILDING), 
+									"Running safety checks... " + percent + "%");
+							return;
 						}
-						final JList messageList = new JList(displayMessages.toArray());
-						
-						messageList.addMouseListener(new MouseAdapter(){
-							@Override
-							public void mouseClicked(MouseEvent arg0) {
-								if(arg0.getClickCount() == 1)
-									highlightLine(messageList.getSelectedValue());
-							}
-						});
-						/// do initial highlight and selection of default item (the 0th)
-						messageList.setSelectedIndex(0);
-						highlightLine(displayMessages.get(0));
-						
-						messageList.addKeyListener(new KeyAdapter(){
-							@Override
-							public void keyPressed(KeyEvent arg0) {
-								if(arg0.getKeyCode() == KeyEvent.VK_ENTER)
-								{
-									highlightLine(messageList.getSelectedValue());
-								} else if(arg0.getKeyCode() == KeyEvent.VK_UP) {
-									messageList.setSelectedIndex(Math.max(messageList.getSelectedIndex(), 0));
-								} else if(arg0.getKeyCode() == KeyEvent.VK_DOWN) {
-									messageList.setSelectedIndex(Math.min(messageList.getSelectedIndex(), messageList.getModel().getSize()));
-								}
-							}
-						});
-						
-						messagePanel.add(messageList, "growx, growy");
-						displayPanel.add(new JScrollPane(messagePanel), "growx, growy, wrap");
-						
-						JButton proceedButton = new JButton("Proceed anyway");
-						proceedButton.addActionListener(new ActionListener(){
-							@Override
-							public void actionPerformed(ActionEvent arg0) {
-								dialog.dispose();
-							}
-						});
-						displayPanel.add(proceedButton, "align right, split");
-	
-						JButton cancelButton = new JButton("Cancel build");
-						cancelButton.addActionListener(new ActionListener(){
-							@Override
-							public void actionPerformed(ActionEvent arg0) {
-								cancelled = true;
-								// TRICKY:
-								// see machine thread for a full explanation of this.
-								// basically, we need to get mainwindow to forget it was printing
-								boolean connected = getMachineState().canPrint();
-								emitStateChange(new MachineState(State.ERROR), "Print cancelled");
-								emitStateChange(new MachineState(State.NOT_ATTACHED), "Print cancelled");
-								if(connected)
-									emitStateChange(new MachineState(State.READY), "Print cancelled");
-								dialog.dispose();
+						// No point going on once the build is over.
+						if (getMachineState().isBuilding())
+							sawBuilding = true;
+						else if (sawBuilding)
+							preflight.cancel();
+					}
+				});
+
+				emitStateChange(new MachineState(State.BUILDING), 
+						checking ? "Running safety checks..." : "Estimating time to completion...");
+				preflight.start();
+
+				try {
+					if (checking) {
+						preflight.awaitLines(headLines);
+						if (preflight.hasMessages()) {
+							// Let the user see everything before deciding.
+							preflight.awaitFinished();
+							Map<String, Integer> messages = preflight.getMessages();
+							if (!confirmMessages(messages, false)) {
+								preflight.cancel();
+								return;
 							}
-						});
-						displayPanel.add(cancelButton, "align right, wrap");
-						
-						dialog.add(displayPanel);
-						dialog.pack();
-						dialog.setVisible(true);
+							confirmed.addAll(messages.keySet());
+						}
 					}
+				} catch (InterruptedException e) {
+					preflight.cancel();
+					return;
 				}
 
-				if(!cancelled)
-				{
-					// estimate build time.
-					emitStateChange(new MachineState(State.BUILDING), "Estimating time to completion...");
-					estimate(source);
-					
-					// do that build!
-					Base.logger.info("Beginning build.");
-	
-					machineThread.scheduleRequest(new MachineCommand(RequestType.BUILD_DIRECT, source, null));
+				// do that build!
+				Base.logger.info("Beginning build.");
+				started.set(true);
+				machineThread.scheduleRequest(new MachineCommand(RequestType.BUILD_DIRECT, source, null));
+
+				try {
+					if (!preflight.awaitFinished())
+						return;
+				} catch (InterruptedException e) {
+					preflight.cancel();
+					return;
+				}
+				reportEstimate(preflight.getEstimator());
+
+				// Only ask about problems in the part checked after the build started.
+				Map<String, Integer> messages = preflight.getMessages();
+				messages.keySet().removeAll(confirmed);
+				if (checking && !messages.isEmpty() && !preflight.isCancelled()
+						&& getMachineState().isBuilding()) {
+					// If the user has paused the build, leave it to them to carry on.
+					boolean pausing = !getMachineState().isPaused();
+					if (pausing) {
+						pause();
+						// Wait for the machine thread to pause, in case the build
+						// finishes first; then there's nothing to ask.
+						try {
+							if (!machineThread.awaitPause())
+								return;
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (!confirmMessages(messages, true))
+						stopAll();
+					else if (pausing)
+						unpause();
 				}
-			}
-			
-			private void highlightLine(Object atWhichLine)
-			{
-				Base.getEditor().highlightLine(messages.get(atWhichLine));
 			}
 		};
 		Executors.newSingleThreadExecutor().execute(prepareAndStart);
 	}
 
+	/**
+	 * Show the user the problems the safety checks found, and ask whether
+	 * to go ahead anyway.
+	 * @param building true if the build is already under way (and paused)
+	 * @return true to go ahead with the build
+	 */
+	private boolean confirmMessages(final Map<String, Integer> messages, final boolean building) {
+		final boolean[] cancelled = { false };
+
+		final JPanel displayPanel = new JPanel(new MigLayout("fill"));
+		final JDialog dialog = new JDialog(Base.getEditor(), "GCode warning", true);
+//		
+//		displayPanel.add(new JLabel("<html>The pre-run check has found some potentially problematic GCode.<br/>" +
+//				"This may be a result of trying to run code on a machine other than the one it's<br/>" +
+//				"intended for (i.e. running dual headed GCode on a single headed machine).</html>"), "growx, wrap");
+		JTextArea testLabel = new JTextArea();
+		testLabel.setLineWrap(true);
+		testLabel.setWrapStyleWord(true);
+		testLabel.setEditable(false);
+		testLabel.setOpaque(false);
+		testLabel.setBorder(BorderFactory.createEmptyBorder());
+		testLabel.setFont(new JLabel().getFont());
+		testLabel.setText((building ? "The build has been paused. " : "") +
+				"The pre-run check has found some potentially problematic GCode. This may be a result of trying" +
+				" to run code on a machine other than the one it's intended for (i.e. running dual headed GCode on a " +
+				"single headed machine).\n\nClick on a message to see the last place it occurred.");
+		displayPanel.add(testLabel, "growx, wrap");
+		
+		final JPanel messagePanel = new JPanel(new MigLayout("fill, ins 0"));
+		
+		List<String> displayMessages = new ArrayList<String>(messages.keySet());
+		if(displayMessages.size() > 10)
+		{
+			String moreMessage = "And " + (displayMessages.size()-10) + " more...";
+			displayMessages = displayMessages.subList(0, 10);
+			displayMessages.add(moreMessage);
+		}
+		final JList messageList = new JList(displayMessages.toArray());
+		
+		messageList.addMouseListener(new MouseAdapter(){
+			@Override
+			public void mouseClicked(MouseEvent arg0) {
+				if(arg0.getClickCount() == 1)
+					highlightLine(messages, messageList.getSelectedValue());
+			}
+		});
+		/// do initial highlight and selection of default item (the 0th)
+		messageList.setSelectedIndex(0);
+		highlightLine(messages, displayMessages.get(0));
+		
+		messageList.addKeyListener(new KeyAdapter(){
+			@Override
+			public void keyPressed(KeyEvent arg0) {
+				if(arg0.getKeyCode() == KeyEvent.VK_ENTER)
+				{
+					highlightLine(messages, messageList.getSelectedValue());
+				} else if(arg0.getKeyCode() == KeyEvent.VK_UP) {
+					messageList.setSelectedIndex(Math.max(messageList.getSelectedIndex(), 0));
+				} else if(arg0.getKeyCode() == KeyEvent.VK_DOWN) {
+					messageList.setSelectedIndex(Math.min(messageList.getSelectedIndex(), messageList.getModel().getSize()));
+				}
+			}
+		});
+		
+		messagePanel.add(messageList, "growx, growy");
+		displayPanel.add(new JScrollPane(messagePanel), "growx, growy, wrap");
+		
+		JButton proceedButton = new JButton(building ? "Continue build" : "Proceed anyway");
+		proceedButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				dialog.dispose();
+			}
+		});
+		displayPanel.add(proceedButton, "align right, split");
+
+		JButton cancelButton = new JButton("Cancel build");
+		cancelButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				cancelled[0] = true;
+				if (!building) {
+					// TRICKY:
+					// see machine thread for a full explanation of this.
+					// basically, we need to get mainwindow to forget it was printing
+					boolean connected = getMachineState().canPrint();
+					emitStateChange(new MachineState(State.ERROR), "Print cancelled");
+					emitStateChange(new MachineState(State.NOT_ATTACHED), "Print cancelled");
+					if(connected)
+						emitStateChange(new MachineState(State.READY), "Print cancelled");
+				}
+				dialog.dispose();
+			}
+		});
+		displayPanel.add(cancelButton, "align right, wrap");
+		
+		dialog.add(displayPanel);
+		dialog.pack();
+		dialog.setVisible(true);
+
+		return !cancelled[0];
+	}
+
+	private void highlightLine(Map<String, Integer> messages, Object atWhichLine)
+	{
+		Base.getEditor().highlightLine(messages.get(atWhichLine));
+	}
+
 	public void simulate(GCodeSource source) {
 		// start simulator
 		// if (simulator != null)
@@ -342,172 +422,59 @@ public class Machine implements MachineInterface {
 
 	public void safetyCheck(GCodeSource source, Map<String, Integer> messages)
 	{
-		int nToolheads = machineThread.getModel().getTools().size();
-		Point5d maxRates = machineThread.getModel().getMaximumFeedrates();
-		
-//		BuildVolume buildVolume = new BuildVolume();
-//		buildVolume.setX(machineThread.getModel().getBuildVolume().getX()/2);
-//		buildVolume.setY(machineThread.getModel().getBuildVolume().getY()/2);
-//		buildVolume.setZ(machineThread.getModel().getBuildVolume().getZ()/2);
-		
-		GCodeCommand gcode;
-		String message, cmd, mainCode;
-		Integer lineNumber = 0;
-		
-		for(String line : source)
-		{
-			try
-			{
-				gcode = new GCodeCommand(line);
-			} //Catching every kind of exception is generally bad form,
-			//  It can hide where the problem is happening, and should be avoided
-			//  But I'm doing it anyway.
-			catch(Exception e)
-			{
-				message = "ReplicatorG can't parse '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				continue;
-			}
-
-			cmd = gcode.getCommand();
-			if(cmd.split(" ").length < 1) continue; //to avoid null index problems
-			
-			mainCode = cmd.split(" ")[0];
-
-			if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
-			{
-				message = "ReplicatorG doesn't recognize GCode '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-			
-			// Check for homing in the wrong direction
-			if(!homingDirectionIsSafe(gcode))
-			{
-				message = "Homing in the wrong direction for selected machine: '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-
-			// we're going to check for the correct number of toolheads in each command
-			// the list of exceptions keeps growing, do we really need to do this check?
-			// maybe we should just specify the things to check, rather than the reverse
-			if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
-													   && gcode.getCodeValue('M') != 106
-													   && gcode.getCodeValue('M') != 107)
-			{
-				message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
-				messages.put(message, lineNumber);
-				message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				return; //TRICKY: see footnote [1]
-			}
-			if(gcode.hasCode('F'))
-			{
-				double fVal = gcode.getCodeValue('F');
-				if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
-					(gcode.hasCode('Y') && fVal > maxRates.y()) ||
-// we're going to ignore this for now, since most of the time the z isn't actually moving 
-//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||  
-					(gcode.hasCode('A') && fVal > maxRates.a()) ||
-					(gcode.hasCode('B') && fVal > maxRates.b()))
-				{
-					message = "You're moving too fast! " + line +
-							 " turns at least one axis faster than it's max speed.";
-
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.WARNING, message);
-				}
-				//BUGFIX! Can cause problems when used on reprap machines!
-				if (fVal < 0)
-				{
-					message = "Negative feedrate detected! '" + line +
-							 "' causes crashes in the reprap driver.";
-
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.SEVERE, message);
-				}
-			}
-			
-			lineNumber++;
-		}
-	}
-	//footnote [1]:
-	/// Because this error can be thrown thousands of times in a file, and is generally a 'all wrong, or all right' error,
-	// we shortcut return on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to 
-	// thousands of exactly the same error
-	
-	private boolean homingDirectionIsSafe(GCodeCommand gcode) {
-		Endstops xstop, ystop, zstop;
-		
-		// If it doesn't have the code, ignore it
-		xstop = ystop = zstop = Endstops.BOTH;
-		
-		if(gcode.hasCode('X'))
-			xstop = machineThread.getModel().getEndstops(AxisId.X);
-		if(gcode.hasCode('Y'))
-			ystop = machineThread.getModel().getEndstops(AxisId.Y);
-		if(gcode.hasCode('Z'))
-			zstop = machineThread.getModel().getEndstops(AxisId.Z);
-		
-		if(gcode.getCodeValue('G') == 161)
-		{
-			if((xstop != Endstops.MIN) && (xstop != Endstops.BOTH))
-				return false;
-			if((ystop != Endstops.MIN) && (ystop != Endstops.BOTH))
-				return false;
-			if((zstop != Endstops.MIN) && (zstop != Endstops.BOTH))
-				return false;
-		}
-		else if(gcode.getCodeValue('G') == 162)
-		{
-			if((xstop != Endstops.MAX) && (xstop != Endstops.BOTH))
-				return false;
-			if((ystop != Endstops.MAX) && (ystop != Endstops.BOTH))
-				return false;
-			if((zstop != Endstops.MAX) && (zstop != Endstops.BOTH))
-				return false;
-		}
-		return true;
+		BuildPreflight preflight = new BuildPreflight(source, machineThread.getModel(), true, null);
+		preflight.run();
+		messages.putAll(preflight.getMessages());
 	}
-	
-	// TODO: Spawn a new thread to handle this for us?
+
 	public void estimate(GCodeSource source) {
 		if (source == null) {
 			return;
 		}
 
-		EstimationDriver estimator = new EstimationDriver();
-		// TODO: Is this correct?
-		estimator.setMachine(machineThread.getModel());
-		
-		Queue<DriverCommand> estimatorQueue = new LinkedList<DriverCommand>();
+		MachineModel model = estimatorModel();
+		BuildPreflight preflight = new BuildPreflight(source, model, false, createEstimator(model));
+		preflight.run();
+		reportEstimate(preflight.getEstimator());
+	}
 
-		GCodeParser estimatorParser = new GCodeParser();
-		estimatorParser.init(estimator);
+	// The estimator selects tools as it goes, so it gets a model of its own
+	// rather than changing the tool under the machine's driver. This reads
+	// the machine's XML, so it's done once for each build.
+	private MachineModel estimatorModel() {
+		if (machineNode == null)
+			return machineThread.getModel();
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+		return model;
+	}
 
-		// run each line through the estimator
-		for (String line : source) {
-			// TODO: Hooks for plugins to add estimated time?
-			estimatorParser.parse(line, estimatorQueue);
-			
-			for (DriverCommand command : estimatorQueue) {
-				try {
-					command.run(estimator);
-				} catch (RetryException r) {
-					// Ignore.
-				} catch (StopException e) {
-					// TODO: Should we stop the estimator when we get a stop???
-				}
+	// Build an estimator for this machine, on the given model of it.
+	private EstimationDriver createEstimator(MachineModel model) {
+		EstimationDriver estimator = new EstimationDriver();
+		estimator.setMachine(model);
+
+		// Plan with the machine's own acceleration settings if we can get them,
+		// otherwise with typical ones if we've been asked to.
+		boolean accelerated = false;
+		Driver driver = machineThread.getDriver();
+		if (driver instanceof OnboardParameters && driver.isInitialized()) {
+			try {
+				accelerated = estimator.setAcceleration((OnboardParameters)driver);
+			} catch (RuntimeException e) {
+				Base.logger.log(Level.FINE, "Couldn't read acceleration settings for estimate", e);
 			}
-			estimatorQueue.clear();
 		}
+		if (!accelerated && Base.preferences.getBoolean("build.estimate_acceleration", false)) {
+			estimator.setAcceleration(EstimationDriver.DEFAULT_ACCELERATION,
+					EstimationDriver.DEFAULT_AXIS_ACCELERATION,
+					EstimationDriver.DEFAULT_AXIS_JERK,
+					EstimationDriver.DEFAULT_MINIMUM_SPEED);
+		}
+		return estimator;
+	}
 
+	private void reportEstimate(EstimationDriver estimator) {
 		// TODO: Set simulator up properly.
 		// if (simulator != null) {
 		// simulator.setSimulationBounds(estimator.getBounds());
@@ -520,6 +487,17 @@ public class Machine implements MachineInterface {
 		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
 		Base.logger.info("Estimated build time is: " + 
 					EstimationDriver.getBuildTimeString(estimator.getBuildTime()));
+		if (Base.logger.isLoggable(Level.FINE)) {
+			for (int tool = 0; tool < estimator.getToolCount(); tool++) {
+				if (estimator.getToolTime(tool) > 0)
+					Base.logger.fine("  toolhead " + tool + ": " +
+							EstimationDriver.getBuildTimeString(estimator.getToolTime(tool), true));
+			}
+			for (int layer = 0; layer < estimator.getLayerCount(); layer++) {
+				Base.logger.fine("  layer " + (layer + 1) + " (z=" + estimator.getLayerHeight(layer) + "): " +
+						EstimationDriver.getBuildTimeString(estimator.getLayerTime(layer), true));
+			}
+		}
 	}
 
 	public DriverQueryInterface getDriverQueryInterface() {
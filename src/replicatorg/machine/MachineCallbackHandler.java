@@ -1,101 +1,217 @@
 package replicatorg.machine;
 
-import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import replicatorg.app.Base;
 
 
 /** Thread that handles callbacks for events from the machine controller.
- * TODO: There /has/ to be a better way of doing this.
+ *
+ * Events are handed out as soon as they're scheduled. State changes and tool
+ * status go out in the order they were scheduled. Progress is sent once a
+ * line, which is far more often than anyone can look at it, so only the
+ * latest progress goes out, at most once a frame; any progress that's
+ * waiting goes out ahead of a state change, so nobody sees the state change
+ * before the progress that led up to it.
+ *
+ * Each listener is called on a thread of its own, so one that's slow (or
+ * stuck waiting on the UI) can't hold up the others. A listener that falls
+ * behind skips straight to the latest progress when it catches up.
  * @author mattmets
  *
  */
 public class MachineCallbackHandler extends Thread {
-	
+
+	/// Send progress no more often than this, in ms; about a frame at 30 frames a second
+	static final long PROGRESS_INTERVAL_MILLIS = 33;
+
 	// Send messages to these listeners
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
-
-	// We have to send these kinds of messages.
-	// TODO: Make this abstract.
-	ConcurrentLinkedQueue<MachineStateChangeEvent> machineStateChangeEventQueue;
-	ConcurrentLinkedQueue<MachineProgressEvent> machineProgressEventQueue;
-	ConcurrentLinkedQueue<MachineToolStatusEvent> machineToolStatusEventQueue;
-	
+	private final Map<MachineListener, Delivery> listeners = new HashMap<MachineListener, Delivery>();
+
+	// State changes and tool status, in order
+	private final LinkedList<Object> events = new LinkedList<Object>();
+	// The latest progress not yet sent, if any
+	private MachineProgressEvent progress = null;
+	// When progress can next go out
+	private long nextProgressMillis = 0;
+
 	public MachineCallbackHandler() {
 		super("Machine Callback Handler");
-		
-		machineStateChangeEventQueue = new ConcurrentLinkedQueue<MachineStateChangeEvent>();
-		machineProgressEventQueue = new ConcurrentLinkedQueue<MachineProgressEvent>();
-		machineToolStatusEventQueue = new ConcurrentLinkedQueue<MachineToolStatusEvent>();
 	}
-	
-	private synchronized void sendMessages() {
-		while (!machineStateChangeEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineStateChanged(machineStateChangeEventQueue.peek());
-			}
-			Base.logger.fine("Sending machine state change event: "
-					+ machineStateChangeEventQueue.peek().getState().getState().toString());
-			machineStateChangeEventQueue.remove();
+
+	/**
+	 * Calls one listener, on its own thread, in the order events are sent.
+	 */
+	static class Delivery implements Runnable {
+		final MachineListener listener;
+		final ExecutorService executor;
+		/// Progress waiting to go to this listener; only the latest is kept
+		final AtomicReference<MachineProgressEvent> progress = new AtomicReference<MachineProgressEvent>();
+
+		Delivery(final MachineListener listener) {
+			this.listener = listener;
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Machine Callback: " + listener.getClass().getSimpleName());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		void send(MachineProgressEvent e) {
+			// If progress is already waiting, it hasn't gone out yet, and
+			// will go out as this.
+			if (progress.getAndSet(e) == null)
+				deliver(this);
 		}
-		
-		while (!machineProgressEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineProgress(machineProgressEventQueue.peek());
+
+		void send(final Object e) {
+			// Progress that's waiting has to go out first.
+			final MachineProgressEvent before = progress.getAndSet(null);
+			deliver(new Runnable() {
+				public void run() {
+					if (before != null)
+						listener.machineProgress(before);
+					if (e instanceof MachineStateChangeEvent)
+						listener.machineStateChanged((MachineStateChangeEvent) e);
+					else
+						listener.toolStatusChanged((MachineToolStatusEvent) e);
+				}
+			});
+		}
+
+		private void deliver(Runnable r) {
+			try {
+				executor.execute(r);
+			} catch (RejectedExecutionException e) {
+				// The listener has been removed since we last looked.
 			}
-			machineProgressEventQueue.remove();
 		}
-		
-		while (!machineToolStatusEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.toolStatusChanged(machineToolStatusEventQueue.peek());
+
+		/// Send the progress that's waiting, if it hasn't already gone.
+		public void run() {
+			MachineProgressEvent e = progress.getAndSet(null);
+			if (e != null)
+				listener.machineProgress(e);
+		}
+	}
+
+	private void sendMessages(Object event, MachineProgressEvent progress) {
+		Delivery[] deliveries;
+		synchronized (listeners) {
+			deliveries = listeners.values().toArray(new Delivery[listeners.size()]);
+		}
+		if (progress != null) {
+			for (Delivery d : deliveries)
+				d.send(progress);
+		}
+		if (event != null) {
+			if (event instanceof MachineStateChangeEvent) {
+				Base.logger.fine("Sending machine state change event: "
+						+ ((MachineStateChangeEvent) event).getState().getState().toString());
 			}
-			machineToolStatusEventQueue.remove();
+			for (Delivery d : deliveries)
+				d.send(event);
 		}
 	}
-	
+
 	@Override
 	public void run() {
-		while(true) {
-			// If we have any messages to send out, do so, otherwise wait.
-			try {
-				sendMessages();
-	
-				sleep(100);
-			} catch (InterruptedException e) {
-				// Terminate!
-				Base.logger.fine("taking callback handler down, state change queue: "
-						+ machineStateChangeEventQueue.size());
-				break;
+		try {
+			while (true) {
+				Object event = null;
+				MachineProgressEvent progress = null;
+				synchronized (this) {
+					// Wait for something to send, or for the next frame if
+					// there's progress waiting.
+					while (events.isEmpty()) {
+						if (this.progress == null) {
+							wait();
+						} else {
+							long wait = nextProgressMillis - System.currentTimeMillis();
+							if (wait <= 0)
+								break;
+							wait(wait);
+						}
+					}
+					if (events.isEmpty()) {
+						progress = this.progress;
+						this.progress = null;
+						nextProgressMillis = System.currentTimeMillis() + PROGRESS_INTERVAL_MILLIS;
+					} else {
+						event = events.removeFirst();
+						if (event instanceof MachineProgressEvent) {
+							// Progress that was waiting behind a state change
+							progress = (MachineProgressEvent) event;
+							event = null;
+						}
+					}
+				}
+				sendMessages(event, progress);
 			}
+		} catch (InterruptedException e) {
+			// Terminate!
+			synchronized (this) {
+				Base.logger.fine("taking callback handler down, event queue: " + events.size());
+			}
+		}
+		synchronized (listeners) {
+			for (Delivery d : listeners.values())
+				d.executor.shutdown();
+			listeners.clear();
 		}
 	}
-	
-	synchronized public void addMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.add(listener);
+
+	public void addMachineListener(MachineListener listener) {
+		synchronized (listeners) {
+			if (!listeners.containsKey(listener))
+				listeners.put(listener, new Delivery(listener));
+		}
 		// TODO: Was this important?
 //		listener.machineStateChanged(new MachineStateChangeEvent(this,
 //				getMachineState()));
 	}
 
-	synchronized public void removeMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.remove(listener);
+	public void removeMachineListener(MachineListener listener) {
+		Delivery d;
+		synchronized (listeners) {
+			d = listeners.remove(listener);
+		}
+		if (d != null)
+			d.executor.shutdown();
 	}
 
 	synchronized public void schedule(MachineStateChangeEvent status) {
-		machineStateChangeEventQueue.add(status);
+		if (progress != null) {
+			events.add(progress);
+			progress = null;
+		}
+		events.add(status);
+		notify();
 		Base.logger.fine("Scheduling machine state change event: "
 				+ status.getState().getState().toString());
 	}
 
 	synchronized public void schedule(MachineProgressEvent progress) {
-		machineProgressEventQueue.add(progress);
+		if (this.progress == null)
+			notify();
+		this.progress = progress;
 	}
 
 	synchronized public void schedule(MachineToolStatusEvent e) {
-		machineToolStatusEventQueue.add(e);
+		if (progress != null) {
+			events.add(progress);
+			progress = null;
+		}
+		events.add(e);
+		notify();
 	}
 }
@@ -11,6 +11,7 @@ import replicatorg.app.tools.XML;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SDCardCapture;
@@ -21,7 +22,9 @@ import replicatorg.drivers.commands.AssessState;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.machine.Machine.RequestType;
+import replicatorg.machine.builder.CommandCache;
 import replicatorg.machine.builder.Direct;
+import replicatorg.machine.builder.LayerIndex;
 import replicatorg.machine.builder.MachineBuilder;
 import replicatorg.machine.builder.ToLocalFile;
 import replicatorg.machine.builder.ToRemoteFile;
@@ -30,6 +33,7 @@ import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
 import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.IndexedGCodeSource;
 import replicatorg.model.StringListSource;
 
 /**
@@ -104,6 +108,14 @@ class MachineThread extends Thread {
 
 	// Link of machine commands to run
 	ConcurrentLinkedQueue<MachineCommand> pendingQueue;
+	
+	// Set when there's a request waiting, so a batch of lines can stop early for it.
+	private volatile boolean requestPending = false;
+	
+	// Run up to this many lines of a build per trip round the main loop...
+	private int batchLines;
+	// ...or for this long, in ns, whichever comes first.
+	private long batchNanos;
 		
 	// this is the xml config for this machine.
 	private Node machineNode;
@@ -131,6 +143,8 @@ class MachineThread extends Thread {
 	private SimulationDriver simulator;
 	
 	private MachineState state = new MachineState(MachineState.State.NOT_ATTACHED);
+	// Notified whenever the state is set
+	private final Object stateLock = new Object();
 
 	// ???
 	MachineModel cachedModel = null;
@@ -152,6 +166,8 @@ class MachineThread extends Thread {
 		// load our various objects
 		loadDriver();
 		loadExtraPrefs();
+		batchLines = Math.max(1, Base.preferences.getInt("machinecontroller.batch_lines", 64));
+		batchNanos = Base.preferences.getInt("machinecontroller.batch_ms", 20) * 1000000L;
 		parseName();
 		
 		statusThread = new AssessStatusThread(this);
@@ -205,6 +221,30 @@ class MachineThread extends Thread {
 		return new GCodeSourceCollection(sources);
 	}
 	
+	/**
+	 * The cache of parsed commands for a job, if it's a file and caching
+	 * is turned on.
+	 */
+	private CommandCache commandCache(GCodeSource source) {
+		if (!(source instanceof IndexedGCodeSource)
+				|| !Base.preferences.getBoolean("build.command_cache", false)) {
+			return null;
+		}
+		return new CommandCache(((IndexedGCodeSource)source).getFile(),
+				warmupCommands, cooldownCommands, machineNode, (DriverQueryInterface)driver);
+	}
+	
+	/**
+	 * The layer index for a job, if it's a file and indexing is turned on.
+	 */
+	private LayerIndex layerIndex(GCodeSource source) {
+		if (!(source instanceof IndexedGCodeSource)
+				|| !Base.preferences.getBoolean("build.layer_index", true)) {
+			return null;
+		}
+		return new LayerIndex(((IndexedGCodeSource)source).getFile());
+	}
+	
 	private String readyMessage() {
 		return "Machine " + getMachineName() + " ready";
 	}
@@ -311,7 +351,12 @@ class MachineThread extends Thread {
 				// Pad the job with start and end code
 				GCodeSource combinedSource = buildGCodeJob(command.source);
 				
-				machineBuilder = new Direct(driver, simulator, combinedSource);
+				Direct direct = new Direct(driver, simulator, combinedSource, commandCache(command.source));
+				LayerIndex layers = layerIndex(command.source);
+				if (layers != null && !layers.isComplete()) {
+					direct.recordLayers(layers, warmupCommands.size());
+				}
+				machineBuilder = direct;
 				
 				// TODO: This shouldn't be done here?
 				driver.invalidatePosition();
@@ -520,6 +565,7 @@ class MachineThread extends Thread {
 			}
 			
 			// Check for and run any control requests that might be in the queue.
+			requestPending = false;
 			while (!pendingQueue.isEmpty()) {
 				runCommand(pendingQueue.remove());
 			}
@@ -546,11 +592,10 @@ class MachineThread extends Thread {
 			
 			// If we are building
 			if ( state.isBuilding() && !state.isPaused() ) {
-				//run another instruction on the machine.
-				machineBuilder.runNext();
+				//run some more instructions on the machine.
+				runBatch();
 				
 				// Send out a progress event
-				// TODO: Should these be rate limited?
 				MachineProgressEvent progress = 
 					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
 							estimatedBuildTime,
@@ -570,6 +615,11 @@ class MachineThread extends Thread {
 				}
 			}
 			
+			// Don't leave the driver sitting on anything while there's nothing more for it.
+			if ( state.isConnected() && (!state.isBuilding() || state.isPaused()) ) {
+				flushDriver();
+			}
+			
 			// If there is nothing to do, sleep.
 			if ( !state.isBuilding() ) {
 				try {
@@ -591,8 +641,41 @@ class MachineThread extends Thread {
 		dispose();
 	}
 	
+	/**
+	 * Run lines of the build until the batch is full or its time is up.
+	 * Stops early if a request comes in, so stopping or pausing a build
+	 * takes no longer than it does a line at a time, and if the builder
+	 * didn't get through a line (it's waiting on the machine, the driver
+	 * has an error, or the build is done), so the main loop can see to it.
+	 */
+	private void runBatch() {
+		long deadline = System.nanoTime() + batchNanos;
+		int lines = machineBuilder.getLinesProcessed();
+		for (int n = 0; n < batchLines; n++) {
+			machineBuilder.runNext();
+			// Not finished(): some builders wrap up the build when it's
+			// called, so that's left to the main loop. A builder that's done
+			// doesn't get through any more lines, which stops us below.
+			if (requestPending)
+				break;
+			int processed = machineBuilder.getLinesProcessed();
+			if (processed == lines || System.nanoTime() >= deadline)
+				break;
+			lines = processed;
+		}
+	}
+	
+	private void flushDriver() {
+		try {
+			driver.flush();
+		} catch (RetryException e) {
+			// The machine is full; we'll try again next time round.
+		}
+	}
+	
 	public boolean scheduleRequest(MachineCommand request) {
 		pendingQueue.add(request);
+		requestPending = true;
 		synchronized(this) { notify(); }
 		
 		return true;
@@ -632,6 +715,18 @@ class MachineThread extends Thread {
 	public MachineState getMachineState() {
 		return state.clone();
 	}
+
+	/**
+	 * Wait for a build to pause or to end.
+	 * @return true if the build is paused
+	 */
+	public boolean awaitPause() throws InterruptedException {
+		synchronized (stateLock) {
+			while (state.isBuilding() && !state.isPaused())
+				stateLock.wait(100);
+			return state.isPaused();
+		}
+	}
 	
 	
 	/**
@@ -645,7 +740,16 @@ class MachineThread extends Thread {
 	
 	private void setState(MachineState state, String message) {
 		MachineState oldState = this.state;
-		this.state = state;
+		synchronized (stateLock) {
+			this.state = state;
+			stateLock.notifyAll();
+		}
+		
+		// However the build ended, make sure the builder isn't still working in the background.
+		if (oldState.isBuilding() && !state.isBuilding() && machineBuilder != null) {
+			machineBuilder.cancel();
+		}
+		
 		if (!oldState.equals(state)) {
 			controller.emitStateChange(state, message);
 		}
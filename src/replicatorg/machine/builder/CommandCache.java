@@ -0,0 +1,366 @@
+package replicatorg.machine.builder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.logging.Level;
+
+import javax.vecmath.Point3d;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MultiTool;
+import replicatorg.drivers.commands.CommandCodec;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.util.Point5d;
+
+/**
+ * The commands a job was parsed into, kept in a file next to the job so the
+ * next print of the same job can run them without parsing it again.
+ *
+ * The file is only good for the job it was made from, on the same machine,
+ * with the same settings: it starts with a hash of the job's bytes, the
+ * start and end code, the machine's XML, what the parser reads from the
+ * driver and the parser's own preferences. If any of those change, the hash
+ * won't match and the job is parsed as usual, and cached again.
+ *
+ * After the header the file is a list of records, each starting with an
+ * int: a line's commands (the int is how many), a position the parser asked
+ * the machine for ({@link #SYNC}), the height from a layer tag
+ * ({@link #LAYER}, for the {@link LayerIndex}), or the end ({@link #END}).
+ * The parser's questions are kept so that a replay can check the machine
+ * gives the same answers; if it doesn't, the commands after that point
+ * would be wrong.
+ *
+ * A cache is written to a temporary file and only moved into place once the
+ * whole job has parsed, so a cancelled print never leaves half a cache.
+ */
+public class CommandCache {
+
+	static final int VERSION = 6;
+	private static final byte[] MAGIC = { 'R', 'G', 'C', 'C' };
+
+	/// The record is the machine's position, not a line
+	static final int SYNC = -1;
+	/// There are no more records
+	static final int END = -2;
+	/// The next line is a layer tag; the record is the height it gives
+	static final int LAYER = -3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File job;
+	private final File file;
+	private final List<String> before;
+	private final List<String> after;
+	private final Node machineNode;
+	// What the parser gets from the driver, written out when we're made so
+	// the driver is only asked on the machine thread
+	private final String driverSettings;
+
+	// Hash of everything that goes into the commands; worked out when first needed
+	private byte[] key = null;
+
+	/**
+	 * @param job the GCode file being built
+	 * @param before the start code run ahead of the job
+	 * @param after the end code run after it
+	 * @param machineNode the machine's XML
+	 * @param driver the driver the job will be built on
+	 */
+	public CommandCache(File job, List<String> before, List<String> after, Node machineNode, DriverQueryInterface driver) {
+		this.job = job;
+		this.file = new File(job.getPath() + ".rgcache");
+		this.before = before;
+		this.after = after;
+		this.machineNode = machineNode;
+
+		StringBuffer settings = new StringBuffer();
+		settings.append(driver.getClass().getName()).append('\n');
+		for (int i = 0; i < 7; i++) {
+			Point3d offset = driver.getOffset(i);
+			settings.append(offset).append('\n');
+		}
+		settings.append(driver.getMaximumFeedrates()).append('\n');
+		settings.append(driver.hasAutomatedBuildPlatform()).append('\n');
+		settings.append(driver.isPassthroughDriver()).append('\n');
+		if (driver instanceof MultiTool) {
+			settings.append(((MultiTool) driver).supportsSimultaneousTools()).append('\n');
+			settings.append(((MultiTool) driver).toolsCanBeReindexed()).append('\n');
+		}
+		settings.append(GCodeParser.curveSectionMM).append('\n');
+		settings.append(GCodeParser.arcToleranceMM).append('\n');
+		settings.append(GCodeParser.arcMinSegmentTime).append('\n');
+		driverSettings = settings.toString();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Open the cache for reading, if there is one and it was made from the
+	 * same job and settings.
+	 * @return the cache, or null if it has to be made again
+	 */
+	Reader open() {
+		if (!file.exists())
+			return null;
+		try {
+			byte[] key = getKey();
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() > Integer.MAX_VALUE)
+					return null;
+				// Check the header before mapping anything: a mapping can't be
+				// let go of, and would hold the file until it's collected.
+				byte[] magic = new byte[MAGIC.length];
+				byte[] fileKey = new byte[key.length];
+				ByteBuffer header = ByteBuffer.allocate(magic.length + 4 + fileKey.length);
+				while (header.hasRemaining() && channel.read(header) >= 0)
+					;
+				if (header.hasRemaining())
+					return null;
+				header.flip();
+				header.get(magic);
+				int version = header.getInt();
+				header.get(fileKey);
+				if (!Arrays.equals(magic, MAGIC) || version != VERSION || !Arrays.equals(fileKey, key)) {
+					Base.logger.fine("Command cache " + file + " is out of date");
+					return null;
+				}
+				long start = header.capacity();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, channel.size() - start);
+				return new Reader(buffer);
+			} finally {
+				// The mapping stays good once the file is closed.
+				raf.close();
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not read command cache " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Start writing the cache afresh.
+	 * @return the writer, or null if the cache can't be written
+	 */
+	Writer record() {
+		try {
+			return new Writer(getKey());
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not write command cache " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Throw the cache away, so the job is parsed and cached again next time.
+	 */
+	void discard() {
+		if (file.exists() && !file.delete())
+			Base.logger.fine("Could not delete command cache " + file);
+	}
+
+	private byte[] getKey() throws IOException {
+		if (key != null)
+			return key;
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("No SHA-1: " + e.getMessage());
+		}
+		digest.update(Integer.toString(VERSION).getBytes(UTF8));
+
+		// The job itself, read rather than mapped so it isn't held open
+		RandomAccessFile raf = new RandomAccessFile(job, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 16);
+			while (channel.read(chunk) >= 0) {
+				chunk.flip();
+				digest.update(chunk);
+				chunk.clear();
+			}
+		} finally {
+			raf.close();
+		}
+
+		for (String line : before)
+			digest.update((line + '\n').getBytes(UTF8));
+		digest.update((byte) 0);
+		for (String line : after)
+			digest.update((line + '\n').getBytes(UTF8));
+		digest.update((byte) 0);
+		digestNode(digest, machineNode);
+		digest.update(driverSettings.getBytes(UTF8));
+
+		key = digest.digest();
+		return key;
+	}
+
+	private static void digestNode(MessageDigest digest, Node node) {
+		if (node == null)
+			return;
+		digest.update(('<' + node.getNodeName()).getBytes(UTF8));
+		NamedNodeMap attributes = node.getAttributes();
+		if (attributes != null) {
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Node a = attributes.item(i);
+				digest.update((' ' + a.getNodeName() + '=' + a.getNodeValue()).getBytes(UTF8));
+			}
+		}
+		digest.update((byte) '>');
+		if (node.getNodeValue() != null)
+			digest.update(node.getNodeValue().getBytes(UTF8));
+		NodeList kids = node.getChildNodes();
+		for (int i = 0; i < kids.getLength(); i++)
+			digestNode(digest, kids.item(i));
+		digest.update((byte) '/');
+	}
+
+	/**
+	 * Reads the records back, straight out of the mapped file.
+	 */
+	static class Reader {
+		private final ByteBuffer buffer;
+
+		private Reader(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/// @return how many commands the next line has, or SYNC or END
+		int nextRecord() {
+			return buffer.getInt();
+		}
+
+		DriverCommand readCommand() throws IOException {
+			return CommandCodec.read(buffer);
+		}
+
+		Point5d readPosition() {
+			return CommandCodec.readPoint(buffer);
+		}
+
+		double readLayer() {
+			return buffer.getDouble();
+		}
+	}
+
+	/**
+	 * Writes the records as the job is parsed. If anything goes wrong, or a
+	 * command turns up that we can't write, it quietly gives up and no cache
+	 * is made.
+	 */
+	class Writer {
+		private final File temp;
+		private DataOutputStream out;
+
+		private Writer(byte[] key) throws IOException {
+			temp = new File(file.getPath() + ".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.write(key);
+		}
+
+		/// Write the commands for one line.
+		void line(Queue<DriverCommand> commands) {
+			if (out == null)
+				return;
+			try {
+				out.writeInt(commands.size());
+				for (DriverCommand command : commands) {
+					if (!CommandCodec.write(command, out)) {
+						Base.logger.fine("Not caching commands for " + job + ": can't store "
+								+ command.getClass().getSimpleName());
+						abandon();
+						return;
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/// Write the position the machine gave when the parser asked for it.
+		void sync(Point5d position) {
+			if (out == null)
+				return;
+			try {
+				out.writeInt(SYNC);
+				CommandCodec.writePoint(position, out);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/// Note that the next line is a layer tag.
+		void layer(double z) {
+			if (out == null)
+				return;
+			try {
+				out.writeInt(LAYER);
+				out.writeDouble(z);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/// The whole job has been parsed; put the cache in place.
+		void finish() {
+			if (out == null)
+				return;
+			try {
+				out.writeInt(END);
+				out.close();
+				out = null;
+				file.delete();
+				if (!temp.renameTo(file)) {
+					throw new IOException("Could not rename " + temp + " to " + file);
+				}
+				Base.logger.fine("Cached commands for " + job + " in " + file);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/// Give up; there'll be no cache this time.
+		void abandon() {
+			if (out == null)
+				return;
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			out = null;
+			temp.delete();
+		}
+
+		private void fail(IOException e) {
+			Base.logger.log(Level.WARNING, "Could not write command cache " + file, e);
+			abandon();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package replicatorg.machine.builder;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.SDCardCapture;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+
+/**
+ * Parses GCode and builds the packets for it on a background thread, so an
+ * upload only has to send them. Packets are handed over through a bounded
+ * buffer.
+ *
+ * The commands are run on the driver as usual, but with packet capture on
+ * for our thread, so their packets land in the buffer instead of going out.
+ * Nothing on our thread talks to the machine: queries are answered the way
+ * they are when building to a file, which is all an upload needs.
+ */
+class CompileAhead implements Runnable {
+
+	private final Driver driver;
+	private final SDCardCapture sdcc;
+	private final Iterator<String> lines;
+	private final BlockingQueue<byte[]> buffer;
+	private final GCodeParser parser;
+
+	private Thread thread = null;
+	private volatile boolean cancelled = false;
+	private volatile boolean done = false;
+	private volatile int linesCompiled = 0;
+
+	// Anything the parser or driver threw, to be rethrown on the machine thread
+	private volatile RuntimeException error = null;
+
+	CompileAhead(Driver driver, Iterator<String> lines, int capacity) {
+		this.driver = driver;
+		this.sdcc = (SDCardCapture)driver;
+		this.lines = lines;
+		this.buffer = new ArrayBlockingQueue<byte[]>(capacity);
+
+		parser = new GCodeParser();
+		parser.init((DriverQueryInterface) driver);
+	}
+
+	boolean isStarted() {
+		return thread != null;
+	}
+
+	void start() {
+		thread = new Thread(this, "GCode Compile-Ahead");
+		thread.setDaemon(true);
+		sdcc.beginPacketCapture(thread, buffer);
+		thread.start();
+	}
+
+	/**
+	 * Stop compiling, and let go of the source.
+	 */
+	void cancel() {
+		cancelled = true;
+		if (thread != null)
+			thread.interrupt();
+		buffer.clear();
+	}
+
+	/**
+	 * Fetch the next packet to send.
+	 * @param timeoutMillis how long to wait for the compiler
+	 * @return the packet, or null if there isn't one yet
+	 */
+	byte[] next(long timeoutMillis) {
+		if (error != null)
+			throw error;
+		try {
+			return buffer.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * True once the whole source has been compiled and every packet taken.
+	 */
+	boolean isFinished() {
+		if (error != null)
+			throw error;
+		// done is set after the last packet is queued
+		return done && buffer.isEmpty();
+	}
+
+	int getLinesCompiled() {
+		return linesCompiled;
+	}
+
+	public void run() {
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		try {
+			while (!cancelled && lines.hasNext()) {
+				parser.parse(lines.next(), commands);
+				try {
+					for (DriverCommand command : commands)
+						command.run(driver);
+				} catch (RetryException e) {
+					// Packets are only queued, so the machine can't be full.
+				} catch (StopException e) {
+					// A file can't be paused, so only an optional halt carries on.
+					Base.logger.info("Upload: " + e.getMessage());
+					if (e.getType() != StopException.StopType.OPTIONAL_HALT)
+						break;
+				}
+				commands.clear();
+				linesCompiled++;
+			}
+		} catch (RuntimeException e) {
+			error = e;
+		} finally {
+			sdcc.endPacketCapture();
+			done = true;
+		}
+	}
+}
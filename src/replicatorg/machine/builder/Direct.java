@@ -50,9 +50,29 @@ public class Direct implements MachineBuilder{
 	
 	boolean retry = false;
 	
+	// Set if lines are being parsed on a separate thread, ahead of the machine
+	ParseAhead parseAhead = null;
+	boolean sourceDone = false;
+	
+	// Set if we're noting the machine's state at each layer
+	LayerIndex.Recorder layers = null;
+	
+	// How many parsed lines may be waiting for the machine
+	static final int PARSE_AHEAD_LINES = 512;
+	// How long runNext() waits for the parser before handing control back
+	static final long PARSE_AHEAD_WAIT_MS = 100;
+	
 	State state;
 	
 	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source) {
+		this(driver, simulator, source, null);
+	}
+	
+	/**
+	 * @param cache where the parsed commands for the source are kept between
+	 * prints, or null. Only used when parsing ahead.
+	 */
+	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source, CommandCache cache) {
 		this.driver = driver;
 		this.source = source;
 	
@@ -91,11 +111,33 @@ public class Direct implements MachineBuilder{
 		}
 		
 		simulating = false;
+		
+		if (building && !simulating && Base.preferences.getBoolean("replicatorg.parser.parse_ahead", true)) {
+			// The parser runs on its own thread; it gets started on the first runNext(),
+			// once the machine thread has finished setting up the driver.
+			parseAhead = new ParseAhead((DriverQueryInterface) driver, i, PARSE_AHEAD_LINES, cache);
+		}
 	
 		state = State.RUNNING_GCODE;
 	}
 	
 	
+	/**
+	 * Add to a layer index as the build goes.
+	 * @param firstLine the line of the source that is the job's first line
+	 */
+	public void recordLayers(LayerIndex index, int firstLine) {
+		layers = index.record(firstLine);
+	}
+	
+	// The source has all been run, or the build is over.
+	private void endLayers(boolean wholeJob) {
+		if (layers != null) {
+			layers.close(wholeJob);
+			layers = null;
+		}
+	}
+	
 	@Override
 	public boolean finished() {
 		return (state == State.FINISHED);
@@ -104,7 +146,13 @@ public class Direct implements MachineBuilder{
 	// Run the next command on the driver
 	@Override
 	public void runNext() { 
+		if (parseAhead != null) {
+			runNextParsedAhead();
+			return;
+		}
+		
 		if (!i.hasNext()) {
+			endLayers(true);
 			// TODO: This is clunky.
 			if (driver.isFinished()) {
 				state = State.FINISHED;
@@ -124,6 +172,11 @@ public class Direct implements MachineBuilder{
 		// Read and process next line
 		if (retry == false) {
 			String line = i.next();
+			if (layers != null) {
+				Double z = LayerIndex.layerTag(line);
+				if (z != null)
+					layers.layer(linesProcessed, z, driver);
+			}
 			linesProcessed++;
 
 			// Parse a line for the actual machine
@@ -151,6 +204,74 @@ public class Direct implements MachineBuilder{
 			simulatorQueue.clear();
 		}
 		
+		runDriverQueue();
+	}
+	
+	/**
+	 * Run lines until the given time has passed, or until the build can't go
+	 * any further for now. For targets that never keep us waiting, like a
+	 * file, this saves a trip round the machine thread's loop, and a
+	 * progress event, for every line.
+	 */
+	public void runFor(long millis) {
+		long end = System.currentTimeMillis() + millis;
+		do {
+			runNext();
+		} while (state == State.RUNNING_GCODE && !retry && !driver.hasError()
+				&& System.currentTimeMillis() < end);
+	}
+	
+	// Run the next line when the parser is working ahead of us. The
+	// commands for a line stay in driverQueue until they have all run, so a
+	// RetryException picks up where it left off.
+	private void runNextParsedAhead() {
+		// Check for any driver errors
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting build");
+			return;
+		}
+		
+		if (driverQueue.isEmpty()) {
+			if (sourceDone) {
+				if (driver.isFinished()) {
+					state = State.FINISHED;
+				} else {
+					state = State.WAITING_FOR_MACHINE_FINISH;
+				}
+				return;
+			}
+			
+			if (!parseAhead.isStarted()) {
+				parseAhead.start();
+			}
+			
+			ParseAhead.Batch batch = parseAhead.next(PARSE_AHEAD_WAIT_MS);
+			if (batch == null) {
+				// The parser hasn't caught up; try again next time around.
+				return;
+			}
+			if (batch.isEnd()) {
+				sourceDone = true;
+				endLayers(true);
+				return;
+			}
+			
+			if (layers != null && batch.getLayer() != null) {
+				layers.layer(linesProcessed, batch.getLayer(), driver);
+			}
+			linesProcessed++;
+			driverQueue = batch.getCommands();
+		}
+		
+		runDriverQueue();
+		
+		if (state == State.FINISHED) {
+			parseAhead.cancel();
+		}
+	}
+	
+	// Run whatever is waiting in driverQueue on the machine.
+	private void runDriverQueue() {
 		try {
 			if (building) {
 				// Run the command on the machine.
@@ -196,6 +317,17 @@ public class Direct implements MachineBuilder{
 				state = State.FINISHED;
 				break;
 			}
+			if (state == State.FINISHED) {
+				endLayers(false);
+			}
+		}
+	}
+	
+	@Override
+	public void cancel() {
+		endLayers(false);
+		if (parseAhead != null) {
+			parseAhead.cancel();
 		}
 	}
 	
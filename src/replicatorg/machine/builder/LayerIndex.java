@@ -0,0 +1,377 @@
+package replicatorg.machine.builder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MultiTool;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.IndexedGCodeSource;
+import replicatorg.model.StringListSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Where each layer of a job starts, and what state the machine was in
+ * there, so a failed or stopped build can be picked up again at a layer
+ * instead of from the top.
+ *
+ * The index is made while the job is built, on the machine thread: when a
+ * layer tag ("(&lt;layer&gt; z )") is about to run, everything before it has
+ * run on the driver, so the driver's position, tool, feedrate and the
+ * tools' temperatures, fans and valves are those at the start of the layer.
+ * It's kept next to the job, as &lt;job&gt;.rglayers, one line per layer,
+ * and is written as the build goes, so a build that dies part way still
+ * leaves the layers it got through.
+ *
+ * The index belongs to the job file it was made from, going by its length
+ * and modification time. A later build of the same job only adds the layers
+ * the index doesn't have yet.
+ */
+public class LayerIndex {
+
+	private static final String HEADER = "ReplicatorG layer index 1";
+	private static final String COMPLETE = "complete";
+
+	/**
+	 * The state at the start of one layer.
+	 */
+	public static class Layer {
+		/// Layers are counted from 1, in the order they appear in the job
+		public final int number;
+		/// The line of the job the layer's tag is on, from 0
+		public final int line;
+		/// The height the tag gives, or NaN
+		public final double z;
+		public final Point5d position;
+		public final int tool;
+		public final double feedrate;
+		/// The tools' target temperatures, platform temperatures, fans and valves, by tool index
+		public final double[] temperatures;
+		public final double[] platformTemperatures;
+		public final boolean[] fans;
+		public final boolean[] valves;
+
+		Layer(int number, int line, double z, Point5d position, int tool, double feedrate,
+				double[] temperatures, double[] platformTemperatures, boolean[] fans, boolean[] valves) {
+			this.number = number;
+			this.line = line;
+			this.z = z;
+			this.position = position;
+			this.tool = tool;
+			this.feedrate = feedrate;
+			this.temperatures = temperatures;
+			this.platformTemperatures = platformTemperatures;
+			this.fans = fans;
+			this.valves = valves;
+		}
+
+		/// For choosing from a list
+		public String toString() {
+			if (Double.isNaN(z))
+				return "Layer " + number + " (line " + (line + 1) + ")";
+			return String.format("Layer %d at %.2fmm (line %d)", number, z, line + 1);
+		}
+
+		String write() {
+			StringBuffer sb = new StringBuffer();
+			sb.append(number).append(' ').append(line).append(' ').append(z);
+			for (int i = 0; i < 5; i++)
+				sb.append(' ').append(position.get(i));
+			sb.append(' ').append(tool).append(' ').append(feedrate);
+			sb.append(' ').append(temperatures.length);
+			for (int i = 0; i < temperatures.length; i++) {
+				sb.append(' ').append(temperatures[i]).append(' ').append(platformTemperatures[i]);
+				sb.append(' ').append(fans[i] ? 1 : 0).append(' ').append(valves[i] ? 1 : 0);
+			}
+			return sb.toString();
+		}
+
+		static Layer read(String s) {
+			String[] f = s.trim().split(" ");
+			int n = 0;
+			int number = Integer.parseInt(f[n++]);
+			int line = Integer.parseInt(f[n++]);
+			double z = Double.parseDouble(f[n++]);
+			Point5d position = new Point5d();
+			for (int i = 0; i < 5; i++)
+				position.set(i, Double.parseDouble(f[n++]));
+			int tool = Integer.parseInt(f[n++]);
+			double feedrate = Double.parseDouble(f[n++]);
+			int tools = Integer.parseInt(f[n++]);
+			double[] temperatures = new double[tools];
+			double[] platformTemperatures = new double[tools];
+			boolean[] fans = new boolean[tools];
+			boolean[] valves = new boolean[tools];
+			for (int i = 0; i < tools; i++) {
+				temperatures[i] = Double.parseDouble(f[n++]);
+				platformTemperatures[i] = Double.parseDouble(f[n++]);
+				fans[i] = f[n++].equals("1");
+				valves[i] = f[n++].equals("1");
+			}
+			return new Layer(number, line, z, position, tool, feedrate,
+					temperatures, platformTemperatures, fans, valves);
+		}
+	}
+
+	private final File job;
+	private final File file;
+
+	private List<Layer> layers = null;
+	private boolean complete = false;
+
+	public LayerIndex(File job) {
+		this.job = job;
+		this.file = new File(job.getPath() + ".rglayers");
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the layers indexed so far; empty if there's no index for this job
+	 */
+	public List<Layer> getLayers() {
+		load();
+		return Collections.unmodifiableList(layers);
+	}
+
+	/**
+	 * @return true if the index covers the whole job
+	 */
+	public boolean isComplete() {
+		load();
+		return complete;
+	}
+
+	private String jobLine() {
+		return "job " + job.length() + " " + job.lastModified();
+	}
+
+	private void load() {
+		if (layers != null)
+			return;
+		layers = new ArrayList<Layer>();
+		complete = false;
+		if (!file.exists())
+			return;
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				if (!HEADER.equals(in.readLine()) || !jobLine().equals(in.readLine())) {
+					Base.logger.fine("Layer index " + file + " is for another job");
+					return;
+				}
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.equals(COMPLETE)) {
+						complete = true;
+						break;
+					}
+					layers.add(Layer.read(line));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not read layer index " + file, e);
+			layers.clear();
+		} catch (RuntimeException e) {
+			// Cut short, most likely, by a build that didn't finish; keep what's whole.
+			Base.logger.fine("Layer index " + file + " ends early: " + e);
+		}
+	}
+
+	/**
+	 * Start adding to the index as the job is built.
+	 * @param firstLine the line of the build that is the job's first line,
+	 *     after any start code
+	 */
+	Recorder record(int firstLine) {
+		load();
+		return new Recorder(firstLine);
+	}
+
+	/**
+	 * Notes the state at each layer as the build reaches it. Only called from
+	 * the machine thread.
+	 */
+	class Recorder {
+		private final int firstLine;
+		private int layerCount = 0;
+		private PrintWriter out = null;
+		private boolean failed = false;
+
+		private Recorder(int firstLine) {
+			this.firstLine = firstLine;
+		}
+
+		/**
+		 * The build is about to run a layer tag.
+		 * @param buildLine the tag's line in the build
+		 * @param z the height the tag gives, or NaN
+		 */
+		void layer(int buildLine, double z, Driver driver) {
+			int line = buildLine - firstLine;
+			if (line < 0 || failed)
+				return;
+			layerCount++;
+			// The same job leaves the machine the same way each time, so
+			// only the layers we don't have yet need writing.
+			if (layerCount <= layers.size())
+				return;
+
+			MachineModel machine = driver.getMachine();
+			Vector<ToolModel> tools = machine.getTools();
+			int count = 0;
+			for (ToolModel t : tools)
+				count = Math.max(count, t.getIndex() + 1);
+			double[] temperatures = new double[count];
+			double[] platformTemperatures = new double[count];
+			boolean[] fans = new boolean[count];
+			boolean[] valves = new boolean[count];
+			for (ToolModel t : tools) {
+				int i = t.getIndex();
+				temperatures[i] = t.getTargetTemperature();
+				platformTemperatures[i] = t.getPlatformTargetTemperature();
+				fans[i] = t.isFanEnabled();
+				valves[i] = t.isValveOpen();
+			}
+			Layer layer = new Layer(layerCount, line, z, new Point5d(driver.getCurrentPosition(false)),
+					machine.currentTool().getIndex(), driver.getCurrentFeedrate(),
+					temperatures, platformTemperatures, fans, valves);
+			layers.add(layer);
+
+			try {
+				if (out == null)
+					open();
+				out.println(layer.write());
+				out.flush();
+			} catch (IOException e) {
+				Base.logger.log(Level.WARNING, "Could not write layer index " + file, e);
+				failed = true;
+			}
+		}
+
+		// Write out what we had, rather than add to the end of a file a
+		// build may have left with half a line.
+		private void open() throws IOException {
+			out = new PrintWriter(new FileWriter(file));
+			out.println(HEADER);
+			out.println(jobLine());
+			for (Layer l : layers.subList(0, layerCount - 1))
+				out.println(l.write());
+		}
+
+		/**
+		 * Stop recording.
+		 * @param finished true if the whole job ran, and the index is complete
+		 */
+		void close(boolean finished) {
+			if (finished && !failed && !complete && layerCount > 0) {
+				try {
+					if (out == null)
+						open();
+					out.println(COMPLETE);
+					complete = true;
+				} catch (IOException e) {
+					Base.logger.log(Level.WARNING, "Could not write layer index " + file, e);
+				}
+			}
+			if (out != null)
+				out.close();
+			out = null;
+			failed = true;
+		}
+	}
+
+	/**
+	 * @return the height given by a layer tag, NaN if it hasn't one, or null
+	 *     if the line isn't a layer tag
+	 */
+	static Double layerTag(String line) {
+		if (!line.startsWith("(<layer>"))
+			return null;
+		try {
+			String z = line.substring(8);
+			int end = z.indexOf(')');
+			if (end >= 0)
+				z = z.substring(0, end);
+			return Double.valueOf(z.trim());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * The GCode to build a job from the start of a layer: code to put the
+	 * machine back the way it was at the layer, then the job from the layer
+	 * on. The machine's start code still runs first, to home and heat it.
+	 *
+	 * The rest of the job is read straight from the file from the layer's
+	 * line, so nothing before it is read at all. The job is taken to be in
+	 * millimeters and absolute positioning there, as sliced jobs are.
+	 *
+	 * Numbers are written with a '.' whatever the locale, as the parser
+	 * would read "Z0,300" as Z0.
+	 */
+	public static GCodeSource resumeSource(IndexedGCodeSource job, Layer layer, DriverQueryInterface driver) {
+		boolean simultaneous = driver instanceof MultiTool && ((MultiTool)driver).supportsSimultaneousTools();
+		boolean abp = driver.hasAutomatedBuildPlatform();
+		Point5d p = layer.position;
+
+		Vector<String> code = new Vector<String>();
+		code.add("(**** resuming " + job.getFile().getName() + " at " + layer + " ****)");
+		code.add("G21 (set units to mm)");
+		code.add("G90 (set positioning to absolute)");
+		for (int i = 0; i < layer.temperatures.length; i++) {
+			boolean fan = layer.fans[i] && !abp;
+			if (layer.temperatures[i] <= 0 && layer.platformTemperatures[i] <= 0 && !fan && !layer.valves[i])
+				continue;
+			code.add(selectTool(i, simultaneous));
+			if (layer.temperatures[i] > 0)
+				code.add(String.format(Locale.US, "M104 S%.0f T%d (set extruder temperature)", layer.temperatures[i], i));
+			if (layer.platformTemperatures[i] > 0)
+				code.add(String.format(Locale.US, "M109 S%.0f T%d (set HBP temperature)", layer.platformTemperatures[i], i));
+			if (fan)
+				code.add("M106 T" + i + " (fan on)");
+			if (layer.valves[i])
+				code.add("M126 T" + i + " (valve open)");
+		}
+		for (int i = 0; i < layer.temperatures.length; i++) {
+			if (layer.temperatures[i] > 0 || layer.platformTemperatures[i] > 0)
+				code.add("M6 T" + i + " (wait for toolhead and HBP to reach temperature)");
+		}
+		code.add(selectTool(layer.tool, simultaneous));
+		code.add(String.format(Locale.US, "G92 A%.5f B%.5f (restore extruder positions)", p.a(), p.b()));
+		// Go to the height the last layer finished at before moving across;
+		// nothing printed so far stands above it.
+		code.add(String.format(Locale.US, "G1 Z%.3f F%.1f", p.z(), layer.feedrate));
+		code.add(String.format(Locale.US, "G1 X%.3f Y%.3f Z%.3f F%.1f", p.x(), p.y(), p.z(), layer.feedrate));
+		code.add("(**** end of resume code ****)");
+
+		Vector<GCodeSource> sources = new Vector<GCodeSource>();
+		sources.add(new StringListSource(code));
+		sources.add(job.linesFrom(layer.line));
+		return new GCodeSourceCollection(sources);
+	}
+
+	private static String selectTool(int tool, boolean simultaneous) {
+		return simultaneous ? "M108 T" + tool + " (select tool)" : "T" + tool;
+	}
+}
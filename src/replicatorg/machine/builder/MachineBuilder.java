@@ -17,6 +17,9 @@ public interface MachineBuilder {
 	// Run the next command on the machine, if possible.
 	public void runNext();
 	
+	// Abandon the build; stop any work the builder is doing in the background.
+	public void cancel();
+	
 	/**
 	 * True if this builder is managing a build on a live machine (i.e., not a file or buffer)
 	 * @return
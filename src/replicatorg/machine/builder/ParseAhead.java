@@ -0,0 +1,392 @@
+package replicatorg.machine.builder;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MultiTool;
+import replicatorg.drivers.Version;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.GCodePassthrough;
+import replicatorg.drivers.commands.HomeAxes;
+import replicatorg.drivers.commands.Initialize;
+import replicatorg.drivers.commands.InvalidatePosition;
+import replicatorg.drivers.commands.QueueArc;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.RecallHomePositions;
+import replicatorg.drivers.commands.SetAxisOffset;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Parses GCode into DriverCommands on a background thread, so the machine
+ * thread only has to run them and never waits on the parser between lines.
+ * Parsed lines are handed over through a bounded buffer.
+ *
+ * The parser asks the driver where the machine is, but the driver only knows
+ * where it was after the last command it ran, which may be many lines behind
+ * us. So the parser is given a stand-in for the driver that tracks the
+ * position the parsed commands will leave the machine in. When a command
+ * leaves the position unknown (homing, passthrough, ...) or changes the
+ * offsets the parser reads, we stop and wait for the machine thread to
+ * catch up, and ask it for the real position. All talking to the machine
+ * stays on the machine thread.
+ *
+ * This assumes that queuing a point leaves the driver at that point, which is
+ * what all of our drivers record, give or take moves too small to step.
+ *
+ * Given a {@link CommandCache}, the commands are read from the cache instead
+ * of parsed when it's up to date, and written to it as they're parsed when
+ * it isn't. When replaying, we still stop where the parser stopped to ask
+ * the machine where it is, and check the answer is the one the parser got.
+ * If it isn't, the rest of the cache can't be trusted: the parser is run
+ * over the lines already replayed (without sending them again), fed the
+ * answers the machine gave, and carries on from there.
+ */
+class ParseAhead implements Runnable {
+
+	/**
+	 * The commands for one line of GCode, or a marker telling the machine
+	 * thread that the end of the source was reached, or that the parser is
+	 * waiting for it to catch up.
+	 */
+	static class Batch {
+		private final Queue<DriverCommand> commands;
+		private final boolean end;
+		// The height given by the line's layer tag, if it is one
+		private Double layer = null;
+
+		// Set on a sync marker; released once the machine thread has answered it
+		private final CountDownLatch sync;
+		private Point5d position;
+
+		// Anything the parser threw, to be rethrown on the machine thread
+		private RuntimeException error;
+
+		private Batch(Queue<DriverCommand> commands, boolean end, CountDownLatch sync) {
+			this.commands = commands;
+			this.end = end;
+			this.sync = sync;
+		}
+
+		boolean isEnd() {
+			return end;
+		}
+
+		Queue<DriverCommand> getCommands() {
+			if (error != null)
+				throw error;
+			return commands;
+		}
+
+		/// @return the height given by the line's layer tag (maybe NaN), or null if it isn't one
+		Double getLayer() {
+			return layer;
+		}
+	}
+
+	// Thrown through the parser to unwind it when we're cancelled mid-line
+	private static class Cancelled extends RuntimeException {
+		private static final long serialVersionUID = 4203356714957651380L;
+	}
+
+	private final DriverQueryInterface driver;
+	private final Iterator<String> lines;
+	private final BlockingQueue<Batch> buffer;
+	private final GCodeParser parser;
+	private final CommandCache cache;
+
+	// Set while writing the cache
+	private CommandCache.Writer recording = null;
+	// When catching the parser up after a replay stopped: how many lines were
+	// already sent, and what the machine said each time the parser asked
+	private int skipLines = 0;
+	private final LinkedList<Point5d> answers = new LinkedList<Point5d>();
+
+	private Thread thread = null;
+	private volatile boolean cancelled = false;
+
+	// Where the machine will be once everything parsed so far has run; null if we can't know
+	private Point5d position = null;
+
+	ParseAhead(DriverQueryInterface driver, Iterator<String> lines, int capacity) {
+		this(driver, lines, capacity, null);
+	}
+
+	/**
+	 * @param cache where to read the commands from, or keep them; null to just parse
+	 */
+	ParseAhead(DriverQueryInterface driver, Iterator<String> lines, int capacity, CommandCache cache) {
+		this.driver = driver;
+		this.lines = lines;
+		this.cache = cache;
+		this.buffer = new ArrayBlockingQueue<Batch>(capacity);
+
+		parser = new GCodeParser();
+		parser.init(new LookaheadQuery());
+	}
+
+	boolean isStarted() {
+		return thread != null;
+	}
+
+	void start() {
+		thread = new Thread(this, "GCode Parse-Ahead");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop parsing, and let go of the source.
+	 */
+	void cancel() {
+		cancelled = true;
+		if (thread != null)
+			thread.interrupt();
+		buffer.clear();
+	}
+
+	/**
+	 * Fetch the next parsed line. Must be called from the thread that runs
+	 * commands on the driver, since the parser may be waiting on it to
+	 * report the machine's position.
+	 * @param timeoutMillis how long to wait for the parser
+	 * @return the next line's commands, the end marker, or null if the parser hasn't got there yet
+	 */
+	Batch next(long timeoutMillis) {
+		try {
+			while (true) {
+				Batch batch = buffer.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+				if (batch == null || batch.sync == null)
+					return batch;
+
+				// Everything before the marker has run, so the driver is up to date.
+				batch.position = driver.getCurrentPosition(false);
+				batch.sync.countDown();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	public void run() {
+		try {
+			if (cache != null) {
+				CommandCache.Reader reader = cache.open();
+				if (reader == null) {
+					recording = cache.record();
+				} else if (replay(reader)) {
+					buffer.put(new Batch(null, true, null));
+					return;
+				}
+			}
+
+			while (!cancelled && lines.hasNext()) {
+				Batch batch = new Batch(new LinkedList<DriverCommand>(), false, null);
+				boolean mustSync = false;
+				try {
+					String line = lines.next();
+					batch.layer = LayerIndex.layerTag(line);
+					parser.parse(line, batch.commands);
+					mustSync = track(batch.commands);
+				} catch (Cancelled e) {
+					return;
+				} catch (RuntimeException e) {
+					batch.error = e;
+				}
+
+				if (recording != null && batch.error == null) {
+					if (batch.layer != null)
+						recording.layer(batch.layer);
+					recording.line(batch.commands);
+				}
+				if (skipLines > 0 && batch.error == null) {
+					// Already replayed from the cache
+					skipLines--;
+				} else {
+					buffer.put(batch);
+				}
+				if (batch.error != null)
+					return;
+
+				if (mustSync)
+					sync();
+			}
+			if (recording != null && !cancelled)
+				recording.finish();
+			buffer.put(new Batch(null, true, null));
+		} catch (InterruptedException e) {
+			// Cancelled; nobody is waiting on us.
+		} catch (Cancelled e) {
+		} finally {
+			// Does nothing if the cache was finished
+			if (recording != null)
+				recording.abandon();
+		}
+	}
+
+	/**
+	 * Send the commands from the cache, checking the machine's position
+	 * wherever the parser asked for it.
+	 * @return true if the whole job was sent; false if the parser has to take over
+	 */
+	private boolean replay(CommandCache.Reader reader) throws InterruptedException {
+		Base.logger.fine("Running cached commands from " + cache.getFile());
+		int sent = 0;
+		LinkedList<Point5d> seen = new LinkedList<Point5d>();
+		Double layer = null;
+		try {
+			while (true) {
+				if (cancelled)
+					throw new Cancelled();
+				int count = reader.nextRecord();
+				if (count == CommandCache.END)
+					return true;
+				if (count == CommandCache.LAYER) {
+					layer = reader.readLayer();
+				} else if (count == CommandCache.SYNC) {
+					Point5d expected = reader.readPosition();
+					Point5d actual = waitForMachine();
+					seen.add(actual);
+					if (!samePosition(expected, actual)) {
+						Base.logger.info("Machine is at " + actual + ", not " + expected
+								+ " as when the commands were cached; parsing the rest of the job");
+						break;
+					}
+				} else {
+					Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+					for (int i = 0; i < count; i++)
+						commands.add(reader.readCommand());
+					Batch batch = new Batch(commands, false, null);
+					batch.layer = layer;
+					layer = null;
+					buffer.put(batch);
+					sent++;
+				}
+			}
+		} catch (Cancelled e) {
+			throw e;
+		} catch (IOException e) {
+			Base.logger.warning("Command cache " + cache.getFile() + " is damaged (" + e.getMessage()
+					+ "); parsing the rest of the job");
+		} catch (RuntimeException e) {
+			// Ran off the end, or read something that isn't there
+			Base.logger.warning("Command cache " + cache.getFile() + " is damaged (" + e
+					+ "); parsing the rest of the job");
+		}
+		cache.discard();
+		skipLines = sent;
+		answers.addAll(seen);
+		return false;
+	}
+
+	private static boolean samePosition(Point5d a, Point5d b) {
+		for (int i = 0; i < 5; i++)
+			if (Math.abs(a.get(i) - b.get(i)) > 1e-9)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Follow the machine state through a line's commands.
+	 * @return true if we must wait for the machine thread before parsing more
+	 */
+	private boolean track(Queue<DriverCommand> commands) {
+		boolean mustSync = false;
+		for (DriverCommand command : commands) {
+			if (command instanceof QueuePoint) {
+				position = new Point5d(((QueuePoint)command).getDestination());
+			} else if (command instanceof QueueArc) {
+				position = ((QueueArc)command).getDestination();
+			} else if (command instanceof SetCurrentPosition) {
+				position = new Point5d(((SetCurrentPosition)command).getPoint());
+			} else if (command instanceof HomeAxes
+					|| command instanceof RecallHomePositions
+					|| command instanceof InvalidatePosition
+					|| command instanceof Initialize
+					|| command instanceof GCodePassthrough) {
+				position = null;
+			} else if (command instanceof SetAxisOffset) {
+				// The parser holds on to the driver's offsets, and reads them on every move.
+				mustSync = true;
+			}
+		}
+		return mustSync;
+	}
+
+	// Wait for the machine thread to run everything parsed so far, and pick
+	// up the real position from the driver.
+	private void sync() {
+		if (!answers.isEmpty()) {
+			// Catching up after a replay; the machine was asked this already.
+			position = answers.removeFirst();
+			return;
+		}
+		position = waitForMachine();
+		if (recording != null)
+			recording.sync(position);
+	}
+
+	private Point5d waitForMachine() {
+		Batch marker = new Batch(null, false, new CountDownLatch(1));
+		try {
+			buffer.put(marker);
+			marker.sync.await();
+		} catch (InterruptedException e) {
+			throw new Cancelled();
+		}
+		return marker.position;
+	}
+
+	/**
+	 * What the parser sees in place of the driver. The parser checks for
+	 * MultiTool to decide how T codes are handled, so we pass that on too.
+	 */
+	private class LookaheadQuery implements DriverQueryInterface, MultiTool {
+		public Point5d getCurrentPosition(boolean forceUpdate) {
+			if (position == null || forceUpdate)
+				sync();
+			return new Point5d(position);
+		}
+
+		public Point3d getOffset(int i) { return driver.getOffset(i); }
+		public Point5d getMaximumFeedrates() { return driver.getMaximumFeedrates(); }
+		public double getSpindleRPM() { return driver.getSpindleRPM(); }
+		public double getMotorRPM() { return driver.getMotorRPM(); }
+		public int getMotorSpeedPWM() { return driver.getMotorSpeedPWM(); }
+		public double getTemperature(int toolhead) { return driver.getTemperature(toolhead); }
+		public double getTemperatureSetting() { return driver.getTemperatureSetting(); }
+		public boolean hasAutomatedBuildPlatform() { return driver.hasAutomatedBuildPlatform(); }
+		public double getPlatformTemperature(int toolhead) { return driver.getPlatformTemperature(toolhead); }
+		public double getPlatformTemperatureSetting() { return driver.getPlatformTemperatureSetting(); }
+		public boolean isPassthroughDriver() { return driver.isPassthroughDriver(); }
+		public Version getVersion() { return driver.getVersion(); }
+		public Version getPreferredVersion() { return driver.getPreferredVersion(); }
+		public String getConfigValue(String value, String baseline) { return driver.getConfigValue(value, baseline); }
+		public MachineModel getMachine() { return driver.getMachine(); }
+
+		public boolean supportsSimultaneousTools() {
+			return driver instanceof MultiTool && ((MultiTool)driver).supportsSimultaneousTools();
+		}
+		public boolean toolsCanBeReindexed() {
+			return driver instanceof MultiTool && ((MultiTool)driver).toolsCanBeReindexed();
+		}
+		// Renumbering a tool talks to the machine, which we can't do from
+		// here; the parser never asks, but say no rather than fail if it does
+		public boolean setConnectedToolIndex(int index) {
+			return false;
+		}
+	}
+}
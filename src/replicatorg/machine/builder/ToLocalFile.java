@@ -14,9 +14,16 @@ import replicatorg.machine.Machine.JobTarget;
 import replicatorg.model.GCodeSource;
 
 /**
- * Build to a file on the remote machine.
- * This just wraps MachineBuilder.Direct() with some extra code to signal the machine
+ * Build to a file on this computer.
+ * This just wraps MachineBuilder.Direct() with some extra code to signal the driver
  * that it should be saving to a file.
+ *
+ * TODO: This still runs the job through the driver one line at a time, in
+ * slices of the machine thread's loop, with the GCode parsed ahead on one
+ * other thread. A compiler that splits the job at layers and encodes the
+ * pieces in parallel would need the parser's and the driver's state
+ * (position, tool, units, offsets, step excess, any held move) carried
+ * from one piece to the next, so it's a job of its own.
  * @author mattmets
  *
  */
@@ -26,6 +33,11 @@ public class ToLocalFile implements MachineBuilder {
 	
 	SDCardCapture sdcc;
 	public boolean setupFailed = true;
+	// Set once the file is closed, so asking again doesn't close it twice
+	boolean captureEnded = false;
+	
+	// How long each runNext() keeps writing before handing the machine thread back
+	static final long WRITE_SLICE_MS = 50;
 
 	public ToLocalFile(Driver driver, SimulationDriver simulator, GCodeSource source, String remoteName) {
 		if(!(driver instanceof SDCardCapture))
@@ -52,7 +64,10 @@ public class ToLocalFile implements MachineBuilder {
 			return true;
 		if(!directBuilder.finished()) 
 			return false;
+		if(captureEnded)
+			return true;
 		
+		captureEnded = true;
 		try {
 			sdcc.endFileCapture();
 			Base.logger.info("Finished writing to file!");
@@ -66,7 +81,13 @@ public class ToLocalFile implements MachineBuilder {
 	@Override
 	public void runNext() {
 		if(directBuilder != null)
-			directBuilder.runNext();
+			directBuilder.runFor(WRITE_SLICE_MS);
+	}
+
+	@Override
+	public void cancel() {
+		if(directBuilder != null)
+			directBuilder.cancel();
 	}
 
 	@Override
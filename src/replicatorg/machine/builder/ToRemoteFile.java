@@ -4,65 +4,143 @@ import java.util.logging.Level;
 
 import replicatorg.app.Base;
 import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SDCardCapture;
 import replicatorg.drivers.SimulationDriver;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.model.GCodeSource;
 
+/**
+ * Upload a build to the machine's SD card.
+ *
+ * Packets are built on a background thread (see {@link CompileAhead}) and
+ * the machine thread only sends them, so the upload goes as fast as the
+ * link does. The old line-at-a-time path through {@link Direct} is still
+ * there, behind replicatorg.upload.compile_ahead.
+ */
 public class ToRemoteFile implements MachineBuilder {
-	
+
 	Direct directBuilder;
-	
+	CompileAhead compiler;
+
 	SDCardCapture sdcc;
 	public boolean setupFailed = true;
+	// Set once the capture is ended, so asking again doesn't end it twice
+	boolean captureEnded = false;
+
+	// How many built packets may be waiting to be sent
+	static final int COMPILE_AHEAD_PACKETS = 1024;
+	// How long each runNext() keeps sending before handing the machine thread back
+	static final long SEND_SLICE_MS = 50;
+
+	int linesTotal;
+	// A packet the machine had no room for, to send again next time
+	byte[] retryPacket = null;
+
+	long startMillis = 0;
+	long bytesSent = 0;
 
 	public ToRemoteFile(Driver driver, SimulationDriver simulator, GCodeSource source, String remoteName) {
 		if(!(driver instanceof SDCardCapture))
 		{
-			Base.logger.log(Level.WARNING, 
+			Base.logger.log(Level.WARNING,
 					"Build to remote file requires a driver with SDCardCapture!");
 			return;
 		}
-		
+
 		sdcc = (SDCardCapture)driver;
-		
+		linesTotal = source.getLineCount();
+
 		if (SDCardCapture.ResponseCode.processSDResponse(sdcc.beginCapture(remoteName))) {
-			directBuilder = new Direct(driver, simulator, source);
+			if (Base.preferences.getBoolean("replicatorg.upload.compile_ahead", true)) {
+				compiler = new CompileAhead(driver, source.iterator(), COMPILE_AHEAD_PACKETS);
+			} else {
+				directBuilder = new Direct(driver, simulator, source);
+			}
 			setupFailed = false;
 		}
 	}
-	
+
 	@Override
 	public boolean finished() {
 		// if we got an error response, we don't have any work to do, so just return
 		if(setupFailed)
 			return true;
-		if (!directBuilder.finished())
+		if (compiler != null) {
+			if (retryPacket != null || !compiler.isFinished())
+				return false;
+		} else if (!directBuilder.finished()) {
 			return false;
-		
+		}
+		if (captureEnded)
+			return true;
+
+		captureEnded = true;
 		int totalBytes = sdcc.endCapture();
 		Base.logger.info("Captured bytes: " +Integer.toString(totalBytes));
+		if (compiler != null) {
+			long millis = Math.max(1, System.currentTimeMillis() - startMillis);
+			Base.logger.info("Uploaded " + bytesSent + " bytes in " + (millis / 1000.0) + " s ("
+					+ (bytesSent * 1000 / millis) + " bytes/sec)");
+		}
 		return true;
 	}
-	
+
 	@Override
 	public void runNext() {
 		if(directBuilder != null)
 			directBuilder.runNext();
+		if (compiler == null)
+			return;
+
+		if (!compiler.isStarted()) {
+			startMillis = System.currentTimeMillis();
+			compiler.start();
+		}
+
+		long end = System.currentTimeMillis() + SEND_SLICE_MS;
+		try {
+			do {
+				byte[] packet = retryPacket;
+				if (packet == null)
+					packet = compiler.next(SEND_SLICE_MS);
+				if (packet == null)
+					return;
+				retryPacket = packet;
+				sdcc.sendCapturedPacket(packet);
+				retryPacket = null;
+				bytesSent += packet.length;
+			} while (System.currentTimeMillis() < end);
+		} catch (RetryException e) {
+			// The machine's busy writing to the card; try again next time around.
+			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+		}
+	}
+
+	@Override
+	public void cancel() {
+		if(directBuilder != null)
+			directBuilder.cancel();
+		if (compiler != null)
+			compiler.cancel();
 	}
 
 	@Override
 	public int getLinesTotal() {
-		if(directBuilder == null)
-			return -1;
-		return directBuilder.getLinesTotal();
+		if(directBuilder != null)
+			return directBuilder.getLinesTotal();
+		if (compiler != null)
+			return linesTotal;
+		return -1;
 	}
 
 	@Override
 	public int getLinesProcessed() {
-		if(directBuilder == null)
-			return -1;
-		return directBuilder.getLinesProcessed();
+		if(directBuilder != null)
+			return directBuilder.getLinesProcessed();
+		if (compiler != null)
+			return compiler.getLinesCompiled();
+		return -1;
 	}
 
 	@Override
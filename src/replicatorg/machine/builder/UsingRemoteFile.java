@@ -41,6 +41,10 @@ public class UsingRemoteFile implements MachineBuilder{
 	public void runNext() {
 	}
 	
+	@Override
+	public void cancel() {
+	}
+	
 	@Override
 	public int getLinesProcessed() {
 		return 0;
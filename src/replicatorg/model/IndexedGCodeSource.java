@@ -0,0 +1,310 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only GCode source backed by a file, indexed by line.
+ *
+ * The file is scanned once on construction to build an index of line start
+ * offsets; after that, lines are decoded only as they are asked for, either
+ * in order through {@link #iterator()} or at random through
+ * {@link #getLine(int)}. Heap use is one long per line, no matter how large
+ * the file, so multi-hundred-megabyte jobs can be estimated, checked and
+ * built without ever being held in memory as Strings.
+ *
+ * Files up to {@link #SMALL_FILE} bytes are read into memory whole and
+ * closed straight away. Bigger ones are kept open and read a window at a
+ * time, until {@link #close()}. Nothing is memory-mapped: a mapping can't be
+ * let go of when we're done with it, so it would keep the file locked on
+ * Windows, and crash the JVM if the file were cut short under it.
+ *
+ * Line endings are handled the way BufferedReader handles them: "\n", "\r\n"
+ * and a lone "\r" all end a line, and a trailing line ending does not produce
+ * an extra empty line.
+ */
+public class IndexedGCodeSource implements GCodeSource {
+
+	/// Files up to this many bytes are read into memory rather than kept open
+	public static final int SMALL_FILE = 16 << 20;
+
+	// How much of a big file is read at a time
+	private static final int WINDOW = 1 << 18;
+
+	private static final byte LF = '\n';
+	private static final byte CR = '\r';
+
+	private final File file;
+	private final long size;
+
+	// The whole file, if it's small
+	private byte[] bytes;
+	// Otherwise, the file, open until we're closed
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private volatile boolean closed = false;
+
+	// Offset of the first byte of each line; only the first lineCount entries are used
+	private long[] lineStarts;
+	private int lineCount;
+
+	private final Charset charset = Charset.defaultCharset();
+
+	public IndexedGCodeSource(File file) throws IOException {
+		this.file = file;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			size = channel.size();
+			if (size <= SMALL_FILE) {
+				bytes = new byte[(int)size];
+				read(channel, ByteBuffer.wrap(bytes), 0);
+			} else {
+				this.raf = raf;
+				this.channel = channel;
+			}
+			buildIndex();
+		} finally {
+			if (this.raf == null)
+				raf.close();
+		}
+	}
+
+	/**
+	 * Let go of the file. Anything still reading it, through an iterator
+	 * or {@link #getLine(int)}, fails with an IllegalStateException rather
+	 * than seeing the file end early. Closing twice does nothing.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		bytes = null;
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// Nothing more we can do with it
+			}
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	// Fill the buffer from the given offset on.
+	private void read(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new IOException(file + " got shorter while it was being read");
+		}
+	}
+
+	// Scan the whole file once, noting where each line starts.
+	private void buildIndex() throws IOException {
+		lineStarts = new long[(int)Math.min(size / 32 + 16, Integer.MAX_VALUE - 8)];
+		lineCount = 0;
+		if (size == 0)
+			return;
+
+		addLineStart(0);
+		ByteBuffer chunk = bytes != null ? ByteBuffer.wrap(bytes) : ByteBuffer.allocate(WINDOW);
+		boolean afterCR = false;
+		long pos = 0;
+		while (pos < size) {
+			if (bytes == null) {
+				chunk.clear();
+				chunk.limit((int)Math.min(WINDOW, size - pos));
+				read(channel, chunk, pos);
+			}
+			int limit = chunk.limit();
+			for (int i = 0; i < limit; i++, pos++) {
+				byte b = chunk.get(i);
+				// "\r\n" is one line ending; the '\n' will start the next line.
+				if (afterCR && b != LF)
+					addLineStart(pos);
+				afterCR = (b == CR);
+				if (b == LF && pos + 1 < size)
+					addLineStart(pos + 1);
+			}
+		}
+
+		if (lineStarts.length > lineCount + lineCount / 8) {
+			long[] trimmed = new long[lineCount];
+			System.arraycopy(lineStarts, 0, trimmed, 0, lineCount);
+			lineStarts = trimmed;
+		}
+	}
+
+	private void addLineStart(long offset) {
+		if (lineCount == lineStarts.length) {
+			long[] grown = new long[lineStarts.length * 2];
+			System.arraycopy(lineStarts, 0, grown, 0, lineCount);
+			lineStarts = grown;
+		}
+		lineStarts[lineCount++] = offset;
+	}
+
+	/**
+	 * A piece of a big file, for reading its lines in order. Each iterator
+	 * has its own, so they can be used from different threads.
+	 */
+	private static class Window {
+		ByteBuffer buffer = null;
+		long start;
+	}
+
+	/**
+	 * The bytes from one offset up to another, through the window if
+	 * there is one.
+	 */
+	private byte[] read(long from, long to, Window window) {
+		int length = (int)(to - from);
+		byte[] result = new byte[length];
+		byte[] all = bytes;
+		if (all != null) {
+			System.arraycopy(all, (int)from, result, 0, length);
+			return result;
+		}
+		if (channel == null)
+			throw new IllegalStateException(file + " has been closed");
+		try {
+			if (window == null || length > WINDOW) {
+				read(channel, ByteBuffer.wrap(result), from);
+				return result;
+			}
+			ByteBuffer buffer = window.buffer;
+			if (buffer == null || from < window.start || to > window.start + buffer.limit()) {
+				if (buffer == null)
+					buffer = window.buffer = ByteBuffer.allocate(WINDOW);
+				buffer.clear();
+				buffer.limit((int)Math.min(WINDOW, size - from));
+				read(channel, buffer, from);
+				window.start = from;
+			}
+			buffer.position((int)(from - window.start));
+			buffer.get(result);
+			return result;
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't read " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Fetch a single line, without its line ending.
+	 * @param index zero-based line number
+	 */
+	public String getLine(int index) {
+		return getLine(index, null);
+	}
+
+	private String getLine(int index, Window window) {
+		if (closed)
+			throw new IllegalStateException(file + " has been closed");
+		if (index < 0 || index >= lineCount)
+			throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+
+		long start = lineStarts[index];
+		long end = (index + 1 < lineCount) ? lineStarts[index + 1] : size;
+		byte[] line = read(start, end, window);
+
+		// strip the line ending
+		int length = line.length;
+		if (length > 0 && line[length - 1] == LF)
+			length--;
+		if (length > 0 && line[length - 1] == CR)
+			length--;
+
+		boolean ascii = true;
+		for (int i = 0; i < length; i++) {
+			if (line[i] < 0) {
+				ascii = false;
+				break;
+			}
+		}
+
+		if (ascii) {
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++)
+				chars[i] = (char)line[i];
+			return new String(chars);
+		}
+		return charset.decode(ByteBuffer.wrap(line, 0, length)).toString();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * The file from the given line on, read the same way as the whole file.
+	 * Nothing before the line is read.
+	 * @param first zero-based line number of the first line
+	 */
+	public GCodeSource linesFrom(final int first) {
+		if (first < 0 || first > lineCount)
+			throw new IndexOutOfBoundsException("Line " + first + " of " + lineCount);
+		return new GCodeSource() {
+			public Iterator<String> iterator() {
+				return lines(first);
+			}
+			public int getLineCount() {
+				return lineCount - first;
+			}
+			public List<String> asList() {
+				return IndexedGCodeSource.this.asList().subList(first, lineCount);
+			}
+		};
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return lines(0);
+	}
+
+	// The lines from the given one on, read a window at a time
+	private Iterator<String> lines(final int first) {
+		return new Iterator<String>() {
+			int idx = first;
+			final Window window = new Window();
+			public boolean hasNext() {
+				if (closed)
+					throw new IllegalStateException(file + " has been closed");
+				return idx < lineCount;
+			}
+			public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return getLine(idx++, window);
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	@Override
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * Returns a read-only view of the file; lines are decoded as they are read,
+	 * not copied up front.
+	 */
+	@Override
+	public List<String> asList() {
+		return new AbstractList<String>() {
+			public String get(int index) { return getLine(index); }
+			public int size() { return lineCount; }
+		};
+	}
+}
@@ -3,6 +3,8 @@ package replicatorg.plugin.toolpath.skeinforge;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -10,6 +12,7 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,7 +26,11 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodePipeline;
+import replicatorg.app.gcode.InsertionFilter;
 import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.app.gcode.ProgressUpdateFilter;
+import replicatorg.app.gcode.ToolheadSwapFilter;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
@@ -129,8 +136,6 @@ public class SkeinforgePostProcessor {
 	
 	private final SkeinforgeGenerator generator;
 	
-	private MutableGCodeSource source;
-	
 	// options:
 	private MutableGCodeSource startCode = null;
 	private MutableGCodeSource endCode = null;
@@ -159,28 +164,39 @@ public class SkeinforgePostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		File file = generator.output.file;
+		GCodePipeline pipeline = new GCodePipeline();
+
+		// The progress updates are spread over the whole of the finished file
+		int lineCount;
+		try {
+			lineCount = GCodePipeline.countLines(file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't read " + file.getAbsolutePath() + " for post-processing", e);
+			return generator.output;
+		}
 		
 		if( ! dualstruding )
 		{
-			if(prependStart)
-				runPrependStartCode();
-			if(appendEnd)
-				runAppend(endCode);
+			GCodeSource start = prependStart ? modifyStartCode(startCode) : null;
+			GCodeSource end = appendEnd ? endCode : null;
+			if(start != null || end != null)
+			{
+				pipeline.add(new InsertionFilter(start, end));
+				lineCount += (start != null ? start.getLineCount() : 0) + (end != null ? end.getLineCount() : 0);
+			}
 
 			if( !multiHead )
 				toolheadTarget = ToolheadAlias.SINGLE; 
 		
 			if(toolheadTarget != null)
-				runToolheadSwap(toolheadTarget);
+				pipeline.add(new ToolheadSwapFilter(toolheadTarget));
 		}
 		
-		
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addProgressUpdates();
+			pipeline.add(new ProgressUpdateFilter(lineCount, false));
 		}
 		
 		if(prependMetaInfo)
@@ -196,11 +212,15 @@ public class SkeinforgePostProcessor {
 			metaInfo.add("(*  for a "+(multiHead?"Dual headed ":"Single headed ")+machineName+"  *)");
 			metaInfo.add("(*  on "+ curDate + " *)");
 			
-			runPrepend(metaInfo);
+			pipeline.add(new InsertionFilter(metaInfo, null));
 		}
 		
-		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		//Write the modified source back to our file, in one pass
+		try {
+			pipeline.rewrite(file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't post-process " + file.getAbsolutePath(), e);
+		}
 		
 		return generator.output;
 	}
@@ -214,38 +234,33 @@ public class SkeinforgePostProcessor {
 	   
 	
 	/**
-	 * switches all toolhead specific code to the target toolhead
-	 * @param switchTo
-	 */
-	private void runToolheadSwap(ToolheadAlias switchTo)
-	{
-		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
-	}
-	
-	/**
-	 * prepends start code to the file, this may modify some  start code data based on settings.
+	 * prepends start code to the file, this may modify some start code data based on settings.
+	 * @param sourceGCode code to append start to
+	 * @param startGCode code to hack/verify/modify and append to the start of sourceGCode
 	 */
-	private void runPrependStartCode()
+	static public void prependAndModifyStartCode(MutableGCodeSource sourceGCode, MutableGCodeSource startGCode)
 	{
-		prependAndModifyStartCode(source, startCode);
+		sourceGCode.add(0, modifyStartCode(startGCode));
 	}
 
+	private static final Pattern startTemperature = Pattern.compile("^M104\\s+S(\\d+)\\s+T(\\d)\\s+(.*)\\s*$");
+
 	/**
-	 * prepends start code to the file, this may modify some start code data based on settings.
-	 * @param sourceGCode code to append start to
-	 * @param startGCode code to hack/verify/modify and append to the start of sourceGCode
+	 * makes a copy of the start code, modifying some start code data based on settings.
+	 * @param startGCode code to hack/verify/modify
+	 * @return the modified copy, or null if there's no start code
 	 */
-	static public void prependAndModifyStartCode(MutableGCodeSource sourceGCode, MutableGCodeSource startGCode)
+	static public MutableGCodeSource modifyStartCode(GCodeSource startGCode)
 	{
+		if(startGCode == null)
+			return null;
 		MutableGCodeSource newStart = new MutableGCodeSource();
 
 		///modify local copy of start code based on settings
 		int matched = 0;
 		for(String line : startGCode)
 		{
-			Pattern p = Pattern.compile("^M104\\s+S(\\d+)\\s+T(\\d)\\s+(.*)\\s*$");
-			Matcher m = p.matcher(line);
+			Matcher m = startTemperature.matcher(line);
 			if(m.matches() ){
 				int newTemp = Base.preferences.getInt("replicatorg.skeinforge.printOMatic5D.printTemp", 220);
 				Base.logger.finer("new temp" + newTemp);
@@ -262,31 +277,10 @@ public class SkeinforgePostProcessor {
 				
 			}
 		}
-		sourceGCode.add(0, newStart);
 		Base.logger.finer("printTemp replace count : " + matched);
-		
+		return newStart;
 	}
 		
-	/**
-	 * prepends code in the passed file to the source file
-	 * @param newCode
-	 */
-	private void runPrepend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(0, newCode);
-	}
-	
-	/**
-	 * appends code to the file
-	 * @param newCode
-	 */
-	private void runAppend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(newCode);
-	}
-	
 	/**
 	 * indicates that the code will be used as part of a dualstrusion print
 	 * implies a variety of things, supplies a special UI for the ConfigurationDialog
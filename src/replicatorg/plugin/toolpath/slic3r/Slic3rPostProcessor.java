@@ -3,12 +3,15 @@ package replicatorg.plugin.toolpath.slic3r;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultComboBoxModel;
@@ -20,7 +23,11 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodePipeline;
+import replicatorg.app.gcode.InsertionFilter;
 import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.app.gcode.ProgressUpdateFilter;
+import replicatorg.app.gcode.ToolheadSwapFilter;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
@@ -126,8 +133,6 @@ public class Slic3rPostProcessor {
 	
 	private final Slic3rGenerator generator;
 	
-	private MutableGCodeSource source;
-	
 	// options:
 	private MutableGCodeSource startCode = null;
 	private MutableGCodeSource endCode = null;
@@ -156,27 +161,39 @@ public class Slic3rPostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		File file = generator.output.file;
+		GCodePipeline pipeline = new GCodePipeline();
+
+		// The progress updates are spread over the whole of the finished file
+		int lineCount;
+		try {
+			lineCount = GCodePipeline.countLines(file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't read " + file.getAbsolutePath() + " for post-processing", e);
+			return generator.output;
+		}
 		
-		if(!dualstruding)
+		if( ! dualstruding )
 		{
-			if(prependStart)
-				runPrepend(startCode);
-			if(appendEnd)
-				runAppend(endCode);
+			GCodeSource start = prependStart ? startCode : null;
+			GCodeSource end = appendEnd ? endCode : null;
+			if(start != null || end != null)
+			{
+				pipeline.add(new InsertionFilter(start, end));
+				lineCount += (start != null ? start.getLineCount() : 0) + (end != null ? end.getLineCount() : 0);
+			}
 
 			if( !multiHead )
 				toolheadTarget = ToolheadAlias.SINGLE; 
 		
 			if(toolheadTarget != null)
-				runToolheadSwap(toolheadTarget);
+				pipeline.add(new ToolheadSwapFilter(toolheadTarget));
 		}
 		
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addSlic3rProgressUpdates();
+			pipeline.add(new ProgressUpdateFilter(lineCount, true));
 		}
 		
 		if(prependMetaInfo)
@@ -192,15 +209,15 @@ public class Slic3rPostProcessor {
 			metaInfo.add("(*  for a "+(multiHead?"Dual headed ":"Single headed ")+machineName+"  *)");
 			metaInfo.add("(*  on "+ curDate + " *)");
 			
-			runPrepend(metaInfo);
+			pipeline.add(new InsertionFilter(metaInfo, null));
 		}
 		
-		// scans to cool unused head if required
-//		if( multiHead )	
-//			source.coolUnusedToolhead();
-		
-		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		//Write the modified source back to our file, in one pass
+		try {
+			pipeline.rewrite(file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't post-process " + file.getAbsolutePath(), e);
+		}
 		
 		return generator.output;
 	}
@@ -212,36 +229,6 @@ public class Slic3rPostProcessor {
 		return dateFormat.format(date);
 	}
 		   
-	/**
-	 * switches all toolhead specific code to the target toolhead
-	 * @param switchTo
-	 */
-	private void runToolheadSwap(ToolheadAlias switchTo)
-	{
-		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
-	}
-	
-	/**
-	 * prepends code to the file
-	 * @param newCode
-	 */
-	private void runPrepend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(0, newCode);
-	}
-	
-	/**
-	 * appends code to the file
-	 * @param newCode
-	 */
-	private void runAppend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(newCode);
-	}
-	
 	/**
 	 * indicates that the code will be used as part of a dualstrusion print
 	 * implies a variety of things, supplies a special UI for the ConfigurationDialog
@@ -0,0 +1,79 @@
+package replicatorg.drivers.gen3;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import replicatorg.app.tools.IButtonCrc;
+
+/**
+ * Building an S3G packet, the way the drivers build the accelerated move
+ * they send most of: through PacketBuilder, as every driver command does,
+ * and straight through a pooled PacketEncoder. The CRC on its own is timed
+ * over the same 32 byte payload.
+ *
+ * Lives in the driver's package, because PacketBuilder is only open to it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketBenchmark {
+
+	static final int QUEUE_POINT_NEW_EXT = MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode();
+
+	int x = 0;
+	byte[] payload;
+
+	@Setup
+	public void setup() {
+		payload = PacketEncoder.acquire().begin(QUEUE_POINT_NEW_EXT)
+				.add32(1000).add32(-2000).add32(30).add32(-400).add32(0)
+				.add32(1600).add8(0x18).addFloat(12.5f).add16(40 * 64).toPacket();
+	}
+
+	@Benchmark
+	public byte[] builder() {
+		PacketBuilder pb = new PacketBuilder(QUEUE_POINT_NEW_EXT);
+		pb.add32(x++);
+		pb.add32(-2000);
+		pb.add32(30);
+		pb.add32(-400);
+		pb.add32(0);
+		pb.add32(1600);
+		pb.add8(0x18);
+		pb.addFloat(12.5f);
+		pb.add16(40 * 64);
+		return pb.getPacket();
+	}
+
+	@Benchmark
+	public byte encoder() {
+		PacketEncoder encoder = PacketEncoder.acquire().begin(QUEUE_POINT_NEW_EXT);
+		encoder.add32(x++).add32(-2000).add32(30).add32(-400).add32(0)
+				.add32(1600).add8(0x18).addFloat(12.5f).add16(40 * 64);
+		ByteBuffer packet = encoder.finish();
+		byte crc = packet.get(packet.limit() - 1);
+		encoder.release();
+		return crc;
+	}
+
+	@Benchmark
+	public byte crcByByte() {
+		IButtonCrc crc = new IButtonCrc();
+		for (int i = 2; i < payload.length - 1; i++)
+			crc.update(payload[i]);
+		return crc.getCrc();
+	}
+
+	@Benchmark
+	public int crcRun() {
+		return IButtonCrc.update(0, payload, 2, payload.length - 3);
+	}
+}
@@ -0,0 +1,62 @@
+package testing.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.tools.XML;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * What the benchmarks run on: real GCode and models from examples/, and the
+ * machine descriptions from machines/, so the numbers reflect what a build
+ * actually feeds through. Paths are relative to the top of the tree, which is
+ * where "ant bench" runs them from.
+ */
+public class BenchmarkInputs {
+
+	/// Sliced output from the bundled skeinforge profile, about 63K lines
+	public static final String GCODE = "examples/single/penny_bottle_opener.gcode";
+
+	/// A small binary STL
+	public static final String STL = "examples/20mm_Calibration_Box.stl";
+
+	/// The machine most of the driver and model benchmarks are set up for
+	public static final String MACHINE = "The Replicator Dual";
+
+	public static String[] gcodeLines() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(new File(GCODE)));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+		} finally {
+			in.close();
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	public static Node machineNode() {
+		Node node = MachineFactory.getMachineNode(MACHINE);
+		if (node == null)
+			throw new IllegalStateException("No machine called " + MACHINE);
+		return node;
+	}
+
+	public static Node driverNode() {
+		return XML.getChildNodeByName(machineNode(), "driver");
+	}
+
+	public static MachineModel machineModel() {
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode());
+		return model;
+	}
+}
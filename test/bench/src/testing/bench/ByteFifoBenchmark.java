@@ -0,0 +1,52 @@
+package testing.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import replicatorg.app.util.serial.ByteFifo;
+
+/**
+ * Pulling lines of firmware output out of the serial FIFO. The RepRap
+ * drivers ask for a line every time bytes arrive, so a line usually turns up
+ * a piece at a time, with fruitless searches in between.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ByteFifoBenchmark {
+
+	/// A temperature report, about as long as anything Marlin says while printing
+	static final byte[] LINE = "ok T:210.0 /210.0 B:110.0 /110.0 @:64 B@:127\n".getBytes();
+
+	/// How many bytes arrive at a time when the line comes in pieces
+	static final int PIECE = 8;
+
+	ByteFifo fifo;
+
+	@Setup
+	public void setup() {
+		fifo = new ByteFifo();
+	}
+
+	@Benchmark
+	public byte[] wholeLine() {
+		fifo.enqueue(LINE, 0, LINE.length);
+		return fifo.dequeueLine();
+	}
+
+	@Benchmark
+	public void linePiecemeal(Blackhole bh) {
+		for (int i = 0; i < LINE.length; i += PIECE) {
+			fifo.enqueue(LINE, i, Math.min(PIECE, LINE.length - i));
+			bh.consume(fifo.dequeueLine());
+		}
+	}
+}
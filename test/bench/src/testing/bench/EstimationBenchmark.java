@@ -0,0 +1,78 @@
+package testing.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+
+/**
+ * Running parsed commands through the build time estimator, with and
+ * without acceleration planning. The file is parsed up front, so only the
+ * estimator's own work is timed; each operation is one command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EstimationBenchmark {
+
+	@Param({ "false", "true" })
+	boolean accelerated;
+
+	DriverCommand[] commands;
+	int next = 0;
+
+	EstimationDriver estimator;
+
+	@Setup
+	public void setup() throws IOException {
+		estimator = new EstimationDriver();
+		estimator.setMachine(BenchmarkInputs.machineModel());
+		if (accelerated) {
+			estimator.setAcceleration(EstimationDriver.DEFAULT_ACCELERATION,
+					EstimationDriver.DEFAULT_AXIS_ACCELERATION,
+					EstimationDriver.DEFAULT_AXIS_JERK,
+					EstimationDriver.DEFAULT_MINIMUM_SPEED);
+		}
+
+		GCodeParser parser = new GCodeParser();
+		parser.init(estimator);
+		Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+		List<DriverCommand> all = new ArrayList<DriverCommand>();
+		for (String line : BenchmarkInputs.gcodeLines()) {
+			parser.parse(line, queue);
+			all.addAll(queue);
+			queue.clear();
+		}
+		commands = all.toArray(new DriverCommand[all.size()]);
+	}
+
+	@Benchmark
+	public double runCommand() {
+		DriverCommand command = commands[next];
+		if (++next == commands.length)
+			next = 0;
+		try {
+			command.run(estimator);
+		} catch (RetryException e) {
+		} catch (StopException e) {
+		}
+		return estimator.getBuildTime();
+	}
+}
@@ -0,0 +1,73 @@
+package testing.bench;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.commands.DriverCommand;
+
+/**
+ * Reading a line of GCode: tokenizing it into a GCodeCommand, fresh or
+ * reused, and turning it into driver commands. Each operation is one line,
+ * taken in turn from a real sliced file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GCodeBenchmark {
+
+	String[] lines;
+	int next = 0;
+
+	GCodeCommand command;
+	GCodeParser parser;
+	Queue<DriverCommand> commands;
+
+	@Setup
+	public void setup() throws IOException {
+		lines = BenchmarkInputs.gcodeLines();
+		command = new GCodeCommand();
+		EstimationDriver estimator = new EstimationDriver();
+		estimator.setMachine(BenchmarkInputs.machineModel());
+		parser = new GCodeParser();
+		parser.init(estimator);
+		commands = new LinkedList<DriverCommand>();
+	}
+
+	String nextLine() {
+		String line = lines[next];
+		if (++next == lines.length)
+			next = 0;
+		return line;
+	}
+
+	@Benchmark
+	public GCodeCommand newCommand() {
+		return new GCodeCommand(nextLine());
+	}
+
+	@Benchmark
+	public GCodeCommand resetCommand() {
+		return command.reset(nextLine());
+	}
+
+	@Benchmark
+	public void parse(Blackhole bh) {
+		bh.consume(parser.parse(nextLine(), commands));
+		bh.consume(commands.size());
+		commands.clear();
+	}
+}
@@ -0,0 +1,45 @@
+package testing.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Converting a move's target from mm to steps, as the gen3 drivers do for
+ * every move, with and without carrying the rounding error over.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MachineModelBenchmark {
+
+	MachineModel model;
+	Point5d target;
+	Point5d excess;
+
+	@Setup
+	public void setup() {
+		model = BenchmarkInputs.machineModel();
+		target = new Point5d(12.34, -56.78, 0.27, 1.2345, 0);
+		excess = new Point5d();
+	}
+
+	@Benchmark
+	public Point5d mmToSteps() {
+		return model.mmToSteps(target);
+	}
+
+	@Benchmark
+	public Point5d mmToStepsWithExcess() {
+		return model.mmToSteps(target, excess);
+	}
+}
@@ -0,0 +1,67 @@
+package testing.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.MightyBoard;
+import replicatorg.util.Point5d;
+
+/**
+ * Queueing a move on a MightyBoard: working out the distance, feedrate, step
+ * counts and DDA rate, and encoding the accelerated move packet. The driver
+ * is building an .x3g file, so nothing waits on a machine; the packets go to
+ * a scratch file through the same buffered stream a real build to file uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MightyBoardBenchmark {
+
+	MightyBoard driver;
+	File capture;
+	Point5d[] targets;
+	int next = 0;
+
+	@Setup
+	public void setup() throws IOException, RetryException {
+		driver = new MightyBoard();
+		driver.loadXML(BenchmarkInputs.driverNode());
+		driver.setMachine(BenchmarkInputs.machineModel());
+		driver.setBuildToFileVersion(4);
+		capture = File.createTempFile("bench", ".x3g");
+		driver.beginFileCapture(capture.getPath());
+		driver.setCurrentPosition(new Point5d());
+		driver.setFeedrateMM(3000);
+
+		// A zig-zag with extrusion, so no two moves in a row are in line
+		targets = new Point5d[64];
+		for (int i = 0; i < targets.length; i++)
+			targets[i] = new Point5d(10 + (i % 2) * 20, 10 + i * 0.5, 0.3, 0, i * 0.25);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		driver.endFileCapture();
+		capture.delete();
+	}
+
+	@Benchmark
+	public void queuePoint() throws RetryException {
+		driver.queuePoint(targets[next]);
+		if (++next == targets.length) {
+			next = 0;
+			driver.setCurrentPosition(new Point5d());
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package testing.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import org.j3d.loaders.stl.STLFileReader;
+import org.j3d.renderer.java3d.loaders.STLLoader;
+
+import com.sun.j3d.loaders.Scene;
+
+/**
+ * Loading a model the way the model view does: reading the STL file and
+ * building the Java3D scene from its facets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class STLLoaderBenchmark {
+
+	final File file = new File(BenchmarkInputs.STL);
+
+	@Benchmark
+	public Scene createScene() throws IOException {
+		return STLLoader.createScene(new STLFileReader(file));
+	}
+}
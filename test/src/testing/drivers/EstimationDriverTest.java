@@ -0,0 +1,61 @@
+package testing.drivers;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Checks that asking the estimator for its times doesn't change them: the
+ * moves still in the planner are only counted once the job is finished.
+ */
+public class EstimationDriverTest {
+
+	static EstimationDriver estimator(MachineModel machine) throws RetryException {
+		EstimationDriver estimator = new EstimationDriver();
+		estimator.setMachine(machine);
+		estimator.setAcceleration(EstimationDriver.DEFAULT_ACCELERATION,
+				EstimationDriver.DEFAULT_AXIS_ACCELERATION,
+				EstimationDriver.DEFAULT_AXIS_JERK,
+				EstimationDriver.DEFAULT_MINIMUM_SPEED);
+		estimator.setCurrentPosition(new Point5d());
+		estimator.setFeedrateMM(3000);
+		return estimator;
+	}
+
+	@Test
+	public void readingTimesHasNoSideEffects() throws RetryException {
+		MachineModel machine = new MachineModel();
+		machine.addTool(new ToolModel());
+		for (int i = 0; i < 5; i++)
+			machine.getMaximumFeedrates().set(i, 5000);
+		EstimationDriver estimator = estimator(machine);
+
+		// A run of short moves in a line, which only plans fast as a whole
+		for (int i = 1; i <= 100; i++) {
+			estimator.queuePoint(new Point5d(i, 0, 0, 0, 0));
+			if (i == 50) {
+				// Looking part way through mustn't stop the machine there.
+				estimator.getBuildTime();
+				estimator.getLayerTime(0);
+				estimator.getToolTime(0);
+			}
+		}
+		double before = estimator.getBuildTime();
+		Assert.assertEquals(estimator.getBuildTime(), before);
+		estimator.finish();
+		double total = estimator.getBuildTime();
+		Assert.assertTrue(total > before, "finish() didn't count the moves still planned");
+
+		// The same moves without looking
+		EstimationDriver unwatched = estimator(machine);
+		for (int i = 1; i <= 100; i++)
+			unwatched.queuePoint(new Point5d(i, 0, 0, 0, 0));
+		unwatched.finish();
+		Assert.assertEquals(total, unwatched.getBuildTime(), 1e-9);
+	}
+}
@@ -0,0 +1,454 @@
+package testing.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedList;
+import java.util.Locale;
+
+/**
+ * A stand-in for Marlin-style RepRap firmware, for measuring
+ * RepRap5DDriver without a machine.
+ *
+ * It checks line numbers and checksums the way Marlin 1.0 does, answering a
+ * bad line with an error, "Resend:" and "ok". Bytes arrive in a receive
+ * buffer of limited size; bytes that don't fit are lost, as they are on the
+ * board, and on a resend the buffer is emptied. Each line is answered with
+ * "ok" once it's been carried out, which for a move means once there's room
+ * for it in the planner. Moves take as long as their length and feedrate
+ * say, scaled by timeScale, or a fixed time per move.
+ *
+ * Temperatures are reported for M105 and while waiting in M109/M190, and
+ * reach their targets straight away.
+ *
+ * To see the resend handling at work, a byte can be dropped out of every
+ * nth line received; which lines are hit is fixed, so a run repeats exactly.
+ *
+ * Run from the command line it talks over stdin and stdout; see
+ * scripts/s3g-emulator-pty.py for putting it on a pseudo-terminal.
+ */
+public class MarlinEmulator {
+
+	/// Moves the planner holds; 16 in Marlin
+	public int plannerMoves = 16;
+	/// Fixed time each move takes, in microseconds; -1 to work it out from the move
+	public long moveMicros = -1;
+	/// How much faster (below 1) or slower (above 1) than real time moves run
+	public double timeScale = 1.0;
+	/// Time taken to carry out each line before its "ok", in microseconds
+	public long okLatencyMicros = 0;
+	/// Drop a byte from every nth line received; 0 for never
+	public int dropEvery = 0;
+	/// Empty the receive buffer when asking for a resend, as Marlin does
+	public boolean flushOnResend = true;
+	/// Send "ok" after "Resend:"; Teacup doesn't
+	public boolean okAfterResend = true;
+
+	/// The receive buffer; 128 bytes in Marlin
+	private final byte[] rx;
+	private int rxHead = 0;
+	private int rxCount = 0;
+	private boolean rxClosed = false;
+
+	/// When each move in the planner will be done, oldest first
+	private final LinkedList<Long> planner = new LinkedList<Long>();
+	private long busyUntil = 0;
+
+	private long lastLine = 0;
+	private final double[] position = new double[4];
+	private double feedrate = 1500;
+	private boolean relative = false;
+	private boolean relativeE = false;
+	private double hotendTarget = 0;
+	private double bedTarget = 0;
+
+	private OutputStream out;
+
+	// Counts, for the report at the end
+	long linesReceived = 0;
+	long linesRun = 0;
+	long moves = 0;
+	long resendsRequested = 0;
+	long checksumErrors = 0;
+	long lineNumberErrors = 0;
+	long bytesDropped = 0;
+	long bytesOverflowed = 0;
+	long bytesIn = 0;
+
+	public MarlinEmulator() {
+		this(128);
+	}
+
+	public MarlinEmulator(int rxBufferSize) {
+		rx = new byte[rxBufferSize];
+	}
+
+	/**
+	 * Answer lines from in on out until in runs dry.
+	 */
+	public void serve(final InputStream in, OutputStream out) throws IOException {
+		this.out = out;
+		Thread receiver = new Thread("Marlin RX") {
+			public void run() {
+				receive(in);
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+
+		String line;
+		while ((line = nextLine()) != null) {
+			if (line.length() > 0)
+				handleLine(line);
+		}
+	}
+
+	/** Move bytes into the receive buffer as they arrive, as the UART interrupt does. */
+	private void receive(InputStream in) {
+		int lineLength = 0;
+		try {
+			int b;
+			while ((b = in.read()) != -1) {
+				bytesIn++;
+				if (b == '\n')
+					linesReceived++;
+				if (dropEvery > 0 && linesReceived % dropEvery == dropEvery - 1 && lineLength == 3 && b != '\n') {
+					bytesDropped++;
+					lineLength++;
+					continue;
+				}
+				lineLength = b == '\n' ? 0 : lineLength + 1;
+				synchronized (rx) {
+					if (rxCount == rx.length) {
+						bytesOverflowed++;
+						continue;
+					}
+					rx[(rxHead + rxCount++) % rx.length] = (byte) b;
+					rx.notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			// The other end has gone; same as running dry.
+		}
+		synchronized (rx) {
+			rxClosed = true;
+			rx.notifyAll();
+		}
+	}
+
+	/** Wait for a whole line, and take it out of the receive buffer. */
+	private String nextLine() {
+		synchronized (rx) {
+			while (true) {
+				for (int i = 0; i < rxCount; i++) {
+					byte b = rx[(rxHead + i) % rx.length];
+					if (b == '\n' || b == '\r') {
+						StringBuilder line = new StringBuilder(i);
+						for (int j = 0; j < i; j++)
+							line.append((char) rx[(rxHead + j) % rx.length]);
+						rxHead = (rxHead + i + 1) % rx.length;
+						rxCount -= i + 1;
+						return line.toString().trim();
+					}
+				}
+				if (rxClosed)
+					return null;
+				try {
+					rx.wait();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+		}
+	}
+
+	/** Check the line number and checksum, and carry the line out if they're good. */
+	void handleLine(String line) throws IOException {
+		int star = line.lastIndexOf('*');
+		if (line.startsWith("N")) {
+			long n = number(line, 1);
+			if (n != lastLine + 1 && !line.contains("M110")) {
+				lineNumberErrors++;
+				requestResend("Error:Line Number is not Last Line Number+1, Last Line: " + lastLine);
+				return;
+			}
+			if (star < 0) {
+				requestResend("Error:No Checksum with line number, Last Line: " + lastLine);
+				return;
+			}
+			int checksum = 0;
+			for (int i = 0; i < star; i++)
+				checksum ^= line.charAt(i);
+			if (checksum != number(line, star + 1)) {
+				checksumErrors++;
+				requestResend("Error:checksum mismatch, Last Line: " + lastLine);
+				return;
+			}
+			lastLine = n;
+			line = line.substring(line.indexOf(' ') + 1, star).trim();
+		} else if (star >= 0) {
+			requestResend("Error:No Line Number with checksum, Last Line: " + lastLine);
+			return;
+		}
+
+		int comment = line.indexOf(';');
+		if (comment >= 0)
+			line = line.substring(0, comment).trim();
+		String reply = run(line);
+		linesRun++;
+		sleepMicros(okLatencyMicros);
+		send(reply == null ? "ok" : "ok " + reply);
+	}
+
+	private void requestResend(String error) throws IOException {
+		resendsRequested++;
+		if (flushOnResend) {
+			synchronized (rx) {
+				rxHead = 0;
+				rxCount = 0;
+			}
+		}
+		send(error);
+		send("Resend: " + (lastLine + 1));
+		if (okAfterResend)
+			send("ok");
+	}
+
+	/**
+	 * Carry out a command.
+	 * @return anything to go on the end of the "ok", or null
+	 */
+	private String run(String line) throws IOException {
+		if (line.length() == 0)
+			return null;
+		char letter = line.charAt(0);
+		int code = (int) number(line, 1);
+		if (letter == 'G') {
+			switch (code) {
+			case 0:
+			case 1:
+				move(line);
+				return null;
+			case 4:
+				waitForMoves();
+				sleepMicros((long) (value(line, 'P', 0) * 1000 * timeScale));
+				return null;
+			case 28:
+				waitForMoves();
+				position[0] = position[1] = position[2] = 0;
+				return null;
+			case 90:
+				relative = false;
+				relativeE = false;
+				return null;
+			case 91:
+				relative = true;
+				relativeE = true;
+				return null;
+			case 92:
+				waitForMoves();
+				for (int axis = 0; axis < 4; axis++)
+					position[axis] = value(line, "XYZE".charAt(axis), position[axis]);
+				return null;
+			}
+		} else if (letter == 'M') {
+			switch (code) {
+			case 82:
+				relativeE = false;
+				return null;
+			case 83:
+				relativeE = true;
+				return null;
+			case 104:
+				hotendTarget = value(line, 'S', hotendTarget);
+				return null;
+			case 140:
+				bedTarget = value(line, 'S', bedTarget);
+				return null;
+			case 105:
+				return temperatures();
+			case 109:
+				hotendTarget = value(line, 'S', hotendTarget);
+				send("T:" + format(hotendTarget) + " E:0 W:?");
+				return null;
+			case 190:
+				bedTarget = value(line, 'S', bedTarget);
+				send("T:" + format(hotendTarget) + " E:0 B:" + format(bedTarget));
+				return null;
+			case 110:
+				return null;
+			case 114:
+				send("X:" + format(position[0]) + " Y:" + format(position[1]) + " Z:" + format(position[2])
+						+ " E:" + format(position[3]));
+				return null;
+			case 115:
+				send("FIRMWARE_NAME:Marlin V1; Sprinter/grbl mashup for gen6 FIRMWARE_URL:http://www.mendel-parts.com"
+						+ " PROTOCOL_VERSION:1.0 MACHINE_TYPE:Mendel EXTRUDER_COUNT:1");
+				return null;
+			case 400:
+				waitForMoves();
+				return null;
+			}
+		} else if (letter == 'T') {
+			return null;
+		}
+		// Anything else is taken without complaint, as long as we know the letter.
+		if (letter != 'G' && letter != 'M')
+			send("echo:Unknown command: \"" + line + "\"");
+		return null;
+	}
+
+	private void move(String line) {
+		feedrate = value(line, 'F', feedrate);
+		double distance = 0;
+		for (int axis = 0; axis < 4; axis++) {
+			char name = "XYZE".charAt(axis);
+			if (!has(line, name))
+				continue;
+			double v = value(line, name, 0);
+			double target = (axis == 3 ? relativeE : relative) ? position[axis] + v : v;
+			if (axis < 3)
+				distance += (target - position[axis]) * (target - position[axis]);
+			position[axis] = target;
+		}
+		long micros = moveMicros >= 0 ? moveMicros : (long) (Math.sqrt(distance) / feedrate * 60e6);
+		moves++;
+
+		// Wait for room in the planner
+		long now = System.nanoTime();
+		drainPlanner(now);
+		while (planner.size() >= plannerMoves) {
+			sleepNanos(planner.getFirst() - now);
+			now = System.nanoTime();
+			drainPlanner(now);
+		}
+		busyUntil = Math.max(busyUntil, now) + (long) (micros * 1000 * timeScale);
+		planner.add(busyUntil);
+	}
+
+	private void drainPlanner(long now) {
+		while (!planner.isEmpty() && planner.getFirst() <= now)
+			planner.removeFirst();
+	}
+
+	private void waitForMoves() {
+		if (!planner.isEmpty())
+			sleepNanos(planner.getLast() - System.nanoTime());
+		planner.clear();
+	}
+
+	private String temperatures() {
+		return "T:" + format(hotendTarget) + " /" + format(hotendTarget) + " B:" + format(bedTarget) + " /"
+				+ format(bedTarget) + " @:0";
+	}
+
+	static String format(double v) {
+		return String.format(Locale.US, "%.2f", v);
+	}
+
+	static boolean has(String line, char letter) {
+		return line.indexOf(letter, 1) > 0;
+	}
+
+	static double value(String line, char letter, double otherwise) {
+		int at = line.indexOf(letter, 1);
+		if (at < 0)
+			return otherwise;
+		int end = at + 1;
+		while (end < line.length() && "-+.0123456789".indexOf(line.charAt(end)) >= 0)
+			end++;
+		try {
+			return Double.parseDouble(line.substring(at + 1, end));
+		} catch (NumberFormatException e) {
+			return otherwise;
+		}
+	}
+
+	/** The whole number starting at from, or -1 if there isn't one. */
+	static long number(String line, int from) {
+		int end = from;
+		while (end < line.length() && Character.isDigit(line.charAt(end)))
+			end++;
+		if (end == from)
+			return -1;
+		return Long.parseLong(line.substring(from, end));
+	}
+
+	private void send(String line) throws IOException {
+		out.write((line + "\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	static void sleepMicros(long micros) {
+		sleepNanos(micros * 1000);
+	}
+
+	static void sleepNanos(long nanos) {
+		if (nanos <= 0)
+			return;
+		try {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void report(PrintStream out) {
+		out.println("lines " + linesReceived + " received, " + linesRun + " run, " + moves + " moves");
+		out.println("resends requested " + resendsRequested + " (" + checksumErrors + " bad checksums, "
+				+ lineNumberErrors + " out of sequence)");
+		out.println("bytes in " + bytesIn + ", dropped on purpose " + bytesDropped + ", lost to a full buffer "
+				+ bytesOverflowed);
+	}
+
+	static void usage() {
+		System.err.println("usage: MarlinEmulator [--rx-buffer=BYTES] [--planner=MOVES] [--move-us=MICROS]");
+		System.err.println("                      [--time-scale=FACTOR] [--ok-latency-us=MICROS] [--drop=N]");
+		System.err.println("                      [--flush-on-resend=BOOL] [--ok-after-resend=BOOL]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int rxBufferSize = 128;
+		for (String arg : args) {
+			if (arg.startsWith("--rx-buffer="))
+				rxBufferSize = Integer.parseInt(arg.substring(12));
+		}
+		MarlinEmulator emulator = new MarlinEmulator(rxBufferSize);
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0)
+				usage();
+			String name = arg.substring(2, eq);
+			String value = arg.substring(eq + 1);
+			try {
+				if (name.equals("rx-buffer")) continue;
+				else if (name.equals("planner")) emulator.plannerMoves = Integer.parseInt(value);
+				else if (name.equals("move-us")) emulator.moveMicros = Long.parseLong(value);
+				else if (name.equals("time-scale")) emulator.timeScale = Double.parseDouble(value);
+				else if (name.equals("ok-latency-us")) emulator.okLatencyMicros = Long.parseLong(value);
+				else if (name.equals("drop")) emulator.dropEvery = Integer.parseInt(value);
+				else if (name.equals("flush-on-resend")) emulator.flushOnResend = Boolean.parseBoolean(value);
+				else if (name.equals("ok-after-resend")) emulator.okAfterResend = Boolean.parseBoolean(value);
+				else usage();
+			} catch (NumberFormatException e) {
+				usage();
+			}
+		}
+		final MarlinEmulator reporting = emulator;
+		// A pty never runs dry while the far end is open, so this is usually how we stop.
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				reporting.report(System.err);
+			}
+		});
+		InputStream in = new BufferedInputStream(new FileInputStream(FileDescriptor.in));
+		OutputStream out = new FileOutputStream(FileDescriptor.out);
+		emulator.serve(in, out);
+	}
+}
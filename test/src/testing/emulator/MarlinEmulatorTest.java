@@ -0,0 +1,84 @@
+package testing.emulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the Marlin stand-in answers lines the way the firmware does.
+ */
+public class MarlinEmulatorTest {
+
+	/** Number a line and add its checksum, as RepRap5DDriver does. */
+	static String numbered(int n, String gcode) {
+		String line = "N" + n + " " + gcode + " ";
+		int checksum = 0;
+		for (int i = 0; i < line.length(); i++)
+			checksum ^= line.charAt(i);
+		return line + "*" + checksum;
+	}
+
+	static List<String> exchange(MarlinEmulator emulator, String... lines) throws IOException {
+		StringBuilder in = new StringBuilder();
+		for (String line : lines)
+			in.append(line).append('\n');
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		emulator.serve(new ByteArrayInputStream(in.toString().getBytes("US-ASCII")), out);
+		return Arrays.asList(out.toString("US-ASCII").split("\n"));
+	}
+
+	@Test
+	public void answersGoodLines() throws IOException {
+		MarlinEmulator emulator = new MarlinEmulator();
+		emulator.timeScale = 0;
+		List<String> r = exchange(emulator, numbered(0, "M110"), numbered(1, "M104 S210"), numbered(2, "G1 X10 Y5 F3000"),
+				numbered(3, "M105"), numbered(4, "M114"), "G1 X0");
+		Assert.assertEquals(r, Arrays.asList("ok", "ok", "ok", "ok T:210.00 /210.00 B:0.00 /0.00 @:0",
+				"X:10.00 Y:5.00 Z:0.00 E:0.00", "ok", "ok"));
+		Assert.assertEquals(emulator.moves, 2);
+	}
+
+	@Test
+	public void asksForBadLinesAgain() throws IOException {
+		MarlinEmulator emulator = new MarlinEmulator();
+		emulator.timeScale = 0;
+		emulator.flushOnResend = false;
+		String bad = numbered(2, "G1 X10").replace("X10", "X19");
+		List<String> r = exchange(emulator, numbered(0, "M110"), numbered(1, "G1 X5"), bad, numbered(3, "G1 X15"),
+				numbered(2, "G1 X10"), numbered(3, "G1 X15"));
+		Assert.assertEquals(r, Arrays.asList("ok", "ok",
+				"Error:checksum mismatch, Last Line: 1", "Resend: 2", "ok",
+				"Error:Line Number is not Last Line Number+1, Last Line: 1", "Resend: 2", "ok",
+				"ok", "ok"));
+		Assert.assertEquals(emulator.resendsRequested, 2);
+		Assert.assertEquals(emulator.checksumErrors, 1);
+		Assert.assertEquals(emulator.lineNumberErrors, 1);
+	}
+
+	@Test
+	public void teacupDoesntSayOkAfterResend() throws IOException {
+		MarlinEmulator emulator = new MarlinEmulator();
+		emulator.okAfterResend = false;
+		List<String> r = exchange(emulator, numbered(0, "M110"), numbered(5, "G1 X5"));
+		Assert.assertEquals(r, Arrays.asList("ok", "Error:Line Number is not Last Line Number+1, Last Line: 0", "Resend: 1"));
+	}
+
+	@Test
+	public void dropsBytesFromEveryNthLine() throws IOException {
+		MarlinEmulator emulator = new MarlinEmulator();
+		emulator.timeScale = 0;
+		emulator.flushOnResend = false;
+		emulator.dropEvery = 3;
+		List<String> r = exchange(emulator, numbered(0, "M110"), numbered(1, "G1 X5"), numbered(2, "G1 X10"),
+				numbered(3, "G1 X15"));
+		// "N2 G1 X10" loses its fourth byte, and the line after it is out of sequence
+		Assert.assertEquals(r.get(2), "Error:checksum mismatch, Last Line: 1");
+		Assert.assertEquals(emulator.bytesDropped, 1);
+		Assert.assertEquals(emulator.resendsRequested, 2);
+	}
+}
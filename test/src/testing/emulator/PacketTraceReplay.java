@@ -0,0 +1,296 @@
+package testing.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+import replicatorg.drivers.gen3.PacketTrace;
+import replicatorg.drivers.gen3.PacketTrace.Record;
+
+/**
+ * Reads back a packet trace recorded by the gen3 drivers (see
+ * {@link PacketTrace}) and reports what happened: how long the machine took
+ * to answer each packet, the worst of those with what was going on around
+ * them, and the timeouts, bad CRCs, full buffers and resends.
+ *
+ * Responses are decoded with the driver's own PacketProcessor, so a response
+ * that reads badly here read badly during the build.
+ *
+ * With --port, the packets are also sent again, with the same pipelining
+ * and the same pauses on the host's side, to whatever is on the port, and
+ * the two sets of latencies are compared. Against {@link S3GEmulator}, that
+ * tells a problem in the firmware or the link from one in the host:
+ *
+ * <pre>
+ *   java -cp ... testing.emulator.PacketTraceReplay ~/.replicatorg/packet-trace.s3gtrace
+ *
+ *   scripts/s3g-emulator-pty.py /tmp/ttyS3G -- java -cp ... testing.emulator.S3GEmulator
+ *   java -Dgnu.io.rxtx.SerialPorts=/tmp/ttyS3G -cp ... testing.emulator.PacketTraceReplay \
+ *       --port=/tmp/ttyS3G ~/.replicatorg/packet-trace.s3gtrace
+ * </pre>
+ */
+public class PacketTraceReplay {
+
+	/// How many records to show ahead of a spike
+	static final int CONTEXT = 4;
+
+	static void usage() {
+		System.err.println("usage: PacketTraceReplay [--spike=MS] [--spikes=N] [--port=PORT [--baud=RATE]] TRACE");
+		System.exit(1);
+	}
+
+	/**
+	 * The time from a packet going out to its response (or the lack of
+	 * one) coming back.
+	 */
+	static class Latency {
+		/// index in the trace of the packet
+		final int out;
+		/// index in the trace of what came back
+		final int in;
+		final long nanos;
+
+		Latency(int out, int in, long nanos) {
+			this.out = out;
+			this.in = in;
+			this.nanos = nanos;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, SerialException {
+		double spikeMillis = 0;
+		int maxSpikes = 20;
+		String port = null;
+		int baud = 115200;
+		String traceName = null;
+		for (String arg : args) {
+			if (arg.startsWith("--spike=")) {
+				spikeMillis = Double.parseDouble(arg.substring(8));
+			} else if (arg.startsWith("--spikes=")) {
+				maxSpikes = Integer.parseInt(arg.substring(9));
+			} else if (arg.startsWith("--port=")) {
+				port = arg.substring(7);
+			} else if (arg.startsWith("--baud=")) {
+				baud = Integer.parseInt(arg.substring(7));
+			} else if (arg.startsWith("--") || traceName != null) {
+				usage();
+			} else {
+				traceName = arg;
+			}
+		}
+		if (traceName == null)
+			usage();
+
+		File file = new File(traceName);
+		List<Record> records = PacketTrace.read(file);
+		System.out.println(file + ": " + records.size() + " records, recording started "
+				+ new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(PacketTrace.startTime(file))));
+		if (records.isEmpty())
+			return;
+		double seconds = (records.get(records.size() - 1).nanos - records.get(0).nanos) / 1e9;
+		System.out.printf("%.1f seconds covered%n", seconds);
+
+		int[] counts = new int[8];
+		Map<String, Integer> codes = new TreeMap<String, Integer>();
+		PacketProcessor pp = new PacketProcessor();
+		for (Record r : records) {
+			if (r.type < counts.length)
+				counts[r.type]++;
+			if (r.type == PacketTrace.IN) {
+				String code = decode(pp, r.data);
+				Integer n = codes.get(code);
+				codes.put(code, n == null ? 1 : n + 1);
+			}
+		}
+		System.out.println("packets out:  " + counts[PacketTrace.OUT]);
+		System.out.println("responses:    " + counts[PacketTrace.IN] + " " + codes);
+		System.out.println("timeouts:     " + counts[PacketTrace.TIMEOUT]);
+		System.out.println("bad CRCs:     " + counts[PacketTrace.BAD_CRC]);
+		System.out.println("overflows:    " + counts[PacketTrace.OVERFLOW]);
+		System.out.println("resends:      " + counts[PacketTrace.RESEND]);
+
+		List<Latency> latencies = pair(records);
+		if (latencies.isEmpty())
+			return;
+		long[] sorted = report("recorded", latencies);
+
+		// A spike is whatever was asked for, or else well over the usual.
+		long threshold = spikeMillis > 0 ? (long) (spikeMillis * 1e6) : sorted[sorted.length / 2] * 5;
+		List<Latency> spikes = new ArrayList<Latency>();
+		for (Latency l : latencies)
+			if (l.nanos > threshold)
+				spikes.add(l);
+		System.out.printf("%d responses took over %.2fms%n", spikes.size(), threshold / 1e6);
+		for (Latency l : spikes.subList(0, Math.min(maxSpikes, spikes.size()))) {
+			System.out.printf("%n%.2fms at %.3fs:%n", l.nanos / 1e6, records.get(l.out).nanos / 1e9);
+			for (int i = Math.max(0, l.out - CONTEXT); i <= l.in; i++)
+				System.out.println((i == l.out || i == l.in ? " > " : "   ") + describe(pp, records.get(i)));
+		}
+
+		if (port != null)
+			replay(records, port, baud, latencies.size());
+	}
+
+	/**
+	 * Match each response, timeout or bad CRC to the oldest packet still
+	 * waiting for one. A resend starts over: everything waiting is sent
+	 * again, and gets new records.
+	 */
+	static List<Latency> pair(List<Record> records) {
+		List<Latency> latencies = new ArrayList<Latency>();
+		LinkedList<Integer> waiting = new LinkedList<Integer>();
+		for (int i = 0; i < records.size(); i++) {
+			Record r = records.get(i);
+			switch (r.type) {
+			case PacketTrace.OUT:
+				waiting.add(i);
+				break;
+			case PacketTrace.IN:
+			case PacketTrace.TIMEOUT:
+			case PacketTrace.BAD_CRC:
+				if (!waiting.isEmpty()) {
+					int out = waiting.removeFirst();
+					latencies.add(new Latency(out, i, r.nanos - records.get(out).nanos));
+				}
+				break;
+			case PacketTrace.RESEND:
+				waiting.clear();
+				break;
+			}
+		}
+		return latencies;
+	}
+
+	/**
+	 * Print median, 99th percentile and worst latencies.
+	 * @return the latencies, sorted
+	 */
+	static long[] report(String title, List<Latency> latencies) {
+		long[] sorted = new long[latencies.size()];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = latencies.get(i).nanos;
+		Arrays.sort(sorted);
+		System.out.printf("%s latency, %d responses: median %.2fms, 99th percentile %.2fms, worst %.2fms%n",
+				title, sorted.length,
+				sorted[sorted.length / 2] / 1e6,
+				sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1e6,
+				sorted[sorted.length - 1] / 1e6);
+		return sorted;
+	}
+
+	/**
+	 * Run a response's bytes through the driver's packet processor.
+	 * @return the name of its response code, or "undecodable"
+	 */
+	static String decode(PacketProcessor pp, byte[] data) {
+		pp.reset();
+		try {
+			for (byte b : data)
+				if (pp.processByte(b))
+					return String.valueOf((Object) pp.getResponse().getResponseCode());
+		} catch (CRCException e) {
+		}
+		return "undecodable";
+	}
+
+	static String describe(PacketProcessor pp, Record r) {
+		StringBuffer buf = new StringBuffer();
+		buf.append(String.format("%10.3fms %-8s", r.nanos / 1e6, r.typeName()));
+		if (r.type == PacketTrace.OUT && r.data.length > 2)
+			buf.append(String.format(" command %d, %d bytes", r.data[2] & 0xff, r.data[1] & 0xff));
+		else if (r.type == PacketTrace.IN)
+			buf.append(" ").append(decode(pp, r.data));
+		if (r.type != PacketTrace.OUT && r.data.length > 0) {
+			buf.append(" [");
+			for (int i = 0; i < Math.min(r.data.length, 16); i++)
+				buf.append(String.format(i == 0 ? "%02x" : " %02x", r.data[i]));
+			buf.append(r.data.length > 16 ? " ...]" : "]");
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Send the trace's packets to a port, as the host did: after each
+	 * packet, read as many responses as the host did before its next one,
+	 * and wait as long as the host did between reading the last of them and
+	 * sending the next.
+	 */
+	static void replay(List<Record> records, String port, int baud, int expected) throws SerialException {
+		Serial serial = new Serial(port, baud, 'N', 8, 1);
+		serial.setTimeout(1000);
+		PacketProcessor pp = new PacketProcessor();
+		LinkedList<Long> waiting = new LinkedList<Long>();
+		List<Latency> latencies = new ArrayList<Latency>(expected);
+		int timeouts = 0;
+		int badCrcs = 0;
+		long lastHostEvent = -1;
+		long lastReplayEvent = System.nanoTime();
+		try {
+			for (int i = 0; i < records.size(); i++) {
+				Record r = records.get(i);
+				if (r.type == PacketTrace.RESEND) {
+					waiting.clear();
+					serial.clear();
+				}
+				if (r.type != PacketTrace.OUT)
+					continue;
+
+				// The host's own pause before sending this
+				if (lastHostEvent >= 0) {
+					long until = lastReplayEvent + (r.nanos - lastHostEvent);
+					while (System.nanoTime() < until)
+						Thread.yield();
+				}
+				serial.write(r.data);
+				waiting.add(System.nanoTime());
+
+				int responses = 0;
+				int next = i + 1;
+				for (; next < records.size() && records.get(next).type != PacketTrace.OUT; next++) {
+					int type = records.get(next).type;
+					if (type == PacketTrace.IN || type == PacketTrace.TIMEOUT || type == PacketTrace.BAD_CRC)
+						responses++;
+				}
+				lastHostEvent = records.get(next - 1).nanos;
+				for (; responses > 0 && !waiting.isEmpty(); responses--) {
+					pp.reset();
+					boolean completed = false;
+					try {
+						while (!completed) {
+							int b = serial.read();
+							if (b == -1) {
+								timeouts++;
+								break;
+							}
+							completed = pp.processByte((byte) b);
+						}
+					} catch (CRCException e) {
+						badCrcs++;
+					}
+					long now = System.nanoTime();
+					latencies.add(new Latency(i, i, now - waiting.removeFirst()));
+				}
+				lastReplayEvent = System.nanoTime();
+			}
+		} finally {
+			serial.dispose();
+		}
+		System.out.println();
+		System.out.println("replayed to " + port + ": " + timeouts + " timeouts, " + badCrcs + " bad CRCs");
+		if (!latencies.isEmpty()) {
+			report("replayed", latencies);
+			report("recorded", pair(records));
+		}
+	}
+}
@@ -0,0 +1,497 @@
+package testing.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+import replicatorg.drivers.gen3.PacketEncoder;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+
+/**
+ * A stand-in for S3G firmware, for measuring the host side without a machine.
+ *
+ * It answers packets the way a Gen4/MightyBoard motherboard does: commands go
+ * into a command buffer of limited size, which drains as the moves in it
+ * "run", and a command that doesn't fit is refused with BUFFER_OVERFLOW.
+ * Queries are answered straight away. Moves take as long as their packets
+ * say they should, scaled by timeScale, or a fixed time per move.
+ *
+ * Faults can be put on the line at fixed intervals, so a run is the same
+ * every time: incoming packets refused as if their CRC was bad, responses
+ * sent with a bad CRC, and junk bytes ahead of a response.
+ *
+ * Run from the command line it talks over stdin and stdout; see
+ * scripts/s3g-emulator-pty.py for putting it on a pseudo-terminal that
+ * ReplicatorG can open like any serial port.
+ */
+public class S3GEmulator {
+
+	// Response codes
+	static final int OK = 0x81;
+	static final int BUFFER_OVERFLOW = 0x82;
+	static final int CRC_MISMATCH = 0x83;
+	static final int UNSUPPORTED = 0x85;
+
+	// Motherboard queries and commands we act on
+	static final int VERSION = 0;
+	static final int INIT = 1;
+	static final int GET_BUFFER_SIZE = 2;
+	static final int CLEAR_BUFFER = 3;
+	static final int GET_POSITION = 4;
+	static final int ABORT = 7;
+	static final int TOOL_QUERY = 10;
+	static final int IS_FINISHED = 11;
+	static final int READ_EEPROM = 12;
+	static final int WRITE_EEPROM = 13;
+	static final int CAPTURE_TO_FILE = 14;
+	static final int END_CAPTURE = 15;
+	static final int PLAYBACK_CAPTURE = 16;
+	static final int RESET = 17;
+	static final int NEXT_FILENAME = 18;
+	static final int GET_BUILD_NAME = 20;
+	static final int GET_POSITION_EXT = 21;
+	static final int EXTENDED_STOP = 22;
+	static final int GET_COMMUNICATION_STATS = 25;
+
+	static final int QUEUE_POINT_ABS = 129;
+	static final int SET_POSITION = 130;
+	static final int DELAY = 133;
+	static final int TOOL_COMMAND = 136;
+	static final int QUEUE_POINT_EXT = 139;
+	static final int SET_POSITION_EXT = 140;
+	static final int QUEUE_POINT_NEW = 142;
+	static final int QUEUE_POINT_NEW_EXT = 155;
+
+	// Tool queries and commands we act on
+	static final int TOOL_VERSION = 0;
+	static final int TOOL_GET_TEMP = 2;
+	static final int TOOL_SET_TEMP = 3;
+	static final int TOOL_IS_READY = 22;
+	static final int TOOL_READ_FROM_EEPROM = 25;
+	static final int TOOL_WRITE_TO_EEPROM = 26;
+	static final int TOOL_GET_PLATFORM_TEMP = 30;
+	static final int TOOL_SET_PLATFORM_TEMP = 31;
+	static final int TOOL_GET_SP = 32;
+	static final int TOOL_GET_PLATFORM_SP = 33;
+	static final int TOOL_IS_PLATFORM_READY = 35;
+	static final int TOOL_GET_TOOL_STATUS = 36;
+	static final int TOOL_GET_PID_STATE = 37;
+
+	static final int EEPROM_SIZE = 4096;
+	static final int TOOL_EEPROM_SIZE = 512;
+	static final int TOOL_COUNT = 2;
+
+	/// Bytes of command buffer; 512 on Gen4 and MightyBoard firmware
+	public int bufferSize = 512;
+	/// Firmware version reported, as major * 100 + minor
+	public int version = 700;
+	/// Fixed time each move takes, in microseconds; -1 to use what the packet says
+	public long moveMicros = -1;
+	/// How much faster (below 1) or slower (above 1) than real time moves run
+	public double timeScale = 1.0;
+	/// Time taken to answer each packet, in microseconds, as over USB
+	public long latencyMicros = 0;
+	/// Refuse every nth packet as if its CRC was bad; 0 for never
+	public int crcErrorEvery = 0;
+	/// Answer every nth packet with a bad CRC; 0 for never
+	public int badResponseEvery = 0;
+	/// Put a few junk bytes ahead of every nth response; 0 for never
+	public int noiseEvery = 0;
+	/// Seed for the junk bytes
+	public long seed = 1;
+
+	/** A command in the buffer, waiting to finish. */
+	private static class Queued {
+		final int length;
+		final long doneNanos;
+		final int[] position;
+
+		Queued(int length, long doneNanos, int[] position) {
+			this.length = length;
+			this.doneNanos = doneNanos;
+			this.position = position;
+		}
+	}
+
+	private final LinkedList<Queued> buffer = new LinkedList<Queued>();
+	private int bufferUsed = 0;
+	/// When the last command in the buffer will be done
+	private long busyUntil = 0;
+
+	/// Where the last move finished, and where the last one queued will finish
+	private int[] position = new int[5];
+	private int[] queuedPosition = new int[5];
+
+	private final byte[] eeprom = new byte[EEPROM_SIZE];
+	private final byte[][] toolEEPROM = new byte[TOOL_COUNT][TOOL_EEPROM_SIZE];
+	private final int[] toolTemp = new int[TOOL_COUNT];
+	private int platformTemp = 0;
+
+	/// Bytes captured to the "card" since CAPTURE_TO_FILE; -1 when not capturing
+	private long captured = -1;
+
+	private Random noise;
+	private final PacketEncoder response = new PacketEncoder();
+
+	// Counts, for the report at the end
+	long packets = 0;
+	long commands = 0;
+	long queries = 0;
+	long moves = 0;
+	long overflows = 0;
+	long crcErrorsSeen = 0;
+	long crcErrorsInjected = 0;
+	long badResponsesInjected = 0;
+	long noiseBytes = 0;
+	long bytesIn = 0;
+	long bytesOut = 0;
+
+	public S3GEmulator() {
+		Arrays.fill(eeprom, (byte) 0xff);
+		for (byte[] tool : toolEEPROM)
+			Arrays.fill(tool, (byte) 0xff);
+	}
+
+	/**
+	 * Answer packets from in on out until in runs dry.
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		noise = new Random(seed);
+		PacketProcessor pp = new PacketProcessor();
+		int b;
+		while ((b = in.read()) != -1) {
+			bytesIn++;
+			try {
+				if (!pp.processByte((byte) b))
+					continue;
+			} catch (CRCException e) {
+				packets++;
+				crcErrorsSeen++;
+				respond(out, CRC_MISMATCH);
+				continue;
+			}
+			packets++;
+			if (crcErrorEvery > 0 && packets % crcErrorEvery == 0) {
+				crcErrorsInjected++;
+				respond(out, CRC_MISMATCH);
+				continue;
+			}
+			byte[] payload = pp.getResponse().getPayload();
+			ByteBuffer args = ByteBuffer.wrap(payload, 1, payload.length - 1).order(ByteOrder.LITTLE_ENDIAN);
+			drain(System.nanoTime());
+			int code = payload[0] & 0xff;
+			if (code >= 128) {
+				commands++;
+				respond(out, handleCommand(code, payload.length, args) ? OK : BUFFER_OVERFLOW);
+			} else {
+				queries++;
+				respond(out, handleQuery(code, args));
+			}
+		}
+	}
+
+	/** Take finished commands out of the buffer. */
+	private void drain(long now) {
+		while (!buffer.isEmpty() && buffer.getFirst().doneNanos <= now) {
+			Queued done = buffer.removeFirst();
+			bufferUsed -= done.length;
+			if (done.position != null)
+				position = done.position;
+		}
+	}
+
+	/**
+	 * Put a command in the buffer.
+	 * @return false if there was no room for it
+	 */
+	private boolean handleCommand(int code, int length, ByteBuffer args) {
+		if (captured >= 0) {
+			captured += length;
+			return true;
+		}
+		if (bufferUsed + length > bufferSize) {
+			overflows++;
+			return false;
+		}
+		long micros = 0;
+		int[] target = null;
+		switch (code) {
+		case QUEUE_POINT_ABS:
+		case QUEUE_POINT_EXT: {
+			int axes = code == QUEUE_POINT_ABS ? 3 : 5;
+			target = queuedPosition.clone();
+			for (int i = 0; i < axes; i++)
+				target[i] = args.getInt();
+			micros = steps(target) * (args.getInt() & 0xffffffffL);
+			break;
+		}
+		case QUEUE_POINT_NEW:
+		case QUEUE_POINT_NEW_EXT: {
+			int[] delta = new int[5];
+			for (int i = 0; i < 5; i++)
+				delta[i] = args.getInt();
+			long rate = args.getInt() & 0xffffffffL;
+			int relative = args.get();
+			target = queuedPosition.clone();
+			for (int i = 0; i < 5; i++)
+				target[i] = ((relative >> i) & 1) != 0 ? target[i] + delta[i] : delta[i];
+			if (code == QUEUE_POINT_NEW)
+				micros = rate;
+			else if (rate > 0)
+				micros = steps(target) * 1000000L / rate;
+			break;
+		}
+		case SET_POSITION:
+		case SET_POSITION_EXT:
+			target = queuedPosition.clone();
+			for (int i = 0; i < (code == SET_POSITION ? 3 : 5); i++)
+				target[i] = args.getInt();
+			break;
+		case DELAY:
+			micros = (args.getInt() & 0xffffffffL) * 1000;
+			break;
+		case TOOL_COMMAND: {
+			int tool = args.get() & 0xff;
+			int toolCode = args.get() & 0xff;
+			args.get(); // payload length
+			if (toolCode == TOOL_SET_TEMP && tool < TOOL_COUNT)
+				toolTemp[tool] = args.getShort();
+			else if (toolCode == TOOL_SET_PLATFORM_TEMP)
+				platformTemp = args.getShort();
+			break;
+		}
+		}
+		if (target != null) {
+			if (code != SET_POSITION && code != SET_POSITION_EXT) {
+				moves++;
+				if (moveMicros >= 0)
+					micros = moveMicros;
+			}
+			queuedPosition = target;
+		}
+		long now = System.nanoTime();
+		busyUntil = Math.max(busyUntil, now) + (long) (micros * 1000 * timeScale);
+		buffer.add(new Queued(length, busyUntil, target));
+		bufferUsed += length;
+		return true;
+	}
+
+	/** Steps taken by the longest axis to get from queuedPosition to target. */
+	private long steps(int[] target) {
+		long most = 0;
+		for (int i = 0; i < target.length; i++)
+			most = Math.max(most, Math.abs((long) target[i] - queuedPosition[i]));
+		return most;
+	}
+
+	private PacketEncoder handleQuery(int code, ByteBuffer args) {
+		PacketEncoder r = response.begin(OK);
+		switch (code) {
+		case VERSION:
+			return r.add16(version);
+		case INIT:
+		case CLEAR_BUFFER:
+		case ABORT:
+		case RESET:
+			clear();
+			if (code == RESET)
+				captured = -1;
+			return r;
+		case EXTENDED_STOP:
+			clear();
+			return r.add8(0);
+		case GET_BUFFER_SIZE:
+			return r.add32(bufferSize - bufferUsed);
+		case GET_POSITION:
+			return r.add32(position[0]).add32(position[1]).add32(position[2]).add8(0);
+		case GET_POSITION_EXT:
+			for (int i = 0; i < 5; i++)
+				r.add32(position[i]);
+			return r.add16(0);
+		case IS_FINISHED:
+			return r.add8(buffer.isEmpty() ? 1 : 0);
+		case READ_EEPROM:
+			return readEEPROM(r, eeprom, args);
+		case WRITE_EEPROM:
+			return writeEEPROM(r, eeprom, args);
+		case CAPTURE_TO_FILE:
+			captured = 0;
+			return r.add8(0);
+		case END_CAPTURE:
+			r.add32(Math.max(captured, 0));
+			captured = -1;
+			return r;
+		case PLAYBACK_CAPTURE:
+			return r.add8(0);
+		case NEXT_FILENAME:
+			r.add8(0);
+			r.addString("", 0);
+			return r;
+		case GET_BUILD_NAME:
+			r.addString("Emulator", 31);
+			return r;
+		case GET_COMMUNICATION_STATS:
+			return r.add32(packets).add32(packets).add32(0).add32(0).add32(crcErrorsSeen);
+		case TOOL_QUERY:
+			return handleToolQuery(r, args);
+		}
+		return response.begin(UNSUPPORTED);
+	}
+
+	private PacketEncoder handleToolQuery(PacketEncoder r, ByteBuffer args) {
+		int tool = args.get() & 0xff;
+		int code = args.get() & 0xff;
+		int index = tool < TOOL_COUNT ? tool : 0;
+		switch (code) {
+		case TOOL_VERSION:
+			return r.add16(version);
+		case TOOL_GET_TEMP:
+		case TOOL_GET_SP:
+			return r.add16(toolTemp[index]);
+		case TOOL_GET_PLATFORM_TEMP:
+		case TOOL_GET_PLATFORM_SP:
+			return r.add16(platformTemp);
+		case TOOL_IS_READY:
+		case TOOL_IS_PLATFORM_READY:
+			return r.add8(1);
+		case TOOL_GET_TOOL_STATUS:
+			return r.add8(0);
+		case TOOL_GET_PID_STATE:
+			for (int i = 0; i < 6; i++)
+				r.add16(0);
+			return r;
+		case TOOL_READ_FROM_EEPROM:
+			return readEEPROM(r, toolEEPROM[index], args);
+		case TOOL_WRITE_TO_EEPROM:
+			return writeEEPROM(r, toolEEPROM[index], args);
+		}
+		return response.begin(UNSUPPORTED);
+	}
+
+	private PacketEncoder readEEPROM(PacketEncoder r, byte[] image, ByteBuffer args) {
+		int offset = args.getShort() & 0xffff;
+		int length = args.get() & 0xff;
+		for (int i = offset; i < offset + length; i++)
+			r.add8(i < image.length ? image[i] : 0xff);
+		return r;
+	}
+
+	private PacketEncoder writeEEPROM(PacketEncoder r, byte[] image, ByteBuffer args) {
+		int offset = args.getShort() & 0xffff;
+		int length = args.get() & 0xff;
+		for (int i = offset; i < offset + length && args.hasRemaining(); i++) {
+			byte b = args.get();
+			if (i < image.length)
+				image[i] = b;
+		}
+		return r.add8(length);
+	}
+
+	/** Empty the buffer, leaving the machine wherever it's got to. */
+	private void clear() {
+		buffer.clear();
+		bufferUsed = 0;
+		busyUntil = 0;
+		queuedPosition = position.clone();
+	}
+
+	private void respond(OutputStream out, int code) throws IOException {
+		respond(out, response.begin(code));
+	}
+
+	private void respond(OutputStream out, PacketEncoder r) throws IOException {
+		byte[] packet = r.toPacket();
+		if (latencyMicros > 0) {
+			try {
+				Thread.sleep(latencyMicros / 1000, (int) (latencyMicros % 1000) * 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (noiseEvery > 0 && packets % noiseEvery == 0) {
+			int count = 1 + noise.nextInt(4);
+			for (int i = 0; i < count; i++) {
+				int junk;
+				do {
+					junk = noise.nextInt(256);
+				} while ((byte) junk == PacketEncoder.START_BYTE);
+				out.write(junk);
+			}
+			noiseBytes += count;
+			bytesOut += count;
+		}
+		if (badResponseEvery > 0 && packets % badResponseEvery == 0) {
+			badResponsesInjected++;
+			packet[packet.length - 1] = (byte) ~packet[packet.length - 1];
+		}
+		out.write(packet);
+		out.flush();
+		bytesOut += packet.length;
+	}
+
+	public void report(PrintStream out) {
+		out.println("packets " + packets + " (" + commands + " commands, " + queries + " queries), "
+				+ moves + " moves");
+		out.println("buffer overflows " + overflows + ", bad CRCs received " + crcErrorsSeen);
+		out.println("injected: " + crcErrorsInjected + " CRC errors, " + badResponsesInjected
+				+ " bad responses, " + noiseBytes + " noise bytes");
+		out.println("bytes in " + bytesIn + ", bytes out " + bytesOut);
+	}
+
+	static void usage() {
+		System.err.println("usage: S3GEmulator [--buffer=BYTES] [--version=NNN] [--move-us=MICROS]");
+		System.err.println("                   [--time-scale=FACTOR] [--latency-us=MICROS] [--crc-errors=N]");
+		System.err.println("                   [--bad-responses=N] [--noise=N] [--seed=SEED]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		S3GEmulator emulator = new S3GEmulator();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0)
+				usage();
+			String name = arg.substring(2, eq);
+			String value = arg.substring(eq + 1);
+			try {
+				if (name.equals("buffer")) emulator.bufferSize = Integer.parseInt(value);
+				else if (name.equals("version")) emulator.version = Integer.parseInt(value);
+				else if (name.equals("move-us")) emulator.moveMicros = Long.parseLong(value);
+				else if (name.equals("time-scale")) emulator.timeScale = Double.parseDouble(value);
+				else if (name.equals("latency-us")) emulator.latencyMicros = Long.parseLong(value);
+				else if (name.equals("crc-errors")) emulator.crcErrorEvery = Integer.parseInt(value);
+				else if (name.equals("bad-responses")) emulator.badResponseEvery = Integer.parseInt(value);
+				else if (name.equals("noise")) emulator.noiseEvery = Integer.parseInt(value);
+				else if (name.equals("seed")) emulator.seed = Long.parseLong(value);
+				else usage();
+			} catch (NumberFormatException e) {
+				usage();
+			}
+		}
+		final S3GEmulator reporting = emulator;
+		// A pty never runs dry while the far end is open, so this is usually how we stop.
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				reporting.report(System.err);
+			}
+		});
+		InputStream in = new BufferedInputStream(new FileInputStream(FileDescriptor.in));
+		OutputStream out = new FileOutputStream(FileDescriptor.out);
+		try {
+			emulator.serve(in, out);
+		} catch (IOException e) {
+			// The pty has gone; nothing more to answer.
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package testing.emulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.gen3.PacketEncoder;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+
+/**
+ * Checks the emulator answers the way the drivers expect, faults and all,
+ * so numbers measured against it mean something.
+ */
+public class S3GEmulatorTest {
+
+	static byte[] query(int code) {
+		return new PacketEncoder().begin(code).toPacket();
+	}
+
+	/** A QUEUE_POINT_EXT to x, at 100us per step. */
+	static byte[] move(int x) {
+		return new PacketEncoder().begin(S3GEmulator.QUEUE_POINT_EXT)
+				.add32(x).add32(0).add32(0).add32(0).add32(0).add32(100).toPacket();
+	}
+
+	/** Send the packets, and decode the answers; null for a response with a bad CRC. */
+	static List<ByteBuffer> exchange(S3GEmulator emulator, byte[]... packets) throws IOException {
+		ByteArrayOutputStream in = new ByteArrayOutputStream();
+		for (byte[] packet : packets)
+			in.write(packet);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		emulator.serve(new ByteArrayInputStream(in.toByteArray()), out);
+
+		List<ByteBuffer> responses = new ArrayList<ByteBuffer>();
+		PacketProcessor pp = new PacketProcessor();
+		for (byte b : out.toByteArray()) {
+			try {
+				if (pp.processByte(b))
+					responses.add(ByteBuffer.wrap(pp.getResponse().getPayload()).order(ByteOrder.LITTLE_ENDIAN));
+			} catch (CRCException e) {
+				responses.add(null);
+			}
+		}
+		return responses;
+	}
+
+	@Test
+	public void answersQueries() throws IOException {
+		S3GEmulator emulator = new S3GEmulator();
+		emulator.version = 506;
+		List<ByteBuffer> r = exchange(emulator, query(S3GEmulator.VERSION), query(S3GEmulator.GET_BUFFER_SIZE),
+				query(S3GEmulator.IS_FINISHED), query(99));
+		Assert.assertEquals(r.size(), 4);
+		Assert.assertEquals(r.get(0).get() & 0xff, S3GEmulator.OK);
+		Assert.assertEquals(r.get(0).getShort(), 506);
+		Assert.assertEquals(r.get(1).get() & 0xff, S3GEmulator.OK);
+		Assert.assertEquals(r.get(1).getInt(), 512);
+		Assert.assertEquals(r.get(2).get(1), 1);
+		Assert.assertEquals(r.get(3).get() & 0xff, S3GEmulator.UNSUPPORTED);
+	}
+
+	@Test
+	public void refusesCommandsThatDontFit() throws IOException {
+		S3GEmulator emulator = new S3GEmulator();
+		// Room for two moves of 25 bytes, which take a second each
+		emulator.bufferSize = 60;
+		emulator.moveMicros = 1000000;
+		List<ByteBuffer> r = exchange(emulator, move(10), move(20), move(30), query(S3GEmulator.GET_BUFFER_SIZE),
+				query(S3GEmulator.IS_FINISHED));
+		Assert.assertEquals(r.get(0).get() & 0xff, S3GEmulator.OK);
+		Assert.assertEquals(r.get(1).get() & 0xff, S3GEmulator.OK);
+		Assert.assertEquals(r.get(2).get() & 0xff, S3GEmulator.BUFFER_OVERFLOW);
+		Assert.assertEquals(r.get(3).getInt(1), 10);
+		Assert.assertEquals(r.get(4).get(1), 0);
+		Assert.assertEquals(emulator.overflows, 1);
+	}
+
+	@Test
+	public void movesRunAndDrain() throws IOException {
+		S3GEmulator emulator = new S3GEmulator();
+		emulator.timeScale = 0;
+		List<ByteBuffer> r = exchange(emulator, move(10), move(-40), query(S3GEmulator.GET_POSITION_EXT),
+				query(S3GEmulator.IS_FINISHED), query(S3GEmulator.GET_BUFFER_SIZE));
+		Assert.assertEquals(r.get(2).getInt(1), -40);
+		Assert.assertEquals(r.get(3).get(1), 1);
+		Assert.assertEquals(r.get(4).getInt(1), 512);
+		Assert.assertEquals(emulator.moves, 2);
+	}
+
+	@Test
+	public void faultsComeAtFixedIntervals() throws IOException {
+		S3GEmulator emulator = new S3GEmulator();
+		emulator.timeScale = 0;
+		emulator.crcErrorEvery = 3;
+		emulator.badResponseEvery = 4;
+		emulator.noiseEvery = 2;
+		byte[][] packets = new byte[12][];
+		for (int i = 0; i < packets.length; i++)
+			packets[i] = move(i);
+		List<ByteBuffer> r = exchange(emulator, packets);
+
+		// Junk between responses doesn't lose any of them
+		Assert.assertEquals(r.size(), 12);
+		for (int i = 0; i < r.size(); i++) {
+			int n = i + 1;
+			if (n % 4 == 0) {
+				Assert.assertNull(r.get(i));
+			} else if (n % 3 == 0) {
+				Assert.assertEquals(r.get(i).get() & 0xff, S3GEmulator.CRC_MISMATCH);
+			} else {
+				Assert.assertEquals(r.get(i).get() & 0xff, S3GEmulator.OK);
+			}
+		}
+		// A refused packet isn't run; one answered with a bad CRC is.
+		Assert.assertEquals(emulator.moves, 8);
+		Assert.assertTrue(emulator.noiseBytes >= 6);
+	}
+
+	@Test
+	public void garbledPacketsAreRefused() throws IOException {
+		S3GEmulator emulator = new S3GEmulator();
+		byte[] bad = query(S3GEmulator.VERSION);
+		bad[bad.length - 1] ^= 0x55;
+		List<ByteBuffer> r = exchange(emulator, bad, query(S3GEmulator.VERSION));
+		Assert.assertEquals(r.get(0).get() & 0xff, S3GEmulator.CRC_MISMATCH);
+		Assert.assertEquals(r.get(1).get() & 0xff, S3GEmulator.OK);
+		Assert.assertEquals(emulator.crcErrorsSeen, 1);
+	}
+}
@@ -0,0 +1,215 @@
+package testing.emulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.tools.XML;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.gen3.PacketTrace;
+import replicatorg.drivers.reprap.RepRap5DDriver;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Streams GCode through a machine's driver to whatever is on a serial port,
+ * and reports lines per second, how long each line took to hand over, how
+ * long the host sat waiting on the firmware, and for RepRap5D how many lines
+ * had to be sent again. Pointed at {@link S3GEmulator} or
+ * {@link MarlinEmulator} it gives numbers that can be compared from one
+ * transport or driver change to the next:
+ *
+ * <pre>
+ *   scripts/s3g-emulator-pty.py /tmp/ttyS3G -- java -cp ... testing.emulator.S3GEmulator --time-scale=0
+ *   java -Dgnu.io.rxtx.SerialPorts=/tmp/ttyS3G -cp ... testing.emulator.SerialThroughput /tmp/ttyS3G
+ *
+ *   scripts/s3g-emulator-pty.py /tmp/ttyACM -- java -cp ... testing.emulator.MarlinEmulator --drop=200
+ *   java -Dgnu.io.rxtx.SerialPorts=/tmp/ttyACM -cp ... testing.emulator.SerialThroughput \
+ *       --machine="Klimentkip (115200 Baud)" --driver.streaming=true /tmp/ttyACM
+ * </pre>
+ *
+ * With no files given, everything under examples/ is sent. --driver.NAME=VALUE
+ * sets NAME in the machine's driver XML, for trying out driver options.
+ * --trace=FILE records the S3G packets to FILE, for {@link PacketTraceReplay}.
+ *
+ * Runs through the driver the same way a build does, so preferences such as
+ * replicatorg.s3g.windowed_transport apply. Connecting to S3G firmware checks
+ * its version against firmware.xml, as ReplicatorG does, so that has to be
+ * there.
+ */
+public class SerialThroughput {
+
+	/// A line that takes longer than this to hand over had the host waiting on the firmware
+	static final long STALL_NANOS = 1000000;
+
+	static void usage() {
+		System.err.println("usage: SerialThroughput [--machine=NAME] [--driver.ELEMENT=VALUE ...] [--trace=FILE] PORT [GCODE FILE OR DIR ...]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		String machineName = "The Replicator Dual";
+		List<String[]> driverSettings = new ArrayList<String[]>();
+		List<String> rest = new ArrayList<String>();
+		String trace = null;
+		for (String arg : args) {
+			if (arg.startsWith("--machine=")) {
+				machineName = arg.substring(10);
+			} else if (arg.startsWith("--driver.") && arg.indexOf('=') > 9) {
+				int eq = arg.indexOf('=');
+				driverSettings.add(new String[] { arg.substring(9, eq), arg.substring(eq + 1) });
+			} else if (arg.startsWith("--trace=")) {
+				trace = arg.substring(8);
+			} else if (arg.startsWith("--")) {
+				usage();
+			} else {
+				rest.add(arg);
+			}
+		}
+		if (rest.isEmpty())
+			usage();
+		String port = rest.remove(0);
+		List<File> files = new ArrayList<File>();
+		if (rest.isEmpty())
+			rest.add("examples");
+		for (String name : rest)
+			findGCode(new File(name), files);
+
+		Node machineNode = MachineFactory.getMachineNode(machineName);
+		if (machineNode == null) {
+			System.err.println("No machine called " + machineName);
+			System.exit(1);
+		}
+		Node driverNode = XML.getChildNodeByName(machineNode, "driver");
+		for (String[] setting : driverSettings)
+			setChild(driverNode, setting[0], setting[1]);
+
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+		Driver driver = DriverFactory.factory(driverNode);
+		driver.setMachine(model);
+		if (!(driver instanceof UsesSerial)) {
+			System.err.println(machineName + " doesn't use a serial port");
+			System.exit(1);
+		}
+		if (trace != null)
+			PacketTrace.start(new File(trace), PacketTrace.DEFAULT_CAPACITY_MB << 20);
+		((UsesSerial) driver).openSerial(port);
+		driver.initialize();
+		if (!driver.isInitialized()) {
+			System.err.println("Couldn't talk to the machine on " + port);
+			System.exit(1);
+		}
+
+		GCodeParser parser = new GCodeParser();
+		parser.init((DriverQueryInterface) driver);
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		long[] lineNanos = new long[1024];
+		int lines = 0;
+		long retries = 0;
+		long stalled = 0;
+
+		long start = System.nanoTime();
+		for (File file : files) {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = in.readLine()) != null) {
+				long lineStart = System.nanoTime();
+				parser.parse(line, commands);
+				for (DriverCommand command : commands) {
+					while (true) {
+						try {
+							command.run(driver);
+							break;
+						} catch (RetryException e) {
+							retries++;
+						} catch (StopException e) {
+							break;
+						}
+					}
+				}
+				commands.clear();
+				if (lines == lineNanos.length)
+					lineNanos = Arrays.copyOf(lineNanos, lines * 2);
+				long took = System.nanoTime() - lineStart;
+				lineNanos[lines++] = took;
+				if (took > STALL_NANOS)
+					stalled += took;
+			}
+			in.close();
+		}
+		long sent = System.nanoTime() - start;
+		while (!driver.isFinished()) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		long finished = System.nanoTime() - start;
+
+		Arrays.sort(lineNanos, 0, lines);
+		System.out.println(lines + " lines from " + files.size() + " files sent in " + millis(sent)
+				+ " ms, finished in " + millis(finished) + " ms");
+		System.out.println((long) (lines / (sent / 1e9)) + " lines/sec, " + retries + " retries, stalled for "
+				+ millis(stalled) + " ms (" + (stalled * 100 / Math.max(sent, 1)) + "%)");
+		if (driver instanceof RepRap5DDriver) {
+			int resends = ((RepRap5DDriver) driver).getResendCount();
+			System.out.println(resends + " lines sent again ("
+					+ String.format("%.2f", resends * 100.0 / Math.max(lines, 1)) + "% of lines)");
+		}
+		if (lines > 0) {
+			System.out.println("per line: median " + micros(lineNanos[lines / 2]) + " us, 99th percentile "
+					+ micros(lineNanos[(int) (lines * 0.99)]) + " us, worst " + micros(lineNanos[lines - 1]) + " us");
+		}
+		driver.uninitialize();
+		driver.dispose();
+		PacketTrace.stop();
+		System.exit(0);
+	}
+
+	static void findGCode(File file, List<File> files) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			Arrays.sort(children);
+			for (File child : children)
+				findGCode(child, files);
+		} else if (file.getName().endsWith(".gcode")) {
+			files.add(file);
+		}
+	}
+
+	/** Set the text of node's child called name, adding it if need be. */
+	static void setChild(Node node, String name, String value) {
+		Node child = XML.getChildNodeByName(node, name);
+		if (child == null) {
+			child = node.getOwnerDocument().createElement(name);
+			node.appendChild(child);
+		}
+		((Element) child).setTextContent(value);
+	}
+
+	static long millis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	static long micros(long nanos) {
+		return nanos / 1000;
+	}
+}
@@ -0,0 +1,316 @@
+package testing.gcode;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.NullDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueueArc;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Checks that G2 and G3 arcs end where they always have, and that the
+ * segments in between stay on the arc without being too short to send.
+ */
+public class ArcInterpolationTest {
+
+	static final String[] SETUP = {
+		"G21", "G90", "G92 X0 Y0 Z0 A0 B0", "G1 X10 Y0 Z0.3 F3000",
+	};
+
+	/// Each arc, and where the parser ended it before arcs were sent lazily
+	static final Object[][] GOLDEN = {
+		{ "G2 X0 Y-10 I-10 J0", new double[] { 6.123233995736766E-16, -10.0, 0.3, 0.0, 0.0 } },
+		{ "G3 X10 Y0 I0 J10 Z0.6", new double[] { 10.0, 0.0, 0.6, 0.0, 0.0 } },
+		{ "G3 X10 Y0 I-10 J0", new double[] { 10.0, -2.4492935982947065E-15, 0.6, 0.0, 0.0 } },
+		{ "G2 X10 Y0 I-10 J0 F1200", new double[] { 10.0, 0.0, 0.6, 0.0, 0.0 } },
+		{ "G1 X50 Y50 F3000", null },
+		{ "G2 X50.6 Y50 I0.3 J0", new double[] { 50.599999999999994, 50.0, 0.6, 0.0, 0.0 } },
+		{ "G3 X50 Y50 I-0.3 J0", new double[] { 50.0, 50.0, 0.6, 0.0, 0.0 } },
+		{ "G3 X50 Y50 I0.5 J0.5 Z1.2", new double[] { 50.0, 50.0, 1.2, 0.0, 0.0 } },
+		{ "G1 X0 Y0 A5 F6000", null },
+		{ "G2 X20 Y20 I20 J0 A9", new double[] { 20.0, 20.0, 1.2, 5.0, 0.0 } },
+		{ "G91", null },
+		{ "G3 X-5 Y5 I-5 J0", new double[] { 15.0, 25.0, 1.2, 5.0, 0.0 } },
+		{ "G90", null },
+		// The end isn't on the circle; the arc ends on the start's radius
+		{ "G2 X130 Y20 I55 J-40 F600", new double[] { 128.74331623318977, 19.266934469360713, 1.2, 5.0, 0.0 } },
+	};
+
+	/** Keeps every point it's sent, and the feedrate for it, and can refuse one to test retries. */
+	static class Recorder extends NullDriver {
+		final List<Point5d> points = new ArrayList<Point5d>();
+		final List<Double> feedrates = new ArrayList<Double>();
+		int refuse = -1;
+
+		Recorder() {
+			setMachine(new MachineModel());
+		}
+
+		protected Point5d reconcilePosition() {
+			return new Point5d();
+		}
+
+		public void queuePoint(Point5d p) throws RetryException {
+			if (points.size() == refuse) {
+				refuse = -1;
+				throw new RetryException();
+			}
+			points.add(p);
+			feedrates.add(getCurrentFeedrate());
+			super.queuePoint(p);
+		}
+	}
+
+	double tolerance, segmentTime;
+
+	@BeforeMethod
+	public void saveSettings() {
+		tolerance = GCodeParser.arcToleranceMM;
+		segmentTime = GCodeParser.arcMinSegmentTime;
+	}
+
+	@AfterMethod
+	public void restoreSettings() {
+		GCodeParser.arcToleranceMM = tolerance;
+		GCodeParser.arcMinSegmentTime = segmentTime;
+	}
+
+	/// Parse a line and run it on the driver, returning its arc if it has one
+	static QueueArc run(GCodeParser parser, Recorder driver, String line) throws StopException {
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		parser.parse(line, commands);
+		QueueArc arc = null;
+		for (DriverCommand command : commands) {
+			if (command instanceof QueueArc)
+				arc = (QueueArc) command;
+			try {
+				command.run(driver);
+			} catch (RetryException e) {
+				Assert.fail("nothing was refused");
+			}
+		}
+		return arc;
+	}
+
+	static GCodeParser setUp(Recorder driver) throws StopException {
+		GCodeParser parser = new GCodeParser();
+		parser.init(driver);
+		for (String line : SETUP)
+			run(parser, driver, line);
+		return parser;
+	}
+
+	@Test
+	public void arcsEndWhereTheyUsedTo() throws StopException {
+		for (double segmentTime : new double[] { 0, 0.02 }) {
+			GCodeParser.arcMinSegmentTime = segmentTime;
+			Recorder driver = new Recorder();
+			GCodeParser parser = setUp(driver);
+			for (Object[] golden : GOLDEN) {
+				String line = (String) golden[0];
+				driver.points.clear();
+				QueueArc arc = run(parser, driver, line);
+				if (golden[1] == null)
+					continue;
+				Assert.assertNotNull(arc, line);
+				Assert.assertEquals(driver.points.size(), arc.getSteps(), line);
+				double[] end = (double[]) golden[1];
+				Point5d last = driver.points.get(driver.points.size() - 1);
+				for (int i = 0; i < 5; i++)
+					Assert.assertEquals(last.get(i), end[i], 1e-9, line + " axis " + i);
+			}
+		}
+	}
+
+	@Test
+	public void segmentsStayNearTheArc() throws StopException {
+		GCodeParser.arcToleranceMM = 0.01;
+		GCodeParser.arcMinSegmentTime = 0;
+		Recorder driver = new Recorder();
+		GCodeParser parser = setUp(driver);
+
+		// a small circle and a large one, about (50, 50)
+		for (double radius : new double[] { 0.3, 40 }) {
+			run(parser, driver, "G1 X" + (50 + radius) + " Y50");
+			driver.points.clear();
+			run(parser, driver, "G3 X" + (50 + radius) + " Y50 I-" + radius + " J0");
+			Point5d previous = new Point5d(50 + radius, 50, 0.3, 0, 0);
+			for (Point5d p : driver.points) {
+				Assert.assertEquals(Math.hypot(p.x() - 50, p.y() - 50), radius, 1e-9);
+				// the middle of the chord is as far off the arc as it gets
+				double midX = (p.x() + previous.x()) / 2 - 50;
+				double midY = (p.y() + previous.y()) / 2 - 50;
+				Assert.assertTrue(radius - Math.hypot(midX, midY) <= 0.01 + 1e-9, "radius " + radius);
+				previous = p;
+			}
+		}
+	}
+
+	/// Check that no segment of the last arc run was quicker than the shortest time
+	static void assertNotTooQuick(Recorder driver, Point5d start, String what) {
+		Point5d previous = start;
+		for (int i = 0; i < driver.points.size(); i++) {
+			Point5d p = driver.points.get(i);
+			double seconds = Math.hypot(p.x() - previous.x(), p.y() - previous.y()) / (driver.feedrates.get(i) / 60);
+			Assert.assertTrue(seconds >= GCodeParser.arcMinSegmentTime - 1e-9, what + " segment " + i + " took " + seconds);
+			previous = p;
+		}
+	}
+
+	/// Check that the last arc run, about (cx, cy), stayed within the tolerance of it
+	static void assertOnArc(Recorder driver, Point5d start, double cx, double cy, double radius, String what) {
+		Point5d previous = start;
+		for (Point5d p : driver.points) {
+			Assert.assertEquals(Math.hypot(p.x() - cx, p.y() - cy), radius, 1e-9, what);
+			double midX = (p.x() + previous.x()) / 2 - cx;
+			double midY = (p.y() + previous.y()) / 2 - cy;
+			Assert.assertTrue(radius - Math.hypot(midX, midY) <= GCodeParser.arcToleranceMM + 1e-9, what);
+			previous = p;
+		}
+	}
+
+	@Test
+	public void segmentsAreNotTooQuick() throws StopException {
+		GCodeParser.arcToleranceMM = 0.1;
+		GCodeParser.arcMinSegmentTime = 0.02;
+		Recorder driver = new Recorder();
+		GCodeParser parser = setUp(driver);
+
+		// At 3000mm/min a segment must be at least 1mm long. The tolerance
+		// would allow 10 segments, and the curve section asks for 13, so
+		// there are as many as there's time for, at full speed.
+		run(parser, driver, "G1 X52 Y50 F3000");
+		driver.points.clear();
+		driver.feedrates.clear();
+		QueueArc arc = run(parser, driver, "G3 X52 Y50 I-2 J0");
+		Assert.assertEquals(arc.getSteps(), (int) (2 * Math.PI * 2));
+		Assert.assertEquals(arc.getSegmentFeedrate(), 0.0);
+		assertNotTooQuick(driver, new Point5d(52, 50, 0.3, 0, 0), "circle");
+
+		// With a tighter tolerance, the segments it needs are too short for
+		// 3000mm/min, so the arc is drawn more slowly instead.
+		GCodeParser.arcToleranceMM = 0.001;
+		driver.points.clear();
+		driver.feedrates.clear();
+		arc = run(parser, driver, "G3 X52 Y50 I-2 J0");
+		Assert.assertEquals(arc.getSteps(), (int) Math.ceil(2 * Math.PI / (2 * Math.acos(1 - 0.001 / 2))));
+		Assert.assertTrue(arc.getSegmentFeedrate() > 0 && arc.getSegmentFeedrate() < 3000);
+		assertNotTooQuick(driver, new Point5d(52, 50, 0.3, 0, 0), "tight circle");
+		assertOnArc(driver, new Point5d(52, 50, 0.3, 0, 0), 50, 50, 2, "tight circle");
+		// and then put back
+		Assert.assertEquals(driver.getCurrentFeedrate(), 3000.0);
+	}
+
+	@Test
+	public void smallFastCirclesStayRound() throws StopException {
+		GCodeParser.arcToleranceMM = 0.01;
+		GCodeParser.arcMinSegmentTime = 0.02;
+		Recorder driver = new Recorder();
+		GCodeParser parser = setUp(driver);
+
+		// A 1mm circle at 6000mm/min would be a triangle if the segments
+		// had to take 0.02s at full speed.
+		run(parser, driver, "G1 X51 Y50 F6000");
+		driver.points.clear();
+		driver.feedrates.clear();
+		QueueArc arc = run(parser, driver, "G3 X51 Y50 I-1 J0");
+		Assert.assertTrue(arc.getSteps() >= 20, "only " + arc.getSteps() + " segments");
+		assertOnArc(driver, new Point5d(51, 50, 0.3, 0, 0), 50, 50, 1, "circle");
+		assertNotTooQuick(driver, new Point5d(51, 50, 0.3, 0, 0), "circle");
+		Assert.assertEquals(driver.getCurrentFeedrate(), 6000.0);
+
+		// and a semicircle would be its chord
+		driver.points.clear();
+		driver.feedrates.clear();
+		arc = run(parser, driver, "G3 X49 Y50 I-1 J0");
+		Assert.assertTrue(arc.getSteps() >= 10, "only " + arc.getSteps() + " segments");
+		assertOnArc(driver, new Point5d(51, 50, 0.3, 0, 0), 50, 50, 1, "semicircle");
+		assertNotTooQuick(driver, new Point5d(51, 50, 0.3, 0, 0), "semicircle");
+
+		// With no tolerance at all, a circle still has four sides.
+		GCodeParser.arcToleranceMM = 0;
+		run(parser, driver, "G1 X50.1 Y50");
+		arc = run(parser, driver, "G3 X50.1 Y50 I-0.1 J0");
+		Assert.assertEquals(arc.getSteps(), 4);
+	}
+
+	@Test
+	public void retryCarriesOnFromTheRefusedMove() throws StopException {
+		Recorder driver = new Recorder();
+		GCodeParser parser = setUp(driver);
+
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		parser.parse("G2 X0 Y-10 I-10 J0", commands);
+		QueueArc arc = (QueueArc) commands.peek();
+		driver.points.clear();
+		driver.refuse = 3;
+		try {
+			arc.run(driver);
+			Assert.fail("the driver refused a move");
+		} catch (RetryException e) {
+		}
+		Assert.assertEquals(driver.points.size(), 3);
+		try {
+			arc.run(driver);
+		} catch (RetryException e) {
+			Assert.fail("nothing more was refused");
+		}
+		Assert.assertEquals(driver.points.size(), arc.getSteps());
+		for (int s = 1; s <= arc.getSteps(); s++)
+			Assert.assertEquals(driver.points.get(s - 1).get3D(), arc.getPoint(s).get3D());
+	}
+
+	@Test
+	public void slowedArcPutsBackTheDriversFeedrate() throws StopException, RetryException {
+		GCodeParser.arcToleranceMM = 0.001;
+		GCodeParser.arcMinSegmentTime = 0.02;
+		Recorder driver = new Recorder();
+		GCodeParser parser = setUp(driver);
+		run(parser, driver, "G1 X52 Y50 F3000");
+
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		parser.parse("G3 X52 Y50 I-2 J0", commands);
+		QueueArc arc = (QueueArc) commands.peek();
+		Assert.assertTrue(arc.getSegmentFeedrate() > 0);
+
+		// Whatever the driver was at before the arc, even after a retry
+		driver.setFeedrateMM(2500);
+		driver.refuse = 3;
+		try {
+			arc.run(driver);
+			Assert.fail("the driver refused a move");
+		} catch (RetryException e) {
+		}
+		arc.run(driver);
+		Assert.assertEquals(driver.getCurrentFeedrate(), 2500.0);
+	}
+
+	@Test
+	public void curveSectionIsTheSameLengthInInches() throws StopException {
+		GCodeParser.arcToleranceMM = 1;
+		GCodeParser.arcMinSegmentTime = 0;
+		Recorder driver = new Recorder();
+		GCodeParser parser = setUp(driver);
+		// A semicircle of radius 1in
+		run(parser, driver, "G1 X50 Y50");
+		QueueArc mm = run(parser, driver, "G3 X-0.8 Y50 I-25.4 J0");
+
+		run(parser, driver, "G1 X50 Y50");
+		run(parser, driver, "G20");
+		QueueArc inches = run(parser, driver, "G3 X" + (-0.8 / 25.4) + " Y" + (50 / 25.4) + " I-1 J0");
+		Assert.assertEquals(inches.getSteps(), mm.getSteps());
+		Assert.assertEquals(mm.getSteps(), (int) Math.ceil(Math.PI * 25.4 / GCodeParser.curveSectionMM));
+	}
+}
@@ -0,0 +1,124 @@
+package testing.gcode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.GCodeFilter;
+import replicatorg.app.gcode.GCodePipeline;
+
+/**
+ * Checks that rewriting a file in place never loses it, even when the
+ * result can't be moved into its place.
+ */
+public class GCodePipelineTest {
+
+	static final String[] JOB = { "G21", "G90", "G1 X10 Y20 Z0.3 F1800", "M18" };
+
+	/** A pipeline that adds a line to the end of the file. */
+	static GCodePipeline pipeline(final boolean failResult, final boolean failRestore) {
+		GCodePipeline pipeline = new GCodePipeline() {
+			protected boolean rename(File from, File to) {
+				if (failResult && from.getName().endsWith(".tmp"))
+					return false;
+				if (failRestore && from.getName().endsWith(".bak"))
+					return false;
+				return super.rename(from, to);
+			}
+		};
+		return pipeline.add(new GCodeFilter() {
+			public void finish() throws IOException {
+				emit("M2");
+				super.finish();
+			}
+		});
+	}
+
+	static File job() throws IOException {
+		File dir = File.createTempFile("pipeline", "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		File file = new File(dir, "job.gcode");
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		for (String line : JOB)
+			out.println(line);
+		out.close();
+		return file;
+	}
+
+	static List<String> read(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		for (String line = in.readLine(); line != null; line = in.readLine())
+			lines.add(line);
+		in.close();
+		return lines;
+	}
+
+	static void clean(File dir) {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void rewriteReplacesTheFile() throws IOException {
+		File file = job();
+		pipeline(false, false).rewrite(file);
+		List<String> lines = read(file);
+		Assert.assertEquals(lines.size(), JOB.length + 1);
+		Assert.assertEquals(lines.get(JOB.length), "M2");
+		// Nothing left lying around next to it
+		Assert.assertEquals(file.getParentFile().list().length, 1);
+		clean(file.getParentFile());
+	}
+
+	@Test
+	public void failedRenameKeepsTheOriginal() throws IOException {
+		File file = job();
+		try {
+			pipeline(true, false).rewrite(file);
+			Assert.fail("the rename failed, but nobody was told");
+		} catch (IOException e) {
+			// expected
+		}
+		List<String> lines = read(file);
+		Assert.assertEquals(lines.size(), JOB.length);
+		for (int i = 0; i < JOB.length; i++)
+			Assert.assertEquals(lines.get(i), JOB[i]);
+		Assert.assertEquals(file.getParentFile().list().length, 1);
+		clean(file.getParentFile());
+	}
+
+	@Test
+	public void failedRestoreKeepsBothFiles() throws IOException {
+		File file = job();
+		try {
+			pipeline(true, true).rewrite(file);
+			Assert.fail("the rename failed, but nobody was told");
+		} catch (IOException e) {
+			// expected
+		}
+		File original = null, result = null;
+		for (File f : file.getParentFile().listFiles()) {
+			if (f.getName().endsWith(".bak"))
+				original = f;
+			else if (f.getName().endsWith(".tmp"))
+				result = f;
+		}
+		Assert.assertNotNull(original, "the original is gone");
+		Assert.assertNotNull(result, "the result is gone");
+		Assert.assertEquals(read(original).size(), JOB.length);
+		Assert.assertEquals(read(result).size(), JOB.length + 1);
+		clean(file.getParentFile());
+	}
+}
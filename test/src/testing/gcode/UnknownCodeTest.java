@@ -0,0 +1,58 @@
+package testing.gcode;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.NullDriver;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Checks that a code the parser doesn't know gives up on the line, and is
+ * warned about the first time it turns up, as the safety checks put it.
+ */
+public class UnknownCodeTest {
+
+	@Test
+	public void unknownCodesAreWarnedAboutOnce() {
+		NullDriver driver = new NullDriver();
+		driver.setMachine(new MachineModel());
+		GCodeParser parser = new GCodeParser();
+		parser.init(driver);
+
+		final List<LogRecord> records = new ArrayList<LogRecord>();
+		Handler handler = new Handler() {
+			public void publish(LogRecord record) {
+				records.add(record);
+			}
+			public void flush() {}
+			public void close() {}
+		};
+		Base.logger.addHandler(handler);
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		try {
+			for (int i = 0; i < 3; i++) {
+				parser.parse("M999", commands);
+				parser.parse("G77 X1", commands);
+			}
+		} finally {
+			Base.logger.removeHandler(handler);
+		}
+
+		Assert.assertTrue(commands.isEmpty());
+		Assert.assertEquals(records.size(), 2);
+		Assert.assertEquals(records.get(0).getLevel(), Level.WARNING);
+		Assert.assertTrue(records.get(0).getMessage().startsWith("ReplicatorG doesn't recognize GCode 'M999'"));
+		Assert.assertTrue(records.get(1).getMessage().startsWith("ReplicatorG doesn't recognize GCode 'G77'"));
+	}
+}
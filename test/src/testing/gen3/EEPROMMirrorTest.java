@@ -0,0 +1,228 @@
+package testing.gen3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.gen3.PacketEncoder;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketResponse;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+import replicatorg.machine.model.MachineModel;
+import testing.emulator.S3GEmulator;
+
+/**
+ * Checks the EEPROM copy against an emulated board: the first read sweeps
+ * the image, writes only send what changed, a failed write throws the copy
+ * away, and nothing is kept from one onboard parameters session to the
+ * next.
+ */
+public class EEPROMMirrorTest {
+
+	static final String CACHE = "replicatorg.s3g.eeprom_cache";
+
+	static final int READ_EEPROM = 12;
+	static final int WRITE_EEPROM = 13;
+
+	/// What the driver reads in its first sweep, in lines
+	static final int IMAGE_LINES = 0x200 / 16;
+
+	private String cache;
+
+	@BeforeMethod
+	public void turnOn() {
+		cache = Base.preferences.get(CACHE, null);
+		Base.preferences.putBoolean(CACHE, true);
+	}
+
+	@AfterMethod
+	public void turnBack() {
+		if (cache == null)
+			Base.preferences.remove(CACHE);
+		else
+			Base.preferences.put(CACHE, cache);
+	}
+
+	/** A driver talking to an emulated board, keeping the packets it sends. */
+	static class Driver extends Sanguino3GDriver {
+		final S3GEmulator board = new S3GEmulator();
+		final List<byte[]> sent = new ArrayList<byte[]>();
+		boolean failWrites = false;
+
+		Driver() {
+			setMachine(new MachineModel());
+		}
+
+		protected boolean hasBoard() {
+			return true;
+		}
+
+		protected PacketResponse runCommand(byte[] packet, int retries) {
+			sent.add(packet);
+			if (failWrites && code(packet) == WRITE_EEPROM)
+				return PacketResponse.timeoutResponse();
+			return exchange(packet);
+		}
+
+		/** Hand a packet straight to the board, as the front panel would. */
+		PacketResponse exchange(byte[] packet) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				board.serve(new ByteArrayInputStream(packet), out);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			PacketProcessor pp = new PacketProcessor();
+			for (byte b : out.toByteArray()) {
+				try {
+					if (pp.processByte(b))
+						return pp.getResponse();
+				} catch (CRCException e) {
+					break;
+				}
+			}
+			return PacketResponse.timeoutResponse();
+		}
+
+		byte[] read(int offset, int length) {
+			return readFromEEPROM(offset, length);
+		}
+
+		void write(int offset, byte[] data) {
+			writeToEEPROM(offset, data);
+		}
+
+		/** How many packets of this kind went out since the last call. */
+		List<byte[]> take(int code) {
+			List<byte[]> taken = new ArrayList<byte[]>();
+			for (byte[] packet : sent)
+				if (code(packet) == code)
+					taken.add(packet);
+			sent.clear();
+			return taken;
+		}
+	}
+
+	static int code(byte[] packet) {
+		return packet[2] & 0xff;
+	}
+
+	static byte[] writePacket(int offset, byte... data) {
+		PacketEncoder pe = new PacketEncoder().begin(WRITE_EEPROM).add16(offset).add8(data.length);
+		for (byte b : data)
+			pe.add8(b);
+		return pe.toPacket();
+	}
+
+	static byte[] line(int first) {
+		byte[] data = new byte[16];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (first + i);
+		return data;
+	}
+
+	@Test
+	public void firstReadSweepsTheImage() {
+		Driver driver = new Driver();
+		driver.exchange(writePacket(0x40, line(1)));
+		driver.beginEEPROMSession();
+
+		Assert.assertEquals(driver.read(0x40, 16), line(1));
+		Assert.assertEquals(driver.take(READ_EEPROM).size(), IMAGE_LINES);
+
+		// Everything in the image comes from the copy now
+		Assert.assertEquals(driver.read(0x44, 4), new byte[] { 5, 6, 7, 8 });
+		Assert.assertEquals(driver.read(0x1f0, 16).length, 16);
+		Assert.assertEquals(driver.take(READ_EEPROM).size(), 0);
+		driver.endEEPROMSession();
+	}
+
+	@Test
+	public void writeSendsOnlyWhatChanged() {
+		Driver driver = new Driver();
+		driver.exchange(writePacket(0x40, line(1)));
+		driver.beginEEPROMSession();
+		driver.read(0x40, 16);
+		driver.take(READ_EEPROM);
+
+		byte[] data = line(1);
+		data[3] = 100;
+		data[5] = 101;
+		driver.write(0x40, data);
+		List<byte[]> writes = driver.take(WRITE_EEPROM);
+		Assert.assertEquals(writes.size(), 1);
+		// Bytes 3 to 5 go out as one run, at their own offset
+		byte[] write = writes.get(0);
+		Assert.assertEquals((write[3] & 0xff) | (write[4] & 0xff) << 8, 0x43);
+		Assert.assertEquals(write[5], 3);
+
+		// Writing the same again sends nothing, and the copy reads it back
+		driver.write(0x40, data);
+		Assert.assertEquals(driver.take(WRITE_EEPROM).size(), 0);
+		Assert.assertEquals(driver.read(0x40, 16), data);
+		driver.endEEPROMSession();
+
+		// The board has it too
+		Assert.assertEquals(driver.read(0x40, 16), data);
+		Assert.assertEquals(driver.take(READ_EEPROM).size(), 1);
+	}
+
+	@Test
+	public void failedWriteForgetsTheCopy() {
+		Driver driver = new Driver();
+		driver.beginEEPROMSession();
+		driver.read(0x40, 16);
+		driver.take(READ_EEPROM);
+
+		driver.failWrites = true;
+		driver.write(0x40, line(1));
+		Assert.assertEquals(driver.take(WRITE_EEPROM).size(), 1);
+		driver.failWrites = false;
+
+		// We can't tell what the board has, so it's read again
+		driver.read(0x40, 16);
+		Assert.assertEquals(driver.take(READ_EEPROM).size(), IMAGE_LINES);
+		driver.write(0x40, line(1));
+		Assert.assertEquals(driver.take(WRITE_EEPROM).size(), 1);
+		driver.endEEPROMSession();
+	}
+
+	@Test
+	public void changesBetweenSessionsAreSeen() {
+		Driver driver = new Driver();
+		driver.exchange(writePacket(0x40, line(1)));
+		driver.beginEEPROMSession();
+		Assert.assertEquals(driver.read(0x40, 16), line(1));
+		driver.endEEPROMSession();
+
+		// The front panel changes a value while no window is open
+		driver.exchange(writePacket(0x42, (byte) 50));
+		Assert.assertEquals(driver.read(0x42, 1), new byte[] { 50 });
+
+		// The next window sees it, and can set it back
+		driver.beginEEPROMSession();
+		Assert.assertEquals(driver.read(0x40, 16)[2], 50);
+		driver.take(WRITE_EEPROM);
+		driver.write(0x40, line(1));
+		Assert.assertEquals(driver.take(WRITE_EEPROM).size(), 1);
+		driver.endEEPROMSession();
+		Assert.assertEquals(driver.read(0x40, 16), line(1));
+	}
+
+	@Test
+	public void noCopyOutsideASession() {
+		Driver driver = new Driver();
+		driver.read(0x40, 16);
+		driver.read(0x40, 16);
+		Assert.assertEquals(driver.take(READ_EEPROM).size(), 2);
+	}
+}
@@ -0,0 +1,142 @@
+package testing.gen3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Checks that merging moves keeps their speed: the older move packets give
+ * the time between steps of the axis that moves furthest, not the time the
+ * whole move takes.
+ */
+public class MoveCoalescerTest {
+
+	static final String COALESCE = "replicatorg.s3g.coalesce_moves";
+
+	static final int QUEUE_POINT_ABS = 129;
+	static final int QUEUE_POINT_EXT = 139;
+
+	private String coalesce;
+
+	@BeforeMethod
+	public void turnOn() {
+		coalesce = Base.preferences.get(COALESCE, null);
+		Base.preferences.putBoolean(COALESCE, true);
+	}
+
+	@AfterMethod
+	public void turnBack() {
+		if (coalesce == null)
+			Base.preferences.remove(COALESCE);
+		else
+			Base.preferences.put(COALESCE, coalesce);
+	}
+
+	/** A driver that lets us hand it packets, capturing to a file. */
+	static class Driver extends Sanguino3GDriver {
+		Driver() {
+			setMachine(new MachineModel());
+		}
+
+		void send(byte[] packet) throws RetryException {
+			runCommand(packet, 1);
+		}
+	}
+
+	/** A move packet with the given targets and rate. */
+	static byte[] move(int code, long rate, long... target) {
+		byte[] packet = new byte[3 + 4 * target.length + 4 + 1];
+		packet[0] = (byte) 0xD5;
+		packet[1] = (byte) (packet.length - 3);
+		packet[2] = (byte) code;
+		int offset = 3;
+		for (long t : target)
+			offset = put32(packet, offset, t);
+		put32(packet, offset, rate);
+		return packet;
+	}
+
+	static int put32(byte[] packet, int offset, long v) {
+		for (int i = 0; i < 4; i++)
+			packet[offset + i] = (byte) (v >> (8 * i));
+		return offset + 4;
+	}
+
+	static long get32(byte[] data, int offset) {
+		long v = 0;
+		for (int i = 0; i < 4; i++)
+			v |= (long) (data[offset + i] & 0xff) << (8 * i);
+		return v;
+	}
+
+	/** The captured moves, as their targets followed by their rates. */
+	static List<long[]> captured(File file, int axes) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		Assert.assertEquals(in.read(data), data.length);
+		in.close();
+		List<long[]> moves = new ArrayList<long[]>();
+		for (int offset = 0; offset < data.length; offset += 1 + 4 * (axes + 1)) {
+			long[] move = new long[axes + 1];
+			for (int i = 0; i <= axes; i++)
+				move[i] = get32(data, offset + 1 + 4 * i);
+			moves.add(move);
+		}
+		return moves;
+	}
+
+	static List<long[]> run(int code, long[]... targets) throws Exception {
+		return run(code, true, targets);
+	}
+
+	static List<long[]> run(int code, boolean flush, long[]... targets) throws Exception {
+		File file = File.createTempFile("coalesce", ".s3g");
+		file.deleteOnExit();
+		Driver driver = new Driver();
+		driver.beginFileCapture(file.getPath());
+		for (long[] target : targets)
+			driver.send(move(code, 100, target));
+		if (flush)
+			driver.flush();
+		driver.endFileCapture();
+		return captured(file, targets[0].length);
+	}
+
+	@Test
+	public void mergedAbsoluteMovesKeepTheirSpeed() throws Exception {
+		// The first move only tells us where the rest start. The next two
+		// run at the same speed, but one is twice as long as the other.
+		List<long[]> moves = run(QUEUE_POINT_ABS,
+				new long[] { 0, 0, 0 }, new long[] { 100, 50, 0 }, new long[] { 300, 150, 0 });
+		Assert.assertEquals(moves.size(), 2);
+		Assert.assertEquals(moves.get(1), new long[] { 300, 150, 0, 100 });
+	}
+
+	@Test
+	public void mergedExtendedMovesKeepTheirSpeed() throws Exception {
+		List<long[]> moves = run(QUEUE_POINT_EXT,
+				new long[] { 0, 0, 0, 0, 0 }, new long[] { 100, 0, 0, 40, 0 }, new long[] { 300, 0, 0, 120, 0 });
+		Assert.assertEquals(moves.size(), 2);
+		Assert.assertEquals(moves.get(1), new long[] { 300, 0, 0, 120, 0, 100 });
+	}
+
+	@Test
+	public void endingCaptureWritesTheHeldMove() throws Exception {
+		List<long[]> moves = run(QUEUE_POINT_ABS, false,
+				new long[] { 0, 0, 0 }, new long[] { 100, 0, 0 }, new long[] { 100, 100, 0 });
+		Assert.assertEquals(moves.size(), 3);
+		Assert.assertEquals(moves.get(2), new long[] { 100, 100, 0, 100 });
+	}
+}
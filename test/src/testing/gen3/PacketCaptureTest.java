@@ -0,0 +1,66 @@
+package testing.gen3;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Checks that capturing packets for an upload never drops one quietly.
+ */
+public class PacketCaptureTest {
+
+	static class Driver extends Sanguino3GDriver {
+		Driver() {
+			setMachine(new MachineModel());
+		}
+
+		void send(byte[] packet) throws RetryException {
+			runCommand(packet, 1);
+		}
+	}
+
+	/// A command packet with no payload; the CRC doesn't matter here
+	static byte[] command(int code) {
+		return new byte[] { (byte) 0xD5, 1, (byte) code, 0 };
+	}
+
+	@Test
+	public void capturesCommandsOnly() throws RetryException {
+		Driver driver = new Driver();
+		BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(4);
+		driver.beginPacketCapture(Thread.currentThread(), queue);
+		try {
+			driver.send(command(137));
+			driver.send(command(2));
+		} finally {
+			driver.endPacketCapture();
+		}
+		Assert.assertEquals(queue.size(), 1);
+		Assert.assertEquals(queue.peek()[2] & 0xff, 137);
+	}
+
+	@Test
+	public void interruptedCaptureStops() throws RetryException {
+		Driver driver = new Driver();
+		BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(1);
+		queue.add(command(137));
+		driver.beginPacketCapture(Thread.currentThread(), queue);
+		Thread.currentThread().interrupt();
+		try {
+			driver.send(command(137));
+			Assert.fail("the packet was dropped, but nobody was told");
+		} catch (RuntimeException e) {
+			// expected
+		} finally {
+			Assert.assertTrue(Thread.interrupted(), "the interrupt was swallowed");
+			driver.endPacketCapture();
+		}
+		Assert.assertEquals(queue.size(), 1);
+	}
+}
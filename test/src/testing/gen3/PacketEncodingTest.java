@@ -0,0 +1,195 @@
+package testing.gen3;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.drivers.gen3.PacketEncoder;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+import replicatorg.drivers.gen3.PacketResponse;
+
+/**
+ * Checks the reusable encoder and decoder against the way packets
+ * were built before: a fresh buffer per packet and a CRC worked out a bit
+ * at a time.
+ */
+public class PacketEncodingTest {
+
+	/** The old PacketBuilder, byte for byte. */
+	static class LegacyPacketBuilder {
+		byte[] data = new byte[256];
+		int idx = 2;
+		int crc = 0;
+
+		LegacyPacketBuilder(int command) {
+			data[0] = (byte) 0xD5;
+			add8((byte) command);
+		}
+
+		void add8(int v) {
+			data[idx++] = (byte) v;
+			crc = bitwiseCrc(crc, (byte) v);
+		}
+
+		void add16(int v) {
+			add8((byte) (v & 0xff));
+			add8((byte) ((v >> 8) & 0xff));
+		}
+
+		void add32(long v) {
+			add16((int) (v & 0xffff));
+			add16((int) ((v >> 16) & 0xffff));
+		}
+
+		void addFloat(float v) {
+			add32((long) Float.floatToIntBits(v));
+		}
+
+		int addString(String string, int maxSize) {
+			int roomRemaining = maxSize;
+			int cursor = 0;
+			while (roomRemaining > 0 && cursor < string.length()) {
+				add8(string.charAt(cursor));
+				cursor++;
+				roomRemaining--;
+			}
+			add8('\0');
+			return cursor;
+		}
+
+		byte[] getPacket() {
+			data[idx] = (byte) crc;
+			data[1] = (byte) (idx - 2);
+			byte[] rv = new byte[idx + 1];
+			System.arraycopy(data, 0, rv, 0, idx + 1);
+			return rv;
+		}
+	}
+
+	static int bitwiseCrc(int crc, byte data) {
+		crc = (crc ^ data) & 0xff;
+		for (int i = 0; i < 8; i++) {
+			if ((crc & 0x01) != 0) {
+				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+			} else {
+				crc = (crc >>> 1) & 0xff;
+			}
+		}
+		return crc;
+	}
+
+	@Test
+	public void crcTableMatchesBitwise() {
+		for (int crc = 0; crc < 256; crc++) {
+			for (int b = 0; b < 256; b++) {
+				Assert.assertEquals(IButtonCrc.update(crc, (byte) b), bitwiseCrc(crc, (byte) b));
+			}
+		}
+	}
+
+	@Test
+	public void encoderMatchesLegacyBuilder() {
+		Random random = new Random(3);
+		PacketEncoder encoder = new PacketEncoder();
+		for (int n = 0; n < 20000; n++) {
+			int command = random.nextInt(256);
+			LegacyPacketBuilder legacy = new LegacyPacketBuilder(command);
+			encoder.begin(command);
+			int room = 240;
+			while (room > 20 && random.nextInt(8) != 0) {
+				switch (random.nextInt(5)) {
+				case 0: {
+					int v = random.nextInt();
+					legacy.add8(v);
+					encoder.add8(v);
+					room -= 1;
+					break;
+				}
+				case 1: {
+					int v = random.nextInt();
+					legacy.add16(v);
+					encoder.add16(v);
+					room -= 2;
+					break;
+				}
+				case 2: {
+					long v = random.nextBoolean() ? random.nextInt() : random.nextLong() & 0xffffffffL;
+					legacy.add32(v);
+					encoder.add32(v);
+					room -= 4;
+					break;
+				}
+				case 3: {
+					float v = random.nextFloat() * 1000 - 500;
+					legacy.addFloat(v);
+					encoder.addFloat(v);
+					room -= 4;
+					break;
+				}
+				default: {
+					String s = Long.toString(random.nextLong(), 36);
+					int max = random.nextInt(12);
+					Assert.assertEquals(encoder.addString(s, max), legacy.addString(s, max));
+					room -= max + 1;
+					break;
+				}
+				}
+			}
+			byte[] expected = legacy.getPacket();
+			Assert.assertEquals(encoder.toPacket(), expected);
+		}
+	}
+
+	@Test
+	public void processorDecodesBackToBack() throws CRCException {
+		Random random = new Random(5);
+		PacketProcessor pp = new PacketProcessor();
+		PacketEncoder encoder = new PacketEncoder();
+		for (int n = 0; n < 5000; n++) {
+			int length = random.nextInt(60);
+			encoder.begin(random.nextInt(256));
+			byte[] payload = new byte[length];
+			random.nextBytes(payload);
+			for (byte b : payload)
+				encoder.add8(b);
+			byte[] packet = encoder.toPacket();
+
+			PacketResponse response = null;
+			for (int i = 0; i < packet.length; i++) {
+				boolean done = pp.processByte(packet[i]);
+				Assert.assertEquals(done, i == packet.length - 1);
+				if (done)
+					response = pp.getResponse();
+			}
+			Assert.assertEquals(Arrays.copyOfRange(response.getPayload(), 1, length + 1), payload);
+			Assert.assertEquals(response.getPayload()[0], packet[2]);
+		}
+	}
+
+	@Test
+	public void processorRecoversAfterBadCrc() throws CRCException {
+		PacketProcessor pp = new PacketProcessor();
+		byte[] bad = new PacketEncoder().begin(0x81).add16(1234).toPacket();
+		byte[] good = new PacketEncoder().begin(0x81).add16(4321).toPacket();
+		bad[bad.length - 1] ^= 0x01;
+
+		boolean threw = false;
+		try {
+			for (byte b : bad)
+				pp.processByte(b);
+		} catch (CRCException e) {
+			threw = true;
+		}
+		Assert.assertTrue(threw);
+
+		boolean done = false;
+		for (byte b : good)
+			done = pp.processByte(b);
+		Assert.assertTrue(done);
+		Assert.assertEquals(pp.getResponse().getPayload(), new byte[] { (byte) 0x81, (byte) 0xe1, 0x10 });
+	}
+}
@@ -0,0 +1,127 @@
+package testing.gen3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.gen3.PacketTrace;
+import replicatorg.drivers.gen3.PacketTrace.Record;
+
+/**
+ * Checks that a packet trace reads back what was recorded, in order, and
+ * that once the ring fills it keeps the newest records whole.
+ */
+public class PacketTraceTest {
+
+	static byte[] packet(int n) {
+		byte[] data = new byte[1 + n % 23];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (n + i);
+		return data;
+	}
+
+	@Test
+	public void readsBackInOrder() throws IOException {
+		File file = File.createTempFile("trace", ".s3gtrace");
+		try {
+			PacketTrace trace = new PacketTrace(file, 4096);
+			for (int n = 0; n < 20; n++)
+				trace.record(n % 2 == 0 ? PacketTrace.OUT : PacketTrace.IN, packet(n));
+			trace.record(PacketTrace.TIMEOUT);
+			trace.close();
+
+			List<Record> records = PacketTrace.read(file);
+			Assert.assertEquals(records.size(), 21);
+			long last = -1;
+			for (int n = 0; n < 20; n++) {
+				Record r = records.get(n);
+				Assert.assertEquals(r.type, n % 2 == 0 ? PacketTrace.OUT : PacketTrace.IN);
+				Assert.assertEquals(r.data, packet(n));
+				Assert.assertTrue(r.nanos >= last);
+				last = r.nanos;
+			}
+			Assert.assertEquals(records.get(20).type, PacketTrace.TIMEOUT);
+			Assert.assertEquals(records.get(20).data.length, 0);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void keepsTheNewestWhenFull() throws IOException {
+		File file = File.createTempFile("trace", ".s3gtrace");
+		try {
+			PacketTrace trace = new PacketTrace(file, 1000);
+			// Enough to go round the ring a few times, at every offset
+			int total = 500;
+			for (int n = 0; n < total; n++) {
+				trace.record(PacketTrace.OUT, packet(n));
+				if (n % 50 == 49) {
+					// Also check it reads back while it's being written: a
+					// run of records with none missing, and all of them once
+					// the header is brought up to date
+					List<Record> before = PacketTrace.read(file);
+					checkTail(before, first(before) + before.size());
+					trace.flush();
+					checkTail(PacketTrace.read(file), n + 1);
+				}
+			}
+			trace.close();
+			List<Record> records = checkTail(PacketTrace.read(file), total);
+			// Nearly the whole ring should still be there.
+			int bytes = 0;
+			for (Record r : records)
+				bytes += 11 + r.data.length;
+			Assert.assertTrue(bytes > 1000 - 2 * (11 + 23), "only " + bytes + " bytes kept");
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void restartsOnTheSameFile() throws IOException {
+		File file = File.createTempFile("trace", ".s3gtrace");
+		try {
+			PacketTrace old = null;
+			for (int round = 0; round < 50; round++) {
+				PacketTrace trace = new PacketTrace(file, 4096);
+				// Whoever held on to the last one mustn't write into this one
+				if (old != null) {
+					old.close();
+					old.record(PacketTrace.OUT, packet(99));
+				}
+				trace.record(PacketTrace.OUT, packet(round));
+				old = trace;
+			}
+			old.close();
+			List<Record> records = PacketTrace.read(file);
+			Assert.assertEquals(records.size(), 1);
+			Assert.assertEquals(records.get(0).data, packet(49));
+		} finally {
+			file.delete();
+		}
+	}
+
+	/// The number of the first packet read back
+	private int first(List<Record> records) {
+		Assert.assertFalse(records.isEmpty());
+		byte[] data = records.get(0).data;
+		for (int n = 0; ; n++) {
+			if (Arrays.equals(data, packet(n)))
+				return n;
+		}
+	}
+
+	/// Check the records are the last of the first total, with none missing.
+	private List<Record> checkTail(List<Record> records, int total) {
+		Assert.assertFalse(records.isEmpty());
+		int first = total - records.size();
+		for (int i = 0; i < records.size(); i++)
+			Assert.assertEquals(records.get(i).data, packet(first + i));
+		return records;
+	}
+}
@@ -0,0 +1,78 @@
+package testing.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.NullDriver;
+import replicatorg.drivers.commands.CommandCodec;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Checks that the commands the parser makes come back the same after being
+ * stored for the command cache.
+ */
+public class CommandCodecTest {
+
+	static final String[] JOB = {
+		"G21", "G90", "G92 X0 Y0 Z0 A0 B0",
+		"M104 S220 T0", "M109 S110 T0", "M6 T0", "M101", "M108 R3.0", "M103",
+		"G1 X10 Y5 Z0.3 F3000", "G1 X10.5 Y5.5 A12.25", "G2 X20 Y5 I5 J0", "G3 X10 Y5 R5",
+		"G4 P250", "M70 P5 (Hello, world)", "M73 P50 (Build 'penny')", "M72 P1",
+		"G28 X Y", "M18", "M17", "G10 P1 X1 Y2 Z3", "G54", "M126", "M127", "M300",
+	};
+
+	static byte[] encode(Queue<DriverCommand> commands) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (DriverCommand command : commands)
+			Assert.assertTrue(CommandCodec.write(command, out), "can't store " + command.getClass().getSimpleName());
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void parsedCommandsRoundTrip() throws IOException {
+		// The parser only asks where the machine is; it's never moved.
+		NullDriver driver = new NullDriver() {
+			protected Point5d reconcilePosition() {
+				return new Point5d();
+			}
+		};
+		driver.setMachine(new MachineModel());
+		GCodeParser parser = new GCodeParser();
+		parser.init(driver);
+
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		for (String line : JOB)
+			parser.parse(line, commands);
+		Assert.assertTrue(commands.size() > JOB.length);
+
+		byte[] stored = encode(commands);
+		Queue<DriverCommand> read = readAll(stored);
+		Assert.assertEquals(read.size(), commands.size());
+		Iterator<DriverCommand> back = read.iterator();
+		for (DriverCommand command : commands)
+			Assert.assertEquals(back.next().getClass(), command.getClass());
+		// Everything that was stored came back.
+		Assert.assertEquals(encode(read), stored);
+	}
+
+	static Queue<DriverCommand> readAll(byte[] stored) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(stored);
+		Queue<DriverCommand> read = new LinkedList<DriverCommand>();
+		while (in.hasRemaining())
+			read.add(CommandCodec.read(in));
+		return read;
+	}
+}
@@ -0,0 +1,111 @@
+package testing.machine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.NullDriver;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.builder.LayerIndex;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.IndexedGCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Checks that the code to resume a build at a layer puts the machine back
+ * where it was, whatever locale ReplicatorG is running in.
+ */
+public class LayerResumeTest {
+
+	static final String[] JOB = {
+		"G21", "G90", "(<layer> 0.3 )", "G1 X10 Y20 Z0.3 F1800", "(<layer> 0.6 )", "G1 X30 Y40 Z0.6 A2.5",
+	};
+
+	/** A driver for a machine with one extruder. */
+	static NullDriver driver() {
+		MachineModel machine = new MachineModel();
+		machine.addTool(new ToolModel());
+		// The parser only asks where the machine is once it's been told.
+		NullDriver driver = new NullDriver() {
+			protected Point5d reconcilePosition() {
+				return new Point5d();
+			}
+		};
+		driver.setMachine(machine);
+		return driver;
+	}
+
+	/** Run the code through the parser, and say where it leaves the machine. */
+	static Point5d runResumeCode(GCodeSource source) {
+		NullDriver driver = driver();
+		GCodeParser parser = new GCodeParser();
+		parser.init(driver);
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		for (String line : source) {
+			if (line.startsWith("(<layer>"))
+				break;
+			parser.parse(line, commands);
+			for (DriverCommand command : commands) {
+				try {
+					command.run(driver);
+				} catch (Exception e) {
+					Assert.fail(line, e);
+				}
+			}
+			commands.clear();
+		}
+		return driver.getCurrentPosition(false);
+	}
+
+	@Test
+	public void resumeCodeIgnoresTheLocale() throws IOException {
+		File job = File.createTempFile("resume", ".gcode");
+		job.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(job));
+		for (String line : JOB)
+			out.println(line);
+		out.close();
+
+		// An index with the second layer in it, as a build would have left it
+		File file = new LayerIndex(job).getFile();
+		file.deleteOnExit();
+		out = new PrintWriter(new FileWriter(file));
+		out.println("ReplicatorG layer index 1");
+		out.println("job " + job.length() + " " + job.lastModified());
+		out.println("1 2 0.3 0.0 0.0 0.0 0.0 0.0 0 1800.0 1 0.0 0.0 0 0");
+		out.println("2 4 0.6 10.0 20.0 0.3 1.25 0.0 0 1800.0 1 0.0 0.0 0 0");
+		out.close();
+
+		List<LayerIndex.Layer> layers = new LayerIndex(job).getLayers();
+		Assert.assertEquals(layers.size(), 2);
+
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			IndexedGCodeSource source = new IndexedGCodeSource(job);
+			GCodeSource resume = LayerIndex.resumeSource(source, layers.get(1), driver());
+			for (String line : resume) {
+				if (line.startsWith("G"))
+					Assert.assertFalse(line.contains(","), line);
+			}
+			Point5d p = runResumeCode(resume);
+			Assert.assertEquals(p.x(), 10.0, 1e-9);
+			Assert.assertEquals(p.y(), 20.0, 1e-9);
+			Assert.assertEquals(p.z(), 0.3, 1e-9);
+			Assert.assertEquals(p.a(), 1.25, 1e-9);
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+}
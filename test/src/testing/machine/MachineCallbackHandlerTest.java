@@ -0,0 +1,143 @@
+package testing.machine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.machine.MachineCallbackHandler;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+
+/**
+ * Checks that state changes arrive in order and straight away, that
+ * progress is cut down to the latest, and that one stuck listener doesn't
+ * hold up the rest.
+ */
+public class MachineCallbackHandlerTest {
+
+	/** Keeps what it's sent: state names, and progress as "lines". */
+	static class Recorder implements MachineListener {
+		final List<String> seen = new ArrayList<String>();
+		final CountDownLatch ready;
+		final String until;
+
+		Recorder(String until) {
+			this.until = until;
+			ready = new CountDownLatch(1);
+		}
+
+		public synchronized void machineStateChanged(MachineStateChangeEvent evt) {
+			String state = evt.getState().getState().toString();
+			seen.add(state);
+			if (state.equals(until))
+				ready.countDown();
+		}
+
+		public synchronized void machineProgress(MachineProgressEvent event) {
+			seen.add(Integer.toString(event.getLines()));
+		}
+
+		public void toolStatusChanged(MachineToolStatusEvent event) {
+		}
+
+		synchronized List<String> seen() {
+			return new ArrayList<String>(seen);
+		}
+	}
+
+	MachineCallbackHandler handler;
+
+	@BeforeMethod
+	public void start() {
+		handler = new MachineCallbackHandler();
+		handler.start();
+	}
+
+	@AfterMethod
+	public void stop() throws InterruptedException {
+		handler.interrupt();
+		handler.join(5000);
+	}
+
+	void state(MachineState.State state) {
+		handler.schedule(new MachineStateChangeEvent(null, new MachineState(state)));
+	}
+
+	void progress(int lines) {
+		handler.schedule(new MachineProgressEvent(0, 0, lines, 100000));
+	}
+
+	@Test
+	public void statesInOrderProgressCoalesced() throws InterruptedException {
+		Recorder r = new Recorder("READY");
+		handler.addMachineListener(r);
+
+		state(MachineState.State.CONNECTING);
+		state(MachineState.State.BUILDING);
+		for (int i = 1; i <= 100000; i++)
+			progress(i);
+		state(MachineState.State.READY);
+
+		Assert.assertTrue(r.ready.await(5, TimeUnit.SECONDS));
+		List<String> seen = r.seen();
+		Assert.assertEquals(seen.get(0), "CONNECTING");
+		Assert.assertEquals(seen.get(1), "BUILDING");
+		// The last progress comes before the state change after it.
+		Assert.assertEquals(seen.get(seen.size() - 2), "100000");
+		Assert.assertEquals(seen.get(seen.size() - 1), "READY");
+		Assert.assertTrue(seen.size() < 100, seen.size() + " events for 100000 lines of progress");
+		// Whatever progress got through is in order.
+		int last = 0;
+		for (String s : seen.subList(2, seen.size() - 1)) {
+			int lines = Integer.parseInt(s);
+			Assert.assertTrue(lines > last);
+			last = lines;
+		}
+	}
+
+	@Test
+	public void stuckListenerDoesntHoldUpOthers() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		Recorder stuck = new Recorder("READY") {
+			public void machineStateChanged(MachineStateChangeEvent evt) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+				super.machineStateChanged(evt);
+			}
+		};
+		Recorder quick = new Recorder("READY");
+		handler.addMachineListener(stuck);
+		handler.addMachineListener(quick);
+
+		state(MachineState.State.BUILDING);
+		progress(1);
+		progress(2);
+		state(MachineState.State.READY);
+
+		Assert.assertTrue(quick.ready.await(5, TimeUnit.SECONDS));
+		checkBuild(quick.seen());
+
+		release.countDown();
+		Assert.assertTrue(stuck.ready.await(5, TimeUnit.SECONDS));
+		checkBuild(stuck.seen());
+	}
+
+	/// BUILDING, then maybe the first progress, then the last, then READY
+	void checkBuild(List<String> seen) {
+		Assert.assertEquals(seen.get(0), "BUILDING");
+		Assert.assertEquals(seen.get(seen.size() - 2), "2");
+		Assert.assertEquals(seen.get(seen.size() - 1), "READY");
+		Assert.assertTrue(seen.size() == 3 || seen.get(1).equals("1"), seen.toString());
+	}
+}
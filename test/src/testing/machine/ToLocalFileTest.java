@@ -0,0 +1,52 @@
+package testing.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.builder.ToLocalFile;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.StringListSource;
+
+/**
+ * Checks that a build to a local .s3g file gets to the end and closes the
+ * file once, however often it's asked whether it's finished.
+ */
+public class ToLocalFileTest {
+
+	static final String[] JOB = {
+		"G21", "G90", "G92 X0 Y0 Z0 A0 B0",
+		"G1 X10 Y5 Z0.3 F3000", "G1 X20 Y5 A1.5", "G1 X20 Y15 A3", "M18",
+	};
+
+	@Test
+	public void buildReachesTheEnd() throws IOException {
+		Sanguino3GDriver driver = new Sanguino3GDriver();
+		driver.setMachine(new MachineModel());
+
+		File file = File.createTempFile("build", ".s3g");
+		file.deleteOnExit();
+
+		Vector<String> lines = new Vector<String>();
+		for (String line : JOB)
+			lines.add(line);
+		ToLocalFile builder = new ToLocalFile(driver, null, new StringListSource(lines), file.getPath());
+		Assert.assertFalse(builder.setupFailed);
+
+		// Go round the way the machine thread does
+		for (int n = 0; !builder.finished(); n++) {
+			Assert.assertTrue(n < 1000, "the build never finished");
+			builder.runNext();
+		}
+		Assert.assertEquals(builder.getLinesProcessed(), JOB.length);
+		// Asking again must not close the file a second time
+		Assert.assertTrue(builder.finished());
+		Assert.assertTrue(builder.finished());
+
+		Assert.assertTrue(file.length() > 0, "nothing was written");
+	}
+}
@@ -0,0 +1,122 @@
+package testing.model;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.model.IndexedGCodeSource;
+
+/**
+ * Checks that a file source splits lines the way BufferedReader does,
+ * whether the file is small enough to read into memory or not, and that
+ * once closed it lets go of the file.
+ */
+public class IndexedGCodeSourceTest {
+
+	static final String[] ENDINGS = { "\n", "\r\n", "\r" };
+
+	/** Write lines with every kind of line ending until the file is at least the given size. */
+	static File job(long bytes) throws IOException {
+		File file = File.createTempFile("source", ".gcode");
+		file.deleteOnExit();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		long written = 0;
+		for (int n = 0; written < bytes; n++) {
+			String line = n % 97 == 0 ? "" : "G1 X" + n + " Y" + (n * 7 % 1000) + " (\u00b0)";
+			byte[] b = (line + ENDINGS[n % ENDINGS.length]).getBytes();
+			out.write(b);
+			written += b.length;
+		}
+		out.close();
+		return file;
+	}
+
+	static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		for (String line = in.readLine(); line != null; line = in.readLine())
+			lines.add(line);
+		in.close();
+		return lines;
+	}
+
+	static void check(File file) throws IOException {
+		List<String> expected = readLines(file);
+		IndexedGCodeSource source = new IndexedGCodeSource(file);
+		try {
+			Assert.assertEquals(source.getLineCount(), expected.size());
+			int n = 0;
+			for (String line : source)
+				Assert.assertEquals(line, expected.get(n++), "line " + n);
+			Assert.assertEquals(n, expected.size());
+			for (int i = expected.size() - 1; i >= 0; i -= 1009)
+				Assert.assertEquals(source.getLine(i), expected.get(i));
+			int from = expected.size() / 3;
+			Iterator<String> rest = source.linesFrom(from).iterator();
+			for (int i = from; i < from + 100; i++)
+				Assert.assertEquals(rest.next(), expected.get(i));
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test
+	public void smallFileReadsLikeBufferedReader() throws IOException {
+		File file = job(100000);
+		check(file);
+		file.delete();
+	}
+
+	@Test
+	public void bigFileReadsLikeBufferedReader() throws IOException {
+		File file = job(IndexedGCodeSource.SMALL_FILE + 100000);
+		check(file);
+		file.delete();
+	}
+
+	@Test
+	public void closeLetsGoOfTheFile() throws IOException {
+		File file = job(IndexedGCodeSource.SMALL_FILE + 100000);
+		IndexedGCodeSource source = new IndexedGCodeSource(file);
+		Iterator<String> lines = source.iterator();
+		lines.next();
+		source.close();
+		source.close();
+		Assert.assertTrue(source.isClosed());
+		// Readers are told, rather than seeing the file end early
+		try {
+			lines.hasNext();
+			Assert.fail("a closed source looked like it had ended");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			lines.next();
+			Assert.fail("read on from a closed source");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			source.getLine(0);
+			Assert.fail("read a line from a closed source");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// Cutting the file short must be safe now.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(10);
+		raf.close();
+		Assert.assertTrue(file.delete());
+	}
+}
@@ -0,0 +1,204 @@
+package testing.serial;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.app.util.serial.ByteFifo;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+
+/**
+ * Replays recorded machine output through the serial fifo, broken into runs
+ * of random length the way the serial port hands them over, and checks that
+ * what comes out the other side is what went in.
+ */
+public class ByteFifoReplayTest {
+
+	static final File RECORDINGS = new File("test/resources/serial");
+
+	static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int count;
+			while ((count = in.read(buf)) > 0)
+				out.write(buf, 0, count);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	// Recordings of binary protocols are kept as lines of hex bytes, with # comments.
+	static byte[] readHex(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#"))
+					continue;
+				for (String b : line.trim().split("\\s+"))
+					if (b.length() > 0)
+						out.write(Integer.parseInt(b, 16));
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Feed the stream in random runs, draining random amounts in between. */
+	static byte[] replay(byte[] stream, long seed, int maxChunk) {
+		Random random = new Random(seed);
+		ByteFifo fifo = new ByteFifo();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[maxChunk];
+		int pos = 0;
+		while (pos < stream.length || fifo.size() > 0) {
+			int chunk = Math.min(stream.length - pos, 1 + random.nextInt(maxChunk));
+			fifo.enqueue(stream, pos, chunk);
+			pos += chunk;
+
+			// Sometimes let the fifo back up, so that it has to wrap and grow.
+			if (random.nextInt(4) == 0 && pos < stream.length)
+				continue;
+			if (random.nextBoolean()) {
+				int count = fifo.dequeue(buf, 0, 1 + random.nextInt(maxChunk));
+				out.write(buf, 0, count);
+			} else {
+				while (fifo.size() > 0 && random.nextInt(64) != 0)
+					out.write(fifo.dequeue());
+			}
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void bytesComeOutAsTheyWentIn() throws IOException {
+		byte[] marlin = readFile(new File(RECORDINGS, "marlin-session.txt"));
+		byte[] s3g = readHex(new File(RECORDINGS, "s3g-responses.hex"));
+		for (long seed = 0; seed < 50; seed++) {
+			Assert.assertTrue(Arrays.equals(replay(marlin, seed, 7), marlin));
+			Assert.assertTrue(Arrays.equals(replay(marlin, seed, 1500), marlin));
+			Assert.assertTrue(Arrays.equals(replay(s3g, seed, 13), s3g));
+		}
+	}
+
+	@Test
+	public void linesSurviveChunking() throws IOException {
+		byte[] marlin = readFile(new File(RECORDINGS, "marlin-session.txt"));
+		List<String> expected = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(new File(RECORDINGS, "marlin-session.txt")));
+		String line;
+		while ((line = in.readLine()) != null)
+			expected.add(line);
+		in.close();
+
+		for (long seed = 0; seed < 50; seed++) {
+			Random random = new Random(seed);
+			ByteFifo fifo = new ByteFifo();
+			List<String> lines = new ArrayList<String>();
+			int pos = 0;
+			while (pos < marlin.length) {
+				int chunk = Math.min(marlin.length - pos, 1 + random.nextInt(200));
+				fifo.enqueue(marlin, pos, chunk);
+				pos += chunk;
+				// As RepRap5DDriver does: take every whole line that has arrived.
+				byte[] l;
+				while ((l = fifo.dequeueLine()).length > 0)
+					lines.add(new String(l, "US-ASCII").trim());
+			}
+			Assert.assertEquals(fifo.size(), 0);
+			Assert.assertEquals(lines, expected);
+		}
+	}
+
+	@Test
+	public void packetsSurviveChunking() throws IOException, CRCException {
+		byte[] s3g = readHex(new File(RECORDINGS, "s3g-responses.hex"));
+		for (long seed = 0; seed < 50; seed++) {
+			Random random = new Random(seed);
+			ByteFifo fifo = new ByteFifo();
+			PacketProcessor pp = new PacketProcessor();
+			byte[] buf = new byte[64];
+			int packets = 0;
+			int pos = 0;
+			while (pos < s3g.length || fifo.size() > 0) {
+				int chunk = Math.min(s3g.length - pos, 1 + random.nextInt(40));
+				fifo.enqueue(s3g, pos, chunk);
+				pos += chunk;
+				int count = fifo.dequeue(buf, 0, 1 + random.nextInt(buf.length));
+				for (int i = 0; i < count; i++) {
+					if (pp.processByte(buf[i])) {
+						packets++;
+						pp = new PacketProcessor();
+					}
+				}
+			}
+			Assert.assertEquals(packets, 60);
+		}
+	}
+
+	@Test
+	public void growsInsteadOfOverwriting() {
+		ByteFifo fifo = new ByteFifo();
+		byte[] in = new byte[10000];
+		new Random(1).nextBytes(in);
+		for (int i = 0; i < in.length; i += 100)
+			fifo.enqueue(in, i, 100);
+		Assert.assertEquals(fifo.size(), in.length);
+		byte[] out = new byte[in.length];
+		Assert.assertEquals(fifo.dequeue(out, 0, out.length), in.length);
+		Assert.assertTrue(Arrays.equals(in, out));
+	}
+
+	@Test
+	public void emptyFifoSaysSo() {
+		ByteFifo fifo = new ByteFifo();
+		fifo.enqueue((byte) 1);
+		Assert.assertEquals(fifo.dequeue(), 1);
+		try {
+			fifo.dequeue();
+			Assert.fail("dequeued a byte that wasn't there");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+		// Still in one piece
+		Assert.assertEquals(fifo.size(), 0);
+		fifo.enqueue((byte) 2);
+		Assert.assertEquals(fifo.dequeue(), 2);
+	}
+
+	@Test
+	public void stopsGrowingAtTheLimit() {
+		ByteFifo fifo = new ByteFifo();
+		byte[] in = new byte[ByteFifo.MAX_FIFO_SIZE / 4];
+		int dropped = 0;
+		for (int i = 0; i < 5; i++) {
+			Arrays.fill(in, (byte) i);
+			dropped += fifo.enqueue(in, 0, in.length);
+		}
+		// The oldest quarter went to make room for the newest
+		Assert.assertEquals(dropped, in.length);
+		Assert.assertEquals(fifo.size(), ByteFifo.MAX_FIFO_SIZE);
+		Assert.assertEquals(fifo.dequeue(), 1);
+		Assert.assertEquals(fifo.enqueue((byte) 9), 0);
+		Assert.assertEquals(fifo.enqueue((byte) 9), 1);
+		Assert.assertEquals(fifo.dequeue(), 1);
+	}
+}